@@ -0,0 +1,37 @@
+/*
+ * BenchmarkMain.java
+ *
+ * Entry point of the benchmarks jar. Runs JMH with the given arguments and
+ * writes the results as JSON, so runs on different commits can be compared
+ * with any JMH result viewer or a diff of the files.
+ *
+ * Run with: java -jar benchmarks/target/benchmarks.jar [JMH options] [benchmark regex]
+ *  e.g. java -jar benchmarks.jar -rff results/$(git rev-parse --short HEAD).json RpcBenchmark
+ */
+
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class BenchmarkMain {
+	private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	private BenchmarkMain() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+		//JSON unless another format was asked for
+		if (!jmhArgs.contains("-rf")) {
+			jmhArgs.add(0, "json");
+			jmhArgs.add(0, "-rf");
+		}
+		if (!jmhArgs.contains("-rff")) {
+			jmhArgs.add(0, DEFAULT_RESULT_FILE);
+			jmhArgs.add(0, "-rff");
+		}
+		org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+	}
+}
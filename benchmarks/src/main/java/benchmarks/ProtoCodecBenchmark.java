@@ -0,0 +1,132 @@
+/*
+ * ProtoCodecBenchmark.java
+ *
+ * Encode and decode cost of every message type the services put on the
+ * wire, v1 and v2, with typical simulator values. Encoding goes to a
+ * byte array like the gRPC marshaller's size-then-write path, decoding
+ * uses each type's generated parser.
+ */
+
+package benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtoCodecBenchmark {
+
+	@Param({
+		"thermostat.SetTargetTemperatureRequest", "thermostat.SetTargetTemperatureResponse",
+		"thermostat.GetTemperatureHistoryRequest", "thermostat.TemperatureReading",
+		"thermostat.GetAverageTemperatureResponse", "thermostat.HeatingLoad",
+		"solar.GetDailyYieldRequest", "solar.GetDailyYieldResponse", "solar.RealTimeOutput",
+		"solar.TradeRequest", "solar.TradeResponse",
+		"lighting.GetCurrentBrightnessRequest", "lighting.GetCurrentBrightnessResponse",
+		"lighting.StreamAmbientLightDataRequest", "lighting.AmbientLightReading", "lighting.LightUsageStat",
+		"lighting.UploadLightUsageResponse", "lighting.AdjustBrightnessRequest", "lighting.AdjustBrightnessResponse",
+		"thermostat.v2.TemperatureReading", "thermostat.v2.TemperatureChunk",
+		"solar.v2.RealTimeOutput", "solar.v2.TradeRequest", "solar.v2.TradeResponse",
+		"lighting.v2.AmbientLightReading", "lighting.v2.AdjustBrightnessRequest", "lighting.v2.AdjustBrightnessResponse",
+		"balance.BalanceSnapshot"
+	})
+	public String type;
+
+	private Message message;
+	private Parser<? extends Message> parser;
+	private byte[] encoded;
+
+	@Setup
+	public void setup() {
+		message = samples().get(type);
+		if (message == null) {
+			throw new IllegalArgumentException("No sample for " + type);
+		}
+		parser = message.getParserForType();
+		encoded = message.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return message.toByteArray();
+	}
+
+	@Benchmark
+	public Message decode() throws InvalidProtocolBufferException {
+		return parser.parseFrom(encoded);
+	}
+
+	//One representative message per type
+	static Map<String, Message> samples() {
+		long now = 1_718_971_200_000L; //2024-06-21T12:00:00Z
+		String iso = "2024-06-21T12:00:00Z";
+		Map<String, Message> m = new LinkedHashMap<>();
+
+		m.put("thermostat.SetTargetTemperatureRequest", thermostat.protos.SetTargetTemperatureRequest.newBuilder().setTargetTemp(21.5).build());
+		m.put("thermostat.SetTargetTemperatureResponse", thermostat.protos.SetTargetTemperatureResponse.newBuilder().setSuccess(true).build());
+		m.put("thermostat.GetTemperatureHistoryRequest", thermostat.protos.GetTemperatureHistoryRequest.newBuilder()
+				.setStartTimestamp(now - 86_400_000L).setEndTimestamp(now).build());
+		m.put("thermostat.TemperatureReading", thermostat.protos.TemperatureReading.newBuilder().setTemperature(20.4172).setTimestamp(now).build());
+		m.put("thermostat.GetAverageTemperatureResponse", thermostat.protos.GetAverageTemperatureResponse.newBuilder()
+				.setAverageTemp(20.0183).setReadingCount(86_401).build());
+		m.put("thermostat.HeatingLoad", thermostat.protos.HeatingLoad.newBuilder().setLoadKw(2.0374).setTimestamp(now).build());
+
+		m.put("solar.GetDailyYieldRequest", solar.protos.GetDailyYieldRequest.newBuilder().setDate("2024-06-21").build());
+		m.put("solar.GetDailyYieldResponse", solar.protos.GetDailyYieldResponse.newBuilder().setYieldKw(30.2174).setPeak(5.1183).build());
+		m.put("solar.RealTimeOutput", solar.protos.RealTimeOutput.newBuilder().setCurrentKw(4.83127).setTimestamp(iso).build());
+		m.put("solar.TradeRequest", solar.protos.TradeRequest.newBuilder().setPrice(0.35).setQuantity(2.5).build());
+		m.put("solar.TradeResponse", solar.protos.TradeResponse.newBuilder().setAccepted(true).setAgreedPrice(0.35).build());
+
+		m.put("lighting.GetCurrentBrightnessRequest", lighting.protos.GetCurrentBrightnessRequest.newBuilder().setZoneId("living-room").build());
+		m.put("lighting.GetCurrentBrightnessResponse", lighting.protos.GetCurrentBrightnessResponse.newBuilder().setLevel(73).setTimestamp(iso).build());
+		m.put("lighting.StreamAmbientLightDataRequest", lighting.protos.StreamAmbientLightDataRequest.newBuilder().setZoneId("living-room").build());
+		m.put("lighting.AmbientLightReading", lighting.protos.AmbientLightReading.newBuilder().setLux(412.73918).setOccupied(true).setTimestamp(iso).build());
+		m.put("lighting.LightUsageStat", lighting.protos.LightUsageStat.newBuilder().setDurationMin(60).build());
+		m.put("lighting.UploadLightUsageResponse", lighting.protos.UploadLightUsageResponse.newBuilder().setTotalEnergyKw(12.4831).build());
+		m.put("lighting.AdjustBrightnessRequest", lighting.protos.AdjustBrightnessRequest.newBuilder()
+				.setDesiredLevel(60).setOccupied(true).setTimestamp(iso).build());
+		m.put("lighting.AdjustBrightnessResponse", lighting.protos.AdjustBrightnessResponse.newBuilder().setLux(3604.2817).setTimestamp(iso).build());
+
+		m.put("thermostat.v2.TemperatureReading", thermostat.protos.v2.TemperatureReading.newBuilder().setCentiDegrees(2042).setTimeMs(now).build());
+		thermostat.protos.v2.TemperatureChunk.Builder chunk = thermostat.protos.v2.TemperatureChunk.newBuilder()
+				.setStartTimeMs(now).setStepMs(1_000);
+		for (int i = 0; i < 1024; i++) {
+			chunk.addCentiDegrees(2000 + (i * 37) % 100); //Default chunk size
+		}
+		m.put("thermostat.v2.TemperatureChunk", chunk.build());
+		m.put("solar.v2.RealTimeOutput", solar.protos.v2.RealTimeOutput.newBuilder().setCurrentW(4831).setTimeMs(now).build());
+		m.put("solar.v2.TradeRequest", solar.protos.v2.TradeRequest.newBuilder().setPriceMilli(350).setQuantityWh(2500).build());
+		m.put("solar.v2.TradeResponse", solar.protos.v2.TradeResponse.newBuilder().setCounterOfferMilli(400).build());
+		m.put("lighting.v2.AmbientLightReading", lighting.protos.v2.AmbientLightReading.newBuilder()
+				.setDeciLux(4127).setOccupied(true).setTimeMs(now).build());
+		m.put("lighting.v2.AdjustBrightnessRequest", lighting.protos.v2.AdjustBrightnessRequest.newBuilder()
+				.setDesiredLevel(60).setOccupied(true).setTimeMs(now).build());
+		m.put("lighting.v2.AdjustBrightnessResponse", lighting.protos.v2.AdjustBrightnessResponse.newBuilder().setDeciLux(36043).setTimeMs(now).build());
+
+		balance.protos.BalanceWindow window = balance.protos.BalanceWindow.newBuilder()
+				.setStart(now - 60_000).setEnd(now).setSolarKwh(0.0712).setLoadKwh(0.0351).setExportedKwh(0.0361).build();
+		m.put("balance.BalanceSnapshot", balance.protos.BalanceSnapshot.newBuilder()
+				.setTimestamp(now).setSequence(12_345).setSolarKw(4.27).setLightingKw(0.062).setHeatingKw(2.03).setNetKw(2.178)
+				.setCurrent(window).setCompleted(window).setSliding(window).setSlidingMeanNetKw(2.1).build());
+		return m;
+	}
+}
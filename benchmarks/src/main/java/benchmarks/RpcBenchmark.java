@@ -0,0 +1,371 @@
+/*
+ * RpcBenchmark.java
+ *
+ * End-to-end benchmarks of every RPC of the thermostat, solar and lighting
+ * services, each over the in-process transport and over Netty on loopback.
+ * The services run behind the same interceptors, codecs and executor as
+ * the real servers (ServerBootstrap.configure), and the channel carries the
+ * same compression policy as the clients. Streaming benchmarks move
+ * `messages` messages per call, so the score is the time for one call.
+ *
+ * The live streams normally tick every second or more, here the intervals
+ * are set to zero so they produce as fast as the client takes them: the
+ * client asks for all `messages` up front and cancels once it has them.
+ */
+
+package benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.google.protobuf.Empty;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import compression.Codecs;
+import compression.CompressionClientInterceptor;
+import compression.CompressionPolicy;
+import lighting.protos.AdjustBrightnessRequest;
+import lighting.protos.AdjustBrightnessResponse;
+import lighting.protos.AmbientLightReading;
+import lighting.protos.GetCurrentBrightnessRequest;
+import lighting.protos.GetCurrentBrightnessResponse;
+import lighting.protos.LightUsageStat;
+import lighting.protos.SmartLightingServiceGrpc;
+import lighting.protos.StreamAmbientLightDataRequest;
+import lighting.protos.UploadLightUsageResponse;
+import metrics.ClientMetrics;
+import metrics.RpcMetrics;
+import server.LightingServer;
+import server.ServerBootstrap;
+import server.SolarServer;
+import server.ThermostatServer;
+import solar.protos.GetDailyYieldRequest;
+import solar.protos.GetDailyYieldResponse;
+import solar.protos.RealTimeOutput;
+import solar.protos.SmartSolarServiceGrpc;
+import solar.protos.StreamRealTimeOutputRequest;
+import solar.protos.TradeRequest;
+import solar.protos.TradeResponse;
+import thermostat.protos.GetAverageTemperatureResponse;
+import thermostat.protos.GetTemperatureHistoryRequest;
+import thermostat.protos.HeatingLoad;
+import thermostat.protos.SetTargetTemperatureRequest;
+import thermostat.protos.SetTargetTemperatureResponse;
+import thermostat.protos.SmartThermostatGrpc;
+import thermostat.protos.TemperatureReading;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RpcBenchmark {
+
+	static {
+		//Before the server classes load: live streams without pauses, admission out of the way,
+		//the same simulated data on every run
+		System.setProperty("smarthome.solar.outputIntervalMs", "0");
+		System.setProperty("smarthome.lighting.ambientIntervalMs", "0");
+		System.setProperty("smarthome.thermostat.loadIntervalMs", "0");
+		System.setProperty("smarthome.admission.callsPerSecond", "1e9");
+		System.setProperty("smarthome.admission.callBurst", "1000000000");
+		System.setProperty("smarthome.admission.messagesPerSecond", "1e12");
+		System.setProperty("smarthome.admission.messageBurst", "1000000000");
+		System.setProperty("smarthome.admission.maxStreamsPerPeer", "100000");
+		System.setProperty("smarthome.simulation.seed", "1");
+	}
+
+	private static final long TIMEOUT_SECONDS = 30;
+
+	@Param({"inprocess", "netty"})
+	public String transport;
+
+	@Param({"100"})
+	public int messages;
+
+	private Server server;
+	private ManagedChannel channel;
+	private SmartThermostatGrpc.SmartThermostatBlockingStub thermostat;
+	private SmartThermostatGrpc.SmartThermostatStub thermostatAsync;
+	private SmartSolarServiceGrpc.SmartSolarServiceBlockingStub solar;
+	private SmartSolarServiceGrpc.SmartSolarServiceStub solarAsync;
+	private SmartLightingServiceGrpc.SmartLightingServiceBlockingStub lighting;
+	private SmartLightingServiceGrpc.SmartLightingServiceStub lightingAsync;
+
+	//Requests built once, the benchmarks measure the calls and not the request builders
+	private SetTargetTemperatureRequest setTarget;
+	private GetTemperatureHistoryRequest history;
+	private TemperatureReading[] readings;
+	private GetDailyYieldRequest dailyYield;
+	private TradeRequest[] trades;
+	private GetCurrentBrightnessRequest brightness;
+	private StreamAmbientLightDataRequest ambient;
+	private LightUsageStat[] usageStats;
+	private AdjustBrightnessRequest[] adjustments;
+
+	@Setup(Level.Trial)
+	public void start() throws Exception {
+		ServerBuilder<?> serverBuilder;
+		ManagedChannelBuilder<?> channelBuilder;
+		if ("inprocess".equals(transport)) {
+			String name = "rpc-benchmark";
+			serverBuilder = InProcessServerBuilder.forName(name);
+			channelBuilder = InProcessChannelBuilder.forName(name);
+		} else {
+			serverBuilder = NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0));
+			channelBuilder = null; //Needs the bound port
+		}
+		server = ServerBootstrap.configure(serverBuilder, new RpcMetrics("Benchmark"),
+				new ThermostatServer(), new SolarServer(), new LightingServer())
+				.build()
+				.start();
+		if (channelBuilder == null) {
+			channelBuilder = ManagedChannelBuilder.forAddress("127.0.0.1", server.getPort()).usePlaintext();
+		}
+
+		//Same pipeline as client.ChannelFactory, without the service discovery
+		channel = channelBuilder
+				.compressorRegistry(Codecs.compressors())
+				.decompressorRegistry(Codecs.decompressors())
+				.intercept(new CompressionClientInterceptor(CompressionPolicy.defaultPolicy()))
+				.intercept(new ClientMetrics("Benchmark").interceptor())
+				.build();
+		thermostat = SmartThermostatGrpc.newBlockingStub(channel);
+		thermostatAsync = SmartThermostatGrpc.newStub(channel);
+		solar = SmartSolarServiceGrpc.newBlockingStub(channel);
+		solarAsync = SmartSolarServiceGrpc.newStub(channel);
+		lighting = SmartLightingServiceGrpc.newBlockingStub(channel);
+		lightingAsync = SmartLightingServiceGrpc.newStub(channel);
+
+		long now = System.currentTimeMillis();
+		setTarget = SetTargetTemperatureRequest.newBuilder().setTargetTemp(21.5).build();
+		history = GetTemperatureHistoryRequest.newBuilder()
+				.setStartTimestamp(now)
+				.setEndTimestamp(now + (messages - 1) * 1_000L) //One reading a second
+				.build();
+		dailyYield = GetDailyYieldRequest.newBuilder().setDate("2024-06-21").build();
+		brightness = GetCurrentBrightnessRequest.newBuilder().setZoneId("living-room").build();
+		ambient = StreamAmbientLightDataRequest.newBuilder().setZoneId("living-room").build();
+		readings = new TemperatureReading[messages];
+		trades = new TradeRequest[messages];
+		usageStats = new LightUsageStat[messages];
+		adjustments = new AdjustBrightnessRequest[messages];
+		for (int i = 0; i < messages; i++) {
+			readings[i] = TemperatureReading.newBuilder().setTemperature(20 + (i % 10) * 0.1).setTimestamp(now + i * 1_000L).build();
+			trades[i] = TradeRequest.newBuilder().setPrice(0.30 + (i % 20) * 0.01).setQuantity(2.5).build(); //Half accepted
+			usageStats[i] = LightUsageStat.newBuilder().setDurationMin(60).build();
+			adjustments[i] = AdjustBrightnessRequest.newBuilder().setDesiredLevel(i % 101).setOccupied(i % 2 == 0)
+					.setTimestamp("2024-06-21T12:00:00Z").build();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws InterruptedException {
+		channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	//---- Thermostat ----
+
+	@Benchmark
+	public SetTargetTemperatureResponse setTargetTemperature() {
+		return thermostat.setTargetTemperature(setTarget);
+	}
+
+	@Benchmark
+	public double streamTemperatureHistory() {
+		double sum = 0;
+		Iterator<TemperatureReading> it = thermostat.streamTemperatureHistory(history);
+		while (it.hasNext()) {
+			sum += it.next().getTemperature();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public GetAverageTemperatureResponse getAverageTemperature() throws InterruptedException {
+		Collector<GetAverageTemperatureResponse> response = new Collector<>();
+		StreamObserver<TemperatureReading> requests = thermostatAsync.getAverageTemperature(response);
+		for (TemperatureReading r : readings) {
+			requests.onNext(r);
+		}
+		requests.onCompleted();
+		return response.await();
+	}
+
+	@Benchmark
+	public HeatingLoad streamHeatingLoad() throws InterruptedException {
+		Live<Empty, HeatingLoad> live = new Live<>(messages);
+		thermostatAsync.streamHeatingLoad(Empty.getDefaultInstance(), live);
+		return live.await();
+	}
+
+	//---- Solar ----
+
+	@Benchmark
+	public GetDailyYieldResponse getDailyYield() {
+		return solar.getDailyYield(dailyYield);
+	}
+
+	@Benchmark
+	public RealTimeOutput streamRealTimeOutput() throws InterruptedException {
+		Live<StreamRealTimeOutputRequest, RealTimeOutput> live = new Live<>(messages);
+		solarAsync.streamRealTimeOutput(StreamRealTimeOutputRequest.getDefaultInstance(), live);
+		return live.await();
+	}
+
+	@Benchmark
+	public TradeResponse energyTradeNegotiation() throws InterruptedException {
+		Collector<TradeResponse> responses = new Collector<>();
+		StreamObserver<TradeRequest> requests = solarAsync.energyTradeNegotiation(responses);
+		for (TradeRequest t : trades) {
+			requests.onNext(t);
+		}
+		requests.onCompleted();
+		return responses.await();
+	}
+
+	//---- Lighting ----
+
+	@Benchmark
+	public GetCurrentBrightnessResponse getCurrentBrightness() {
+		return lighting.getCurrentBrightness(brightness);
+	}
+
+	@Benchmark
+	public AmbientLightReading streamAmbientLightData() throws InterruptedException {
+		Live<StreamAmbientLightDataRequest, AmbientLightReading> live = new Live<>(messages);
+		lightingAsync.streamAmbientLightData(ambient, live);
+		return live.await();
+	}
+
+	@Benchmark
+	public UploadLightUsageResponse uploadLightUsageStats() throws InterruptedException {
+		Collector<UploadLightUsageResponse> response = new Collector<>();
+		StreamObserver<LightUsageStat> requests = lightingAsync.uploadLightUsageStats(response);
+		for (LightUsageStat s : usageStats) {
+			requests.onNext(s);
+		}
+		requests.onCompleted();
+		return response.await();
+	}
+
+	@Benchmark
+	public AdjustBrightnessResponse adjustBrightness() throws InterruptedException {
+		Collector<AdjustBrightnessResponse> responses = new Collector<>();
+		StreamObserver<AdjustBrightnessRequest> requests = lightingAsync.adjustBrightness(responses);
+		for (AdjustBrightnessRequest a : adjustments) {
+			requests.onNext(a);
+		}
+		requests.onCompleted();
+		return responses.await();
+	}
+
+	//Takes the first messages of an endless stream, all requested up front, then cancels the call
+	private static final class Live<ReqT, T> implements ClientResponseObserver<ReqT, T> {
+		private final int wanted;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private ClientCallStreamObserver<ReqT> call;
+		private int received;
+		private volatile T last;
+		private volatile Throwable error;
+
+		Live(int wanted) {
+			this.wanted = wanted;
+		}
+
+		@Override
+		public void beforeStart(ClientCallStreamObserver<ReqT> requestStream) {
+			call = requestStream;
+			requestStream.disableAutoRequestWithInitial(wanted);
+		}
+
+		@Override
+		public void onNext(T value) {
+			last = value;
+			if (++received == wanted) {
+				call.cancel("Benchmark has enough messages", null);
+				done.countDown();
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			if (received < wanted) {
+				error = t;
+			}
+			done.countDown();
+		}
+
+		@Override
+		public void onCompleted() {
+			done.countDown();
+		}
+
+		T await() throws InterruptedException {
+			if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("Stream did not deliver in " + TIMEOUT_SECONDS + "s");
+			}
+			if (error != null) {
+				throw new IllegalStateException("Stream failed", error);
+			}
+			return last;
+		}
+	}
+
+	//Keeps the last response and waits for the call to close
+	private static final class Collector<T> implements StreamObserver<T> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile T last;
+		private volatile Throwable error;
+
+		@Override
+		public void onNext(T value) {
+			last = value;
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			error = t;
+			done.countDown();
+		}
+
+		@Override
+		public void onCompleted() {
+			done.countDown();
+		}
+
+		T await() throws InterruptedException {
+			if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("Call did not complete in " + TIMEOUT_SECONDS + "s");
+			}
+			if (error != null) {
+				throw new IllegalStateException("Call failed", error);
+			}
+			return last;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * AdmissionContentionBenchmark.java
+ *
+ * Cost of the admission checks every inbound message and every stream open
+ * pays, with several threads hitting one peer's message bucket and one
+ * method's stream cap at once, as a busy client's transport threads do.
+ * Each check is run against a single compare-and-set word and against the
+ * striped form the admission controller uses, so the gap between the two
+ * is the contention the striping saves. It only shows when every benchmark
+ * thread has a core of its own:
+ *   java -jar benchmarks/target/benchmarks.jar AdmissionContentionBenchmark -t 8
+ */
+
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class AdmissionContentionBenchmark {
+	//A rate no benchmark reaches, so every check takes the granting path
+	private static final double RATE = 1e12;
+	private static final int BURST = 1 << 20;
+
+	@Param({"1", "8"})
+	public int stripes;
+
+	private TokenBucket messages;
+	private StripedLimit streams;
+	private final AtomicInteger single = new AtomicInteger();
+
+	@Setup
+	public void setup() {
+		messages = new TokenBucket(RATE, BURST, stripes);
+		streams = new StripedLimit(BURST, stripes);
+	}
+
+	//One inbound message against the peer's bucket
+	@Benchmark
+	public long message() {
+		return messages.tryAcquire(System.nanoTime());
+	}
+
+	//One stream opened and closed against the method's cap
+	@Benchmark
+	public int stream() {
+		if (stripes == 1) {
+			int open = single.incrementAndGet();
+			single.decrementAndGet();
+			return open;
+		}
+		int stripe = streams.tryAcquire();
+		streams.release(stripe);
+		return stripe;
+	}
+}
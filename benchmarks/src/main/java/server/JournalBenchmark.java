@@ -0,0 +1,58 @@
+/*
+ * JournalBenchmark.java
+ *
+ * Durable commit throughput of the journal with many concurrent writers,
+ * each blocking until its record is synced like an RPC handler does.
+ * Writes to a fresh file under java.io.tmpdir unless
+ * -Dsmarthome.journal.dir points elsewhere, e.g. at the SSD under test.
+ * Lives in the server package to reach the package-private journal.
+ */
+
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JournalBenchmark {
+
+	private Journal journal;
+
+	@Setup
+	public void setup() throws IOException {
+		if (System.getProperty("smarthome.journal.dir") == null) {
+			System.setProperty("smarthome.journal.dir", System.getProperty("java.io.tmpdir"));
+		}
+		journal = Journal.forServer("benchmark-" + System.nanoTime());
+	}
+
+	//One durable target temperature change per operation, 64 writers sharing the syncs
+	@Benchmark
+	@Threads(64)
+	public long durableCommit() {
+		return journal.append(Journal.TARGET_TEMPERATURE, 0, Double.doubleToRawLongBits(21.5), 0).join();
+	}
+
+	//The same from a single writer, one sync per commit
+	@Benchmark
+	@Threads(1)
+	public long durableCommitSingleWriter() {
+		return journal.append(Journal.TARGET_TEMPERATURE, 0, Double.doubleToRawLongBits(21.5), 0).join();
+	}
+}
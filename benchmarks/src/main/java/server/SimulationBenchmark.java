@@ -0,0 +1,106 @@
+/*
+ * SimulationBenchmark.java
+ *
+ * Microbenchmarks of the server-side compute paths without any transport:
+ * the per-minute energy loop behind uploadLightUsageStats, one reading of
+ * streamTemperatureHistory and the trade evaluation of
+ * energyTradeNegotiation, response building included.
+ * Lives in the server package to reach the package-private simulation
+ * helpers the services share.
+ */
+
+package server;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import io.grpc.stub.StreamObserver;
+import solar.protos.TradeRequest;
+import solar.protos.TradeResponse;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulationBenchmark {
+
+	private StreamObserver<TradeRequest> negotiation;
+	private TradeRequest[] trades;
+	private int next;
+
+	@Setup
+	public void setup(Blackhole bh) {
+		//The service's own request observer, responses go to the blackhole
+		negotiation = new SolarServer().energyTradeNegotiation(new StreamObserver<TradeResponse>() {
+			@Override
+			public void onNext(TradeResponse value) {
+				bh.consume(value);
+			}
+
+			@Override
+			public void onError(Throwable t) {
+			}
+
+			@Override
+			public void onCompleted() {
+			}
+		});
+		trades = new TradeRequest[64];
+		for (int i = 0; i < trades.length; i++) {
+			trades[i] = TradeRequest.newBuilder().setPrice(0.30 + (i % 20) * 0.01).setQuantity(2.5).build(); //Half accepted
+		}
+	}
+
+	//Energy for one uploaded stat of the given length
+	@Benchmark
+	public double usageEnergy(Usage usage) {
+		return usage.lighting.usageEnergyKw(usage.random, usage.durationMin);
+	}
+
+	//One simulated history reading, run with -t to see it scale across threads
+	@Benchmark
+	public double temperatureReading(History history) {
+		return history.thermostat.noisyTemp(0, history.timeMs += 1000);
+	}
+
+	//Accept check and response for one trade request
+	@Benchmark
+	public void tradeEvaluation() {
+		negotiation.onNext(trades[next++ & (trades.length - 1)]);
+	}
+
+	//Accept check alone
+	@Benchmark
+	public boolean tradeAccepts() {
+		return SolarServer.accepts(trades[next++ & (trades.length - 1)].getPrice());
+	}
+
+	//Stat lengths only matter to the energy loop
+	@State(Scope.Thread)
+	public static class Usage {
+		@Param({"1", "60", "1440"})
+		public int durationMin;
+
+		final LightingServer lighting = new LightingServer();
+		final SplittableRandom random = Simulation.random(Simulation.USAGE, 0);
+	}
+
+	@State(Scope.Thread)
+	public static class History {
+		final ThermostatServer thermostat = new ThermostatServer();
+		long timeMs;
+	}
+}
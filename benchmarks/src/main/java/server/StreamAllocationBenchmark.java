@@ -0,0 +1,237 @@
+/*
+ * StreamAllocationBenchmark.java
+ *
+ * Heap bytes allocated per emitted message on the server streaming paths:
+ * solar output and ambient light readings sent from the device rings,
+ * thermostat history readings and brightness adjustment responses. Each
+ * benchmark drives the service method itself with a stand-in call that
+ * serializes every message through one reused CodedOutputStream, the way
+ * the transport writes into its pooled buffers, so what is counted is the
+ * emit path and not the test harness.
+ *
+ * Every measurement iteration reads the thread's allocated bytes and fails
+ * the benchmark when the bytes per message exceed the path's budget. Run
+ * with -foe true so a budget overrun fails the whole run:
+ *   java -jar benchmarks/target/benchmarks.jar -foe true StreamAllocationBenchmark
+ * -prof gc reports the same figure as gc.alloc.rate.norm, per batch.
+ */
+
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import sharding.Homes;
+import lighting.protos.AdjustBrightnessRequest;
+import lighting.protos.AdjustBrightnessResponse;
+import lighting.protos.AmbientLightReading;
+import lighting.protos.StreamAmbientLightDataRequest;
+import solar.protos.RealTimeOutput;
+import solar.protos.StreamRealTimeOutputRequest;
+import thermostat.protos.GetTemperatureHistoryRequest;
+import thermostat.protos.TemperatureReading;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamAllocationBenchmark {
+	//Budgets in heap bytes per message, measured at 48 to 112 once warm. Each covers the message
+	//object itself, plus the ISO timestamp of a reading older than the current second.
+	private static final long SAMPLE_BUDGET = 160;
+	private static final long HISTORY_BUDGET = 64;
+	private static final long ADJUST_BUDGET = 96;
+
+	private static final int HISTORY_READINGS = 4096;
+	private static final int ADJUSTMENTS = 4096;
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private final SolarServer solar = new SolarServer();
+	private final LightingServer lighting = new LightingServer();
+	private final ThermostatServer thermostat = new ThermostatServer();
+	private final Call<Object> call = new Call<>();
+	private final Call<Object> adjustments = new Call<>();
+	private final StreamRealTimeOutputRequest output = StreamRealTimeOutputRequest.newBuilder().setResumeAfterMs(0).build();
+	private final StreamAmbientLightDataRequest ambient = StreamAmbientLightDataRequest.newBuilder()
+			.setZoneId("living").setResumeAfterMs(0).build();
+	private final GetTemperatureHistoryRequest history = GetTemperatureHistoryRequest.newBuilder()
+			.setStartTimestamp(0).setEndTimestamp((HISTORY_READINGS - 1) * 1_000L).build();
+	private final AdjustBrightnessRequest[] levels = new AdjustBrightnessRequest[16];
+	private StreamObserver<AdjustBrightnessRequest> adjust;
+	private long budget;
+	private long startBytes;
+	private long startMessages;
+
+	@Setup(Level.Trial)
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		//Full rings, a resuming stream sends all of them before its first pause
+		fill(solar.outputs.device(Homes.currentKey()).ring);
+		fill(lighting.ambient.device(LightingServer.zoneKey(Homes.currentKey(), ambient.getZoneId())).ring);
+		adjust = lighting.adjustBrightness((StreamObserver<AdjustBrightnessResponse>) (StreamObserver<?>) adjustments);
+		for (int i = 0; i < levels.length; i++) {
+			levels[i] = AdjustBrightnessRequest.newBuilder().setDesiredLevel(i * 6).setOccupied((i & 1) == 0)
+					.setTimestamp("2024-05-01T12:00:00Z").build();
+		}
+	}
+
+	//Whole ring of solar readings through the v1 stream's emit path
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public long solarOutput() {
+		budget = SAMPLE_BUDGET;
+		call.interrupting = true;
+		solar.streamRealTimeOutput(output, (StreamObserver<RealTimeOutput>) (StreamObserver<?>) call);
+		Thread.interrupted(); //Set to end the stream
+		return call.messages;
+	}
+
+	//Whole ring of one zone's ambient readings through the v1 stream's emit path
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public long ambientLight() {
+		budget = SAMPLE_BUDGET;
+		call.interrupting = true;
+		lighting.streamAmbientLightData(ambient, (StreamObserver<AmbientLightReading>) (StreamObserver<?>) call);
+		Thread.interrupted();
+		return call.messages;
+	}
+
+	//Range of v1 history readings
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public long temperatureHistory() {
+		budget = HISTORY_BUDGET;
+		call.interrupting = false;
+		thermostat.streamTemperatureHistory(history, (StreamObserver<TemperatureReading>) (StreamObserver<?>) call);
+		return call.messages;
+	}
+
+	//Brightness adjustments and their responses on one open stream
+	@Benchmark
+	public long brightnessAdjustments() {
+		budget = ADJUST_BUDGET;
+		for (int i = 0; i < ADJUSTMENTS; i++) {
+			adjust.onNext(levels[i & (levels.length - 1)]);
+		}
+		return adjustments.messages;
+	}
+
+	@Setup(Level.Iteration)
+	public void startIteration() {
+		startBytes = THREADS.getCurrentThreadAllocatedBytes();
+		startMessages = call.messages + adjustments.messages;
+	}
+
+	@TearDown(Level.Iteration)
+	public void checkBudget(IterationParams iteration) {
+		long bytes = THREADS.getCurrentThreadAllocatedBytes() - startBytes;
+		long messages = call.messages + adjustments.messages - startMessages;
+		if (iteration.getType() != IterationType.MEASUREMENT || messages == 0) {
+			return; //Warmup runs before the paths are compiled
+		}
+		double perMessage = (double) bytes / messages;
+		System.out.println(String.format(Locale.ROOT, "  %.1f B/message (budget %d)", perMessage, budget));
+		if (perMessage > budget) {
+			throw new IllegalStateException(String.format(Locale.ROOT, "%.1f bytes allocated per message, budget is %d",
+					perMessage, budget));
+		}
+	}
+
+	//Readings a millisecond apart, as many as the ring holds
+	private static void fill(SampleRing ring) {
+		for (int i = 0; i < ring.capacity(); i++) {
+			ring.append(i + 1, i * 0.5f, i & 1);
+		}
+	}
+
+	//Stand-in for a call that is always ready. Messages are serialized into a reused stream that
+	//discards them. An interrupting call interrupts the thread on every message, so a live stream
+	//sends what its ring holds and ends at its next pause.
+	private static final class Call<T> extends ServerCallStreamObserver<T> {
+		private final CodedOutputStream out = CodedOutputStream.newInstance(OutputStream.nullOutputStream(), 8192);
+		private long messages;
+		private boolean interrupting;
+
+		@Override
+		public void onNext(T value) {
+			try {
+				((MessageLite) value).writeTo(out);
+				out.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			messages++;
+			if (interrupting) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+		}
+
+		@Override
+		public void onCompleted() {
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public void setOnReadyHandler(Runnable onReadyHandler) {
+		}
+
+		@Override
+		public void setOnCancelHandler(Runnable onCancelHandler) {
+		}
+
+		@Override
+		public void setCompression(String compression) {
+		}
+
+		@Override
+		public void disableAutoInboundFlowControl() {
+		}
+
+		@Override
+		public void request(int count) {
+		}
+
+		@Override
+		public void setMessageCompression(boolean enable) {
+		}
+	}
+}
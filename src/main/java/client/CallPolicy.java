@@ -0,0 +1,43 @@
+/*
+ * CallPolicy.java
+ *
+ * Deadline, retry and hedging settings for one unary client method.
+ * Defaults can be overridden per method with system properties named
+ * smarthome.client.<method>.<setting>, for example
+ * -Dsmarthome.client.getDailyYield.deadlineMs=500
+ */
+
+package client;
+
+final class CallPolicy {
+	final long deadlineMillis; //Overall deadline across all attempts
+	final int maxAttempts; //Attempts including the first, retries and hedges
+	final long initialBackoffMillis; //Backoff cap for the first retry, doubled per retry
+	final long maxBackoffMillis; //Upper bound for the backoff cap
+	final double hedgeQuantile; //Latency percentile that triggers a hedge, 0 disables hedging
+	final long hedgeDelayMillis; //Hedge delay until enough latency samples exist, and its floor
+
+	private CallPolicy(String method, long deadlineMillis, int maxAttempts, double hedgeQuantile) {
+		String prefix = "smarthome.client." + method + ".";
+		this.deadlineMillis = Long.getLong(prefix + "deadlineMs", deadlineMillis);
+		this.maxAttempts = Math.max(1, Integer.getInteger(prefix + "maxAttempts", maxAttempts));
+		this.initialBackoffMillis = Long.getLong(prefix + "initialBackoffMs", 50);
+		this.maxBackoffMillis = Long.getLong(prefix + "maxBackoffMs", 1_000);
+		this.hedgeQuantile = Double.parseDouble(System.getProperty(prefix + "hedgeQuantile", Double.toString(hedgeQuantile)));
+		this.hedgeDelayMillis = Long.getLong(prefix + "hedgeDelayMs", 100);
+	}
+
+	//Idempotent read: retried with backoff and hedged past the p95 latency
+	static CallPolicy read(String method) {
+		return new CallPolicy(method, 2_000, 3, 0.95);
+	}
+
+	//State change: deadline only, never sent twice
+	static CallPolicy write(String method) {
+		return new CallPolicy(method, 2_000, 1, 0.0);
+	}
+
+	boolean hedging() {
+		return hedgeQuantile > 0 && maxAttempts > 1;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * ChannelFactory.java
+ *
+ * Builds the channels used by the clients.
+ * Looks the service up with jmDNS, falls back to a fixed host and port,
+ * and installs the compression policy and the client metrics and tracing
+ * interceptor. For the services partitioned by home it follows all of the
+ * service's nodes and routes each call to the node serving its home, with
+ * the home header and the same interceptors on every node's channel.
+ */
+
+package client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.logging.Logger;
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import compression.Codecs;
+import compression.CompressionClientInterceptor;
+import compression.CompressionPolicy;
+import metrics.ClientMetrics;
+import sharding.HomeClientInterceptor;
+import sharding.Placement;
+import sharding.ShardedChannel;
+
+final class ChannelFactory {
+	private static final Logger logger = Logger.getLogger(ChannelFactory.class.getName());
+
+	private ChannelFactory() {
+	}
+
+	//Discovers the service and builds an instrumented channel to it
+	static ManagedChannel create(String serviceType, String serviceName, String fallbackHost, int fallbackPort,
+			ClientMetrics metrics) {
+		ManagedChannelBuilder<?> builder;
+		long start = System.nanoTime();
+		try {
+			//Create jmDNS and lookup the service
+			JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
+			ServiceInfo info = jmdns.getServiceInfo(serviceType, serviceName, 5000); //Timeout
+			if (info == null) throw new IOException(serviceName + " not found");
+
+			//Pull host and port from the record
+			builder = ManagedChannelBuilder.forAddress(info.getHostAddresses()[0], info.getPort());
+		} catch (Exception e) {
+			logger.warning("jmDNS lookup failed, defaulting to localhost:PORT — " + e.getMessage());
+			//Fallback to localhost
+			builder = ManagedChannelBuilder.forAddress(fallbackHost, fallbackPort);
+		}
+		metrics.resolve().recordSince(start);
+		return instrument(builder, metrics);
+	}
+
+	//Discovers the service's nodes and builds an instrumented channel routing each call to its home's node
+	static ManagedChannel createSharded(String serviceType, String serviceName, String fallbackHost, int fallbackPort,
+			ClientMetrics metrics) {
+		ManagedChannel channel;
+		long start = System.nanoTime();
+		try {
+			//Create jmDNS and follow the service's nodes, the placement keeps up as nodes join and leave
+			JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
+			Placement placement = Placement.forClient();
+			if (!placement.discover(jmdns, serviceType, 5000)) { //Timeout
+				jmdns.close();
+				throw new IOException(serviceName + " not found");
+			}
+			channel = new ShardedChannel(placement, address ->
+					instrument(ManagedChannelBuilder.forAddress(address.getHostString(), address.getPort()), metrics));
+		} catch (Exception e) {
+			logger.warning("jmDNS lookup failed, defaulting to localhost:PORT — " + e.getMessage());
+			//Fallback to localhost, a single node serving every home
+			channel = instrument(ManagedChannelBuilder.forAddress(fallbackHost, fallbackPort), metrics);
+		}
+		metrics.resolve().recordSince(start);
+		return channel;
+	}
+
+	private static ManagedChannel instrument(ManagedChannelBuilder<?> builder, ClientMetrics metrics) {
+		return builder
+				.usePlaintext()
+				.compressorRegistry(Codecs.compressors())
+				.decompressorRegistry(Codecs.decompressors())
+				.intercept(new CompressionClientInterceptor(CompressionPolicy.defaultPolicy()))
+				.intercept(new HomeClientInterceptor())
+				.intercept(metrics.interceptor())
+				.build();
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * EnergyBalanceClient.java
+ *
+ * Client implementation for the SmartEnergyBalance gRPC service.
+ * Establishes a channel to the EnergyBalanceServer.
+ * Offers blocking and async access to the shared balance stream.
+ */
+
+package client;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.protobuf.Empty;
+import io.grpc.ManagedChannel;
+import io.grpc.StatusRuntimeException;
+import metrics.ClientMetrics;
+import balance.protos.SmartEnergyBalanceServiceGrpc;
+import balance.protos.BalanceSnapshot;
+
+public class EnergyBalanceClient {
+
+	private static Logger logger = Logger.getLogger(EnergyBalanceClient.class.getName());
+
+	//Host and port for connecting to the gRPC server if jmDNS fails
+    static String host = "localhost";
+    static int port = 50054;
+
+    //Channel and stub declarations
+    private static final ManagedChannel channel;
+    private static final SmartEnergyBalanceServiceGrpc.SmartEnergyBalanceServiceBlockingStub blockingStub;
+    private static final SmartEnergyBalanceServiceGrpc.SmartEnergyBalanceServiceStub asyncStub;
+
+    //Caller-side metrics for this client's channel
+    private static final ClientMetrics metrics = new ClientMetrics("Balance");
+
+    //Static initializer to set up channel and stubs
+    static {
+    	channel = ChannelFactory.create("_energybalance._grpc._tcp.local.", "EnergyBalanceService", host, port, metrics);
+        blockingStub = SmartEnergyBalanceServiceGrpc.newBlockingStub(channel);
+        asyncStub    = SmartEnergyBalanceServiceGrpc.newStub(channel);
+    }
+
+    //Caller-side RPC metrics for this client
+    public static ClientMetrics metrics() {
+    	return metrics;
+    }
+
+    //Shutdown method
+    public static void shutdown() {
+    	channel.shutdown();
+    	try {
+    		if (!channel.awaitTermination(5,  TimeUnit.SECONDS)) {
+    			channel.shutdownNow();
+    		}
+    	}catch(InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    }
+
+    //Server streaming: net balance snapshots, starting from the latest one
+    public static Iterator<BalanceSnapshot> streamBalance() {
+    	try {
+    		//Return the iterator
+    		return blockingStub.streamEnergyBalance(Empty.getDefaultInstance());
+    	}catch(StatusRuntimeException e) {
+    		//Log error and return an empty iterator
+            logger.warning("streamEnergyBalance RPC failed: " + e.getStatus());
+            return Collections.emptyIterator();
+    	}
+    }
+
+    //Async server streaming RPC: balance snapshots delivered as the subscriber requests them
+    public static Flow.Publisher<BalanceSnapshot> streamBalanceAsync() {
+    	return new StreamPublisher<Empty, BalanceSnapshot>(
+    			obs -> asyncStub.streamEnergyBalance(Empty.getDefaultInstance(), obs));
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * FutureObserver.java
+ *
+ * Response observer for calls with a single response, completing a
+ * CompletableFuture instead of counting down a latch.
+ */
+
+package client;
+
+import java.util.concurrent.CompletableFuture;
+import io.grpc.stub.StreamObserver;
+
+final class FutureObserver<T> implements StreamObserver<T> {
+	private final CompletableFuture<T> future = new CompletableFuture<>();
+	private volatile T value;
+
+	CompletableFuture<T> future() {
+		return future;
+	}
+
+	@Override
+	public void onNext(T v) {
+		value = v;
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		future.completeExceptionally(t);
+	}
+
+	@Override
+	public void onCompleted() {
+		T v = value;
+		if (v == null) {
+			future.completeExceptionally(new IllegalStateException("Call completed without a response"));
+		} else {
+			future.complete(v);
+		}
+	}
+}
@@ -13,14 +13,18 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import metrics.ClientMetrics;
 import lighting.protos.GetCurrentBrightnessRequest;
 import lighting.protos.GetCurrentBrightnessResponse;
 import lighting.protos.StreamAmbientLightDataRequest;
@@ -30,10 +34,6 @@ import lighting.protos.UploadLightUsageResponse;
 import lighting.protos.AdjustBrightnessRequest;
 import lighting.protos.AdjustBrightnessResponse;
 import lighting.protos.SmartLightingServiceGrpc;
-import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceInfo;
-import java.io.IOException;
-import java.net.InetAddress;
 
 public class LightingClient {
     private static final Logger logger = Logger.getLogger(LightingClient.class.getName());
@@ -46,38 +46,27 @@ public class LightingClient {
     private static final ManagedChannel channel;
     private static final SmartLightingServiceGrpc.SmartLightingServiceBlockingStub blockingStub;
     private static final SmartLightingServiceGrpc.SmartLightingServiceStub asyncStub;
+    private static final SmartLightingServiceGrpc.SmartLightingServiceFutureStub futureStub;
+    
+    //Caller-side metrics for this client's channel
+    private static final ClientMetrics metrics = new ClientMetrics("Lighting");
     
     //Static initializer to set up channel and stubs
     static {
-    	ManagedChannel tmpChannel;
-    	try {
-    	    //Create jmDNS and lookup the service
-    	    JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
-    	    ServiceInfo info = jmdns.getServiceInfo(
-    	        "_smartlighting._grpc._tcp.local.",  
-    	        "SmartLightingService",
-    	        5000 //Timeout
-    	    );
-    	    if (info == null) throw new IOException("SmartLightingService not found");
-
-    	    //Pull host and port from the record
-            tmpChannel = ManagedChannelBuilder
-                    .forAddress(info.getHostAddresses()[0], info.getPort())
-                    .usePlaintext()
-                    .build();
-            
-    	}catch(Exception e) {
-    		logger.warning("jmDNS lookup failed, defaulting to localhost:PORT — " + e.getMessage());
-    	    //Fallback to localhost
-    		tmpChannel = ManagedChannelBuilder
-    	        .forAddress(host, port)
-    	        .usePlaintext()
-    	        .build();
-    	}
-    	
-    	channel = tmpChannel;
+    	channel = ChannelFactory.createSharded("_smartlighting._grpc._tcp.local.", "SmartLightingService", host, port, metrics);
         blockingStub = SmartLightingServiceGrpc.newBlockingStub(channel);
         asyncStub    = SmartLightingServiceGrpc.newStub(channel);
+        futureStub   = SmartLightingServiceGrpc.newFutureStub(channel);
+    }
+    
+    //Deadline, retry and hedging policy for the unary call
+    private static final RetryBudget retryBudget = RetryBudget.fromProperties();
+    private static final UnaryPolicyExecutor getCurrentBrightnessPolicy = new UnaryPolicyExecutor(
+    		CallPolicy.read("getCurrentBrightness"), metrics, SmartLightingServiceGrpc.getGetCurrentBrightnessMethod().getFullMethodName(), retryBudget);
+    
+    //Caller-side RPC metrics for this client
+    public static ClientMetrics metrics() {
+    	return metrics;
     }
     
     //Shutdown method
@@ -100,22 +89,20 @@ public class LightingClient {
         		.setZoneId(zoneId)
                 .build();
         try {
-        	//Blocking call
-            return blockingStub.getCurrentBrightness(req);
+        	//Blocking call under the deadline, retry and hedging policy
+            return getCurrentBrightnessPolicy.executeBlocking(deadline -> futureStub.withDeadline(deadline).getCurrentBrightness(req));
         } catch (StatusRuntimeException e) {
             logger.warning("getCurrentBrightness RPC failed: " + e.getStatus()); //Error handling
             return null;
         }
     }
 
-    //Server streaming RPC: Get ambient light readings
+    //Server streaming RPC: Get ambient light readings, resumed after the last reading if the connection drops
     public static Iterator<AmbientLightReading> streamAmbientLightData(String zone) {
-        StreamAmbientLightDataRequest req = StreamAmbientLightDataRequest.newBuilder()
-            .setZoneId(zone)
-            .build();
         try {
         	//Return iterator
-        	return blockingStub.streamAmbientLightData(req);
+        	return ResumableStream.blocking("streamAmbientLightData",
+        			token -> blockingStub.streamAmbientLightData(ambientRequest(zone, token)), AmbientLightReading::getTimeMs);
         }catch(StatusRuntimeException e) {
         	logger.warning("streamAmbientLightData RPC falied: " + e.getStatus()); //Error handling
         	//Return empty iterator on failure
@@ -125,6 +112,11 @@ public class LightingClient {
     
     //Client streaming RPC: upload usage stats
     public static double uploadUsageStats(List<LightUsageStat> stats) {
+        return uploadUsageStats(stats.iterator());
+    }
+    
+    //Client streaming RPC: upload usage stats pulled lazily from an iterator as the transport drains
+    public static double uploadUsageStats(Iterator<LightUsageStat> stats) {
         CountDownLatch latch = new CountDownLatch(1);	//Synchronization aid
         AtomicReference<Double> totalRef = new AtomicReference<>(0.0); //To capture response
         
@@ -146,15 +138,13 @@ public class LightingClient {
         };
 
         try {
-        	//Obtain request observer and send each stat
-            StreamObserver<LightUsageStat> reqObs = asyncStub.uploadLightUsageStats(respObs);
-            for (LightUsageStat stat : stats) {
-                reqObs.onNext(stat);
-            }
-            reqObs.onCompleted();
-            //Wait for response or timeout after 5 seconds
-            if (!latch.await(5, TimeUnit.SECONDS)) {
+        	//Start the call, stats are sent only while the transport is ready for more
+            RequestPump.Observer<LightUsageStat, UploadLightUsageResponse> upload = RequestPump.observe(stats, 0, respObs);
+            asyncStub.uploadLightUsageStats(upload);
+            //Wait for response or timeout once the upload stalls for 5 seconds
+            if (!upload.pump().awaitCompletion(latch, 5, TimeUnit.SECONDS)) {
                 logger.warning("uploadLightUsageStats RPC timeout");
+                upload.pump().cancel("uploadLightUsageStats timed out");
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt(); //Error handling
@@ -165,18 +155,31 @@ public class LightingClient {
     //Bidirectional streaming RPC: adjust brightness and receive lux
     public static List<AdjustBrightnessResponse> adjustBrightness(
             List<AdjustBrightnessRequest> requests) throws InterruptedException {
+        List<AdjustBrightnessResponse> responses = Collections.synchronizedList(new ArrayList<>(requests.size()));
+        adjustBrightness(requests.iterator(), responses::add);
+        synchronized (responses) {
+            return new ArrayList<>(responses); //Callbacks may still arrive after a timeout
+        }
+    }
+    
+    //Bidirectional streaming RPC: adjustments pulled lazily and each response handed to the sink
+    //as it arrives, e.g. a LuxRing for long sessions. The sink is called from one callback thread
+    //at a time. Returns false if the session failed or stalled.
+    public static boolean adjustBrightness(Iterator<AdjustBrightnessRequest> requests,
+            Consumer<? super AdjustBrightnessResponse> sink) throws InterruptedException {
         CountDownLatch latch = new CountDownLatch(1);
-        List<AdjustBrightnessResponse> responses = new ArrayList<>();
+        AtomicBoolean ok = new AtomicBoolean(true);
         
-        //Response observer to collect incoming messages
+        //Response observer passing incoming messages to the sink
         StreamObserver<AdjustBrightnessResponse> respObs = new StreamObserver<AdjustBrightnessResponse>() {
             @Override 
             public void onNext(AdjustBrightnessResponse resp) {
-                responses.add(resp);
+                sink.accept(resp);
             }
             @Override 
             public void onError(Throwable t) {
                 logger.warning("adjustBrightness RPC failed: " + t.getMessage()); //Error handling
+                ok.set(false);
                 latch.countDown();
             }
             @Override 
@@ -185,17 +188,57 @@ public class LightingClient {
             }
         };
         
-        //Obtain request observer and send each adjustment
-        StreamObserver<AdjustBrightnessRequest> reqObs = asyncStub.adjustBrightness(respObs);
-        for (AdjustBrightnessRequest req : requests) {
-            reqObs.onNext(req);
-        }
-        reqObs.onCompleted();
+        //Start the call, adjustments are sent as the transport and the response window allow
+        RequestPump.Observer<AdjustBrightnessRequest, AdjustBrightnessResponse> session =
+                RequestPump.observe(requests, RequestPump.DEFAULT_WINDOW, respObs);
+        asyncStub.adjustBrightness(session);
         
-        //Wait for server to complete or timeout after 10 seconds
-        if (!latch.await(10, TimeUnit.SECONDS)) {
+        //Wait for server to complete or timeout once the session stalls for 10 seconds
+        if (!session.pump().awaitCompletion(latch, 10, TimeUnit.SECONDS)) {
             logger.warning("adjustBrightness RPC timeout"); //Error handling
+            session.pump().cancel("adjustBrightness timed out");
+            return false;
         }
-        return responses;
+        return ok.get();
+    }
+    
+    //Async unary RPC: current brightness, under the same policy as the blocking call
+    public static CompletableFuture<GetCurrentBrightnessResponse> getCurrentBrightnessAsync(String zoneId) {
+        GetCurrentBrightnessRequest req = GetCurrentBrightnessRequest.newBuilder()
+                .setZoneId(zoneId)
+                .build();
+        return getCurrentBrightnessPolicy.execute(deadline -> futureStub.withDeadline(deadline).getCurrentBrightness(req));
+    }
+    
+    //Async server streaming RPC: ambient light readings delivered as the subscriber requests them, resumed like the blocking stream
+    public static Flow.Publisher<AmbientLightReading> streamAmbientLightDataAsync(String zone) {
+        return ResumableStream.<StreamAmbientLightDataRequest, AmbientLightReading>publisher("streamAmbientLightData",
+                token -> obs -> asyncStub.streamAmbientLightData(ambientRequest(zone, token), obs), AmbientLightReading::getTimeMs);
+    }
+    
+    //Ambient stream request for the zone, resuming after the reading with the token's time
+    private static StreamAmbientLightDataRequest ambientRequest(String zone, long token) {
+        StreamAmbientLightDataRequest.Builder req = StreamAmbientLightDataRequest.newBuilder()
+            .setZoneId(zone);
+        if (token != ResumableStream.START) {
+            req.setResumeAfterMs(token);
+        }
+        return req.build();
+    }
+    
+    //Async client streaming RPC: upload usage stats and complete with the total energy
+    public static CompletableFuture<Double> uploadUsageStatsAsync(List<LightUsageStat> stats) {
+        return uploadUsageStatsAsync(stats.iterator());
+    }
+    
+    public static CompletableFuture<Double> uploadUsageStatsAsync(Iterator<LightUsageStat> stats) {
+        FutureObserver<UploadLightUsageResponse> respObs = new FutureObserver<>();
+        asyncStub.uploadLightUsageStats(RequestPump.observe(stats, 0, respObs)); //Sent as the transport drains
+        return respObs.future().thenApply(UploadLightUsageResponse::getTotalEnergyKw);
+    }
+    
+    //Async bidirectional streaming RPC: adjustment responses delivered as the subscriber requests them
+    public static Flow.Publisher<AdjustBrightnessResponse> adjustBrightnessAsync(Iterable<AdjustBrightnessRequest> requests) {
+        return StreamPublisher.bidi(asyncStub::adjustBrightness, requests, RequestPump.DEFAULT_WINDOW);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,59 @@
+/*
+ * LuxRing.java
+ *
+ * Last N brightness adjustment responses, kept as parallel lux and
+ * receive-time columns.
+ */
+
+package client;
+
+import lighting.protos.AdjustBrightnessResponse;
+
+public final class LuxRing extends ResponseRing<AdjustBrightnessResponse> {
+	private final double[] lux;
+	private final long[] receivedAt;
+
+	public LuxRing(int capacity) {
+		super(capacity);
+		this.lux = new double[capacity];
+		this.receivedAt = new long[capacity];
+	}
+
+	@Override
+	protected void store(int slot, AdjustBrightnessResponse resp, long now) {
+		lux[slot] = resp.getLux();
+		receivedAt[slot] = now;
+	}
+
+	//Lux of the i-th held response, 0 being the oldest
+	public synchronized double lux(int i) {
+		checkIndex(i, size());
+		return lux[slot(i)];
+	}
+
+	//Receive time (epoch millis) of the i-th held response
+	public synchronized long receivedAt(int i) {
+		checkIndex(i, size());
+		return receivedAt[slot(i)];
+	}
+
+	//Lux of every held response, oldest first
+	public synchronized double[] luxValues() {
+		int n = size();
+		double[] out = new double[n];
+		for (int i = 0; i < n; i++) {
+			out[i] = lux[slot(i)];
+		}
+		return out;
+	}
+
+	//Mean lux over the held responses, NaN when empty
+	public synchronized double meanLux() {
+		int n = size();
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += lux[slot(i)];
+		}
+		return n == 0 ? Double.NaN : sum / n;
+	}
+}
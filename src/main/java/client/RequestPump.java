@@ -0,0 +1,146 @@
+/*
+ * RequestPump.java
+ *
+ * Sends the requests of a client-streaming or bidirectional call from a
+ * lazy Iterator, driven by the transport's readiness instead of a tight
+ * onNext loop. A request is only pulled from the source while the call
+ * reports isReady(), so nothing piles up in client memory when the server
+ * is slower than the producer. For bidirectional calls an optional window
+ * also bounds the number of requests still waiting for their response.
+ *
+ * All pump work runs on the call's serialized callback executor
+ * (onReady and onNext), so it needs no locking.
+ */
+
+package client;
+
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+final class RequestPump<T> implements Runnable {
+
+	//Default bound on unanswered requests for bidirectional calls
+	static final int DEFAULT_WINDOW = Integer.getInteger("smarthome.client.bidiWindow", 64);
+
+	private final Iterator<? extends T> source;
+	private final int window; //0 for no response-based bound
+	private volatile ClientCallStreamObserver<T> call;
+	private int inFlight;
+	private boolean done;
+	private volatile long sent;
+
+	RequestPump(Iterator<? extends T> source, int window) {
+		this.source = source;
+		this.window = window;
+	}
+
+	//Must be called from beforeStart, before the call is started
+	void attach(ClientCallStreamObserver<T> requestStream) {
+		this.call = requestStream;
+		requestStream.setOnReadyHandler(this);
+	}
+
+	//Number of requests sent so far, readable from any thread
+	long sent() {
+		return sent;
+	}
+
+	//Cancels the call, safe from any thread
+	void cancel(String message) {
+		ClientCallStreamObserver<T> c = call;
+		if (c != null) {
+			c.cancel(message, null);
+		}
+	}
+
+	//Waits for the call to finish, giving up only once no request has been sent for the idle timeout
+	boolean awaitCompletion(CountDownLatch latch, long idleTimeout, TimeUnit unit) throws InterruptedException {
+		long last = sent;
+		while (!latch.await(idleTimeout, unit)) {
+			long now = sent;
+			if (now == last) {
+				return false; //Stalled
+			}
+			last = now;
+		}
+		return true;
+	}
+
+	//Frees one window slot when a response arrives
+	void responseReceived() {
+		if (inFlight > 0) {
+			inFlight--;
+		}
+		run();
+	}
+
+	//Drains the source while the transport can take more
+	@Override
+	public void run() {
+		if (done || call == null) {
+			return;
+		}
+		try {
+			while (call.isReady() && (window <= 0 || inFlight < window)) {
+				if (!source.hasNext()) {
+					done = true;
+					call.onCompleted(); //End of the request stream
+					return;
+				}
+				call.onNext(source.next());
+				sent++;
+				if (window > 0) {
+					inFlight++;
+				}
+			}
+		} catch (RuntimeException e) {
+			done = true;
+			call.cancel("Request source failed", e); //Surfaces to the response observer as onError
+		}
+	}
+
+	//Response observer that starts the pump and passes responses on
+	static <ReqT, RespT> Observer<ReqT, RespT> observe(Iterator<? extends ReqT> source, int window,
+			StreamObserver<RespT> downstream) {
+		return new Observer<>(new RequestPump<>(source, window), downstream);
+	}
+
+	static final class Observer<ReqT, RespT> implements ClientResponseObserver<ReqT, RespT> {
+		private final RequestPump<ReqT> pump;
+		private final StreamObserver<RespT> downstream;
+
+		private Observer(RequestPump<ReqT> pump, StreamObserver<RespT> downstream) {
+			this.pump = pump;
+			this.downstream = downstream;
+		}
+
+		RequestPump<ReqT> pump() {
+			return pump;
+		}
+
+		@Override
+		public void beforeStart(ClientCallStreamObserver<ReqT> requestStream) {
+			pump.attach(requestStream);
+		}
+
+		@Override
+		public void onNext(RespT value) {
+			downstream.onNext(value);
+			pump.responseReceived();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			downstream.onError(t);
+		}
+
+		@Override
+		public void onCompleted() {
+			downstream.onCompleted();
+		}
+	}
+}
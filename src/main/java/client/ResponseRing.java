@@ -0,0 +1,62 @@
+/*
+ * ResponseRing.java
+ *
+ * Fixed-capacity ring holding the last N responses of a long-running
+ * bidirectional call. Subclasses keep each field in its own primitive
+ * array, so the ring allocates nothing per response and its memory does
+ * not grow with the length of the session.
+ *
+ * Responses are written from gRPC callback threads and read from any
+ * other thread, so every access goes through the ring's monitor.
+ */
+
+package client;
+
+import java.util.function.Consumer;
+
+abstract class ResponseRing<T> implements Consumer<T> {
+	protected final int capacity;
+	private long written; //Responses ever recorded, the next slot is written % capacity
+
+	protected ResponseRing(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	//Stores one response in the given slot
+	protected abstract void store(int slot, T value, long receivedAt);
+
+	@Override
+	public final synchronized void accept(T value) {
+		store((int) (written % capacity), value, System.currentTimeMillis());
+		written++;
+	}
+
+	public final int capacity() {
+		return capacity;
+	}
+
+	//Number of responses currently held, at most the capacity
+	public final synchronized int size() {
+		return (int) Math.min(written, capacity);
+	}
+
+	//Number of responses recorded since the ring was created, including overwritten ones
+	public final synchronized long written() {
+		return written;
+	}
+
+	//Slot of the i-th held response, 0 being the oldest; callers hold the monitor
+	protected final int slot(int i) {
+		long oldest = Math.max(0, written - capacity);
+		return (int) ((oldest + i) % capacity);
+	}
+
+	protected static void checkIndex(int i, int size) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("index " + i + " size " + size);
+		}
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * ResumableStream.java
+ *
+ * Server-streaming calls that carry on across dropped connections.
+ * Every reading names its time, and the server accepts that time back as
+ * a resume token: a call reopened after the last reading received starts
+ * right after it, so a reconnect costs only the readings that were missed,
+ * never a re-transfer of what already arrived.
+ *
+ * Calls failing with UNAVAILABLE, a dropped connection or a node going
+ * away, or RESOURCE_EXHAUSTED from the server's admission controller, are
+ * reopened after a full-jitter exponential backoff, so a Wi-Fi blip does
+ * not bring every stream back in the same instant, and never sooner than
+ * the server's retry-after-ms hint. The backoff starts over once a reading
+ * arrives. Other failures, and too many reconnects in a row, end the stream.
+ *
+ * Settings are system properties:
+ *   smarthome.client.resume.maxAttempts       (default 8)     reconnects in a row without a reading
+ *   smarthome.client.resume.initialBackoffMs  (default 100)   backoff cap for the first reconnect, doubled per reconnect
+ *   smarthome.client.resume.maxBackoffMs      (default 5000)  upper bound for the backoff cap
+ */
+
+package client;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+import java.util.logging.Logger;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+final class ResumableStream {
+	private static final Logger logger = Logger.getLogger(ResumableStream.class.getName());
+
+	static final long START = Long.MIN_VALUE; //Token of a call that is not resuming
+
+	private static final int MAX_ATTEMPTS = Integer.getInteger("smarthome.client.resume.maxAttempts", 8);
+	private static final long INITIAL_BACKOFF_MS = Long.getLong("smarthome.client.resume.initialBackoffMs", 100);
+	private static final long MAX_BACKOFF_MS = Long.getLong("smarthome.client.resume.maxBackoffMs", 5_000);
+
+	//Back-off hint set by the server's admission controller on RESOURCE_EXHAUSTED
+	private static final Metadata.Key<String> RETRY_AFTER_MS =
+			Metadata.Key.of("retry-after-ms", Metadata.ASCII_STRING_MARSHALLER);
+
+	private ResumableStream() {
+	}
+
+	//Blocking stream; open starts a call after the token, or from the start for START, e.g.
+	//token -> blockingStub.streamX(request(token)). The first call is opened at once.
+	static <T> Iterator<T> blocking(String method, LongFunction<Iterator<T>> open, ToLongFunction<? super T> token) {
+		return new BlockingStream<>(method, open, token);
+	}
+
+	//Flow publisher; open starts a call with the observer after the token, e.g.
+	//token -> obs -> asyncStub.streamX(request(token), obs). Each subscribe() is one resumable stream.
+	static <ReqT, T> Flow.Publisher<T> publisher(String method,
+			LongFunction<Consumer<ClientResponseObserver<ReqT, T>>> open, ToLongFunction<? super T> token) {
+		return subscriber -> new Subscription<>(method, open, token, subscriber).start();
+	}
+
+	private static boolean resumable(Status.Code code) {
+		return code == Status.Code.UNAVAILABLE || code == Status.Code.RESOURCE_EXHAUSTED;
+	}
+
+	//Delay before reconnect number attempt, or -1 if the failure ends the stream
+	private static long backoffMillis(String method, int attempt, Throwable failure) {
+		Status status = Status.fromThrowable(failure);
+		if (!resumable(status.getCode()) || attempt > MAX_ATTEMPTS) {
+			return -1;
+		}
+		long cap = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempt - 1, 20));
+		long delay = ThreadLocalRandom.current().nextLong(cap + 1); //Full jitter
+		Metadata trailers = Status.trailersFromThrowable(failure);
+		String retryAfter = trailers == null ? null : trailers.get(RETRY_AFTER_MS);
+		if (retryAfter != null) {
+			try {
+				delay = Math.max(delay, Long.parseLong(retryAfter));
+			} catch (NumberFormatException ignored) {
+				//Keep the jittered backoff
+			}
+		}
+		logger.fine(method + " dropped (" + status.getCode() + "), resuming in " + delay + " ms");
+		return delay;
+	}
+
+	//Iterator over the calls of one stream, reopening a failed call when the next reading is asked for
+	private static final class BlockingStream<T> implements Iterator<T> {
+		private final String method;
+		private final LongFunction<Iterator<T>> open;
+		private final ToLongFunction<? super T> token;
+		private Iterator<T> call;
+		private long last = START; //Token of the last reading handed out
+		private int attempts; //Reconnects since the last reading
+
+		BlockingStream(String method, LongFunction<Iterator<T>> open, ToLongFunction<? super T> token) {
+			this.method = method;
+			this.open = open;
+			this.token = token;
+			this.call = open.apply(START);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (true) {
+				try {
+					return call.hasNext();
+				} catch (StatusRuntimeException e) {
+					long delay = backoffMillis(method, ++attempts, e);
+					if (delay < 0) {
+						throw e;
+					}
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw Status.CANCELLED.withDescription("interrupted").withCause(ie).asRuntimeException();
+					}
+					call = open.apply(last);
+				}
+			}
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T value = call.next();
+			last = token.applyAsLong(value);
+			attempts = 0;
+			return value;
+		}
+	}
+
+	//One subscriber's stream across its calls. Demand the subscriber signalled but that was not
+	//delivered yet is asked of each new call, so a reconnect never delivers more than was requested.
+	private static final class Subscription<ReqT, T> implements Flow.Subscription {
+		private final String method;
+		private final LongFunction<Consumer<ClientResponseObserver<ReqT, T>>> open;
+		private final ToLongFunction<? super T> token;
+		private final Flow.Subscriber<? super T> subscriber;
+		private ClientCallStreamObserver<ReqT> call; //Current call once started, null between calls, guarded by this
+		private long demand; //Requested and not yet delivered, guarded by this
+		private long inFlight; //Asked of the current call and not yet delivered, guarded by this
+		private boolean terminated; //Guarded by this
+		private volatile long last = START; //Token of the last reading delivered
+		private int attempts; //Reconnects since the last reading, touched by one call's callbacks at a time
+
+		Subscription(String method, LongFunction<Consumer<ClientResponseObserver<ReqT, T>>> open,
+				ToLongFunction<? super T> token, Flow.Subscriber<? super T> subscriber) {
+			this.method = method;
+			this.open = open;
+			this.token = token;
+			this.subscriber = subscriber;
+		}
+
+		void start() {
+			subscriber.onSubscribe(this);
+			connect();
+		}
+
+		private void connect() {
+			synchronized (this) {
+				if (terminated) {
+					return;
+				}
+			}
+			Attempt attempt = new Attempt();
+			try {
+				open.apply(last).accept(attempt);
+			} catch (RuntimeException e) {
+				fail(e);
+				return;
+			}
+			//The call has started, so it can take the demand that arrived since beforeStart
+			boolean cancelled;
+			synchronized (this) {
+				cancelled = terminated && !attempt.ended;
+				if (!terminated && !attempt.ended) {
+					call = attempt.stream;
+					ask(demand - inFlight);
+				}
+			}
+			if (cancelled) {
+				attempt.stream.cancel("Cancelled by subscriber", null);
+			}
+		}
+
+		//Asks the current call for n more readings, guarded by this
+		private void ask(long n) {
+			int more = (int) Math.min(n, Integer.MAX_VALUE - inFlight);
+			if (more > 0) {
+				inFlight += more;
+				call.request(more);
+			}
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				cancel();
+				fail(new IllegalArgumentException("request(" + n + ") must be positive")); //Reactive Streams rule 3.9
+				return;
+			}
+			synchronized (this) {
+				if (terminated) {
+					return;
+				}
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				if (call != null) {
+					ask(n);
+				}
+			}
+		}
+
+		@Override
+		public void cancel() {
+			ClientCallStreamObserver<ReqT> c;
+			synchronized (this) {
+				if (terminated) {
+					return;
+				}
+				terminated = true;
+				c = call;
+			}
+			if (c != null) {
+				c.cancel("Cancelled by subscriber", null);
+			}
+		}
+
+		private void fail(Throwable t) {
+			synchronized (this) {
+				if (terminated) {
+					return;
+				}
+				terminated = true;
+			}
+			subscriber.onError(t);
+		}
+
+		//Observer of one call of the stream
+		private final class Attempt implements ClientResponseObserver<ReqT, T> {
+			private ClientCallStreamObserver<ReqT> stream;
+			private boolean ended; //Guarded by the subscription
+
+			//Runs before the call starts, when it can only be told how many readings to ask for first
+			@Override
+			public void beforeStart(ClientCallStreamObserver<ReqT> requestStream) {
+				stream = requestStream;
+				synchronized (Subscription.this) {
+					inFlight = Math.min(demand, Integer.MAX_VALUE);
+					requestStream.disableAutoRequestWithInitial((int) inFlight);
+				}
+			}
+
+			@Override
+			public void onNext(T value) {
+				synchronized (Subscription.this) {
+					if (terminated) {
+						return;
+					}
+					if (demand != Long.MAX_VALUE) {
+						demand--;
+					}
+					inFlight--;
+				}
+				last = token.applyAsLong(value);
+				attempts = 0;
+				subscriber.onNext(value);
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				synchronized (Subscription.this) {
+					ended = true;
+					call = null; //Demand it was asked for goes to the next call
+					inFlight = 0;
+					if (terminated) {
+						return;
+					}
+				}
+				long delay = backoffMillis(method, ++attempts, t);
+				if (delay < 0) {
+					fail(t);
+				} else {
+					UnaryPolicyExecutor.TIMER.schedule(Subscription.this::connect, delay, TimeUnit.MILLISECONDS);
+				}
+			}
+
+			@Override
+			public void onCompleted() {
+				synchronized (Subscription.this) {
+					ended = true;
+					call = null;
+					if (terminated) {
+						return;
+					}
+					terminated = true;
+				}
+				subscriber.onComplete();
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * RetryBudget.java
+ *
+ * Token budget that stops retries and hedges from amplifying an overload,
+ * using the same scheme as gRPC retry throttling: every overload failure
+ * costs one token, every success earns back a fraction of one, and extra
+ * attempts are only allowed while more than half the tokens remain.
+ * Tokens are kept in thousandths in one AtomicLong, so it is lock-free.
+ */
+
+package client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+final class RetryBudget {
+	private static final long SCALE = 1_000;
+
+	private final long maxTokens;
+	private final long successCredit;
+	private final AtomicLong tokens;
+
+	RetryBudget(int maxTokens, double tokenRatio) {
+		this.maxTokens = maxTokens * SCALE;
+		this.successCredit = (long) (tokenRatio * SCALE);
+		this.tokens = new AtomicLong(this.maxTokens);
+	}
+
+	//Budget shared by all methods of one client, configurable by system property
+	static RetryBudget fromProperties() {
+		return new RetryBudget(Integer.getInteger("smarthome.client.retryTokens", 10),
+				Double.parseDouble(System.getProperty("smarthome.client.retryTokenRatio", "0.1")));
+	}
+
+	//True while extra attempts are allowed
+	boolean allowsRetry() {
+		return tokens.get() > maxTokens / 2;
+	}
+
+	void onSuccess() {
+		tokens.getAndUpdate(t -> Math.min(maxTokens, t + successCredit));
+	}
+
+	void onFailure() {
+		tokens.getAndUpdate(t -> Math.max(0, t - SCALE));
+	}
+}
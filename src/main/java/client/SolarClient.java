@@ -9,28 +9,27 @@
 
 package client;
 
-import java.io.IOException;
-import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
-import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceInfo;
-
-import com.google.protobuf.Empty;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import metrics.ClientMetrics;
 import solar.protos.SmartSolarServiceGrpc;
 import solar.protos.GetDailyYieldRequest;
 import solar.protos.GetDailyYieldResponse;
 import solar.protos.RealTimeOutput;
+import solar.protos.StreamRealTimeOutputRequest;
 import solar.protos.TradeRequest;
 import solar.protos.TradeResponse;
 
@@ -46,37 +45,27 @@ public class SolarClient {
     private static final ManagedChannel channel;
     private static final SmartSolarServiceGrpc.SmartSolarServiceBlockingStub blockingStub;
     private static final SmartSolarServiceGrpc.SmartSolarServiceStub asyncStub;  
+    private static final SmartSolarServiceGrpc.SmartSolarServiceFutureStub futureStub;
+    
+    //Caller-side metrics for this client's channel
+    private static final ClientMetrics metrics = new ClientMetrics("Solar");
     
     //Static initializer to set up channel and stubs
     static {
-    	ManagedChannel tmpChannel;
-    	try {
-    	    //Create jmDNS and lookup the service
-    	    JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
-    	    ServiceInfo info = jmdns.getServiceInfo(
-    	        "_solarpanel._grpc._tcp.local.",  
-    	        "SolarPanelService",
-    	        5000 //Timeout
-    	    );
-    	    if (info == null) throw new IOException("SolarPanelService not found");
-
-    	    //Pull host and port from the record
-            tmpChannel = ManagedChannelBuilder
-                    .forAddress(info.getHostAddresses()[0], info.getPort())
-                    .usePlaintext()
-                    .build();
-    	}catch(Exception e) {
-    		logger.warning("jmDNS lookup failed, defaulting to localhost:PORT — " + e.getMessage());
-    	    //Fallback to localhost
-    		tmpChannel = ManagedChannelBuilder
-    	        .forAddress(host, port)
-    	        .usePlaintext()
-    	        .build();
-    	}
-    	
-    	channel = tmpChannel;//Static initializer to set up channel and stubs
+    	channel = ChannelFactory.createSharded("_solarpanel._grpc._tcp.local.", "SolarPanelService", host, port, metrics);
         blockingStub = SmartSolarServiceGrpc.newBlockingStub(channel);
         asyncStub    = SmartSolarServiceGrpc.newStub(channel);
+        futureStub   = SmartSolarServiceGrpc.newFutureStub(channel);
+    }
+    
+    //Deadline, retry and hedging policy for the unary call
+    private static final RetryBudget retryBudget = RetryBudget.fromProperties();
+    private static final UnaryPolicyExecutor getDailyYieldPolicy = new UnaryPolicyExecutor(
+    		CallPolicy.read("getDailyYield"), metrics, SmartSolarServiceGrpc.getGetDailyYieldMethod().getFullMethodName(), retryBudget);
+    
+    //Caller-side RPC metrics for this client
+    public static ClientMetrics metrics() {
+    	return metrics;
     }
     
     //Shutdown method
@@ -99,19 +88,20 @@ public class SolarClient {
     			.setDate(date)
     			.build();
     	try {
-    		//Blocking call
-    		return blockingStub.getDailyYield(req);
+    		//Blocking call under the deadline, retry and hedging policy
+    		return getDailyYieldPolicy.executeBlocking(deadline -> futureStub.withDeadline(deadline).getDailyYield(req));
     	}catch(StatusRuntimeException e){
     		logger.warning("getDailyYield RPC failed: " + e.getStatus()); //Error handling
     		return null;
     	}
     }
     
-    //Server streaming: real time energy output  
+    //Server streaming: real time energy output, resumed after the last reading if the connection drops
     public static Iterator<RealTimeOutput> streamRealTimeOutput() {
     	try {
     		//Return the iterator
-    		return blockingStub.streamRealTimeOutput(Empty.getDefaultInstance());
+    		return ResumableStream.blocking("streamRealTimeOutput",
+    				token -> blockingStub.streamRealTimeOutput(outputRequest(token)), RealTimeOutput::getTimeMs);
     	}catch(StatusRuntimeException e) {
     		//Log error and return an empty iterator
             logger.warning("streamRealTimeOutput RPC failed: " + e.getStatus());
@@ -121,18 +111,31 @@ public class SolarClient {
     
     //Bidirectional streaming RPC: energy trade negotiation
     public static List<TradeResponse> negotiateTrades(List<TradeRequest> requests) throws InterruptedException {
+    	List<TradeResponse> responses = Collections.synchronizedList(new ArrayList<>(requests.size()));
+    	negotiateTrades(requests.iterator(), responses::add);
+    	synchronized (responses) {
+    		return new ArrayList<>(responses); //Callbacks may still arrive after a timeout
+    	}
+    }
+    
+    //Bidirectional streaming RPC: trades pulled lazily and each response handed to the sink as it
+    //arrives, e.g. a TradeRing for long sessions. The sink is called from one callback thread at a
+    //time. Returns false if the session failed or stalled.
+    public static boolean negotiateTrades(Iterator<TradeRequest> requests, Consumer<? super TradeResponse> sink)
+    		throws InterruptedException {
     	CountDownLatch latch = new CountDownLatch(1);
-    	List<TradeResponse> responses = new ArrayList<>();
+    	AtomicBoolean ok = new AtomicBoolean(true);
     	
     	//Observer for server response
     	StreamObserver<TradeResponse> respObserver = new StreamObserver<TradeResponse>() {
     		@Override
     		public void onNext(TradeResponse resp) {
-    			responses.add(resp); //Add each response to the list
+    			sink.accept(resp); //Hand each response to the sink
     		}
     		@Override
     		public void onError(Throwable t) {
     			logger.warning("energyTradeNegotiation RPC failed: " + t.getMessage()); //Error handling
+    			ok.set(false);
     			latch.countDown();
     		}
     		@Override
@@ -141,19 +144,45 @@ public class SolarClient {
     		}
     	};
     	
-    	//Open the bidirectional stream
-    	StreamObserver<TradeRequest> reqObserver = asyncStub.energyTradeNegotiation(respObserver);
-    	
-    	//Send requests
-    	for(TradeRequest req : requests) {
-    		reqObserver.onNext(req);
-    	}
-    	reqObserver.onCompleted();
+    	//Open the bidirectional stream, requests are sent as the transport and the response window allow
+    	RequestPump.Observer<TradeRequest, TradeResponse> session =
+    			RequestPump.observe(requests, RequestPump.DEFAULT_WINDOW, respObserver);
+    	asyncStub.energyTradeNegotiation(session);
     	
-    	//Wait for response or timeout
-    	if(!latch.await(10,  TimeUnit.SECONDS)) {
+    	//Wait for response or timeout once the session stalls
+    	if(!session.pump().awaitCompletion(latch, 10,  TimeUnit.SECONDS)) {
     		logger.warning("energyTradeNegotation RPC timeout");
+    		session.pump().cancel("energyTradeNegotiation timed out");
+    		return false;
     	}
-    	return responses;
+    	return ok.get();
+    }
+    
+    //Async unary RPC: daily yield, under the same policy as the blocking call
+    public static CompletableFuture<GetDailyYieldResponse> getDailyYieldAsync(String date) {
+    	GetDailyYieldRequest req = GetDailyYieldRequest.newBuilder()
+    			.setDate(date)
+    			.build();
+    	return getDailyYieldPolicy.execute(deadline -> futureStub.withDeadline(deadline).getDailyYield(req));
+    }
+    
+    //Async server streaming RPC: real time output delivered as the subscriber requests it, resumed like the blocking stream
+    public static Flow.Publisher<RealTimeOutput> streamRealTimeOutputAsync() {
+    	return ResumableStream.<StreamRealTimeOutputRequest, RealTimeOutput>publisher("streamRealTimeOutput",
+    			token -> obs -> asyncStub.streamRealTimeOutput(outputRequest(token), obs), RealTimeOutput::getTimeMs);
+    }
+    
+    //Output stream request, resuming after the reading with the token's time
+    private static StreamRealTimeOutputRequest outputRequest(long token) {
+    	StreamRealTimeOutputRequest.Builder req = StreamRealTimeOutputRequest.newBuilder();
+    	if (token != ResumableStream.START) {
+    		req.setResumeAfterMs(token);
+    	}
+    	return req.build();
+    }
+    
+    //Async bidirectional streaming RPC: trade responses delivered as the subscriber requests them
+    public static Flow.Publisher<TradeResponse> negotiateTradesAsync(Iterable<TradeRequest> requests) {
+    	return StreamPublisher.bidi(asyncStub::energyTradeNegotiation, requests, RequestPump.DEFAULT_WINDOW);
     }
-}
\ No newline at end of file
+}
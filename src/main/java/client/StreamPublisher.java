@@ -0,0 +1,166 @@
+/*
+ * StreamPublisher.java
+ *
+ * Exposes the responses of a server-streaming or bidirectional gRPC call
+ * as a java.util.concurrent.Flow.Publisher.
+ * The call uses manual flow control, so a subscriber's request(n) is
+ * passed straight to the transport and the server is only asked for
+ * what the subscriber can take. Each subscribe() starts a new call,
+ * and cancel() cancels that call on the server.
+ * For bidirectional calls the requests are pulled from an Iterable by a
+ * RequestPump, so a subscriber that stops requesting responses also
+ * stops new requests being sent once the window is full.
+ */
+
+package client;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+final class StreamPublisher<ReqT, RespT> implements Flow.Publisher<RespT> {
+	private final Consumer<ClientResponseObserver<ReqT, RespT>> starter;
+	private final Iterable<? extends ReqT> requests; //Null for server-streaming calls
+	private final int window;
+
+	//The starter opens the call with the given response observer, e.g. obs -> asyncStub.streamX(req, obs)
+	StreamPublisher(Consumer<ClientResponseObserver<ReqT, RespT>> starter) {
+		this(starter, null, 0);
+	}
+
+	private StreamPublisher(Consumer<ClientResponseObserver<ReqT, RespT>> starter, Iterable<? extends ReqT> requests, int window) {
+		this.starter = starter;
+		this.requests = requests;
+		this.window = window;
+	}
+
+	//Bidirectional call whose requests are pumped from an Iterable, e.g. asyncStub::adjustBrightness
+	static <ReqT, RespT> StreamPublisher<ReqT, RespT> bidi(Function<StreamObserver<RespT>, StreamObserver<ReqT>> opener,
+			Iterable<? extends ReqT> requests, int window) {
+		return new StreamPublisher<>(obs -> opener.apply(obs), requests, window);
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super RespT> subscriber) {
+		RequestPump<ReqT> pump = requests == null ? null : new RequestPump<>(requests.iterator(), window);
+		CallSubscription<ReqT, RespT> subscription = new CallSubscription<>(subscriber, pump);
+		//onSubscribe comes first, so no signal of the call can reach the subscriber before it (Reactive Streams rule 1.9)
+		subscriber.onSubscribe(subscription);
+		if (subscription.terminated.get()) {
+			return; //Cancelled from onSubscribe, no call to start
+		}
+		try {
+			starter.accept(subscription);
+		} catch (RuntimeException e) {
+			subscription.onError(e);
+			return;
+		}
+		subscription.started();
+	}
+
+	//Bridges one gRPC call to one subscriber
+	static class CallSubscription<ReqT, RespT> implements Flow.Subscription, ClientResponseObserver<ReqT, RespT> {
+		private final Flow.Subscriber<? super RespT> subscriber;
+		private final RequestPump<ReqT> pump; //Null when there is no request stream to drive
+		private final AtomicBoolean terminated = new AtomicBoolean();
+		private ClientCallStreamObserver<ReqT> call; //Set before the call starts, guarded by this
+		private boolean started; //Guarded by this
+		private long pending; //Requested before the call started, guarded by this
+
+		CallSubscription(Flow.Subscriber<? super RespT> subscriber, RequestPump<ReqT> pump) {
+			this.subscriber = subscriber;
+			this.pump = pump;
+		}
+
+		@Override
+		public void beforeStart(ClientCallStreamObserver<ReqT> requestStream) {
+			synchronized (this) {
+				this.call = requestStream;
+			}
+			requestStream.disableAutoRequestWithInitial(0); //Nothing is delivered until the subscriber asks
+			if (pump != null) {
+				pump.attach(requestStream);
+			}
+		}
+
+		//The call has started, so it can take the demand and cancellation that arrived before
+		void started() {
+			long n;
+			synchronized (this) {
+				started = true;
+				n = pending;
+			}
+			if (terminated.get()) {
+				call.cancel("Cancelled by subscriber", null);
+			} else if (n > 0) {
+				call.request((int) Math.min(n, Integer.MAX_VALUE));
+			}
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				cancel();
+				signalError(new IllegalArgumentException("request(" + n + ") must be positive")); //Reactive Streams rule 3.9
+				return;
+			}
+			ClientCallStreamObserver<ReqT> c;
+			synchronized (this) {
+				if (!started) {
+					pending = pending + n < 0 ? Long.MAX_VALUE : pending + n; //Asked of the call once it starts
+					return;
+				}
+				c = call;
+			}
+			if (!terminated.get()) {
+				c.request((int) Math.min(n, Integer.MAX_VALUE)); //ClientCall.request is safe from any thread
+			}
+		}
+
+		@Override
+		public void cancel() {
+			if (!terminated.compareAndSet(false, true)) {
+				return;
+			}
+			ClientCallStreamObserver<ReqT> c;
+			synchronized (this) {
+				c = started ? call : null; //Otherwise cancelled once it starts
+			}
+			if (c != null) {
+				c.cancel("Cancelled by subscriber", null);
+			}
+		}
+
+		@Override
+		public void onNext(RespT value) {
+			if (!terminated.get()) {
+				subscriber.onNext(value);
+				if (pump != null) {
+					pump.responseReceived();
+				}
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			signalError(t);
+		}
+
+		@Override
+		public void onCompleted() {
+			if (terminated.compareAndSet(false, true)) {
+				subscriber.onComplete();
+			}
+		}
+
+		private void signalError(Throwable t) {
+			if (terminated.compareAndSet(false, true)) {
+				subscriber.onError(t);
+			}
+		}
+	}
+}
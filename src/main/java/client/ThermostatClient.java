@@ -9,29 +9,29 @@
 
 package client;
 
-import java.io.IOException;
-import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
-import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceInfo;
-
+import com.google.protobuf.Empty;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import metrics.ClientMetrics;
 import thermostat.protos.GetTemperatureHistoryRequest;
 import thermostat.protos.SetTargetTemperatureRequest;
 import thermostat.protos.SmartThermostatGrpc;
 import thermostat.protos.TemperatureReading;
 import thermostat.protos.SetTargetTemperatureResponse;
 import thermostat.protos.GetAverageTemperatureResponse;
+import thermostat.protos.HeatingLoad;
 
 
 public class ThermostatClient {
@@ -46,37 +46,27 @@ public class ThermostatClient {
     private static final ManagedChannel channel;
     private static final SmartThermostatGrpc.SmartThermostatBlockingStub blockingStub;
     private static final SmartThermostatGrpc.SmartThermostatStub asyncStub;
+    private static final SmartThermostatGrpc.SmartThermostatFutureStub futureStub;
+    
+    //Caller-side metrics for this client's channel
+    private static final ClientMetrics metrics = new ClientMetrics("Thermostat");
     
-  //Static initializer to set up channel and stubs
+    //Static initializer to set up channel and stubs
     static {
-    	ManagedChannel tmpChannel;
-    	try {
-    	    //Create jmDNS and lookup the service
-    	    JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
-    	    ServiceInfo info = jmdns.getServiceInfo(
-    	        "_thermostat._grpc._tcp.local.",  
-    	        "ThermostatService",
-    	        5000 //Timeout
-    	    );
-    	    if (info == null) throw new IOException("SmartThermostatService not found");
-
-    	    //Pull host and port from the record
-            tmpChannel = ManagedChannelBuilder
-                    .forAddress(info.getHostAddresses()[0], info.getPort())
-                    .usePlaintext()
-                    .build();
-    	}catch(Exception e) {
-    		logger.warning("jmDNS lookup failed, defaulting to localhost:PORT — " + e.getMessage());
-    	    //Fallback to localhost
-    		tmpChannel = ManagedChannelBuilder
-    	        .forAddress(host, port)
-    	        .usePlaintext()
-    	        .build();
-    	}
-    	
-    	channel = tmpChannel;
+    	channel = ChannelFactory.createSharded("_thermostat._grpc._tcp.local.", "ThermostatService", host, port, metrics);
         blockingStub = SmartThermostatGrpc.newBlockingStub(channel);
         asyncStub    = SmartThermostatGrpc.newStub(channel);
+        futureStub   = SmartThermostatGrpc.newFutureStub(channel);
+    }
+    
+    //Deadline, retry and hedging policy for the unary call
+    private static final RetryBudget retryBudget = RetryBudget.fromProperties();
+    private static final UnaryPolicyExecutor setTargetPolicy = new UnaryPolicyExecutor(
+    		CallPolicy.write("setTarget"), metrics, SmartThermostatGrpc.getSetTargetTemperatureMethod().getFullMethodName(), retryBudget);
+    
+    //Caller-side RPC metrics for this client
+    public static ClientMetrics metrics() {
+    	return metrics;
     }
     
     //Shutdown method
@@ -97,8 +87,8 @@ public class ThermostatClient {
     	//Build request with new target temperature
     	SetTargetTemperatureRequest request = SetTargetTemperatureRequest.newBuilder().setTargetTemp(temp).build();
     	try {
-    		//Blocking call
-    		SetTargetTemperatureResponse response = blockingStub.setTargetTemperature(request);
+    		//Blocking call under the deadline policy, never retried
+    		SetTargetTemperatureResponse response = setTargetPolicy.executeBlocking(deadline -> futureStub.withDeadline(deadline).setTargetTemperature(request));
     		return response.getSuccess();
     	}catch(StatusRuntimeException e) {
     		logger.warning("setTarget RPC failed: " + e.getStatus()); //Error handling
@@ -108,15 +98,10 @@ public class ThermostatClient {
     		
     //Server streaming RPC: Stream temperature history	
     public static List<TemperatureReading> getHistory(long start, long end) {
-    	//Build request with start and end timestamps
-    	GetTemperatureHistoryRequest request = GetTemperatureHistoryRequest.newBuilder()
-    			.setStartTimestamp(start) 
-    			.setEndTimestamp(end)
-    			.build();
     	List<TemperatureReading> readings = new ArrayList<>();
     	try {
     		//Iterate through all readings
-    		Iterator<TemperatureReading> iter = blockingStub.streamTemperatureHistory(request);
+    		Iterator<TemperatureReading> iter = streamHistory(start, end);
     		iter.forEachRemaining(readings::add); //Add each reading to the list
     	}catch(StatusRuntimeException e) {
     		logger.warning("getHistory RPC failed: " + e.getStatus()); //Error handling
@@ -124,6 +109,24 @@ public class ThermostatClient {
     	return readings;
     }
     		
+    //Server streaming RPC: readings delivered one at a time as they arrive, for long ranges.
+    //A dropped connection resumes after the last reading received instead of starting over.
+    public static Iterator<TemperatureReading> streamHistory(long start, long end) {
+    	return ResumableStream.blocking("streamTemperatureHistory",
+    			token -> blockingStub.streamTemperatureHistory(historyRequest(start, end, token)), TemperatureReading::getTimestamp);
+    }
+    
+    //History request with start and end timestamps, resuming after the reading with the token's timestamp
+    private static GetTemperatureHistoryRequest historyRequest(long start, long end, long token) {
+    	GetTemperatureHistoryRequest.Builder request = GetTemperatureHistoryRequest.newBuilder()
+    			.setStartTimestamp(start) 
+    			.setEndTimestamp(end);
+    	if (token != ResumableStream.START) {
+    		request.setResumeAfter(token);
+    	}
+    	return request.build();
+    }
+    		
     //Client streaming RPC: Get average temperature
     public static double getAverage(long start, long end) {
     	
@@ -151,22 +154,15 @@ public class ThermostatClient {
     	};
     	
     	try {
-    		//Request observer for sending temperature readings
-    		StreamObserver<TemperatureReading> reqObserver = asyncStub.getAverageTemperature(respObserver);
-    		
-    		//Generate one reading per second between start and end
-    		for(long ts = start; ts <= end; ts +=1000) {
-    			TemperatureReading reading = TemperatureReading.newBuilder()
-    					.setTimestamp(ts)
-    					.setTemperature(20.0 + Math.random()*0.5) //Simulated noise around 20°C
-    					.build();
-    			reqObserver.onNext(reading); //Send each reading
-    		}
-    		reqObserver.onCompleted(); //End stream
+    		//Start the call, readings are generated only as fast as the transport drains them
+    		RequestPump.Observer<TemperatureReading, GetAverageTemperatureResponse> upload =
+    				RequestPump.observe(readings(start, end), 0, respObserver);
+    		asyncStub.getAverageTemperature(upload);
     		
-    		//Wait for server response or timeout
-    		if(!latch.await(5,  TimeUnit.SECONDS)) {
+    		//Wait for server response or timeout once the upload stalls
+    		if(!upload.pump().awaitCompletion(latch, 5,  TimeUnit.SECONDS)) {
     			logger.warning("getAverage RPC timeout");
+    			upload.pump().cancel("getAverage timed out");
     		}
     	}catch(InterruptedException e) {
     		Thread.currentThread().interrupt();
@@ -175,4 +171,55 @@ public class ThermostatClient {
     	}
     	return avgRef.get(); //Return average or NaN
     }
+    
+    //Lazily generates one reading per second between start and end
+    private static Iterator<TemperatureReading> readings(long start, long end) {
+    	return new Iterator<TemperatureReading>() {
+    		private long ts = start;
+    		
+    		@Override
+    		public boolean hasNext() {
+    			return ts <= end;
+    		}
+    		
+    		@Override
+    		public TemperatureReading next() {
+    			if (!hasNext()) {
+    				throw new NoSuchElementException();
+    			}
+    			TemperatureReading reading = TemperatureReading.newBuilder()
+    					.setTimestamp(ts)
+    					.setTemperature(20.0 + Math.random()*0.5) //Simulated noise around 20°C
+    					.build();
+    			ts += 1000;
+    			return reading;
+    		}
+    	};
+    }
+    
+    //Async unary RPC: set target temperature, under the same deadline policy as the blocking call
+    public static CompletableFuture<Boolean> setTargetAsync(double temp) {
+    	SetTargetTemperatureRequest request = SetTargetTemperatureRequest.newBuilder().setTargetTemp(temp).build();
+    	return setTargetPolicy.execute(deadline -> futureStub.withDeadline(deadline).setTargetTemperature(request))
+    			.thenApply(SetTargetTemperatureResponse::getSuccess);
+    }
+    
+    //Async server streaming RPC: history readings delivered as the subscriber requests them, resumed like the blocking stream
+    public static Flow.Publisher<TemperatureReading> getHistoryAsync(long start, long end) {
+    	return ResumableStream.<GetTemperatureHistoryRequest, TemperatureReading>publisher("streamTemperatureHistory",
+    			token -> obs -> asyncStub.streamTemperatureHistory(historyRequest(start, end, token), obs), TemperatureReading::getTimestamp);
+    }
+    
+    //Async client streaming RPC: complete with the average temperature
+    public static CompletableFuture<Double> getAverageAsync(long start, long end) {
+    	FutureObserver<GetAverageTemperatureResponse> respObserver = new FutureObserver<>();
+    	asyncStub.getAverageTemperature(RequestPump.observe(readings(start, end), 0, respObserver));
+    	return respObserver.future().thenApply(GetAverageTemperatureResponse::getAverageTemp);
+    }
+    
+    //Async server streaming RPC: live heating load delivered as the subscriber requests it
+    public static Flow.Publisher<HeatingLoad> streamHeatingLoadAsync() {
+    	return new StreamPublisher<Empty, HeatingLoad>(
+    			obs -> asyncStub.streamHeatingLoad(Empty.getDefaultInstance(), obs));
+    }
 }
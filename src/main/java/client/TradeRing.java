@@ -0,0 +1,78 @@
+/*
+ * TradeRing.java
+ *
+ * Last N trade negotiation responses, kept as parallel accepted, price
+ * and receive-time columns.
+ */
+
+package client;
+
+import solar.protos.TradeResponse;
+
+public final class TradeRing extends ResponseRing<TradeResponse> {
+	private final boolean[] accepted;
+	private final double[] counterOffer;
+	private final double[] agreedPrice;
+	private final long[] receivedAt;
+	private long acceptedTotal; //Accepted trades ever recorded, overwritten ones included
+
+	public TradeRing(int capacity) {
+		super(capacity);
+		this.accepted = new boolean[capacity];
+		this.counterOffer = new double[capacity];
+		this.agreedPrice = new double[capacity];
+		this.receivedAt = new long[capacity];
+	}
+
+	@Override
+	protected void store(int slot, TradeResponse resp, long now) {
+		accepted[slot] = resp.getAccepted();
+		counterOffer[slot] = resp.getCounterOffer();
+		agreedPrice[slot] = resp.getAgreedPrice();
+		receivedAt[slot] = now;
+		if (resp.getAccepted()) {
+			acceptedTotal++;
+		}
+	}
+
+	//Whether the i-th held trade was accepted, 0 being the oldest
+	public synchronized boolean accepted(int i) {
+		checkIndex(i, size());
+		return accepted[slot(i)];
+	}
+
+	public synchronized double counterOffer(int i) {
+		checkIndex(i, size());
+		return counterOffer[slot(i)];
+	}
+
+	public synchronized double agreedPrice(int i) {
+		checkIndex(i, size());
+		return agreedPrice[slot(i)];
+	}
+
+	//Receive time (epoch millis) of the i-th held trade
+	public synchronized long receivedAt(int i) {
+		checkIndex(i, size());
+		return receivedAt[slot(i)];
+	}
+
+	public synchronized long acceptedTotal() {
+		return acceptedTotal;
+	}
+
+	//Mean agreed price over the held accepted trades, NaN when there are none
+	public synchronized double meanAgreedPrice() {
+		int n = size();
+		int count = 0;
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			int s = slot(i);
+			if (accepted[s]) {
+				sum += agreedPrice[s];
+				count++;
+			}
+		}
+		return count == 0 ? Double.NaN : sum / count;
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * UnaryPolicyExecutor.java
+ *
+ * Runs a unary call under a CallPolicy:
+ *  - one overall deadline shared by every attempt,
+ *  - retries with full-jitter exponential backoff on UNAVAILABLE and
+ *    RESOURCE_EXHAUSTED, honouring the server's retry-after-ms hint,
+ *  - a hedged second attempt once the first has run longer than the
+ *    method's observed latency percentile,
+ * all gated by the client's RetryBudget. The first successful attempt
+ * wins and the others are cancelled.
+ */
+
+package client;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import metrics.ClientMetrics;
+import metrics.LatencyHistogram;
+
+final class UnaryPolicyExecutor {
+
+	//Timer thread for backoff and hedge delays, and for stream reconnects, the calls themselves never run on it
+	static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "client-policy-timer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	//Back-off hint set by the server's admission controller on RESOURCE_EXHAUSTED
+	private static final Metadata.Key<String> RETRY_AFTER_MS =
+			Metadata.Key.of("retry-after-ms", Metadata.ASCII_STRING_MARSHALLER);
+
+	private static final long MIN_SAMPLES_FOR_HEDGING = 50; //Use the configured delay until then
+	private static final long HEDGE_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final CallPolicy policy;
+	private final ClientMetrics metrics;
+	private final String fullMethodName;
+	private final RetryBudget budget;
+
+	//Cached hedge delay, recomputed from the latency histogram at most once a second
+	private volatile long hedgeDelayNanos;
+	private volatile long hedgeRefreshedAt = System.nanoTime() - HEDGE_REFRESH_NANOS;
+
+	UnaryPolicyExecutor(CallPolicy policy, ClientMetrics metrics, String fullMethodName, RetryBudget budget) {
+		this.policy = policy;
+		this.metrics = metrics;
+		this.fullMethodName = fullMethodName;
+		this.budget = budget;
+		this.hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(policy.hedgeDelayMillis);
+	}
+
+	//Starts the call; each attempt is made by the function with the shared deadline
+	<T> CompletableFuture<T> execute(Function<Deadline, ListenableFuture<T>> attempt) {
+		return new Execution<T>(attempt).start();
+	}
+
+	//Blocking variant that throws StatusRuntimeException like a blocking stub
+	<T> T executeBlocking(Function<Deadline, ListenableFuture<T>> attempt) {
+		return await(execute(attempt));
+	}
+
+	//Waits for a future, rethrowing its failure as StatusRuntimeException
+	static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.cancel(true);
+			throw Status.CANCELLED.withDescription("interrupted").withCause(e).asRuntimeException();
+		} catch (ExecutionException e) {
+			throw toStatusException(e.getCause());
+		}
+	}
+
+	static StatusRuntimeException toStatusException(Throwable t) {
+		if (t instanceof CompletionException && t.getCause() != null) {
+			t = t.getCause();
+		}
+		if (t instanceof StatusRuntimeException) {
+			return (StatusRuntimeException) t;
+		}
+		return Status.fromThrowable(t).asRuntimeException(Status.trailersFromThrowable(t));
+	}
+
+	private long hedgeDelayNanos() {
+		long now = System.nanoTime();
+		if (now - hedgeRefreshedAt >= HEDGE_REFRESH_NANOS) {
+			hedgeRefreshedAt = now;
+			LatencyHistogram.Snapshot snap = metrics.forMethod(fullMethodName).total().snapshot();
+			if (snap.count() >= MIN_SAMPLES_FOR_HEDGING) {
+				long floor = TimeUnit.MILLISECONDS.toNanos(policy.hedgeDelayMillis) / 4;
+				hedgeDelayNanos = Math.max(floor, snap.valueAtQuantile(policy.hedgeQuantile));
+			}
+		}
+		return hedgeDelayNanos;
+	}
+
+	private long backoffMillis(int retry, Throwable failure) {
+		long cap = Math.min(policy.maxBackoffMillis, policy.initialBackoffMillis << Math.min(retry - 1, 20));
+		long jittered = ThreadLocalRandom.current().nextLong(cap + 1); //Full jitter
+		Metadata trailers = Status.trailersFromThrowable(failure);
+		String retryAfter = trailers == null ? null : trailers.get(RETRY_AFTER_MS);
+		if (retryAfter != null) {
+			try {
+				jittered = Math.max(jittered, Long.parseLong(retryAfter)); //Server knows best when it will have room
+			} catch (NumberFormatException ignored) {
+				//Keep the jittered backoff
+			}
+		}
+		return jittered;
+	}
+
+	private static boolean retryable(Status.Code code) {
+		return code == Status.Code.UNAVAILABLE || code == Status.Code.RESOURCE_EXHAUSTED;
+	}
+
+	//State of one logical call across its attempts
+	private final class Execution<T> {
+		private final Function<Deadline, ListenableFuture<T>> attempt;
+		private final Deadline deadline = Deadline.after(policy.deadlineMillis, TimeUnit.MILLISECONDS);
+		private final CompletableFuture<T> result = new CompletableFuture<>();
+		private final Queue<ListenableFuture<T>> attempts = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger started = new AtomicInteger();
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicInteger pending = new AtomicInteger(); //Retries claimed and waiting out their backoff
+		private volatile Throwable lastFailure;
+		private final AtomicInteger retries = new AtomicInteger();
+		private final Context context = Context.current(); //Carries the trace id to timer-launched attempts
+
+		Execution(Function<Deadline, ListenableFuture<T>> attempt) {
+			this.attempt = attempt;
+		}
+
+		CompletableFuture<T> start() {
+			started.incrementAndGet();
+			launch();
+			if (policy.hedging()) {
+				scheduleHedge();
+			}
+			//Cancelling the caller's future cancels every attempt
+			result.whenComplete((v, t) -> cancelAll());
+			return result;
+		}
+
+		private void launch() {
+			inFlight.incrementAndGet();
+			ListenableFuture<T> f;
+			try {
+				f = attempt.apply(deadline);
+			} catch (RuntimeException e) {
+				inFlight.decrementAndGet();
+				result.completeExceptionally(e);
+				return;
+			}
+			attempts.add(f);
+			Futures.addCallback(f, new FutureCallback<T>() {
+				@Override
+				public void onSuccess(T value) {
+					inFlight.decrementAndGet();
+					if (result.complete(value)) {
+						budget.onSuccess();
+					}
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					inFlight.decrementAndGet();
+					onAttemptFailed(t);
+				}
+			}, MoreExecutors.directExecutor());
+		}
+
+		private void scheduleHedge() {
+			TIMER.schedule(context.wrap(() -> {
+				if (!result.isDone() && !deadline.isExpired() && budget.allowsRetry() && claimAttempt()) {
+					metrics.forMethod(fullMethodName).recordRetry();
+					launch();
+					if (started.get() < policy.maxAttempts) {
+						scheduleHedge(); //Keep hedging while attempts remain
+					}
+				}
+			}), hedgeDelayNanos(), TimeUnit.NANOSECONDS);
+		}
+
+		private void onAttemptFailed(Throwable t) {
+			if (result.isDone()) {
+				return; //Another attempt won, or the caller cancelled
+			}
+			lastFailure = t;
+			Status.Code code = Status.fromThrowable(t).getCode();
+			if (retryable(code)) {
+				budget.onFailure();
+				if (!deadline.isExpired() && budget.allowsRetry() && claimAttempt()) {
+					metrics.forMethod(fullMethodName).recordRetry();
+					long delay = backoffMillis(retries.incrementAndGet(), t);
+					pending.incrementAndGet();
+					TIMER.schedule(context.wrap(() -> {
+						if (!result.isDone()) {
+							launch();
+						}
+						pending.decrementAndGet(); //After launch counted it in flight, so the call never looks idle between
+						failIfIdle(); //The retry may have failed before it stopped being pending
+					}), Math.min(delay, Math.max(0, deadline.timeRemaining(TimeUnit.MILLISECONDS))), TimeUnit.MILLISECONDS);
+					return;
+				}
+			}
+			failIfIdle();
+		}
+
+		//Fails the call with the last attempt's error once no attempt is running or waiting to run
+		private void failIfIdle() {
+			Throwable t = lastFailure;
+			if (t != null && inFlight.get() == 0 && pending.get() == 0) {
+				result.completeExceptionally(toStatusException(t));
+			}
+		}
+
+		private boolean claimAttempt() {
+			while (true) {
+				int n = started.get();
+				if (n >= policy.maxAttempts) {
+					return false;
+				}
+				if (started.compareAndSet(n, n + 1)) {
+					return true;
+				}
+			}
+		}
+
+		private void cancelAll() {
+			for (ListenableFuture<T> f : attempts) {
+				f.cancel(true); //Cancels the underlying gRPC call if still running
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Codecs.java
+ *
+ * Compressor and decompressor registries shared by the servers and
+ * clients: identity, gzip and the project's deflate-fast codec. Both
+ * sides advertise deflate-fast and gzip, so either can be chosen per call.
+ */
+
+package compression;
+
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+
+public final class Codecs {
+	private static final FastDeflateCodec FAST_DEFLATE = new FastDeflateCodec();
+
+	private static final CompressorRegistry COMPRESSORS = CompressorRegistry.newEmptyInstance();
+	private static final DecompressorRegistry DECOMPRESSORS =
+			DecompressorRegistry.getDefaultInstance().with(FAST_DEFLATE, true); //Default has identity and gzip
+
+	static {
+		COMPRESSORS.register(Codec.Identity.NONE);
+		COMPRESSORS.register(new Codec.Gzip());
+		COMPRESSORS.register(FAST_DEFLATE);
+	}
+
+	private Codecs() {
+	}
+
+	public static CompressorRegistry compressors() {
+		return COMPRESSORS;
+	}
+
+	public static DecompressorRegistry decompressors() {
+		return DECOMPRESSORS;
+	}
+
+	//True if the name is a codec both sides can use
+	static boolean known(String encoding) {
+		return COMPRESSORS.lookupCompressor(encoding) != null
+				&& !Codec.Identity.NONE.getMessageEncoding().equals(encoding);
+	}
+}
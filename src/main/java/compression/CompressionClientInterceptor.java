@@ -0,0 +1,58 @@
+/*
+ * CompressionClientInterceptor.java
+ *
+ * Applies the CompressionPolicy to client requests, so bulk uploads are
+ * compressed once their messages are large enough to benefit. The
+ * servers here all accept the project's codecs.
+ */
+
+package compression;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+
+public final class CompressionClientInterceptor implements ClientInterceptor {
+	private final CompressionPolicy policy;
+
+	public CompressionClientInterceptor(CompressionPolicy policy) {
+		this.policy = policy;
+	}
+
+	@Override
+	public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+			CallOptions callOptions, Channel next) {
+		String name = method.getFullMethodName();
+		String codec = policy.codecFor(name, null);
+		if (codec == null) {
+			return next.newCall(method, callOptions);
+		}
+		CallOptions options = callOptions.withCompression(codec).withStreamTracerFactory(new ClientStreamTracer.Factory() {
+			@Override
+			public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+				return new ClientStreamTracer() {
+					@Override
+					public void outboundMessageSent(int seqNo, long wireSize, long uncompressedSize) {
+						if (wireSize != uncompressedSize) { //Equal sizes mean the message went out as is
+							policy.record(name, wireSize, uncompressedSize);
+						}
+					}
+				};
+			}
+		});
+		return new SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, options)) {
+			@Override
+			public void sendMessage(ReqT message) {
+				int size = message instanceof MessageLite ? ((MessageLite) message).getSerializedSize() : -1;
+				super.setMessageCompression(policy.shouldCompress(name, size));
+				super.sendMessage(message);
+			}
+		};
+	}
+}
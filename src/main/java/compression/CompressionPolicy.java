@@ -0,0 +1,135 @@
+/*
+ * CompressionPolicy.java
+ *
+ * Decides per call which codec to offer and per message whether to
+ * compress. Messages below a size threshold, such as real-time ticks, are
+ * always sent as is, so they pay no CPU or latency. Larger messages are
+ * compressed while doing so actually pays off: the policy tracks the
+ * compressed/raw ratio per method and stops compressing a method whose
+ * data does not shrink, probing now and then in case it starts to.
+ *
+ * Settings (system properties):
+ *  smarthome.compression.codec      preferred codec, deflate-fast (default), gzip or identity
+ *  smarthome.compression.minBytes   smallest message worth compressing, default 512
+ *  smarthome.compression.maxRatio   compressed/raw above which a method stops compressing, default 0.9
+ *  smarthome.compression.<Method>   per-method override: off, auto or a codec name,
+ *                                   e.g. smarthome.compression.StreamTemperatureHistoryChunks=gzip
+ */
+
+package compression;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class CompressionPolicy {
+	private static final String PREFIX = "smarthome.compression.";
+	private static final int MIN_SAMPLES = 16; //Compressed messages seen before the ratio is trusted
+	private static final int PROBE_EVERY = 64; //Eligible messages between probes of a disabled method
+	private static final long DECAY_BYTES = 1L << 24; //Halve the sums past this, so the ratio follows the data
+
+	private static final CompressionPolicy DEFAULT = new CompressionPolicy();
+
+	private final String codec = System.getProperty(PREFIX + "codec", FastDeflateCodec.ENCODING);
+	private final int minBytes = Integer.getInteger(PREFIX + "minBytes", 512);
+	private final double maxRatio = Double.parseDouble(System.getProperty(PREFIX + "maxRatio", "0.9"));
+	private final ConcurrentHashMap<String, MethodState> methods = new ConcurrentHashMap<>();
+
+	public static CompressionPolicy defaultPolicy() {
+		return DEFAULT;
+	}
+
+	int minBytes() {
+		return minBytes;
+	}
+
+	//Codec for a call to the method, or null to send it uncompressed
+	String codecFor(String fullMethodName, String acceptedEncodings) {
+		String chosen = state(fullMethodName).codec;
+		if (chosen == null) {
+			return null;
+		}
+		if (acceptedEncodings != null && !accepts(acceptedEncodings, chosen)) {
+			//Peer cannot decode our choice, fall back to gzip which every gRPC peer supports
+			return accepts(acceptedEncodings, "gzip") ? "gzip" : null;
+		}
+		return chosen;
+	}
+
+	//Whether a message of the given serialized size should be compressed
+	boolean shouldCompress(String fullMethodName, int messageBytes) {
+		return messageBytes >= minBytes && state(fullMethodName).allows();
+	}
+
+	//Records the outcome of one compressed message
+	void record(String fullMethodName, long wireBytes, long rawBytes) {
+		if (rawBytes >= minBytes && wireBytes >= 0) {
+			state(fullMethodName).record(wireBytes, rawBytes, maxRatio);
+		}
+	}
+
+	//Compressed/raw ratio seen recently for the method, NaN before any compressed message
+	public double ratio(String fullMethodName) {
+		return state(fullMethodName).ratio();
+	}
+
+	private MethodState state(String fullMethodName) {
+		MethodState s = methods.get(fullMethodName);
+		return s != null ? s : methods.computeIfAbsent(fullMethodName, this::newState);
+	}
+
+	private MethodState newState(String fullMethodName) {
+		String bare = fullMethodName.substring(fullMethodName.lastIndexOf('/') + 1);
+		String setting = System.getProperty(PREFIX + bare, "auto");
+		String chosen = "auto".equals(setting) ? codec : setting;
+		if ("off".equals(chosen) || !Codecs.known(chosen)) {
+			chosen = null; //Off, identity or an unknown codec name
+		}
+		return new MethodState(chosen);
+	}
+
+	private static boolean accepts(String acceptedEncodings, String encoding) {
+		for (String e : acceptedEncodings.split(",")) {
+			if (e.trim().equals(encoding)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//Compression outcome for one method
+	private static final class MethodState {
+		final String codec;
+		private long wire;
+		private long raw;
+		private int samples;
+		private boolean disabled;
+		private int skipped;
+
+		MethodState(String codec) {
+			this.codec = codec;
+		}
+
+		synchronized boolean allows() {
+			if (!disabled) {
+				return true;
+			}
+			return ++skipped % PROBE_EVERY == 0; //Probe so the method can come back
+		}
+
+		synchronized void record(long wireBytes, long rawBytes, double maxRatio) {
+			wire += wireBytes;
+			raw += rawBytes;
+			samples++;
+			if (raw > DECAY_BYTES) {
+				wire >>= 1;
+				raw >>= 1;
+			}
+			if (samples >= MIN_SAMPLES) {
+				disabled = (double) wire / raw > maxRatio;
+			}
+		}
+
+		synchronized double ratio() {
+			return raw == 0 ? Double.NaN : (double) wire / raw;
+		}
+	}
+}
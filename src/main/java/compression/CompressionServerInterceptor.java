@@ -0,0 +1,64 @@
+/*
+ * CompressionServerInterceptor.java
+ *
+ * Applies the CompressionPolicy to server responses. The call's codec is
+ * picked from what the client advertises; each message is then sent
+ * compressed or not depending on its size and the method's ratio.
+ */
+
+package compression;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerStreamTracer;
+
+public final class CompressionServerInterceptor implements ServerInterceptor {
+	private static final Metadata.Key<String> ACCEPT_ENCODING =
+			Metadata.Key.of("grpc-accept-encoding", Metadata.ASCII_STRING_MARSHALLER);
+
+	private final CompressionPolicy policy;
+
+	public CompressionServerInterceptor(CompressionPolicy policy) {
+		this.policy = policy;
+	}
+
+	//Tracer that feeds compressed message sizes back to the policy
+	public ServerStreamTracer.Factory streamTracerFactory() {
+		return new ServerStreamTracer.Factory() {
+			@Override
+			public ServerStreamTracer newServerStreamTracer(String fullMethodName, Metadata headers) {
+				return new ServerStreamTracer() {
+					@Override
+					public void outboundMessageSent(int seqNo, long wireSize, long uncompressedSize) {
+						if (wireSize != uncompressedSize) { //Equal sizes mean the message went out as is
+							policy.record(fullMethodName, wireSize, uncompressedSize);
+						}
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+			ServerCallHandler<ReqT, RespT> next) {
+		String method = call.getMethodDescriptor().getFullMethodName();
+		String codec = policy.codecFor(method, headers.get(ACCEPT_ENCODING));
+		if (codec == null) {
+			return next.startCall(call, headers);
+		}
+		call.setCompression(codec); //Must happen before the handler sends headers
+		return next.startCall(new SimpleForwardingServerCall<ReqT, RespT>(call) {
+			@Override
+			public void sendMessage(RespT message) {
+				int size = message instanceof MessageLite ? ((MessageLite) message).getSerializedSize() : -1; //Memoized, the marshaller reuses it
+				super.setMessageCompression(policy.shouldCompress(method, size));
+				super.sendMessage(message);
+			}
+		}, headers);
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * CoalescingLog.java
+ *
+ * Output pane model for the dashboard. Background threads add entries to a
+ * lock-free queue; a Swing timer drains it on the EDT a few dozen times a
+ * second and applies the whole batch as one document edit. The pane keeps
+ * only the newest entries in a fixed-size ring, so a long stream neither
+ * floods the event queue nor grows the text model without limit.
+ *
+ * Settings (system properties):
+ *  smarthome.gui.refreshHz  flushes per second, default 30
+ *  smarthome.gui.logLines   entries kept per pane, default 5000
+ */
+
+package gui;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+
+final class CoalescingLog {
+	static final int DEFAULT_CAPACITY = Integer.getInteger("smarthome.gui.logLines", 5000);
+	private static final int REFRESH_HZ = Math.max(1, Integer.getInteger("smarthome.gui.refreshHz", 30));
+
+	private final JTextArea area;
+	private final int capacity;
+
+	//Written by any thread; bounded, since only the newest entries can ever be shown
+	private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pendingCount = new AtomicInteger();
+
+	//Ring of the entries in the document, oldest at head; EDT only
+	private final String[] ring;
+	private int head;
+	private int size;
+	private final StringBuilder batch = new StringBuilder();
+
+	CoalescingLog(JTextArea area) {
+		this(area, DEFAULT_CAPACITY);
+	}
+
+	CoalescingLog(JTextArea area, int capacity) {
+		this.area = area;
+		this.capacity = capacity;
+		this.ring = new String[capacity];
+		Timer timer = new Timer(1000 / REFRESH_HZ, e -> flush());
+		timer.setCoalesce(true); //A busy EDT skips ticks instead of queueing them
+		timer.start();
+	}
+
+	//Adds an entry, usually one line ending in a newline; safe from any thread
+	void append(String text) {
+		pending.offer(text);
+		if (pendingCount.incrementAndGet() > capacity && pending.poll() != null) {
+			pendingCount.decrementAndGet(); //Would be pushed out of the ring anyway
+		}
+	}
+
+	//Moves what was pending when the tick began into the ring and the document in one edit. Entries
+	//arriving meanwhile wait for the next tick, so a flood cannot hold the EDT in this loop.
+	private void flush() {
+		int added = 0;
+		int evictedChars = 0;
+		batch.setLength(0);
+		String text;
+		for (int n = pendingCount.get(); n > 0 && (text = pending.poll()) != null; n--) {
+			pendingCount.decrementAndGet();
+			int slot = (head + size) % capacity;
+			if (size == capacity) {
+				evictedChars += ring[head].length(); //Oldest entry leaves the ring
+				head = (head + 1) % capacity;
+			} else {
+				size++;
+			}
+			ring[slot] = text;
+			batch.append(text);
+			added++;
+		}
+		if (added == 0) {
+			return;
+		}
+		if (added >= capacity) {
+			//The batch replaced the whole ring, rebuild rather than trim
+			batch.setLength(0);
+			for (int i = 0; i < size; i++) {
+				batch.append(ring[(head + i) % capacity]);
+			}
+			area.setText(batch.toString());
+		} else {
+			Document doc = area.getDocument();
+			try {
+				doc.remove(0, Math.min(evictedChars, doc.getLength()));
+				doc.insertString(doc.getLength(), batch.toString(), null);
+			} catch (BadLocationException e) {
+				area.setText(""); //Document edited elsewhere, start over from the ring next time
+				head = 0;
+				size = 0;
+			}
+		}
+		area.setCaretPosition(area.getDocument().getLength()); //Follow the newest entry
+	}
+}
@@ -2,7 +2,7 @@
  * EnergyDashboardGUI.java
  *
  * Swing-based desktop application for a smart home energy system. 
- * Launches Thermostat, Solar, and Lighting gRPC servers locally.
+ * Launches Thermostat, Solar, Lighting and Energy Balance gRPC servers locally.
  * Provides a tabbed user interface for interacting with each service. 
  *
  */
@@ -12,6 +12,9 @@ package gui;
 import java.awt.BorderLayout;
 import java.awt.FlowLayout;
 import java.awt.GridLayout;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.Iterator;
@@ -23,6 +26,7 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTabbedPane;
+import javax.swing.JTable;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
@@ -39,6 +43,9 @@ import lighting.protos.LightUsageStat;
 import lighting.protos.AdjustBrightnessRequest;
 import lighting.protos.AdjustBrightnessResponse;
 import client.LightingClient;
+import client.EnergyBalanceClient;
+import balance.protos.BalanceSnapshot;
+import metrics.Tracing;
 
 public class EnergyDashboardGUI {
 	
@@ -72,6 +79,15 @@ public class EnergyDashboardGUI {
 			}
 		}, "grpc-server").start();
 		
+		//Start the energy balance server, it follows the three above
+		new Thread(() -> {
+			try {
+				server.EnergyBalanceServer.main(new String[]{});
+			}catch(Exception e) {
+				e.printStackTrace();
+			}
+		}, "grpc-server").start();
+		
 		//Launch GUI
 		SwingUtilities.invokeLater(EnergyDashboardGUI::new);
 	}
@@ -90,6 +106,15 @@ public class EnergyDashboardGUI {
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		frame.setLayout(new BorderLayout());
 		
+		//Bounded pool for every background action, stopped before the window exits
+		TaskManager taskManager = new TaskManager();
+		frame.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				taskManager.shutdown(); //Cancels running calls and streams
+			}
+		});
+		
 		//Tabbed pane to switch between services
 		JTabbedPane tabs = new JTabbedPane();
 		
@@ -136,7 +161,11 @@ public class EnergyDashboardGUI {
         //Center area for output log
         JTextArea txtAreaThermo = new JTextArea(15, 50);
         txtAreaThermo.setEditable(false);
-        thermoPanel.add(new JScrollPane(txtAreaThermo), BorderLayout.CENTER);
+        CoalescingLog logThermo = new CoalescingLog(txtAreaThermo); //Batched, bounded output
+        SeriesTableModel thermoSeries = new SeriesTableModel(new String[]{"Temperature (°C)"}, new int[]{2});
+        thermoPanel.add(outputViews(txtAreaThermo, thermoSeries, new LineChart(thermoSeries, 0, "°C")), BorderLayout.CENTER);
+        TaskManager.Tab thermoTasks = taskManager.tab(logThermo);
+        thermoPanel.add(cancelBar(thermoTasks), BorderLayout.SOUTH);
         tabs.addTab("Thermostat", thermoPanel);
         
         //---- Solar Tab ----
@@ -179,7 +208,11 @@ public class EnergyDashboardGUI {
         //Center area for output log
         JTextArea txtAreaSolar = new JTextArea(15, 50);
         txtAreaSolar.setEditable(false);;
-        solarPanel.add(new JScrollPane(txtAreaSolar), BorderLayout.CENTER);
+        CoalescingLog logSolar = new CoalescingLog(txtAreaSolar); //Batched, bounded output
+        SeriesTableModel solarSeries = new SeriesTableModel(new String[]{"Output (kW)"}, new int[]{2});
+        solarPanel.add(outputViews(txtAreaSolar, solarSeries, new LineChart(solarSeries, 0, "kW")), BorderLayout.CENTER);
+        TaskManager.Tab solarTasks = taskManager.tab(logSolar);
+        solarPanel.add(cancelBar(solarTasks), BorderLayout.SOUTH);
         tabs.addTab("Solar", solarPanel);
         
         //---- Lighting Tab ----
@@ -237,9 +270,39 @@ public class EnergyDashboardGUI {
         //Center area for output log
         JTextArea txtAreaLighting = new JTextArea(15,50);
         txtAreaLighting.setEditable(false);
-        lightingPanel.add(new JScrollPane(txtAreaLighting), BorderLayout.CENTER);
+        CoalescingLog logLighting = new CoalescingLog(txtAreaLighting); //Batched, bounded output
+        SeriesTableModel lightingSeries = new SeriesTableModel(new String[]{"Lux", "Occupied"}, new int[]{1, 0});
+        lightingPanel.add(outputViews(txtAreaLighting, lightingSeries, new LineChart(lightingSeries, 0, "lux")), BorderLayout.CENTER);
+        TaskManager.Tab lightingTasks = taskManager.tab(logLighting);
+        lightingPanel.add(cancelBar(lightingTasks), BorderLayout.SOUTH);
         tabs.addTab("Lighting", lightingPanel);
         
+        //---- Balance Tab ----
+        JPanel balancePanel = new JPanel(new BorderLayout());
+        JPanel balanceControls = new JPanel(new GridLayout(1,1));
+        
+        //Stream net balance
+        JPanel balanceStreamPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        balanceStreamPanel.add(new JLabel("Samples:"));
+        JTextField txtBalanceCount = new JTextField(5);
+        balanceStreamPanel.add(txtBalanceCount);
+        JButton btnStreamBalance = new JButton("Stream Balance");
+        balanceStreamPanel.add(btnStreamBalance);
+        balanceControls.add(balanceStreamPanel);
+        
+        //Add controls to top of Balance tab
+        balancePanel.add(balanceControls, BorderLayout.NORTH);
+        
+        //Center area for output log
+        JTextArea txtAreaBalance = new JTextArea(15,50);
+        txtAreaBalance.setEditable(false);
+        CoalescingLog logBalance = new CoalescingLog(txtAreaBalance); //Batched, bounded output
+        SeriesTableModel balanceSeries = new SeriesTableModel(new String[]{"Solar (kW)", "Load (kW)", "Net (kW)"}, new int[]{2, 2, 2});
+        balancePanel.add(outputViews(txtAreaBalance, balanceSeries, new LineChart(balanceSeries, 2, "kW")), BorderLayout.CENTER);
+        TaskManager.Tab balanceTasks = taskManager.tab(logBalance);
+        balancePanel.add(cancelBar(balanceTasks), BorderLayout.SOUTH);
+        tabs.addTab("Balance", balancePanel);
+        
         //Add the tabbed pane to the frame
         frame.add(tabs, BorderLayout.CENTER);
 
@@ -248,150 +311,166 @@ public class EnergyDashboardGUI {
         
         //---- Thermostat Listener ----
         btnSetTarget.addActionListener(evt -> {
-        	new Thread(() -> {
+        	thermoTasks.run("setTarget", () -> {
         		try {
         			double t = Double.parseDouble(txtTarget.getText()); //Pares input
         			boolean ok = ThermostatClient.setTarget(t); //Call set target method in ThermostatClient
-        			SwingUtilities.invokeLater(() -> txtAreaThermo.append("Set target → success=" + ok + "\n")); //Output to GUI
+        			logThermo.append("Set target → success=" + ok + "\n"); //Output to GUI
         		}catch(Exception ex) {
-        			SwingUtilities.invokeLater(() -> txtAreaThermo.append("Error: " + ex.getMessage() + "\n")); //Error handling
+        			String trace = Tracing.currentTraceId(); //Trace id to match against client and server logs
+        			logThermo.append("Error: " + ex.getMessage() + " [trace " + trace + "]\n"); //Error handling
         		}
-        	}).start(); //Start background thread
+        	}); //Run as a managed background task, replacing any previous run
         });
         
         btnGetHistory.addActionListener(e -> {
-        	new Thread(() -> {
+        	thermoTasks.run("history", () -> {
         		try {
         			LocalDateTime ldtStart = LocalDateTime.parse(txtHistStart.getText()); //Parse start
         			LocalDateTime ldtEnd = LocalDateTime.parse(txtHistEnd.getText()); //Pares end
         			long s1 = ldtStart.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(); //Concert start to ms
         			long e1 = ldtEnd.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(); //Convert end to ms
-        			List<TemperatureReading> hist = ThermostatClient.getHistory(s1, e1); //Call get history method in ThermostatClient
-        			//Output to GUI
-        			SwingUtilities.invokeLater(() -> txtAreaThermo.append("--- History ---\n"));
-        				for (TemperatureReading r : hist) {
-        					txtAreaThermo.append(String.format("t=%d → %.2f°C\n", r.getTimestamp(), r.getTemperature()));
+        			Iterator<TemperatureReading> hist = ThermostatClient.streamHistory(s1, e1); //Call stream history method in ThermostatClient
+        			//Output to the table and chart as readings arrive, without formatting each one
+        			thermoSeries.clear();
+        			logThermo.append("--- History ---\n");
+        			int n = 0;
+        				while (hist.hasNext()) {
+        					TemperatureReading r = hist.next();
+        					thermoSeries.append(r.getTimestamp(), r.getTemperature());
+        					n++;
         				}
+        			logThermo.append(n + " readings, see the Table and Chart views\n");
         		}catch(Exception ex) {
-        			SwingUtilities.invokeLater(() -> txtAreaThermo.append("Error: " + ex.getMessage() + "\n")); //Error handling
+        			String trace = Tracing.currentTraceId(); //Trace id to match against client and server logs
+        			logThermo.append("Error: " + ex.getMessage() + " [trace " + trace + "]\n"); //Error handling
         		}
-        	}).start(); //Start background thread
+        	}); //Run as a managed background task, replacing any previous run
         });
         
         btnGetAverage.addActionListener(e -> {
-        	new Thread(() -> {
+        	thermoTasks.run("average", () -> {
         		try {
         			LocalDateTime ldtStart = LocalDateTime.parse(txtAvgStart.getText()); //Parse start
         			LocalDateTime ldtEnd = LocalDateTime.parse(txtAvgEnd.getText()); //Pares end
         			long s1 = ldtStart.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(); //Concert start to ms
         			long e1 = ldtEnd.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(); //Convert end to ms
         			double avg = ThermostatClient.getAverage(s1, e1); //Call get average method from ThermostatClient
-        			SwingUtilities.invokeLater(() -> txtAreaThermo.append(String.format("Average=%.2f°C\n", avg))); //Output to GUI
+        			logThermo.append(String.format("Average=%.2f°C\n", avg)); //Output to GUI
         		}catch(Exception ex) {
-        			SwingUtilities.invokeLater(() -> txtAreaThermo.append("Error: " + ex.getMessage() + "\n")); //Error handling
+        			String trace = Tracing.currentTraceId(); //Trace id to match against client and server logs
+        			logThermo.append("Error: " + ex.getMessage() + " [trace " + trace + "]\n"); //Error handling
         		}
-        	}).start(); //Start background thread
+        	}); //Run as a managed background task, replacing any previous run
         });
         
         //---- Solar Listener ----
         btnDailyYield.addActionListener(evt -> {
-        	new Thread(() -> {
+        	solarTasks.run("yield", () -> {
         		try {
         			GetDailyYieldResponse resp = SolarClient.getDailyYield(txtSolarDate.getText()); //Call get daily yield from SolarClient
-        			SwingUtilities.invokeLater(() -> txtAreaSolar.append(String.format("Yield: %.2f kWh, Peak: %.2f kW\n", resp.getYieldKw(), resp.getPeak()))); //Output to GUI
+        			logSolar.append(String.format("Yield: %.2f kWh, Peak: %.2f kW\n", resp.getYieldKw(), resp.getPeak())); //Output to GUI
         		}catch(Exception ex) {
-        			SwingUtilities.invokeLater(() -> txtAreaSolar.append("Error: " + ex.getMessage() + "\n")); //Error handling
+        			String trace = Tracing.currentTraceId(); //Trace id to match against client and server logs
+        			logSolar.append("Error: " + ex.getMessage() + " [trace " + trace + "]\n"); //Error handling
         		}
-        	}).start(); //Start background thread
+        	}); //Run as a managed background task, replacing any previous run
         });
         
         btnStreamOutput.addActionListener(evt -> {
-        	new Thread(() -> {
+        	solarTasks.run("stream", () -> {
         		try {
         			int count = Integer.parseInt(txtSolarCount.getText()); //Parse count
         			Iterator<RealTimeOutput> it = SolarClient.streamRealTimeOutput(); //Call stream real time output from SolarClient
-        			SwingUtilities.invokeLater(() -> txtAreaSolar.append("Real Time Output\n")); //Output to GUI
+        			logSolar.append("Real Time Output\n"); //Output to GUI
+        			solarSeries.clear();
         			int i = 0;
         			//While there is a next value and i is less than count
         			while (it.hasNext() && i < count) {
         				RealTimeOutput output = it.next(); //Output equals next
-        				SwingUtilities.invokeLater(() -> txtAreaSolar.append(String.format("%s → %.2f kW%n", output.getTimestamp(), output.getCurrentKw()))); //Output to GUI
+        				logSolar.append(String.format("%s → %.2f kW%n", output.getTimestamp(), output.getCurrentKw())); //Output to GUI
+        				solarSeries.append(Instant.parse(output.getTimestamp()).toEpochMilli(), output.getCurrentKw());
         	            i++;
         			}
         		}catch(Exception ex) {
-        			SwingUtilities.invokeLater(() -> txtAreaSolar.append("Error: " + ex.getMessage() + "\n")); //Error handling
+        			String trace = Tracing.currentTraceId(); //Trace id to match against client and server logs
+        			logSolar.append("Error: " + ex.getMessage() + " [trace " + trace + "]\n"); //Error handling
         		}
-        	}).start(); //Start background thread
+        	}); //Run as a managed background task, replacing any previous run
         });
         
         btnTrade.addActionListener(evt -> {
-        	new Thread(() -> {
+        	solarTasks.run("trade", () -> {
         		try {
         			double price = Double.parseDouble(txtTradePrice.getText()); //Pares price
         			double qty = Double.parseDouble(txtTradeQty.getText()); //Parse quantity
         					List<TradeRequest> reqs = Arrays.asList(TradeRequest.newBuilder().setPrice(price).setQuantity(qty).build()); //Request 
         					List<TradeResponse> resps = SolarClient.negotiateTrades(reqs); //Response
         					//Output to GUI
-        					SwingUtilities.invokeLater(() -> {
-        						txtAreaSolar.append("Trade Negotiation\n");
-        						resps.forEach(r -> txtAreaSolar.append(r.toString() + "\n"));
-        					});
+        					logSolar.append("Trade Negotiation\n");
+        					resps.forEach(r -> logSolar.append(r.toString() + "\n"));
         		}catch(Exception ex) {
-        			SwingUtilities.invokeLater(() -> txtAreaSolar.append("Error: " + ex.getMessage() + "\n")); //Error handling
+        			String trace = Tracing.currentTraceId(); //Trace id to match against client and server logs
+        			logSolar.append("Error: " + ex.getMessage() + " [trace " + trace + "]\n"); //Error handling
         		}
-        	}).start(); //Start background thread
+        	}); //Run as a managed background task, replacing any previous run
         });
 
         // --- Lighting listeners ---
         btnGetBrightness.addActionListener(evt -> {
-            new Thread(() -> {
+            lightingTasks.run("brightness", () -> {
                 try {
                     GetCurrentBrightnessResponse resp = LightingClient.getCurrentBrightness(txtZone.getText().trim()); //Call method from LightingClient
                     //Output to GUI
-                    SwingUtilities.invokeLater(() -> txtAreaLighting.append(String.format("Current brightness in %s: %d%% at %s\n", txtZone.getText().trim(), resp.getLevel(), resp.getTimestamp())));
+                    logLighting.append(String.format("Current brightness in %s: %d%% at %s\n", txtZone.getText().trim(), resp.getLevel(), resp.getTimestamp()));
                 } catch(Exception ex) {
-                    SwingUtilities.invokeLater(() -> txtAreaLighting.append("Error in getBrightness: " + ex + "\n")); //Error handling
+                    String trace = Tracing.currentTraceId(); //Trace id to match against client and server logs
+                    logLighting.append("Error in getBrightness: " + ex + " [trace " + trace + "]\n"); //Error handling
                 }
-            }).start(); //Start background thread
+            }); //Run as a managed background task, replacing any previous run
         });
         
         btnStreamAmbient.addActionListener(evt -> {
-            new Thread(() -> {
+            lightingTasks.run("ambient", () -> {
                 try {
                     String zone = txtAmbientZone.getText().trim(); //Get zone
                     int count = Integer.parseInt(txtAmbientCount.getText()); //Parse count
                     Iterator<AmbientLightReading> it = LightingClient.streamAmbientLightData(zone); //Call method
-                    SwingUtilities.invokeLater(() -> txtAreaLighting.append("--- Ambient Light Data ---\n")); //Output to GUI
+                    logLighting.append("--- Ambient Light Data ---\n"); //Output to GUI
+                    lightingSeries.clear();
                     int i = 0;
                     //While next exists and i is less than count
                     while (it.hasNext() && i < count) {
                     	AmbientLightReading reading = it.next(); //Output equals next
                     	//Output to GUI
-                    	SwingUtilities.invokeLater(() -> txtAreaLighting.append(String.format("%s | lux=%.1f | occupied=%b%n", reading.getTimestamp(), reading.getLux(), reading.getOccupied())));
+                    	logLighting.append(String.format("%s | lux=%.1f | occupied=%b%n", reading.getTimestamp(), reading.getLux(), reading.getOccupied()));
+                    	lightingSeries.append(Instant.parse(reading.getTimestamp()).toEpochMilli(), reading.getLux(), reading.getOccupied() ? 1 : 0);
                         i++;
                     }
                     
                 } catch(Exception ex) {
-                    SwingUtilities.invokeLater(() -> txtAreaLighting.append("Error in ambient data: " + ex + "\n")); //Error handling
+                    String trace = Tracing.currentTraceId(); //Trace id to match against client and server logs
+                    logLighting.append("Error in ambient data: " + ex + " [trace " + trace + "]\n"); //Error handling
                 }
-            }).start();//Start background thread
+            }); //Run as a managed background task, replacing any previous run
         });
         
         btnUploadUsage.addActionListener(evt -> {
-            new Thread(() -> {
+            lightingTasks.run("upload", () -> {
                 try {
                     int dur = Integer.parseInt(txtUsageDur.getText()); //Parse duration
                     List<LightUsageStat> stats = Arrays.asList(LightUsageStat.newBuilder().setDurationMin(dur).build());
                     double total = LightingClient.uploadUsageStats(stats);
-                    SwingUtilities.invokeLater(() -> txtAreaLighting.append(String.format("Total energy used: %.2f kWh\n", total))); //Output to GUI
+                    logLighting.append(String.format("Total energy used: %.2f kWh\n", total)); //Output to GUI
                 } catch(Exception ex) {
-                    SwingUtilities.invokeLater(() -> txtAreaLighting.append("Error in upload usage: " + ex + "\n")); //Error handling
+                    String trace = Tracing.currentTraceId(); //Trace id to match against client and server logs
+                    logLighting.append("Error in upload usage: " + ex + " [trace " + trace + "]\n"); //Error handling
                 }
-            }).start(); //Start background thread
+            }); //Run as a managed background task, replacing any previous run
         });
         
         btnAdjust.addActionListener(evt -> {
-            new Thread(() -> {
+            lightingTasks.run("adjust", () -> {
                 try {
                     int level = Integer.parseInt(txtAdjustLevel.getText()); //Parse level
                     boolean occ = Boolean.parseBoolean(txtAdjustOcc.getText()); //Parse occupancy
@@ -399,14 +478,40 @@ public class EnergyDashboardGUI {
                     List<AdjustBrightnessRequest> reqs = Arrays.asList(AdjustBrightnessRequest.newBuilder().setDesiredLevel(level).setOccupied(occ).setTimestamp(ts).build());
                     List<AdjustBrightnessResponse> resps = LightingClient.adjustBrightness(reqs); //Call method
                     //Output to GUI
-                    SwingUtilities.invokeLater(() -> {
-                        txtAreaLighting.append("--- Adjust Brightness ---\n");
-                        resps.forEach(r -> txtAreaLighting.append(String.format("%s | lux=%.1f\n", r.getTimestamp(), r.getLux())));
-                    });
+                    logLighting.append("--- Adjust Brightness ---\n");
+                    resps.forEach(r -> logLighting.append(String.format("%s | lux=%.1f\n", r.getTimestamp(), r.getLux())));
                 } catch(Exception ex) {
-                    SwingUtilities.invokeLater(() -> txtAreaLighting.append("Error in adjust brightness: " + ex + "\n")); //Error handling
+                    String trace = Tracing.currentTraceId(); //Trace id to match against client and server logs
+                    logLighting.append("Error in adjust brightness: " + ex + " [trace " + trace + "]\n"); //Error handling
                 }
-            }).start(); //Start background thread
+            }); //Run as a managed background task, replacing any previous run
+        });
+        
+        //---- Balance Listener ----
+        btnStreamBalance.addActionListener(evt -> {
+        	balanceTasks.run("stream", () -> {
+        		try {
+        			int count = Integer.parseInt(txtBalanceCount.getText()); //Parse count
+        			Iterator<BalanceSnapshot> it = EnergyBalanceClient.streamBalance(); //Call stream balance from EnergyBalanceClient
+        			logBalance.append("--- Energy Balance ---\n"); //Output to GUI
+        			balanceSeries.clear();
+        			int i = 0;
+        			//While there is a next value and i is less than count
+        			while (it.hasNext() && i < count) {
+        				BalanceSnapshot b = it.next();
+        				double loadKw = b.getLightingKw() + b.getHeatingKw();
+        				//Output to GUI
+        				logBalance.append(String.format("%s | solar=%.2f kW | load=%.2f kW | net=%+.2f kW | window in=%.4f out=%.4f kWh | mean=%+.2f kW%n",
+        						Instant.ofEpochMilli(b.getTimestamp()), b.getSolarKw(), loadKw, b.getNetKw(),
+        						b.getCurrent().getImportedKwh(), b.getCurrent().getExportedKwh(), b.getSlidingMeanNetKw()));
+        				balanceSeries.append(b.getTimestamp(), b.getSolarKw(), loadKw, b.getNetKw());
+        				i++;
+        			}
+        		}catch(Exception ex) {
+        			String trace = Tracing.currentTraceId(); //Trace id to match against client and server logs
+        			logBalance.append("Error: " + ex.getMessage() + " [trace " + trace + "]\n"); //Error handling
+        		}
+        	}); //Run as a managed background task, replacing any previous run
         });
         
         //Frame display settings
@@ -414,6 +519,26 @@ public class EnergyDashboardGUI {
         frame.setLocationRelativeTo(null); //Center on screen
         frame.setVisible(true); //Show window
     }
+	
+	//Button stopping everything a tab has running, streams included
+	private static JPanel cancelBar(TaskManager.Tab tasks) {
+		JPanel bar = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+		JButton btnCancel = new JButton("Cancel Running");
+		btnCancel.addActionListener(evt -> tasks.cancelAll());
+		bar.add(btnCancel);
+		return bar;
+	}
+	
+	//Log, table and chart views of one tab's output
+	private static JTabbedPane outputViews(JTextArea log, SeriesTableModel series, LineChart chart) {
+		JTable table = new JTable(series); //Only visible rows are ever formatted
+		table.setFillsViewportHeight(true);
+		JTabbedPane views = new JTabbedPane();
+		views.addTab("Log", new JScrollPane(log));
+		views.addTab("Table", new JScrollPane(table));
+		views.addTab("Chart", chart);
+		return views;
+	}
 }
 	
     
\ No newline at end of file
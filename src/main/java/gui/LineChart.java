@@ -0,0 +1,193 @@
+/*
+ * LineChart.java
+ *
+ * Line chart over one column of a SeriesTableModel. Before drawing, the
+ * visible range is reduced to about one point per pixel with LTTB, so
+ * the cost of a repaint depends on the chart's width, not on how many
+ * readings there are.
+ *
+ * Mouse wheel zooms around the cursor, dragging pans, and a double click
+ * goes back to showing everything while following new data.
+ */
+
+package gui;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import javax.swing.JComponent;
+
+final class LineChart extends JComponent {
+	private static final long serialVersionUID = 1L;
+	private static final int PAD = 40;
+	private static final double ZOOM_STEP = 1.25;
+	private static final DateTimeFormatter AXIS_FORMAT =
+			DateTimeFormatter.ofPattern("MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+	private final SeriesTableModel model;
+	private final int column;
+	private final String unit;
+
+	//Visible time window; following means it tracks all data as it grows
+	private boolean following = true;
+	private long viewFrom;
+	private long viewTo;
+
+	//Reused between repaints
+	private int[] picked = new int[0];
+	private int[] xs = new int[0];
+	private int[] ys = new int[0];
+	private int dragX;
+
+	LineChart(SeriesTableModel model, int column, String unit) {
+		this.model = model;
+		this.column = column;
+		this.unit = unit;
+		setPreferredSize(new Dimension(600, 300));
+		setBackground(Color.WHITE);
+		setOpaque(true);
+		model.addTableModelListener(e -> repaint()); //Fired at most once per refresh tick
+
+		MouseAdapter mouse = new MouseAdapter() {
+			@Override
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				zoom(e.getX(), e.getWheelRotation() < 0 ? 1 / ZOOM_STEP : ZOOM_STEP);
+			}
+
+			@Override
+			public void mousePressed(MouseEvent e) {
+				dragX = e.getX();
+			}
+
+			@Override
+			public void mouseDragged(MouseEvent e) {
+				pan(dragX - e.getX());
+				dragX = e.getX();
+			}
+
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				if (e.getClickCount() == 2) {
+					following = true;
+					repaint();
+				}
+			}
+		};
+		addMouseListener(mouse);
+		addMouseMotionListener(mouse);
+		addMouseWheelListener(mouse);
+	}
+
+	private int plotWidth() {
+		return Math.max(1, getWidth() - 2 * PAD);
+	}
+
+	private void zoom(int mouseX, double factor) {
+		if (!updateView()) {
+			return;
+		}
+		following = false;
+		double span = viewTo - viewFrom;
+		double anchor = viewFrom + span * Math.max(0, Math.min(1, (mouseX - PAD) / (double) plotWidth()));
+		double newSpan = Math.max(1000, span * factor); //No closer than one second
+		viewFrom = (long) (anchor - (anchor - viewFrom) * newSpan / span);
+		viewTo = (long) (viewFrom + newSpan);
+		repaint();
+	}
+
+	private void pan(int dx) {
+		if (!updateView()) {
+			return;
+		}
+		following = false;
+		long shift = (long) ((viewTo - viewFrom) * (double) dx / plotWidth());
+		viewFrom += shift;
+		viewTo += shift;
+		repaint();
+	}
+
+	//Refreshes the window when following; false if there is nothing to show
+	private boolean updateView() {
+		int n = model.getRowCount();
+		if (n == 0) {
+			return false;
+		}
+		if (following) {
+			viewFrom = model.timeAt(0);
+			viewTo = Math.max(viewFrom + 1, model.timeAt(n - 1));
+		}
+		return true;
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		Graphics2D g2 = (Graphics2D) g;
+		g2.setColor(getBackground());
+		g2.fillRect(0, 0, getWidth(), getHeight());
+		g2.setColor(Color.GRAY);
+		g2.drawRect(PAD, PAD / 2, plotWidth(), Math.max(1, getHeight() - PAD * 3 / 2));
+		if (!updateView()) {
+			g2.drawString("No data", PAD + 8, PAD);
+			return;
+		}
+
+		//Rows inside the window, plus one either side so lines run to the edges
+		int rows = model.getRowCount();
+		int from = Math.max(0, model.indexOf(viewFrom) - 1);
+		int to = Math.min(rows, model.indexOf(viewTo) + 1);
+		int width = plotWidth();
+		int threshold = Math.max(3, width);
+		if (picked.length < threshold) {
+			picked = new int[threshold];
+			xs = new int[threshold];
+			ys = new int[threshold];
+		}
+		int count = model.downsample(column, from, to, threshold, picked);
+		if (count == 0) {
+			return;
+		}
+
+		//Value range of the points actually drawn
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < count; i++) {
+			double v = model.valueAt(column, picked[i]);
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		if (max - min < 1e-9) {
+			max = min + 1;
+		}
+		int top = PAD / 2;
+		int height = Math.max(1, getHeight() - PAD * 3 / 2);
+		double span = viewTo - viewFrom;
+		for (int i = 0; i < count; i++) {
+			int row = picked[i];
+			xs[i] = PAD + (int) ((model.timeAt(row) - viewFrom) / span * width);
+			ys[i] = top + height - (int) ((model.valueAt(column, row) - min) / (max - min) * height);
+		}
+
+		//No antialiasing: on a dense line it adds nothing visible and costs several times the draw
+		g2.clipRect(PAD, top, width + 1, height + 1);
+		g2.setColor(new Color(0x1f77b4));
+		g2.drawPolyline(xs, ys, count);
+		g2.setClip(null);
+
+		//Axis labels
+		g2.setColor(Color.DARK_GRAY);
+		g2.drawString(String.format(Locale.ROOT, "%.2f %s", max, unit), 2, top + 10);
+		g2.drawString(String.format(Locale.ROOT, "%.2f %s", min, unit), 2, top + height);
+		g2.drawString(AXIS_FORMAT.format(Instant.ofEpochMilli(viewFrom)), PAD, getHeight() - 6);
+		String end = AXIS_FORMAT.format(Instant.ofEpochMilli(viewTo));
+		g2.drawString(end, PAD + width - g2.getFontMetrics().stringWidth(end), getHeight() - 6);
+		String info = (to - from) + " readings, " + count + " drawn" + (following ? "" : " (double click to reset)");
+		g2.drawString(info, PAD + (width - g2.getFontMetrics().stringWidth(info)) / 2, getHeight() - 6);
+	}
+}
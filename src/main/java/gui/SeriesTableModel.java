@@ -0,0 +1,290 @@
+/*
+ * SeriesTableModel.java
+ *
+ * Table model for time series: a long[] time column and one double[]
+ * column per value, grown by doubling. Nothing is boxed or formatted
+ * until JTable asks for a visible cell, so a table over millions of rows
+ * costs about 16 bytes per row per value and scrolls like a small one.
+ *
+ * Background threads append rows at any rate; the EDT picks them up a few
+ * dozen times a second and announces them in one rowsInserted event.
+ * The chart view reads the same columns through downsample(), helped by
+ * per-block min/max rows kept up to date as rows are appended.
+ */
+
+package gui;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+
+final class SeriesTableModel extends AbstractTableModel {
+	private static final long serialVersionUID = 1L;
+	private static final int BLOCK_BITS = 6; //64 rows per block at level 1, 4096 at level 2...
+	private static final int LEVELS = 3;
+	private static final int REFRESH_HZ = Math.max(1, Integer.getInteger("smarthome.gui.refreshHz", 30));
+	private static final DateTimeFormatter TIME_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+	private final String[] names;
+	private final String[] formats;
+
+	//Guarded by this; written by any thread
+	private long[] times = new long[1024];
+	private final double[][] values;
+	//Row of the min and max value of every block, per column and level; level L blocks span 64^L rows
+	private final int[][][] minRows;
+	private final int[][][] maxRows;
+	private int[] scratch = new int[0];
+	private int size;
+	private int generation; //Bumped by clear, so a refill is never mistaken for an append
+
+	//Rows and generation announced to the table so far; EDT only
+	private int visibleRows;
+	private int visibleGeneration;
+
+	//One value column per name, shown with the given number of decimals
+	SeriesTableModel(String[] names, int[] decimals) {
+		this.names = names;
+		this.formats = new String[names.length];
+		this.values = new double[names.length][times.length];
+		this.minRows = new int[names.length][LEVELS][1];
+		this.maxRows = new int[names.length][LEVELS][1];
+		for (int c = 0; c < names.length; c++) {
+			formats[c] = "%." + decimals[c] + "f";
+		}
+		Timer timer = new Timer(1000 / REFRESH_HZ, e -> publish());
+		timer.setCoalesce(true);
+		timer.start();
+	}
+
+	//Appends a row; times are expected in non-decreasing order
+	synchronized void append(long timeMs, double... row) {
+		if (size == times.length) {
+			int grown = times.length * 2;
+			times = Arrays.copyOf(times, grown);
+			for (int c = 0; c < values.length; c++) {
+				values[c] = Arrays.copyOf(values[c], grown);
+			}
+		}
+		times[size] = timeMs;
+		for (int c = 0; c < values.length; c++) {
+			values[c][size] = row[c];
+			updateBlocks(c, size);
+		}
+		size++;
+	}
+
+	//Folds a new row into the min/max of its block at every level
+	private void updateBlocks(int column, int row) {
+		double[] v = values[column];
+		for (int level = 0; level < LEVELS; level++) {
+			int shift = BLOCK_BITS * (level + 1);
+			int b = row >> shift;
+			int[] mins = minRows[column][level];
+			int[] maxs = maxRows[column][level];
+			if (b == mins.length) {
+				mins = minRows[column][level] = Arrays.copyOf(mins, mins.length * 2);
+				maxs = maxRows[column][level] = Arrays.copyOf(maxs, maxs.length * 2);
+			}
+			if ((row & ((1 << shift) - 1)) == 0) {
+				mins[b] = row; //First row of a new block
+				maxs[b] = row;
+			} else {
+				if (v[row] < v[mins[b]]) {
+					mins[b] = row;
+				}
+				if (v[row] > v[maxs[b]]) {
+					maxs[b] = row;
+				}
+			}
+		}
+	}
+
+	//Drops every row, e.g. before loading a new history
+	synchronized void clear() {
+		size = 0;
+		generation++;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	synchronized long timeAt(int row) {
+		return times[row];
+	}
+
+	//First row with time >= timeMs, or size if there is none
+	synchronized int indexOf(long timeMs) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (times[mid] < timeMs) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	//Fills out with at most threshold row indexes of [from, to) that keep the shape of the
+	//column, using Largest-Triangle-Three-Buckets; returns how many were written. Long ranges
+	//are first narrowed to the min and max rows of each block, so the cost follows the
+	//threshold rather than the number of rows.
+	synchronized int downsample(int column, int from, int to, int threshold, int[] out) {
+		to = Math.min(to, size);
+		int n = to - from;
+		if (n <= 0) {
+			return 0;
+		}
+		if (threshold >= n || threshold < 3) {
+			int count = Math.min(n, out.length);
+			for (int i = 0; i < count; i++) {
+				out[i] = from + i;
+			}
+			return count;
+		}
+		int level = 0;
+		while (level < LEVELS && (n >> (BLOCK_BITS * (level + 1))) >= 2 * threshold) {
+			level++;
+		}
+		if (level == 0) {
+			return lttb(values[column], null, from, n, threshold, out);
+		}
+		int candidates = blockExtremes(column, level, from, to);
+		return lttb(values[column], scratch, 0, candidates, threshold, out);
+	}
+
+	//Collects the first, min, max and last rows of every level block overlapping [from, to) into scratch
+	private int blockExtremes(int column, int level, int from, int to) {
+		int shift = BLOCK_BITS * level;
+		int[] mins = minRows[column][level - 1];
+		int[] maxs = maxRows[column][level - 1];
+		int blocks = ((to - 1) >> shift) - (from >> shift) + 1;
+		if (scratch.length < blocks * 2 + 2) {
+			scratch = new int[blocks * 2 + 2];
+		}
+		int count = 0;
+		scratch[count++] = from;
+		for (int b = from >> shift; b <= (to - 1) >> shift; b++) {
+			int lo = Math.min(mins[b], maxs[b]);
+			int hi = Math.max(mins[b], maxs[b]);
+			if (lo > scratch[count - 1] && lo < to - 1) {
+				scratch[count++] = lo;
+			}
+			if (hi > scratch[count - 1] && hi < to - 1) {
+				scratch[count++] = hi;
+			}
+		}
+		scratch[count++] = to - 1;
+		return count;
+	}
+
+	//LTTB over n rows given by src (or from, from + 1, ... when src is null)
+	private int lttb(double[] v, int[] src, int from, int n, int threshold, int[] out) {
+		if (n <= threshold) {
+			for (int i = 0; i < n; i++) {
+				out[i] = src == null ? from + i : src[i];
+			}
+			return n;
+		}
+		double bucket = (double) (n - 2) / (threshold - 2);
+		int a = row(src, from, 0);
+		int count = 0;
+		out[count++] = a;
+		for (int i = 0; i < threshold - 2; i++) {
+			//Average of the next bucket, the third corner of the triangle
+			int nextStart = (int) ((i + 1) * bucket) + 1;
+			int nextEnd = Math.min((int) ((i + 2) * bucket) + 1, n);
+			double avgX = 0, avgY = 0;
+			for (int j = nextStart; j < nextEnd; j++) {
+				int r = row(src, from, j);
+				avgX += times[r];
+				avgY += v[r];
+			}
+			int len = Math.max(1, nextEnd - nextStart);
+			avgX /= len;
+			avgY /= len;
+
+			//Point of this bucket forming the largest triangle with the previous pick and that average
+			int start = (int) (i * bucket) + 1;
+			int end = (int) ((i + 1) * bucket) + 1;
+			double ax = times[a], ay = v[a];
+			double maxArea = -1;
+			int pick = row(src, from, start);
+			for (int j = start; j < end; j++) {
+				int r = row(src, from, j);
+				double area = Math.abs((ax - avgX) * (v[r] - ay) - (ax - times[r]) * (avgY - ay));
+				if (area > maxArea) {
+					maxArea = area;
+					pick = r;
+				}
+			}
+			out[count++] = pick;
+			a = pick;
+		}
+		out[count++] = row(src, from, n - 1);
+		return count;
+	}
+
+	private static int row(int[] src, int from, int j) {
+		return src == null ? from + j : src[j];
+	}
+
+	synchronized double valueAt(int column, int row) {
+		return values[column][row];
+	}
+
+	//Announces rows appended since the last tick; EDT only
+	private void publish() {
+		int n, gen;
+		synchronized (this) {
+			n = size;
+			gen = generation;
+		}
+		if (gen != visibleGeneration) {
+			visibleGeneration = gen;
+			visibleRows = n;
+			fireTableDataChanged(); //Cleared since the last tick
+		} else if (n > visibleRows) {
+			int first = visibleRows;
+			visibleRows = n;
+			fireTableRowsInserted(first, n - 1);
+		}
+	}
+
+	@Override
+	public int getRowCount() {
+		return visibleRows;
+	}
+
+	@Override
+	public int getColumnCount() {
+		return names.length + 1;
+	}
+
+	@Override
+	public String getColumnName(int column) {
+		return column == 0 ? "Time" : names[column - 1];
+	}
+
+	@Override
+	public Class<?> getColumnClass(int column) {
+		return String.class;
+	}
+
+	//Formats only the cells JTable actually paints
+	@Override
+	public Object getValueAt(int row, int column) {
+		if (column == 0) {
+			return TIME_FORMAT.format(Instant.ofEpochMilli(timeAt(row)));
+		}
+		return String.format(Locale.ROOT, formats[column - 1], valueAt(column - 1, row));
+	}
+}
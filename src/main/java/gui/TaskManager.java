@@ -0,0 +1,114 @@
+/*
+ * TaskManager.java
+ *
+ * Runs the dashboard's background actions on a bounded pool instead of a
+ * new thread per click. Every task runs inside its own cancellable gRPC
+ * context, so cancelling the task cancels the calls it made, streams
+ * included. Tasks are tracked per tab and per action: starting an action
+ * again replaces the previous run, a tab's Cancel button stops everything
+ * the tab started, and closing the window stops everything.
+ *
+ * Settings (system properties):
+ *  smarthome.gui.maxTasks   threads running actions at once, default 8
+ *  smarthome.gui.taskQueue  actions waiting for a thread, default 16
+ */
+
+package gui;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import io.grpc.Context;
+import metrics.Tracing;
+
+final class TaskManager {
+	private final ThreadPoolExecutor executor;
+	private final Map<Tab, Boolean> tabs = new ConcurrentHashMap<>();
+
+	TaskManager() {
+		this(Integer.getInteger("smarthome.gui.maxTasks", 8), Integer.getInteger("smarthome.gui.taskQueue", 16));
+	}
+
+	TaskManager(int maxThreads, int queueSize) {
+		AtomicInteger ids = new AtomicInteger();
+		executor = new ThreadPoolExecutor(maxThreads, maxThreads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), r -> {
+					Thread t = new Thread(r, "dashboard-task-" + ids.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		executor.allowCoreThreadTimeOut(true); //No idle threads while nothing runs
+	}
+
+	//Task tracking for one tab, reporting to its log
+	Tab tab(CoalescingLog log) {
+		Tab tab = new Tab(log);
+		tabs.put(tab, Boolean.TRUE);
+		return tab;
+	}
+
+	//Cancels every task and waits briefly for the threads to finish
+	void shutdown() {
+		for (Tab tab : tabs.keySet()) {
+			tab.cancelAll();
+		}
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(2, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	final class Tab {
+		private final CoalescingLog log;
+		private final ConcurrentHashMap<String, Context.CancellableContext> running = new ConcurrentHashMap<>();
+
+		private Tab(CoalescingLog log) {
+			this.log = log;
+		}
+
+		//Runs the action in the background, cancelling the previous run of the same action
+		void run(String action, Runnable body) {
+			Context.CancellableContext context = Context.current().withCancellation();
+			Context.CancellableContext previous = running.put(action, context);
+			if (previous != null) {
+				previous.cancel(null); //Also ends its gRPC calls
+			}
+			try {
+				executor.execute(() -> {
+					try {
+						if (!context.isCancelled()) {
+							context.run(Tracing.traced(body));
+						}
+					} finally {
+						running.remove(action, context);
+						context.cancel(null); //Closes any stream the action left open
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				running.remove(action, context);
+				context.cancel(null);
+				log.append("Too many actions running, try again shortly\n");
+			}
+		}
+
+		//Cancels every action this tab started
+		void cancelAll() {
+			int n = 0;
+			for (Map.Entry<String, Context.CancellableContext> e : running.entrySet()) {
+				if (running.remove(e.getKey(), e.getValue())) {
+					e.getValue().cancel(null);
+					n++;
+				}
+			}
+			if (n > 0) {
+				log.append("Cancelled " + n + " running action" + (n == 1 ? "" : "s") + "\n");
+			}
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * DeviceStreams.java
+ *
+ * The long-lived streams of the simulated fleet: a heating load stream
+ * per thermostat, a real time output stream per solar panel and an
+ * ambient light stream per lighting zone. Streams are opened evenly over
+ * the ramp time, cancelled and reopened once their lifetime is up, and
+ * reopened after a short jittered backoff if the server ends or rejects
+ * them. Latency per stream is the time to its first message.
+ */
+
+package loadgen;
+
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import com.google.protobuf.Empty;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import lighting.protos.SmartLightingServiceGrpc;
+import lighting.protos.StreamAmbientLightDataRequest;
+import sharding.Homes;
+import solar.protos.SmartSolarServiceGrpc;
+import solar.protos.StreamRealTimeOutputRequest;
+import thermostat.protos.SmartThermostatGrpc;
+
+final class DeviceStreams {
+	private static final long RETRY_MS = 1_000; //Base backoff after a failed or rejected stream
+
+	private final LoadConfig config;
+	private final Targets targets;
+	private final ScheduledExecutorService scheduler;
+	private final SplittableRandom jitter;
+
+	final OperationStats heatingLoad = new OperationStats("stream heatingLoad");
+	final OperationStats realTimeOutput = new OperationStats("stream realTimeOutput");
+	final OperationStats ambientLight = new OperationStats("stream ambientLight");
+
+	private final AtomicIntegerArray open = new AtomicIntegerArray(3); //Per server, in Targets order
+	private final LongAdder messages = new LongAdder();
+	private final Set<ClientCallStreamObserver<?>> live = ConcurrentHashMap.newKeySet();
+	private volatile boolean running = true;
+
+	DeviceStreams(LoadConfig config, Targets targets, ScheduledExecutorService scheduler) {
+		this.config = config;
+		this.targets = targets;
+		this.scheduler = scheduler;
+		this.jitter = new SplittableRandom(config.seed ^ 0x5DEECE66DL);
+	}
+
+	//Schedules every device's first open across the ramp time
+	void start() {
+		int total = config.homes * config.streamsPerHome();
+		int n = 0;
+		for (int home = 0; home < config.homes; home++) {
+			int channel = home % config.channels;
+			String homeId = LoadGenerator.homeId(home);
+			SmartThermostatGrpc.SmartThermostatStub thermostat = targets.thermostat[channel].withOption(Homes.OPTION, homeId);
+			SmartSolarServiceGrpc.SmartSolarServiceStub solar = targets.solar[channel].withOption(Homes.OPTION, homeId);
+			SmartLightingServiceGrpc.SmartLightingServiceStub lighting = targets.lighting[channel].withOption(Homes.OPTION, homeId);
+			for (int t = 0; t < config.thermostatsPerHome; t++) {
+				later(rampDelay(n++, total), () -> open(Targets.THERMOSTAT, heatingLoad, thermostat::streamHeatingLoad,
+						Empty.getDefaultInstance()));
+			}
+			for (int p = 0; p < config.panelsPerHome; p++) {
+				later(rampDelay(n++, total), () -> open(Targets.SOLAR, realTimeOutput, solar::streamRealTimeOutput,
+						StreamRealTimeOutputRequest.getDefaultInstance()));
+			}
+			for (int z = 0; z < config.zonesPerHome; z++) {
+				StreamAmbientLightDataRequest req = StreamAmbientLightDataRequest.newBuilder()
+						.setZoneId(LoadGenerator.zoneId(home, z)).build();
+				later(rampDelay(n++, total), () -> open(Targets.LIGHTING, ambientLight, lighting::streamAmbientLightData, req));
+			}
+		}
+	}
+
+	//Cancels every open stream and stops reopening them
+	void stop() {
+		running = false;
+		for (ClientCallStreamObserver<?> call : live) {
+			call.cancel("load generator stopping", null);
+		}
+	}
+
+	OperationStats[] stats() {
+		return new OperationStats[] {heatingLoad, realTimeOutput, ambientLight};
+	}
+
+	//Streams open on one server, in Targets order
+	int open(int server) {
+		return open.get(server);
+	}
+
+	int open() {
+		return open.get(0) + open.get(1) + open.get(2);
+	}
+
+	//Messages received since the last call
+	long drainMessages() {
+		return messages.sumThenReset();
+	}
+
+	private <Q, R> void open(int server, OperationStats stats, BiConsumer<Q, StreamObserver<R>> rpc, Q request) {
+		if (!running) {
+			return;
+		}
+		long start = System.nanoTime();
+		open.incrementAndGet(server);
+		rpc.accept(request, new ClientResponseObserver<Q, R>() {
+			private ClientCallStreamObserver<Q> call;
+			private boolean first = true;
+			private volatile boolean expired;
+
+			@Override
+			public void beforeStart(ClientCallStreamObserver<Q> requestStream) {
+				call = requestStream;
+				live.add(call);
+				if (config.streamLifetimeMs > 0) {
+					later(config.streamLifetimeMs, () -> {
+						expired = true;
+						call.cancel("stream lifetime reached", null);
+					});
+				}
+			}
+
+			@Override
+			public void onNext(R value) {
+				if (first) {
+					first = false;
+					stats.completed(start);
+				}
+				messages.increment();
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				if (expired || !running) {
+					closed(0, () -> open(server, stats, rpc, request)); //Our own cancel
+				} else {
+					stats.failed(t);
+					closed(RETRY_MS + nextJitter(RETRY_MS), () -> open(server, stats, rpc, request));
+				}
+			}
+
+			@Override
+			public void onCompleted() {
+				closed(0, () -> open(server, stats, rpc, request)); //Server ended it, e.g. on shutdown
+			}
+
+			private void closed(long reopenMs, Runnable reopen) {
+				live.remove(call);
+				open.decrementAndGet(server);
+				if (running) {
+					later(reopenMs, reopen);
+				}
+			}
+		});
+	}
+
+	private long rampDelay(int n, int total) {
+		return total <= 1 ? 0 : config.rampMs * n / total;
+	}
+
+	private synchronized long nextJitter(long bound) {
+		return jitter.nextLong(bound);
+	}
+
+	private void later(long delayMs, Runnable task) {
+		if (running) {
+			try {
+				scheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				//Shutting down
+			}
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * LoadConfig.java
+ *
+ * Settings of one load generator run, read from smarthome.loadgen.*
+ * system properties. Rates are fleet-wide arrivals per second; every
+ * arrival picks a random home, so per-home rates are rate / homes.
+ */
+
+package loadgen;
+
+final class LoadConfig {
+	private static final String PREFIX = "smarthome.loadgen.";
+
+	//Targets, the three servers of one deployment
+	final String host = System.getProperty(PREFIX + "host", "localhost");
+	final int thermostatPort = Integer.getInteger(PREFIX + "thermostatPort", 50051);
+	final int solarPort = Integer.getInteger(PREFIX + "solarPort", 50052);
+	final int lightingPort = Integer.getInteger(PREFIX + "lightingPort", 50053);
+	final int channels = Math.max(1, Integer.getInteger(PREFIX + "channels", 4)); //Connections per server node
+	final long discoverMs = Long.getLong(PREFIX + "discoverMs", 3_000); //Wait for each service's nodes on jmDNS, 0 skips it
+
+	//Simulated fleet
+	final int homes = Math.max(1, Integer.getInteger(PREFIX + "homes", 100));
+	final int thermostatsPerHome = Integer.getInteger(PREFIX + "thermostatsPerHome", 1);
+	final int panelsPerHome = Integer.getInteger(PREFIX + "panelsPerHome", 2);
+	final int zonesPerHome = Integer.getInteger(PREFIX + "zonesPerHome", 3);
+
+	//Open-loop arrival rates, per second across the fleet
+	final double unaryRate = rate("unaryRate", 200);
+	final double uploadRate = rate("uploadRate", 10);
+	final double tradeRate = rate("tradeRate", 5);
+
+	//Shape of each call
+	final int uploadSize = Math.max(1, Integer.getInteger(PREFIX + "uploadSize", 60)); //Stats or readings per upload
+	final int tradeSize = Math.max(1, Integer.getInteger(PREFIX + "tradeSize", 20)); //Requests per trade or brightness session
+	final long deadlineMs = Long.getLong(PREFIX + "deadlineMs", 10_000);
+	final int maxInFlight = Integer.getInteger(PREFIX + "maxInFlight", 10_000); //Arrivals beyond this are shed, not queued
+
+	//Long-lived streams: one per device, reopened after the lifetime to exercise setup and teardown
+	final boolean streams = Boolean.parseBoolean(System.getProperty(PREFIX + "streams", "true"));
+	final long streamLifetimeMs = Long.getLong(PREFIX + "streamLifetimeSeconds", 300) * 1_000; //0 keeps them open
+	final long rampMs = Long.getLong(PREFIX + "rampSeconds", 10) * 1_000; //Streams are opened evenly over this time
+
+	//Run length and reporting
+	final long durationMs = Long.getLong(PREFIX + "durationSeconds", 60) * 1_000;
+	final long reportMs = Math.max(1, Long.getLong(PREFIX + "reportSeconds", 5)) * 1_000;
+	final boolean soak = Boolean.parseBoolean(System.getProperty(PREFIX + "soak", "false"));
+	final long seed = Long.getLong(PREFIX + "seed", System.nanoTime());
+
+	//Devices with a live stream per home
+	int streamsPerHome() {
+		return thermostatsPerHome + panelsPerHome + zonesPerHome;
+	}
+
+	String describe() {
+		return homes + " homes (" + thermostatsPerHome + " thermostats, " + panelsPerHome + " panels, " + zonesPerHome
+				+ " zones each), " + unaryRate + " unary/s, " + uploadRate + " uploads/s, " + tradeRate + " trades/s, "
+				+ (streams ? homes * streamsPerHome() + " streams" : "no streams") + ", " + durationMs / 1_000 + " s"
+				+ (soak ? " soak" : "") + ", seed " + seed;
+	}
+
+	private static double rate(String name, double def) {
+		String value = System.getProperty(PREFIX + name);
+		return Math.max(0, value == null ? def : Double.parseDouble(value));
+	}
+}
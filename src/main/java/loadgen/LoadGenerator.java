@@ -0,0 +1,307 @@
+/*
+ * LoadGenerator.java
+ *
+ * Headless load generator and soak test harness for the thermostat, solar
+ * and lighting servers. Simulates a fleet of homes, each with thermostats,
+ * solar panels and lighting zones, that hold one live stream per device
+ * and make unary calls, usage uploads and trade sessions at configurable
+ * open-loop rates. Prints throughput and latency percentiles every
+ * report interval and for the whole run. Soak mode also polls every
+ * server's heap, threads and open streams and ends with a leak verdict.
+ *
+ * Settings are smarthome.loadgen.* system properties, see LoadConfig.
+ * All load comes from one address, so start the servers with admission
+ * limits to match, e.g. -Dsmarthome.admission.maxStreamsPerPeer=100000
+ * -Dsmarthome.admission.callsPerSecond=100000.
+ *
+ * Run with: java -Dsmarthome.loadgen.homes=500 -cp <runtime classpath> loadgen.LoadGenerator
+ */
+
+package loadgen;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import io.grpc.stub.StreamObserver;
+import lighting.protos.AdjustBrightnessRequest;
+import sharding.Homes;
+import lighting.protos.GetCurrentBrightnessRequest;
+import lighting.protos.LightUsageStat;
+import solar.protos.GetDailyYieldRequest;
+import solar.protos.TradeRequest;
+import thermostat.protos.SetTargetTemperatureRequest;
+import thermostat.protos.TemperatureReading;
+
+public final class LoadGenerator {
+	private static final long DRAIN_MS = 15_000; //Longest wait for in-flight calls at the end
+
+	private final LoadConfig config;
+	private final Targets targets;
+	private final SplittableRandom random; //Only used on the driver thread
+	private final ScheduledExecutorService scheduler;
+	private final DeviceStreams streams;
+	private final OpenLoopDriver driver;
+	private final AtomicIntegerArray inFlight = new AtomicIntegerArray(3); //Per server, in Targets order
+
+	//One entry per generated call type, in report order
+	private final OperationStats setTargetTemperature = new OperationStats("setTargetTemperature");
+	private final OperationStats getDailyYield = new OperationStats("getDailyYield");
+	private final OperationStats getCurrentBrightness = new OperationStats("getCurrentBrightness");
+	private final OperationStats getAverageTemperature = new OperationStats("upload getAverageTemperature");
+	private final OperationStats uploadLightUsageStats = new OperationStats("upload uploadLightUsageStats");
+	private final OperationStats energyTradeNegotiation = new OperationStats("trade energyTradeNegotiation");
+	private final OperationStats adjustBrightness = new OperationStats("trade adjustBrightness");
+	private final List<OperationStats> operations = new ArrayList<>();
+
+	LoadGenerator(LoadConfig config) {
+		this.config = config;
+		this.targets = new Targets(config);
+		this.random = new SplittableRandom(config.seed);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "loadgen-scheduler");
+			t.setDaemon(true);
+			return t;
+		});
+		this.streams = new DeviceStreams(config, targets, scheduler);
+		this.driver = new OpenLoopDriver(
+				new OpenLoopDriver.Arrival[] {this::unary, this::upload, this::trade},
+				new double[] {config.unaryRate, config.uploadRate, config.tradeRate},
+				config.durationMs, config.seed);
+
+		operations.add(setTargetTemperature);
+		operations.add(getDailyYield);
+		operations.add(getCurrentBrightness);
+		operations.add(getAverageTemperature);
+		operations.add(uploadLightUsageStats);
+		operations.add(energyTradeNegotiation);
+		operations.add(adjustBrightness);
+		if (config.streams) {
+			operations.addAll(List.of(streams.stats()));
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		new LoadGenerator(new LoadConfig()).run();
+	}
+
+	//Home id of a simulated home, sent with each of its calls so servers keep its state apart
+	static String homeId(int home) {
+		return "home-" + home;
+	}
+
+	//Zone name of a simulated home, shared by the streams and the unary calls
+	static String zoneId(int home, int zone) {
+		return homeId(home) + "-zone-" + zone;
+	}
+
+	void run() throws InterruptedException {
+		System.out.println("Load: " + config.describe());
+		SoakMonitor soak = config.soak ? new SoakMonitor(targets) : null;
+		if (config.streams) {
+			streams.start();
+		}
+		Thread driverThread = new Thread(driver, "loadgen-driver");
+		driverThread.start();
+
+		//Report until the schedule runs out
+		long start = System.nanoTime();
+		long nextReport = start;
+		while (driverThread.isAlive()) {
+			nextReport += TimeUnit.MILLISECONDS.toNanos(config.reportMs);
+			driverThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextReport - System.nanoTime())));
+			report(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			if (soak != null) {
+				soak.sample(expectedStreams());
+			}
+		}
+
+		//Let the last calls finish, then close everything
+		streams.stop();
+		long drainUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MS);
+		while (inFlight() > 0 && System.nanoTime() < drainUntil) {
+			Thread.sleep(50);
+		}
+		summary(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		if (soak != null) {
+			soak.verdict();
+		}
+		scheduler.shutdownNow();
+		targets.shutdown();
+	}
+
+	//Unary mix: one call on one random home's device
+	private void unary(long intended) {
+		int home = random.nextInt(config.homes);
+		int channel = home % config.channels;
+		switch (random.nextInt(3)) {
+		case 0:
+			if (admit(Targets.THERMOSTAT, setTargetTemperature)) {
+				SetTargetTemperatureRequest req = SetTargetTemperatureRequest.newBuilder()
+						.setTargetTemp(18 + random.nextInt(50) / 10.0).build();
+				targets.thermostat[channel].withDeadlineAfter(config.deadlineMs, TimeUnit.MILLISECONDS).withOption(Homes.OPTION, homeId(home))
+						.setTargetTemperature(req, completion(Targets.THERMOSTAT, setTargetTemperature, intended));
+			}
+			break;
+		case 1:
+			if (admit(Targets.SOLAR, getDailyYield)) {
+				GetDailyYieldRequest req = GetDailyYieldRequest.newBuilder()
+						.setDate(LocalDate.now().minusDays(random.nextInt(30)).toString()).build();
+				targets.solar[channel].withDeadlineAfter(config.deadlineMs, TimeUnit.MILLISECONDS).withOption(Homes.OPTION, homeId(home))
+						.getDailyYield(req, completion(Targets.SOLAR, getDailyYield, intended));
+			}
+			break;
+		default:
+			if (admit(Targets.LIGHTING, getCurrentBrightness)) {
+				GetCurrentBrightnessRequest req = GetCurrentBrightnessRequest.newBuilder()
+						.setZoneId(zoneId(home, random.nextInt(Math.max(1, config.zonesPerHome)))).build();
+				targets.lighting[channel].withDeadlineAfter(config.deadlineMs, TimeUnit.MILLISECONDS).withOption(Homes.OPTION, homeId(home))
+						.getCurrentBrightness(req, completion(Targets.LIGHTING, getCurrentBrightness, intended));
+			}
+			break;
+		}
+	}
+
+	//Upload mix: a batch of usage stats or thermostat readings in one client stream
+	private void upload(long intended) {
+		int home = random.nextInt(config.homes);
+		int channel = home % config.channels;
+		if (random.nextBoolean()) {
+			if (admit(Targets.LIGHTING, uploadLightUsageStats)) {
+				StreamObserver<LightUsageStat> req = targets.lighting[channel]
+						.withDeadlineAfter(config.deadlineMs, TimeUnit.MILLISECONDS).withOption(Homes.OPTION, homeId(home))
+						.uploadLightUsageStats(completion(Targets.LIGHTING, uploadLightUsageStats, intended));
+				for (int i = 0; i < config.uploadSize; i++) {
+					req.onNext(LightUsageStat.newBuilder().setDurationMin(1 + random.nextInt(120)).build());
+				}
+				req.onCompleted();
+			}
+		} else if (admit(Targets.THERMOSTAT, getAverageTemperature)) {
+			StreamObserver<TemperatureReading> req = targets.thermostat[channel]
+					.withDeadlineAfter(config.deadlineMs, TimeUnit.MILLISECONDS).withOption(Homes.OPTION, homeId(home))
+					.getAverageTemperature(completion(Targets.THERMOSTAT, getAverageTemperature, intended));
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < config.uploadSize; i++) {
+				req.onNext(TemperatureReading.newBuilder()
+						.setTemperature(18 + random.nextInt(600) / 100.0)
+						.setTimestamp(now - (config.uploadSize - i) * 60_000L).build());
+			}
+			req.onCompleted();
+		}
+	}
+
+	//Session mix: a burst of trade offers or brightness adjustments on one bidirectional stream
+	private void trade(long intended) {
+		int home = random.nextInt(config.homes);
+		int channel = home % config.channels;
+		if (random.nextBoolean()) {
+			if (admit(Targets.SOLAR, energyTradeNegotiation)) {
+				StreamObserver<TradeRequest> req = targets.solar[channel]
+						.withDeadlineAfter(config.deadlineMs, TimeUnit.MILLISECONDS).withOption(Homes.OPTION, homeId(home))
+						.energyTradeNegotiation(completion(Targets.SOLAR, energyTradeNegotiation, intended));
+				for (int i = 0; i < config.tradeSize; i++) {
+					req.onNext(TradeRequest.newBuilder()
+							.setPrice(0.25 + random.nextInt(25) / 100.0)
+							.setQuantity(0.5 + random.nextInt(50) / 10.0).build());
+				}
+				req.onCompleted();
+			}
+		} else if (admit(Targets.LIGHTING, adjustBrightness)) {
+			StreamObserver<AdjustBrightnessRequest> req = targets.lighting[channel]
+					.withDeadlineAfter(config.deadlineMs, TimeUnit.MILLISECONDS).withOption(Homes.OPTION, homeId(home))
+					.adjustBrightness(completion(Targets.LIGHTING, adjustBrightness, intended));
+			for (int i = 0; i < config.tradeSize; i++) {
+				req.onNext(AdjustBrightnessRequest.newBuilder()
+						.setDesiredLevel(random.nextInt(101))
+						.setOccupied(random.nextBoolean()).build());
+			}
+			req.onCompleted();
+		}
+	}
+
+	//Takes an in-flight slot, or counts the arrival as shed once the limit is reached
+	private boolean admit(int server, OperationStats stats) {
+		if (inFlight() >= config.maxInFlight) {
+			stats.shed();
+			return false;
+		}
+		inFlight.incrementAndGet(server);
+		return true;
+	}
+
+	//Records the call's outcome against its slot on the schedule and frees its in-flight slot
+	private <T> StreamObserver<T> completion(int server, OperationStats stats, long intended) {
+		return new StreamObserver<T>() {
+			@Override
+			public void onNext(T value) {
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				inFlight.decrementAndGet(server);
+				stats.failed(t);
+			}
+
+			@Override
+			public void onCompleted() {
+				inFlight.decrementAndGet(server);
+				stats.completed(intended);
+			}
+		};
+	}
+
+	private int inFlight() {
+		return inFlight.get(0) + inFlight.get(1) + inFlight.get(2);
+	}
+
+	//Streams and calls the generator has open on each server
+	private int[] expectedStreams() {
+		int[] expected = new int[3];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = streams.open(i) + inFlight.get(i);
+		}
+		return expected;
+	}
+
+	private void report(long elapsedMs) {
+		double seconds = config.reportMs / 1_000.0;
+		System.out.println(String.format(Locale.ROOT, "[%6.1fs] streams open %d, stream msgs/s %.0f, in flight %d, driver lag max %.2f ms",
+				elapsedMs / 1_000.0, streams.open(), streams.drainMessages() / seconds, inFlight(),
+				driver.drainMaxLagNanos() / 1e6));
+		header();
+		for (OperationStats op : operations) {
+			row(op.drainInterval(), seconds);
+		}
+	}
+
+	private void summary(long elapsedMs) {
+		System.out.println(String.format(Locale.ROOT, "Run total over %.1f s:", elapsedMs / 1_000.0));
+		header();
+		for (OperationStats op : operations) {
+			row(op.totals(), elapsedMs / 1_000.0);
+		}
+	}
+
+	private static void header() {
+		System.out.println(String.format(Locale.ROOT, "  %-30s %9s %6s %6s %6s %9s %9s %9s %9s %9s",
+				"operation (latency in ms)", "ok/s", "fail", "rej", "shed", "p50", "p90", "p99", "p99.9", "max"));
+	}
+
+	private static void row(OperationStats.Sample s, double seconds) {
+		if (s.attempts() == 0) {
+			return;
+		}
+		System.out.println(String.format(Locale.ROOT, "  %-30s %9.1f %6d %6d %6d %9.2f %9.2f %9.2f %9.2f %9.2f",
+				s.name, s.ok / seconds, s.failed, s.rejected, s.shed,
+				s.latency.valueAtQuantile(0.5, TimeUnit.MILLISECONDS),
+				s.latency.valueAtQuantile(0.9, TimeUnit.MILLISECONDS),
+				s.latency.valueAtQuantile(0.99, TimeUnit.MILLISECONDS),
+				s.latency.valueAtQuantile(0.999, TimeUnit.MILLISECONDS),
+				s.latency.maxNanos() / 1e6));
+	}
+}
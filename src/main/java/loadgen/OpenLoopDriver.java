@@ -0,0 +1,101 @@
+/*
+ * OpenLoopDriver.java
+ *
+ * Fires calls on an open-loop schedule: each call class is a Poisson
+ * process with its own rate, and arrival times are fixed up front rather
+ * than waiting for earlier calls to finish. When the driver falls behind
+ * it fires late arrivals straight away but hands each one its original
+ * slot, so the lateness shows up in the measured latency. How far behind
+ * the driver ran is tracked too, a large lag means the generator itself
+ * is the bottleneck.
+ */
+
+package loadgen;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+final class OpenLoopDriver implements Runnable {
+
+	//Starts one call whose slot on the schedule is intendedNanos (System.nanoTime() based)
+	interface Arrival {
+		void fire(long intendedNanos);
+	}
+
+	private final Arrival[] arrivals;
+	private final double[] meanGapNanos;
+	private final SplittableRandom random;
+	private final long durationNanos;
+	private final AtomicLong maxLagNanos = new AtomicLong();
+	private volatile boolean running = true;
+
+	//Rates are arrivals per second, one per arrival class, zero disables a class
+	OpenLoopDriver(Arrival[] arrivals, double[] rates, long durationMs, long seed) {
+		this.arrivals = arrivals.clone();
+		this.meanGapNanos = new double[rates.length];
+		for (int i = 0; i < rates.length; i++) {
+			meanGapNanos[i] = rates[i] > 0 ? 1e9 / rates[i] : Double.POSITIVE_INFINITY;
+		}
+		this.random = new SplittableRandom(seed);
+		this.durationNanos = durationMs * 1_000_000;
+	}
+
+	@Override
+	public void run() {
+		long start = System.nanoTime();
+		long end = start + durationNanos;
+		long[] next = new long[arrivals.length];
+		for (int i = 0; i < next.length; i++) {
+			next[i] = advance(start, i);
+		}
+
+		while (running) {
+			//Earliest pending arrival across the classes
+			int due = 0;
+			for (int i = 1; i < next.length; i++) {
+				if (next[i] - next[due] < 0) {
+					due = i;
+				}
+			}
+			long at = next[due];
+			if (at == Long.MAX_VALUE || at - end >= 0) {
+				break;
+			}
+
+			long wait = at - System.nanoTime();
+			while (wait > 0 && running) {
+				LockSupport.parkNanos(wait);
+				wait = at - System.nanoTime();
+			}
+			if (!running) {
+				break;
+			}
+
+			long lag = -wait;
+			if (lag > maxLagNanos.get()) {
+				maxLagNanos.accumulateAndGet(lag, Math::max);
+			}
+			arrivals[due].fire(at); //Late arrivals keep their original slot
+			next[due] = advance(at, due);
+		}
+	}
+
+	void stop() {
+		running = false;
+	}
+
+	//Worst lateness since the last call, in nanoseconds
+	long drainMaxLagNanos() {
+		return maxLagNanos.getAndSet(0);
+	}
+
+	//Next slot of a class, exponential gaps give Poisson arrivals
+	private long advance(long from, int i) {
+		double mean = meanGapNanos[i];
+		if (Double.isInfinite(mean)) {
+			return Long.MAX_VALUE;
+		}
+		return from + (long) (-Math.log(1.0 - random.nextDouble()) * mean);
+	}
+}
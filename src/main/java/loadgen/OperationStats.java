@@ -0,0 +1,102 @@
+/*
+ * OperationStats.java
+ *
+ * Outcomes and latency of one kind of generated call. Latency runs from
+ * the call's intended start time on the open-loop schedule, not from when
+ * it was actually sent, so time spent queued behind a slow generator or
+ * server counts against the server instead of being hidden
+ * (coordinated omission). Each report interval gets a fresh histogram,
+ * the run total keeps accumulating.
+ */
+
+package loadgen;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import io.grpc.Status;
+import metrics.LatencyHistogram;
+
+final class OperationStats {
+	private final String name;
+	private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+	private final LatencyHistogram total = new LatencyHistogram();
+
+	//Run totals
+	private final LongAdder ok = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder rejected = new LongAdder(); //RESOURCE_EXHAUSTED from admission control
+	private final LongAdder shed = new LongAdder(); //Never sent, the in-flight limit was reached
+
+	//Since the last report
+	private final LongAdder intervalOk = new LongAdder();
+	private final LongAdder intervalFailed = new LongAdder();
+	private final LongAdder intervalRejected = new LongAdder();
+	private final LongAdder intervalShed = new LongAdder();
+
+	OperationStats(String name) {
+		this.name = name;
+	}
+
+	String name() {
+		return name;
+	}
+
+	//A call finished, intendedNanos is its System.nanoTime() slot on the schedule
+	void completed(long intendedNanos) {
+		long nanos = System.nanoTime() - intendedNanos;
+		interval.get().recordNanos(nanos); //A sample racing a report lands in the previous interval
+		total.recordNanos(nanos);
+		ok.increment();
+		intervalOk.increment();
+	}
+
+	//A call failed, failures are counted but kept out of the latency distribution
+	void failed(Throwable t) {
+		if (Status.fromThrowable(t).getCode() == Status.Code.RESOURCE_EXHAUSTED) {
+			rejected.increment();
+			intervalRejected.increment();
+		} else {
+			failed.increment();
+			intervalFailed.increment();
+		}
+	}
+
+	void shed() {
+		shed.increment();
+		intervalShed.increment();
+	}
+
+	//Swaps in a fresh interval histogram and returns the finished interval
+	Sample drainInterval() {
+		LatencyHistogram done = interval.getAndSet(new LatencyHistogram());
+		return new Sample(name, intervalOk.sumThenReset(), intervalFailed.sumThenReset(),
+				intervalRejected.sumThenReset(), intervalShed.sumThenReset(), done.snapshot());
+	}
+
+	Sample totals() {
+		return new Sample(name, ok.sum(), failed.sum(), rejected.sum(), shed.sum(), total.snapshot());
+	}
+
+	//Counts and latency over one interval or the whole run
+	static final class Sample {
+		final String name;
+		final long ok;
+		final long failed;
+		final long rejected;
+		final long shed;
+		final LatencyHistogram.Snapshot latency;
+
+		Sample(String name, long ok, long failed, long rejected, long shed, LatencyHistogram.Snapshot latency) {
+			this.name = name;
+			this.ok = ok;
+			this.failed = failed;
+			this.rejected = rejected;
+			this.shed = shed;
+			this.latency = latency;
+		}
+
+		long attempts() {
+			return ok + failed + rejected + shed;
+		}
+	}
+}
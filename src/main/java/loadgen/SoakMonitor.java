@@ -0,0 +1,134 @@
+/*
+ * SoakMonitor.java
+ *
+ * Watches the servers and the generator itself during a long run: heap in
+ * use, platform threads, GC activity and open streams, polled from each
+ * server's admin RPC once per report. At the end the first and last third
+ * of the run are compared. Heap is judged by its floor (the lowest sample
+ * of a third, which follows the live set after collections rather than
+ * the garbage in between), threads by their peak, and server-side open
+ * streams by how far they stay above what the generator believes it holds.
+ */
+
+package loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import io.grpc.StatusRuntimeException;
+import admin.protos.GetMetricsRequest;
+import admin.protos.GetMetricsResponse;
+import admin.protos.MethodMetrics;
+import metrics.JvmStats;
+
+final class SoakMonitor {
+	private static final long HEAP_GROWTH_BYTES = 32L << 20; //Floor growth worth flagging, also needs +25%
+	private static final int THREAD_GROWTH = 8; //Peak growth worth flagging, also needs +20%
+	private static final int STREAM_SLACK = 10; //Server streams allowed above the generator's own count
+
+	private final Targets targets;
+	private final List<List<Sample>> series = new ArrayList<>(); //Servers first, the generator last
+
+	SoakMonitor(Targets targets) {
+		this.targets = targets;
+		for (int i = 0; i <= targets.admin.length; i++) {
+			series.add(new ArrayList<>());
+		}
+	}
+
+	//Samples every process and prints one line each. expectedStreams holds, per server, the streams
+	//and calls the generator has open on it
+	void sample(int[] expectedStreams) {
+		for (int i = 0; i < targets.admin.length; i++) {
+			try {
+				GetMetricsResponse resp = targets.admin[i].withDeadlineAfter(5, TimeUnit.SECONDS)
+						.getMetrics(GetMetricsRequest.getDefaultInstance());
+				long streams = 0;
+				for (MethodMetrics m : resp.getMethodsList()) {
+					if (!m.getMethod().startsWith("smartadmin.")) {
+						streams += m.getOpenStreams();
+					}
+				}
+				Sample s = new Sample(resp.getProcess().getHeapUsedBytes(), resp.getProcess().getLiveThreads(),
+						resp.getProcess().getGcCount(), streams, expectedStreams[i]);
+				series.get(i).add(s);
+				print(targets.serverNames[i], s);
+			} catch (StatusRuntimeException e) {
+				System.out.println(String.format(Locale.ROOT, "  soak %-10s unavailable: %s", targets.serverNames[i], e.getStatus()));
+			}
+		}
+
+		JvmStats self = JvmStats.current();
+		int total = 0;
+		for (int expected : expectedStreams) {
+			total += expected;
+		}
+		Sample s = new Sample(self.heapUsedBytes(), self.liveThreads(), self.gcCount(), total, total);
+		series.get(targets.admin.length).add(s);
+		print("loadgen", s);
+	}
+
+	//Compares the start and end of the run and prints a verdict per process
+	void verdict() {
+		System.out.println("Soak verdict (first third vs last third of the run):");
+		for (int i = 0; i < series.size(); i++) {
+			boolean server = i < targets.admin.length;
+			String name = server ? targets.serverNames[i] : "loadgen";
+			List<Sample> samples = series.get(i);
+			if (samples.size() < 6) {
+				System.out.println(String.format(Locale.ROOT, "  %-10s too few samples (%d), run longer", name, samples.size()));
+				continue;
+			}
+			int third = samples.size() / 3;
+			List<Sample> early = samples.subList(0, third);
+			List<Sample> late = samples.subList(samples.size() - third, samples.size());
+
+			long heapBefore = early.stream().mapToLong(x -> x.heapUsed).min().getAsLong();
+			long heapAfter = late.stream().mapToLong(x -> x.heapUsed).min().getAsLong();
+			int threadsBefore = early.stream().mapToInt(x -> x.threads).max().getAsInt();
+			int threadsAfter = late.stream().mapToInt(x -> x.threads).max().getAsInt();
+
+			List<String> findings = new ArrayList<>();
+			if (heapAfter - heapBefore > HEAP_GROWTH_BYTES && heapAfter > heapBefore * 1.25) {
+				findings.add(String.format(Locale.ROOT, "heap floor grew %.1f -> %.1f MB", mb(heapBefore), mb(heapAfter)));
+			}
+			if (threadsAfter - threadsBefore > THREAD_GROWTH && threadsAfter > threadsBefore * 1.2) {
+				findings.add("threads grew " + threadsBefore + " -> " + threadsAfter);
+			}
+			//Streams reopening mid-sample inflate single samples, a leak keeps the excess up all the time
+			long excess = late.stream().mapToLong(x -> x.streams - x.expectedStreams).min().getAsLong();
+			if (server && excess > STREAM_SLACK) {
+				findings.add("at least " + excess + " more open streams than the generator holds");
+			}
+			System.out.println(String.format(Locale.ROOT, "  %-10s %s", name,
+					findings.isEmpty() ? "no growth" : "POSSIBLE LEAK: " + String.join("; ", findings)));
+		}
+	}
+
+	private static void print(String name, Sample s) {
+		System.out.println(String.format(Locale.ROOT, "  soak %-10s heap %8.1f MB  threads %5d  gc %7d  open streams %6d / %d",
+				name, mb(s.heapUsed), s.threads, s.gcCount, s.streams, s.expectedStreams));
+	}
+
+	private static double mb(long bytes) {
+		return bytes / (1024.0 * 1024.0);
+	}
+
+	//One poll of one process
+	private static final class Sample {
+		final long heapUsed;
+		final int threads;
+		final long gcCount;
+		final long streams;
+		final long expectedStreams;
+
+		Sample(long heapUsed, int threads, long gcCount, long streams, long expectedStreams) {
+			this.heapUsed = heapUsed;
+			this.threads = threads;
+			this.gcCount = gcCount;
+			this.streams = streams;
+			this.expectedStreams = expectedStreams;
+		}
+	}
+}
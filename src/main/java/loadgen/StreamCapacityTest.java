@@ -0,0 +1,183 @@
+/*
+ * StreamCapacityTest.java
+ *
+ * Load test for the virtual thread execution mode: opens tens of thousands
+ * of live real time output streams against one solar server in this JVM
+ * and checks that the platform thread count stays flat while they are held
+ * open. Every stream's handler blocks in its loop for the life of the call,
+ * so on the default gRPC pool each one would hold a platform thread.
+ *
+ * The client runs its callbacks on the transport threads, so the threads
+ * counted are the server's and the transport's, not one per stream. The
+ * count is taken from ThreadMXBean, which sees only platform threads.
+ * Admission limits are raised for the run, since they would cap the
+ * streams long before the executor does.
+ *
+ * Run with a heap sized for the streams:
+ *   java -Xmx3g -cp <runtime classpath> loadgen.StreamCapacityTest
+ * Configured with system properties:
+ *   smarthome.capacity.streams      (50000)  streams held open at once
+ *   smarthome.capacity.channels     (16)     client connections they share
+ *   smarthome.capacity.homes        (1000)   homes they are spread over
+ *   smarthome.capacity.holdSeconds  (30)     time all streams are held open
+ *   smarthome.capacity.threadSlack  (8)      platform threads allowed above the baseline
+ * Exits with status 1 when the thread count grew or streams failed to open.
+ */
+
+package loadgen;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import server.ServerBootstrap;
+import server.ServerExecutors;
+import server.SolarServer;
+import sharding.HomeClientInterceptor;
+import sharding.Homes;
+import solar.protos.RealTimeOutput;
+import solar.protos.SmartSolarServiceGrpc;
+import solar.protos.StreamRealTimeOutputRequest;
+
+public final class StreamCapacityTest {
+	private static final String PREFIX = "smarthome.capacity.";
+	private static final int WARMUP_STREAMS = 1_000; //Opened before the baseline, so the pools are all started
+	private static final long OPEN_TIMEOUT_MS = 300_000;
+
+	private StreamCapacityTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int streams = Integer.getInteger(PREFIX + "streams", 50_000);
+		int channelCount = Integer.getInteger(PREFIX + "channels", 16);
+		int homes = Math.max(1, Integer.getInteger(PREFIX + "homes", 1_000));
+		long holdMs = Long.getLong(PREFIX + "holdSeconds", 30) * 1_000;
+		int slack = Integer.getInteger(PREFIX + "threadSlack", 8);
+
+		//Limits sized for the run, set before the server reads them
+		System.setProperty("smarthome.admission.maxStreamsPerMethod", Integer.toString(streams * 2));
+		System.setProperty("smarthome.admission.maxStreamsPerPeer", Integer.toString(streams * 2));
+		System.setProperty("smarthome.admission.callsPerSecond", "1e9");
+		System.setProperty("smarthome.admission.callBurst", Integer.toString(streams * 2));
+		System.setProperty("smarthome.metrics.portOffset", "-1");
+
+		Server server = ServerBootstrap.start("Solar", 0, new SolarServer());
+		List<ManagedChannel> channels = new ArrayList<>();
+		for (int i = 0; i < channelCount; i++) {
+			channels.add(ManagedChannelBuilder.forAddress("localhost", server.getPort())
+					.usePlaintext()
+					.directExecutor() //Callbacks on the transport threads, no client pool growing with the streams
+					.intercept(new HomeClientInterceptor())
+					.build());
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Streams open = new Streams(streams);
+		System.out.println("Executor mode: " + (ServerExecutors.virtualThreadsEnabled() ? "virtual" : "pool"));
+
+		int warmup = Math.min(WARMUP_STREAMS, streams);
+		open(open, channels, homes, 0, warmup);
+		int baseline = threads.getThreadCount();
+		System.out.println("Baseline after " + warmup + " streams: " + baseline + " platform threads");
+
+		long start = System.nanoTime();
+		open(open, channels, homes, warmup, streams);
+		boolean allOpen = open.firstMessages.await(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		System.out.println(String.format(Locale.ROOT, "%d of %d streams open in %d ms, %d failed",
+				streams - open.firstMessages.getCount(), streams, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), open.failed.get()));
+
+		int peak = threads.getThreadCount();
+		long end = System.currentTimeMillis() + holdMs;
+		while (System.currentTimeMillis() < end) {
+			Thread.sleep(1_000);
+			peak = Math.max(peak, threads.getThreadCount());
+		}
+		long messages = open.messages.sum();
+		System.out.println(String.format(Locale.ROOT,
+				"Held %d s: %d platform threads at peak (baseline %d, JVM peak %d), %d messages", holdMs / 1_000, peak, baseline, threads.getPeakThreadCount(), messages));
+
+		for (ClientCallStreamObserver<?> call : open.calls) {
+			call.cancel("capacity test done", null);
+		}
+		for (ManagedChannel channel : channels) {
+			channel.shutdownNow();
+		}
+		server.shutdownNow();
+
+		boolean passed = allOpen && open.failed.get() == 0 && peak <= baseline + slack;
+		System.out.println(passed ? "PASS" : "FAIL");
+		System.exit(passed ? 0 : 1);
+	}
+
+	//Opens streams from..to, spread over the channels and homes, and waits for the first message of each
+	private static void open(Streams open, List<ManagedChannel> channels, int homes, int from, int to)
+			throws InterruptedException {
+		StreamRealTimeOutputRequest request = StreamRealTimeOutputRequest.getDefaultInstance();
+		for (int i = from; i < to; i++) {
+			SmartSolarServiceGrpc.SmartSolarServiceStub stub = SmartSolarServiceGrpc.newStub(channels.get(i % channels.size()))
+					.withOption(Homes.OPTION, LoadGenerator.homeId(i % homes));
+			stub.streamRealTimeOutput(request, open.observer());
+		}
+		while (open.firstMessages.getCount() > open.total - to && open.failed.get() == 0) {
+			if (open.firstMessages.await(100, TimeUnit.MILLISECONDS)) {
+				break;
+			}
+		}
+	}
+
+	//Every stream of the run, counted down as each delivers its first reading
+	private static final class Streams {
+		final int total;
+		final CountDownLatch firstMessages;
+		final List<ClientCallStreamObserver<?>> calls = new ArrayList<>();
+		final AtomicInteger failed = new AtomicInteger();
+		final LongAdder messages = new LongAdder();
+
+		Streams(int total) {
+			this.total = total;
+			this.firstMessages = new CountDownLatch(total);
+		}
+
+		ClientResponseObserver<StreamRealTimeOutputRequest, RealTimeOutput> observer() {
+			return new ClientResponseObserver<StreamRealTimeOutputRequest, RealTimeOutput>() {
+				private boolean first = true;
+
+				@Override
+				public void beforeStart(ClientCallStreamObserver<StreamRealTimeOutputRequest> call) {
+					calls.add(call); //Started from the opening thread only
+				}
+
+				@Override
+				public void onNext(RealTimeOutput value) {
+					if (first) {
+						first = false;
+						firstMessages.countDown();
+					}
+					messages.increment();
+				}
+
+				@Override
+				public void onError(Throwable t) {
+					if (first) {
+						failed.incrementAndGet();
+						System.out.println("Stream failed: " + t.getMessage());
+					}
+				}
+
+				@Override
+				public void onCompleted() {
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Targets.java
+ *
+ * Channels and stubs for the servers under load. Each server gets a fixed
+ * number of connections and every home sticks to one of them, like a real
+ * fleet of gateways spread over a few load balancer connections. Channels
+ * use the same codecs, compression policy and home header as the dashboard
+ * clients but skip the client metrics, the generator measures for itself.
+ * Calls name their home with the Homes.OPTION call option.
+ *
+ * The nodes of each sharded service are found over jmDNS like the
+ * dashboard finds them, and each call goes to the node owning its home,
+ * so a multi-node deployment is loaded evenly instead of turning away
+ * every home but the host's own. Without an answer the fixed host and
+ * ports are used, one node serving every home. Admin stubs always use the
+ * fixed host, so the soak monitor watches that one node.
+ */
+
+package loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.jmdns.JmDNS;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import admin.protos.SmartAdminServiceGrpc;
+import compression.Codecs;
+import compression.CompressionClientInterceptor;
+import compression.CompressionPolicy;
+import sharding.HomeClientInterceptor;
+import sharding.Placement;
+import sharding.ShardedChannel;
+import lighting.protos.SmartLightingServiceGrpc;
+import solar.protos.SmartSolarServiceGrpc;
+import thermostat.protos.SmartThermostatGrpc;
+
+final class Targets {
+	private static final Logger logger = Logger.getLogger(Targets.class.getName());
+
+	//Server indexes used by the per-server arrays
+	static final int THERMOSTAT = 0;
+	static final int SOLAR = 1;
+	static final int LIGHTING = 2;
+
+	final SmartThermostatGrpc.SmartThermostatStub[] thermostat;
+	final SmartSolarServiceGrpc.SmartSolarServiceStub[] solar;
+	final SmartLightingServiceGrpc.SmartLightingServiceStub[] lighting;
+
+	//Admin stubs for soak monitoring, one per server in thermostat, solar, lighting order
+	final String[] serverNames = {"Thermostat", "Solar", "Lighting"};
+	final SmartAdminServiceGrpc.SmartAdminServiceBlockingStub[] admin = new SmartAdminServiceGrpc.SmartAdminServiceBlockingStub[3];
+
+	private final List<ManagedChannel> channels = new ArrayList<>();
+	private JmDNS jmdns;
+
+	Targets(LoadConfig config) {
+		Placement thermostatNodes = discover(config, "_thermostat._grpc._tcp.local.");
+		Placement solarNodes = discover(config, "_solarpanel._grpc._tcp.local.");
+		Placement lightingNodes = discover(config, "_smartlighting._grpc._tcp.local.");
+		thermostat = new SmartThermostatGrpc.SmartThermostatStub[config.channels];
+		solar = new SmartSolarServiceGrpc.SmartSolarServiceStub[config.channels];
+		lighting = new SmartLightingServiceGrpc.SmartLightingServiceStub[config.channels];
+		for (int i = 0; i < config.channels; i++) {
+			thermostat[i] = SmartThermostatGrpc.newStub(channel(thermostatNodes, config.host, config.thermostatPort));
+			solar[i] = SmartSolarServiceGrpc.newStub(channel(solarNodes, config.host, config.solarPort));
+			lighting[i] = SmartLightingServiceGrpc.newStub(channel(lightingNodes, config.host, config.lightingPort));
+		}
+
+		//Separate connections, so monitoring is not stuck behind the load
+		admin[THERMOSTAT] = SmartAdminServiceGrpc.newBlockingStub(channel(config.host, config.thermostatPort));
+		admin[SOLAR] = SmartAdminServiceGrpc.newBlockingStub(channel(config.host, config.solarPort));
+		admin[LIGHTING] = SmartAdminServiceGrpc.newBlockingStub(channel(config.host, config.lightingPort));
+	}
+
+	void shutdown() throws InterruptedException {
+		List<ManagedChannel> open;
+		synchronized (channels) {
+			open = new ArrayList<>(channels);
+		}
+		for (ManagedChannel channel : open) {
+			channel.shutdown();
+		}
+		for (ManagedChannel channel : open) {
+			if (!channel.awaitTermination(5, TimeUnit.SECONDS)) {
+				channel.shutdownNow();
+			}
+		}
+		if (jmdns != null) {
+			try {
+				jmdns.close();
+			} catch (IOException e) {
+				//Closing anyway
+			}
+		}
+	}
+
+	//Follows the service's nodes, or null to use the fixed host and port
+	private Placement discover(LoadConfig config, String type) {
+		if (config.discoverMs <= 0) {
+			return null;
+		}
+		try {
+			if (jmdns == null) {
+				jmdns = JmDNS.create(InetAddress.getLocalHost());
+			}
+			Placement placement = Placement.forClient();
+			if (placement.discover(jmdns, type, config.discoverMs)) {
+				logger.info("Routing " + type + " calls over nodes " + placement.ring().nodes());
+				return placement;
+			}
+			logger.warning("No " + type + " node found, using " + config.host);
+		} catch (IOException e) {
+			logger.warning("jmDNS unavailable, using " + config.host + ": " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	//Channel routing each call to its home's node, each node's connection built on first use
+	private ManagedChannel channel(Placement placement, String host, int port) {
+		if (placement == null) {
+			return channel(host, port);
+		}
+		return new ShardedChannel(placement, address -> channel(address.getHostString(), address.getPort()));
+	}
+
+	private ManagedChannel channel(String host, int port) {
+		ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port)
+				.usePlaintext()
+				.compressorRegistry(Codecs.compressors())
+				.decompressorRegistry(Codecs.decompressors())
+				.intercept(new CompressionClientInterceptor(CompressionPolicy.defaultPolicy()))
+				.intercept(new HomeClientInterceptor())
+				.build();
+		synchronized (channels) {
+			channels.add(channel); //Node channels are added from calls as well
+		}
+		return channel;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * ClientMetrics.java
+ *
+ * Registry of per-method metrics for one client channel, seen from the
+ * caller's side. Each call's latency is split into connect time (waiting
+ * for a ready transport), server handler time (reported in a trailer),
+ * queue time (response waiting for the callback executor) and the rest.
+ * Name resolution happens once per channel and is kept separately.
+ */
+
+package metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import io.grpc.ClientInterceptor;
+
+public final class ClientMetrics {
+	private final String client;
+	private final LatencyHistogram resolve = new LatencyHistogram();
+	private final ConcurrentHashMap<String, Method> methods = new ConcurrentHashMap<>();
+	private final ClientMetricsInterceptor interceptor = new ClientMetricsInterceptor(this);
+
+	public ClientMetrics(String client) {
+		this.client = client;
+	}
+
+	public String client() {
+		return client;
+	}
+
+	//Service discovery / name resolution time
+	public LatencyHistogram resolve() {
+		return resolve;
+	}
+
+	public ClientInterceptor interceptor() {
+		return interceptor;
+	}
+
+	public Method forMethod(String fullMethodName) {
+		Method m = methods.get(fullMethodName);
+		return m != null ? m : methods.computeIfAbsent(fullMethodName, Method::new);
+	}
+
+	public Collection<Method> methods() {
+		List<Method> list = new ArrayList<>(methods.values());
+		list.sort(Comparator.comparing(Method::method));
+		return Collections.unmodifiableList(list);
+	}
+
+	//Renders all metrics in a Prometheus-style text format
+	public String scrape() {
+		StringBuilder sb = new StringBuilder(4096);
+		summary(sb, "client_resolve_seconds", "client=\"" + client + "\"", resolve.snapshot());
+		for (Method m : methods()) {
+			String labels = "client=\"" + client + "\",method=\"" + m.method() + "\"";
+			counter(sb, "client_calls_total", labels, m.calls.sum());
+			counter(sb, "client_failures_total", labels, m.failures.sum());
+			counter(sb, "client_retries_total", labels, m.retries.sum());
+			counter(sb, "client_timeouts_total", labels, m.timeouts.sum());
+			summary(sb, "client_latency_seconds", labels, m.total.snapshot());
+			summary(sb, "client_connect_seconds", labels, m.connect.snapshot());
+			summary(sb, "client_queue_seconds", labels, m.queue.snapshot());
+			summary(sb, "client_server_seconds", labels, m.server.snapshot());
+		}
+		return sb.toString();
+	}
+
+	private static void counter(StringBuilder sb, String name, String labels, long value) {
+		sb.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder sb, String name, String labels, LatencyHistogram.Snapshot snap) {
+		for (double q : RpcMetrics.QUANTILES) {
+			sb.append(name).append('{').append(labels).append(",quantile=\"").append(q).append("\"} ")
+					.append(String.format(Locale.ROOT, "%.9f", snap.valueAtQuantile(q, TimeUnit.SECONDS))).append('\n');
+		}
+		sb.append(name).append("_count{").append(labels).append("} ").append(snap.count()).append('\n');
+	}
+
+	//Metrics for one method as seen by the caller
+	public static final class Method {
+		private final String method;
+
+		final LatencyHistogram total = new LatencyHistogram(); //Call start to close
+		final LatencyHistogram connect = new LatencyHistogram(); //Call start to stream created on a transport
+		final LatencyHistogram queue = new LatencyHistogram(); //Response headers arrived to callback ran
+		final LatencyHistogram server = new LatencyHistogram(); //Handler time reported by the server
+
+		final LongAdder calls = new LongAdder();
+		final LongAdder failures = new LongAdder();
+		final LongAdder retries = new LongAdder(); //Attempts after the first, hedges included
+		final LongAdder timeouts = new LongAdder(); //Calls closed with DEADLINE_EXCEEDED
+
+		Method(String method) {
+			this.method = method;
+		}
+
+		public String method() {
+			return method;
+		}
+
+		public LatencyHistogram total() {
+			return total;
+		}
+
+		public LatencyHistogram connect() {
+			return connect;
+		}
+
+		public LatencyHistogram queue() {
+			return queue;
+		}
+
+		public LatencyHistogram server() {
+			return server;
+		}
+
+		//Counts an extra attempt made by a client-side retry or hedging policy
+		public void recordRetry() {
+			retries.increment();
+		}
+
+		public long calls() {
+			return calls.sum();
+		}
+
+		public long failures() {
+			return failures.sum();
+		}
+
+		public long retries() {
+			return retries.sum();
+		}
+
+		public long timeouts() {
+			return timeouts.sum();
+		}
+	}
+}
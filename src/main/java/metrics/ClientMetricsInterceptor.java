@@ -0,0 +1,139 @@
+/*
+ * ClientMetricsInterceptor.java
+ *
+ * Client interceptor that attaches the current trace id to every call
+ * and records the caller-side latency split into a ClientMetrics registry.
+ * A per-call stream tracer observes transport events (stream creation,
+ * response headers, retry attempts) that the call listener cannot see.
+ */
+
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import io.grpc.Attributes;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+final class ClientMetricsInterceptor implements ClientInterceptor {
+	private static final Logger logger = Logger.getLogger(ClientMetricsInterceptor.class.getName());
+
+	//Calls slower than this are logged at INFO instead of FINE
+	private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("smarthome.trace.slowMillis", 500));
+
+	private final ClientMetrics registry;
+
+	ClientMetricsInterceptor(ClientMetrics registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+			CallOptions callOptions, Channel next) {
+		String trace = Tracing.currentTraceId();
+		String traceId = trace != null ? trace : Tracing.newTraceId();
+		ClientMetrics.Method m = registry.forMethod(method.getFullMethodName());
+		CallTiming timing = new CallTiming(m);
+
+		ClientCall<ReqT, RespT> call = next.newCall(method, callOptions.withStreamTracerFactory(timing));
+		return new SimpleForwardingClientCall<ReqT, RespT>(call) {
+			@Override
+			public void start(Listener<RespT> responseListener, Metadata headers) {
+				headers.put(Tracing.TRACE_ID_HEADER, traceId);
+				m.calls.increment();
+				super.start(new SimpleForwardingClientCallListener<RespT>(responseListener) {
+					@Override
+					public void onHeaders(Metadata responseHeaders) {
+						long arrived = timing.headersArrivedNanos;
+						if (arrived != 0) {
+							m.queue.recordSince(arrived);
+						}
+						super.onHeaders(responseHeaders);
+					}
+
+					@Override
+					public void onClose(Status status, Metadata trailers) {
+						timing.finish(method.getFullMethodName(), traceId, status, trailers);
+						super.onClose(status, trailers);
+					}
+				}, headers);
+			}
+		};
+	}
+
+	//Timing state for one logical call, shared by all of its attempts
+	private static final class CallTiming extends ClientStreamTracer.Factory {
+		private final ClientMetrics.Method m;
+		private final long startNanos = System.nanoTime();
+		private volatile long connectNanos = -1; //Until a stream is created, never for calls failing before one
+		private volatile long headersArrivedNanos;
+
+		CallTiming(ClientMetrics.Method m) {
+			this.m = m;
+		}
+
+		@Override
+		public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+			if (info.getPreviousAttempts() > 0 && !info.isTransparentRetry()) {
+				m.retries.increment();
+			}
+			return new ClientStreamTracer() {
+				@Override
+				public void streamCreated(Attributes transportAttrs, Metadata headers) {
+					connectNanos = System.nanoTime() - startNanos;
+				}
+
+				@Override
+				public void inboundHeaders() {
+					headersArrivedNanos = System.nanoTime();
+				}
+			};
+		}
+
+		void finish(String method, String traceId, Status status, Metadata trailers) {
+			long total = System.nanoTime() - startNanos;
+			long connect = connectNanos;
+			long server = parseNanos(trailers.get(Tracing.SERVER_NANOS_TRAILER));
+			m.total.recordNanos(total);
+			if (connect >= 0) {
+				m.connect.recordNanos(connect);
+			}
+			if (server >= 0) {
+				m.server.recordNanos(server);
+			}
+			if (!status.isOk()) {
+				m.failures.increment();
+				if (status.getCode() == Status.Code.DEADLINE_EXCEEDED) {
+					m.timeouts.increment();
+				}
+			}
+			Level level = !status.isOk() || total >= SLOW_NANOS ? Level.INFO : Level.FINE;
+			if (logger.isLoggable(level)) {
+				logger.log(level, String.format("trace=%s method=%s status=%s total=%.3fms connect=%s server=%s",
+						traceId, method, status.getCode(), total / 1e6,
+						connect >= 0 ? String.format("%.3fms", connect / 1e6) : "n/a",
+						server >= 0 ? String.format("%.3fms", server / 1e6) : "n/a"));
+			}
+		}
+
+		private static long parseNanos(String value) {
+			if (value == null) {
+				return -1;
+			}
+			try {
+				return Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+	}
+}
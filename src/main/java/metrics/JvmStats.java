@@ -0,0 +1,85 @@
+/*
+ * JvmStats.java
+ *
+ * Point-in-time view of the JVM a server or tool runs in: heap, platform
+ * thread counts and garbage collection totals, read from the platform
+ * MXBeans. Served by the admin RPC and the scrape endpoint so long soak
+ * runs can watch for leaks from outside the process.
+ */
+
+package metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+
+public final class JvmStats {
+	private final long heapUsedBytes;
+	private final long heapCommittedBytes;
+	private final long heapMaxBytes;
+	private final int liveThreads;
+	private final int peakThreads;
+	private final long gcCount;
+	private final long gcTimeMs;
+	private final long uptimeMs;
+
+	private JvmStats(long heapUsedBytes, long heapCommittedBytes, long heapMaxBytes, int liveThreads, int peakThreads,
+			long gcCount, long gcTimeMs, long uptimeMs) {
+		this.heapUsedBytes = heapUsedBytes;
+		this.heapCommittedBytes = heapCommittedBytes;
+		this.heapMaxBytes = heapMaxBytes;
+		this.liveThreads = liveThreads;
+		this.peakThreads = peakThreads;
+		this.gcCount = gcCount;
+		this.gcTimeMs = gcTimeMs;
+		this.uptimeMs = uptimeMs;
+	}
+
+	//Reads the current values, cheap enough to call on every scrape
+	public static JvmStats current() {
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long count = 0;
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount()); //-1 when a collector does not report it
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return new JvmStats(heap.getUsed(), heap.getCommitted(), heap.getMax(), threads.getThreadCount(),
+				threads.getPeakThreadCount(), count, time, ManagementFactory.getRuntimeMXBean().getUptime());
+	}
+
+	public long heapUsedBytes() {
+		return heapUsedBytes;
+	}
+
+	public long heapCommittedBytes() {
+		return heapCommittedBytes;
+	}
+
+	public long heapMaxBytes() {
+		return heapMaxBytes;
+	}
+
+	//Platform threads only, virtual threads do not show up here
+	public int liveThreads() {
+		return liveThreads;
+	}
+
+	public int peakThreads() {
+		return peakThreads;
+	}
+
+	public long gcCount() {
+		return gcCount;
+	}
+
+	public long gcTimeMs() {
+		return gcTimeMs;
+	}
+
+	public long uptimeMs() {
+		return uptimeMs;
+	}
+}
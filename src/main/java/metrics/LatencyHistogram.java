@@ -0,0 +1,147 @@
+/*
+ * LatencyHistogram.java
+ *
+ * HDR-style log-linear histogram of nanosecond durations.
+ * Values below 128 are counted exactly, larger values fall into one of 64
+ * linear sub-buckets per power of two (about 1.5% relative error).
+ * Recording is lock-free and allocation-free: counts live in striped
+ * AtomicLongArrays picked by thread id, and are merged only when read.
+ */
+
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 7; //128 exact values, then 64 sub-buckets per octave
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+	private static final int MAX_MAGNITUDE = 40; //Clamp at 2^41 ns (about 36 minutes)
+	private static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+	//Number of buckets needed to cover 0..MAX_VALUE
+	static final int BUCKETS = SUB_COUNT + (MAX_MAGNITUDE - SUB_BITS + 1) * HALF_COUNT;
+
+	private static final int STRIPES = stripeCount();
+	private static final int STRIPE_MASK = STRIPES - 1;
+
+	//Each stripe holds BUCKETS counts plus its own sum and max, padded apart
+	private static final int SUM_SLOT = BUCKETS;
+	private static final int MAX_SLOT = BUCKETS + 1;
+	private static final int STRIDE = BUCKETS + 16;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+	//Records one duration in nanoseconds
+	public void recordNanos(long nanos) {
+		long v = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+		int base = ((int) Thread.currentThread().threadId() & STRIPE_MASK) * STRIDE;
+		cells.getAndIncrement(base + bucketIndex(v));
+		cells.getAndAdd(base + SUM_SLOT, v);
+		long max = cells.get(base + MAX_SLOT);
+		while (v > max && !cells.compareAndSet(base + MAX_SLOT, max, v)) {
+			max = cells.get(base + MAX_SLOT);
+		}
+	}
+
+	//Records the time elapsed since a System.nanoTime() reading
+	public void recordSince(long startNanos) {
+		recordNanos(System.nanoTime() - startNanos);
+	}
+
+	//Merges all stripes into a point-in-time snapshot
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		long sum = 0;
+		long max = 0;
+		for (int s = 0; s < STRIPES; s++) {
+			int base = s * STRIDE;
+			for (int i = 0; i < BUCKETS; i++) {
+				long c = cells.get(base + i);
+				counts[i] += c;
+				total += c;
+			}
+			sum += cells.get(base + SUM_SLOT);
+			max = Math.max(max, cells.get(base + MAX_SLOT));
+		}
+		return new Snapshot(counts, total, sum, max);
+	}
+
+	static int bucketIndex(long v) {
+		if (v < SUB_COUNT) {
+			return (int) v; //Exact range
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(v);
+		int shift = magnitude - SUB_BITS + 1;
+		int sub = (int) (v >>> shift); //In [HALF_COUNT, SUB_COUNT)
+		return SUB_COUNT + (shift - 1) * HALF_COUNT + (sub - HALF_COUNT);
+	}
+
+	//Midpoint of the values that map to a bucket
+	static long bucketValue(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int k = index - SUB_COUNT;
+		int shift = k / HALF_COUNT + 1;
+		long low = (long) (k % HALF_COUNT + HALF_COUNT) << shift;
+		return low + ((1L << shift) >> 1);
+	}
+
+	private static int stripeCount() {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int stripes = Integer.highestOneBit(Math.max(1, cpus - 1)) << 1;
+		return Math.min(stripes, 8); //Each stripe is ~18 KB, so keep the count modest
+	}
+
+	//Immutable merged view of a histogram
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public long maxNanos() {
+			return max;
+		}
+
+		public double meanNanos() {
+			return count == 0 ? 0.0 : (double) sum / count;
+		}
+
+		//Value at the given quantile (0.0 to 1.0), in nanoseconds
+		public long valueAtQuantile(double q) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(q * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(bucketValue(i), max);
+				}
+			}
+			return max;
+		}
+
+		//Quantile converted to another time unit, keeping the fraction
+		public double valueAtQuantile(double q, TimeUnit unit) {
+			return (double) valueAtQuantile(q) / unit.toNanos(1);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * MethodMetrics.java
+ *
+ * Counters and histograms for a single RPC method.
+ * All fields are updated with lock-free adders so recording never allocates.
+ */
+
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public final class MethodMetrics {
+	private final String method;
+
+	final LatencyHistogram latency = new LatencyHistogram(); //Call start to close
+	final LatencyHistogram queueTime = new LatencyHistogram(); //Transport accept to handler start
+
+	final LongAdder calls = new LongAdder();
+	final LongAdder failures = new LongAdder(); //Calls closed with a non-OK status
+	final LongAdder openStreams = new LongAdder();
+	final LongAdder messagesIn = new LongAdder();
+	final LongAdder messagesOut = new LongAdder();
+	final LongAdder bytesIn = new LongAdder();
+	final LongAdder bytesOut = new LongAdder();
+
+	MethodMetrics(String method) {
+		this.method = method;
+	}
+
+	public String method() {
+		return method;
+	}
+
+	public LatencyHistogram latency() {
+		return latency;
+	}
+
+	public LatencyHistogram queueTime() {
+		return queueTime;
+	}
+
+	public long calls() {
+		return calls.sum();
+	}
+
+	public long failures() {
+		return failures.sum();
+	}
+
+	public long openStreams() {
+		return openStreams.sum();
+	}
+
+	public long messagesIn() {
+		return messagesIn.sum();
+	}
+
+	public long messagesOut() {
+		return messagesOut.sum();
+	}
+
+	public long bytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long bytesOut() {
+		return bytesOut.sum();
+	}
+}
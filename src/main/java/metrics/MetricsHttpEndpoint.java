@@ -0,0 +1,45 @@
+/*
+ * MetricsHttpEndpoint.java
+ *
+ * Minimal HTTP endpoint serving RpcMetrics.scrape() as plain text on /metrics.
+ * Uses the JDK's built-in HTTP server so no extra dependency is needed.
+ */
+
+package metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import com.sun.net.httpserver.HttpServer;
+
+public final class MetricsHttpEndpoint {
+	private final HttpServer http;
+
+	private MetricsHttpEndpoint(HttpServer http) {
+		this.http = http;
+	}
+
+	//Starts serving the registry on the given port
+	public static MetricsHttpEndpoint start(RpcMetrics metrics, int port) throws IOException {
+		HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+		http.createContext("/metrics", exchange -> {
+			byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		http.start();
+		return new MetricsHttpEndpoint(http);
+	}
+
+	public int port() {
+		return http.getAddress().getPort();
+	}
+
+	public void stop() {
+		http.stop(0);
+	}
+}
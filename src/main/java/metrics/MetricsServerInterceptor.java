@@ -0,0 +1,81 @@
+/*
+ * MetricsServerInterceptor.java
+ *
+ * Server interceptor recording per-method call latency, message counts,
+ * open stream gauges and failures into an RpcMetrics registry.
+ */
+
+package metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+final class MetricsServerInterceptor implements ServerInterceptor {
+	private final RpcMetrics registry;
+
+	MetricsServerInterceptor(RpcMetrics registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+			ServerCallHandler<ReqT, RespT> next) {
+		MethodMetrics m = registry.forMethod(call.getMethodDescriptor().getFullMethodName());
+		CallRecorder<ReqT, RespT> recorder = new CallRecorder<>(call, m);
+		return new SimpleForwardingServerCallListener<ReqT>(next.startCall(recorder, headers)) {
+			@Override
+			public void onMessage(ReqT message) {
+				m.messagesIn.increment();
+				super.onMessage(message);
+			}
+
+			@Override
+			public void onCancel() {
+				recorder.finish(false); //Client went away before the handler closed the call
+				super.onCancel();
+			}
+		};
+	}
+
+	//Wraps the server call to count outbound messages and time the call
+	private static final class CallRecorder<ReqT, RespT> extends SimpleForwardingServerCall<ReqT, RespT> {
+		private final MethodMetrics m;
+		private final long startNanos = System.nanoTime();
+		private final AtomicBoolean finished = new AtomicBoolean();
+
+		CallRecorder(ServerCall<ReqT, RespT> delegate, MethodMetrics m) {
+			super(delegate);
+			this.m = m;
+			m.calls.increment();
+			m.openStreams.increment();
+		}
+
+		@Override
+		public void sendMessage(RespT message) {
+			m.messagesOut.increment();
+			super.sendMessage(message);
+		}
+
+		@Override
+		public void close(Status status, Metadata trailers) {
+			finish(status.isOk());
+			super.close(status, trailers);
+		}
+
+		void finish(boolean ok) {
+			if (finished.compareAndSet(false, true)) {
+				m.latency.recordSince(startNanos);
+				m.openStreams.decrement();
+				if (!ok) {
+					m.failures.increment();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * MetricsStreamTracer.java
+ *
+ * Server stream tracer recording wire bytes in/out and handler queue time.
+ * The tracer is created on the transport thread when a stream arrives,
+ * so the gap until serverCallStarted is the time spent waiting for the
+ * handler executor.
+ */
+
+package metrics;
+
+import io.grpc.Metadata;
+import io.grpc.ServerStreamTracer;
+
+final class MetricsStreamTracer extends ServerStreamTracer {
+	private final MethodMetrics m;
+	private final long createdNanos = System.nanoTime();
+
+	private MetricsStreamTracer(MethodMetrics m) {
+		this.m = m;
+	}
+
+	@Override
+	public void serverCallStarted(ServerCallInfo<?, ?> callInfo) {
+		m.queueTime.recordSince(createdNanos);
+	}
+
+	@Override
+	public void inboundWireSize(long bytes) {
+		m.bytesIn.add(bytes);
+	}
+
+	@Override
+	public void outboundWireSize(long bytes) {
+		m.bytesOut.add(bytes);
+	}
+
+	static final class Factory extends ServerStreamTracer.Factory {
+		private final RpcMetrics registry;
+
+		Factory(RpcMetrics registry) {
+			this.registry = registry;
+		}
+
+		@Override
+		public ServerStreamTracer newServerStreamTracer(String fullMethodName, Metadata headers) {
+			return new MetricsStreamTracer(registry.forMethod(fullMethodName));
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * RpcMetrics.java
+ *
+ * Registry of per-method metrics for one gRPC server.
+ * Supplies the interceptor and stream tracer that record into it,
+ * and renders a plain-text scrape of everything recorded so far.
+ */
+
+package metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerStreamTracer;
+
+public final class RpcMetrics {
+
+	//Quantiles reported by the admin RPC and the scrape endpoint
+	public static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 0.9999};
+
+	private final String server;
+	private final ConcurrentHashMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+	private final MetricsServerInterceptor interceptor = new MetricsServerInterceptor(this);
+	private final MetricsStreamTracer.Factory tracerFactory = new MetricsStreamTracer.Factory(this);
+
+	//Server-wide values not tied to one method, e.g. from the journal
+	private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+	private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+	public RpcMetrics(String server) {
+		this.server = server;
+	}
+
+	public String server() {
+		return server;
+	}
+
+	//Metrics for a fully qualified method name, created on first use
+	public MethodMetrics forMethod(String fullMethodName) {
+		MethodMetrics m = methods.get(fullMethodName); //Fast path without a lambda
+		return m != null ? m : methods.computeIfAbsent(fullMethodName, MethodMetrics::new);
+	}
+
+	public Collection<MethodMetrics> methods() {
+		List<MethodMetrics> list = new ArrayList<>(methods.values());
+		list.sort(Comparator.comparing(MethodMetrics::method));
+		return Collections.unmodifiableList(list);
+	}
+
+	//Adds a value to the scrape, labelled with this server
+	public void registerGauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	//Adds a latency distribution to the scrape, labelled with this server
+	public void registerHistogram(String name, LatencyHistogram histogram) {
+		histograms.put(name, histogram);
+	}
+
+	public ServerInterceptor interceptor() {
+		return interceptor;
+	}
+
+	public ServerStreamTracer.Factory streamTracerFactory() {
+		return tracerFactory;
+	}
+
+	//Renders all metrics in a Prometheus-style text format
+	public String scrape() {
+		StringBuilder sb = new StringBuilder(4096);
+		for (MethodMetrics m : methods()) {
+			String labels = "server=\"" + server + "\",method=\"" + m.method() + "\"";
+			counter(sb, "rpc_calls_total", labels, m.calls());
+			counter(sb, "rpc_failures_total", labels, m.failures());
+			counter(sb, "rpc_open_streams", labels, m.openStreams());
+			counter(sb, "rpc_messages_in_total", labels, m.messagesIn());
+			counter(sb, "rpc_messages_out_total", labels, m.messagesOut());
+			counter(sb, "rpc_bytes_in_total", labels, m.bytesIn());
+			counter(sb, "rpc_bytes_out_total", labels, m.bytesOut());
+			summary(sb, "rpc_latency_seconds", labels, m.latency().snapshot());
+			summary(sb, "rpc_queue_seconds", labels, m.queueTime().snapshot());
+		}
+
+		//Process gauges, so soak runs can watch for leaks
+		JvmStats jvm = JvmStats.current();
+		String labels = "server=\"" + server + "\"";
+		counter(sb, "jvm_heap_used_bytes", labels, jvm.heapUsedBytes());
+		counter(sb, "jvm_heap_committed_bytes", labels, jvm.heapCommittedBytes());
+		counter(sb, "jvm_threads_live", labels, jvm.liveThreads());
+		counter(sb, "jvm_threads_peak", labels, jvm.peakThreads());
+		counter(sb, "jvm_gc_collections_total", labels, jvm.gcCount());
+		counter(sb, "jvm_gc_time_ms_total", labels, jvm.gcTimeMs());
+
+		for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+			counter(sb, g.getKey(), labels, g.getValue().getAsLong());
+		}
+		for (Map.Entry<String, LatencyHistogram> h : histograms.entrySet()) {
+			summary(sb, h.getKey(), labels, h.getValue().snapshot());
+		}
+		return sb.toString();
+	}
+
+	private static void counter(StringBuilder sb, String name, String labels, long value) {
+		sb.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder sb, String name, String labels, LatencyHistogram.Snapshot snap) {
+		for (double q : QUANTILES) {
+			sb.append(name).append('{').append(labels).append(",quantile=\"").append(q).append("\"} ")
+					.append(String.format(Locale.ROOT, "%.9f", snap.valueAtQuantile(q, TimeUnit.SECONDS))).append('\n');
+		}
+		sb.append(name).append("_count{").append(labels).append("} ").append(snap.count()).append('\n');
+		sb.append(name).append("_max{").append(labels).append("} ")
+				.append(String.format(Locale.ROOT, "%.9f", snap.maxNanos() / 1e9)).append('\n');
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Tracing.java
+ *
+ * Trace id propagation shared by the clients and the servers.
+ * A trace id travels in the x-trace-id request header and is held in the
+ * gRPC Context on both sides, so one dashboard action can be followed
+ * through the client and server logs.
+ */
+
+package metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import io.grpc.Context;
+import io.grpc.Metadata;
+
+public final class Tracing {
+
+	//Request header carrying the trace id
+	public static final Metadata.Key<String> TRACE_ID_HEADER =
+			Metadata.Key.of("x-trace-id", Metadata.ASCII_STRING_MARSHALLER);
+
+	//Response trailer carrying the server-side handler time in nanoseconds
+	public static final Metadata.Key<String> SERVER_NANOS_TRAILER =
+			Metadata.Key.of("x-server-nanos", Metadata.ASCII_STRING_MARSHALLER);
+
+	//Trace id of the current call or action
+	public static final Context.Key<String> TRACE_ID = Context.key("smarthome-trace-id");
+
+	private Tracing() {
+	}
+
+	//Random 16 hex digit trace id
+	public static String newTraceId() {
+		return String.format("%016x", ThreadLocalRandom.current().nextLong());
+	}
+
+	//Trace id of the current context, or null when none was started
+	public static String currentTraceId() {
+		return TRACE_ID.get();
+	}
+
+	//Wraps a task so it runs under a fresh trace id
+	public static Runnable traced(Runnable task) {
+		return Context.current().withValue(TRACE_ID, newTraceId()).wrap(task);
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * TracingServerInterceptor.java
+ *
+ * Server interceptor that picks up the caller's trace id, makes it
+ * available to handlers through the gRPC Context, logs each call with it
+ * and returns the handler time to the client in a trailer.
+ */
+
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+public final class TracingServerInterceptor implements ServerInterceptor {
+	private static final Logger logger = Logger.getLogger(TracingServerInterceptor.class.getName());
+
+	//Calls slower than this are logged at INFO instead of FINE
+	private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("smarthome.trace.slowMillis", 500));
+
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+			ServerCallHandler<ReqT, RespT> next) {
+		String traceId = headers.get(Tracing.TRACE_ID_HEADER);
+		if (traceId == null) {
+			traceId = Tracing.newTraceId(); //Caller did not send one, start a server-side trace
+		}
+		String method = call.getMethodDescriptor().getFullMethodName();
+		String trace = traceId;
+		long startNanos = System.nanoTime();
+
+		ServerCall<ReqT, RespT> traced = new SimpleForwardingServerCall<ReqT, RespT>(call) {
+			@Override
+			public void close(Status status, Metadata trailers) {
+				long elapsed = System.nanoTime() - startNanos;
+				trailers.put(Tracing.SERVER_NANOS_TRAILER, Long.toString(elapsed));
+				Level level = !status.isOk() || elapsed >= SLOW_NANOS ? Level.INFO : Level.FINE;
+				if (logger.isLoggable(level)) {
+					logger.log(level, String.format("trace=%s method=%s status=%s server=%.3fms",
+							trace, method, status.getCode(), elapsed / 1e6));
+				}
+				super.close(status, trailers);
+			}
+		};
+		Context ctx = Context.current().withValue(Tracing.TRACE_ID, traceId);
+		return Contexts.interceptCall(ctx, traced, headers, next);
+	}
+}
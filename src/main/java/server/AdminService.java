@@ -0,0 +1,81 @@
+/*
+ * AdminService.java
+ *
+ * Implements the SmartAdmin gRPC service.
+ * Exposes the RPC metrics recorded by the server it is attached to,
+ * plus the heap and thread state of its process.
+ */
+
+package server;
+
+import java.util.concurrent.TimeUnit;
+import io.grpc.stub.StreamObserver;
+import admin.protos.SmartAdminServiceGrpc.SmartAdminServiceImplBase;
+import admin.protos.GetMetricsRequest;
+import admin.protos.GetMetricsResponse;
+import admin.protos.LatencySummary;
+import admin.protos.ProcessStats;
+import metrics.JvmStats;
+import metrics.LatencyHistogram;
+import metrics.MethodMetrics;
+import metrics.RpcMetrics;
+
+public class AdminService extends SmartAdminServiceImplBase {
+	private final RpcMetrics metrics;
+
+	public AdminService(RpcMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void getMetrics(GetMetricsRequest req, StreamObserver<GetMetricsResponse> respObs) {
+		GetMetricsResponse.Builder resp = GetMetricsResponse.newBuilder().setServer(metrics.server());
+
+		//One entry per method matching the prefix
+		for (MethodMetrics m : metrics.methods()) {
+			if (!m.method().startsWith(req.getMethodPrefix())) {
+				continue;
+			}
+			resp.addMethods(admin.protos.MethodMetrics.newBuilder()
+					.setMethod(m.method())
+					.setCalls(m.calls())
+					.setFailures(m.failures())
+					.setOpenStreams(m.openStreams())
+					.setMessagesIn(m.messagesIn())
+					.setMessagesOut(m.messagesOut())
+					.setBytesIn(m.bytesIn())
+					.setBytesOut(m.bytesOut())
+					.setLatency(summarize(m.latency().snapshot()))
+					.setQueueTime(summarize(m.queueTime().snapshot())));
+		}
+
+		//Process state, for leak checks during soak tests
+		JvmStats jvm = JvmStats.current();
+		resp.setProcess(ProcessStats.newBuilder()
+				.setHeapUsedBytes(jvm.heapUsedBytes())
+				.setHeapCommittedBytes(jvm.heapCommittedBytes())
+				.setHeapMaxBytes(jvm.heapMaxBytes())
+				.setLiveThreads(jvm.liveThreads())
+				.setPeakThreads(jvm.peakThreads())
+				.setGcCount(jvm.gcCount())
+				.setGcTimeMs(jvm.gcTimeMs())
+				.setUptimeMs(jvm.uptimeMs()));
+
+		respObs.onNext(resp.build()); //Send response
+		respObs.onCompleted(); //Complete the stream
+	}
+
+	//Converts a histogram snapshot to microsecond percentiles
+	private static LatencySummary summarize(LatencyHistogram.Snapshot snap) {
+		return LatencySummary.newBuilder()
+				.setCount(snap.count())
+				.setP50Micros(snap.valueAtQuantile(0.5, TimeUnit.MICROSECONDS))
+				.setP90Micros(snap.valueAtQuantile(0.9, TimeUnit.MICROSECONDS))
+				.setP99Micros(snap.valueAtQuantile(0.99, TimeUnit.MICROSECONDS))
+				.setP999Micros(snap.valueAtQuantile(0.999, TimeUnit.MICROSECONDS))
+				.setP9999Micros(snap.valueAtQuantile(0.9999, TimeUnit.MICROSECONDS))
+				.setMaxMicros(snap.maxNanos() / 1_000.0)
+				.setMeanMicros(snap.meanNanos() / 1_000.0)
+				.build();
+	}
+}
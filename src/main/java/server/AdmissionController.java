@@ -0,0 +1,245 @@
+/*
+ * AdmissionController.java
+ *
+ * Server interceptor that protects a server from a single misbehaving client.
+ * Each peer (remote IP) gets token buckets for new calls and for inbound
+ * messages plus a cap on its concurrently open streams, and every streaming
+ * method has a global cap on open streams. Calls over a limit are rejected
+ * straight away with RESOURCE_EXHAUSTED and a retry-after-ms trailer.
+ *
+ * The checks on every inbound message and every stream open, the peer's
+ * message bucket and the method's stream cap, are striped by thread, so the
+ * transport threads of a busy peer or method do not all spin on one
+ * compare-and-set. Loopback peers skip the per-peer limits: every client on
+ * the server's own host shares that address, so they are no one client.
+ *
+ * Limits are read from system properties:
+ *   smarthome.admission.callsPerSecond / callBurst        (per peer)
+ *   smarthome.admission.messagesPerSecond / messageBurst  (per peer)
+ *   smarthome.admission.maxStreamsPerPeer                 (256)
+ *   smarthome.admission.maxStreamsPerMethod               (50000)
+ *   smarthome.admission.exemptLoopback                    (true)
+ */
+
+package server;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor.MethodType;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+public final class AdmissionController implements ServerInterceptor {
+	private static final Logger logger = Logger.getLogger(AdmissionController.class.getName());
+
+	//Trailer telling a rejected client how long to back off
+	public static final Metadata.Key<String> RETRY_AFTER_MS =
+			Metadata.Key.of("retry-after-ms", Metadata.ASCII_STRING_MARSHALLER);
+
+	private static final long STREAM_RETRY_AFTER_MS = 1_000; //Hint when a stream cap is hit
+	private static final int PEER_SWEEP_THRESHOLD = 4_096; //Sweep idle peers beyond this many
+	private static final int STRIPES = stripeCount();
+
+	private final double callsPerSecond = doubleProperty("callsPerSecond", 50);
+	private final int callBurst = Integer.getInteger("smarthome.admission.callBurst", 100);
+	private final double messagesPerSecond = doubleProperty("messagesPerSecond", 20_000);
+	private final int messageBurst = Integer.getInteger("smarthome.admission.messageBurst", 40_000);
+	private final int maxStreamsPerPeer = Integer.getInteger("smarthome.admission.maxStreamsPerPeer", 256);
+	private final int maxStreamsPerMethod = Integer.getInteger("smarthome.admission.maxStreamsPerMethod", 50_000);
+	private final boolean exemptLoopback = Boolean.parseBoolean(System.getProperty("smarthome.admission.exemptLoopback", "true"));
+
+	private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, StripedLimit> methodStreams = new ConcurrentHashMap<>();
+
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+			ServerCallHandler<ReqT, RespT> next) {
+		long now = System.nanoTime();
+		String method = call.getMethodDescriptor().getFullMethodName();
+		Peer peer = peerOf(call);
+
+		//Call rate per peer
+		long wait = peer.exempt ? 0 : peer.calls.tryAcquire(now);
+		if (wait > 0) {
+			return reject(call, "call rate exceeded for " + peer.address, TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+		}
+
+		//Open stream caps, unary calls are covered by the call rate alone
+		boolean streaming = call.getMethodDescriptor().getType() != MethodType.UNARY;
+		StripedLimit open = null;
+		int stripe = -1;
+		if (streaming) {
+			if (peer.streams.incrementAndGet() > maxStreamsPerPeer && !peer.exempt) {
+				peer.streams.decrementAndGet();
+				return reject(call, "too many open streams for " + peer.address, STREAM_RETRY_AFTER_MS);
+			}
+			open = methodStreams.get(method);
+			if (open == null) {
+				open = methodStreams.computeIfAbsent(method, m -> new StripedLimit(maxStreamsPerMethod, STRIPES));
+			}
+			stripe = open.tryAcquire();
+			if (stripe < 0) {
+				peer.streams.decrementAndGet();
+				return reject(call, "too many open streams for " + method, STREAM_RETRY_AFTER_MS);
+			}
+		}
+
+		AdmittedCall<ReqT, RespT> admitted = new AdmittedCall<>(call, peer, open, stripe);
+		ServerCall.Listener<ReqT> delegate;
+		try {
+			delegate = next.startCall(admitted, headers);
+		} catch (RuntimeException e) {
+			admitted.release();
+			throw e;
+		}
+		return new SimpleForwardingServerCallListener<ReqT>(delegate) {
+			@Override
+			public void onMessage(ReqT message) {
+				long msgWait = peer.exempt ? 0 : peer.messages.tryAcquire(System.nanoTime());
+				if (msgWait > 0) {
+					admitted.reject("message rate exceeded for " + peer.address, TimeUnit.NANOSECONDS.toMillis(msgWait) + 1);
+					return; //Drop the message, the call is already closed
+				}
+				super.onMessage(message);
+			}
+
+			@Override
+			public void onComplete() {
+				admitted.release();
+				super.onComplete();
+			}
+
+			@Override
+			public void onCancel() {
+				admitted.release();
+				super.onCancel();
+			}
+		};
+	}
+
+	private Peer peerOf(ServerCall<?, ?> call) {
+		SocketAddress remote = call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR);
+		String address = remote instanceof InetSocketAddress
+				? ((InetSocketAddress) remote).getAddress().getHostAddress()
+				: String.valueOf(remote);
+		Peer peer = peers.get(address);
+		if (peer == null) {
+			if (peers.size() >= PEER_SWEEP_THRESHOLD) {
+				sweepIdlePeers();
+			}
+			boolean loopback = exemptLoopback && remote instanceof InetSocketAddress
+					&& ((InetSocketAddress) remote).getAddress().isLoopbackAddress();
+			peer = peers.computeIfAbsent(address, a -> new Peer(a, loopback));
+		}
+		return peer;
+	}
+
+	//Forgets peers with no open streams and full buckets
+	private void sweepIdlePeers() {
+		long now = System.nanoTime();
+		peers.values().removeIf(p -> p.streams.get() == 0 && p.calls.isIdle(now) && p.messages.isIdle(now));
+	}
+
+	private static <ReqT, RespT> ServerCall.Listener<ReqT> reject(ServerCall<ReqT, RespT> call, String reason, long retryAfterMs) {
+		logger.fine("Rejecting " + call.getMethodDescriptor().getFullMethodName() + ": " + reason);
+		call.close(Status.RESOURCE_EXHAUSTED.withDescription(reason), retryTrailers(retryAfterMs));
+		return new ServerCall.Listener<ReqT>() {
+		};
+	}
+
+	private static Metadata retryTrailers(long retryAfterMs) {
+		Metadata trailers = new Metadata();
+		trailers.put(RETRY_AFTER_MS, Long.toString(retryAfterMs));
+		return trailers;
+	}
+
+	//Like the latency histograms: a power of two above the cores, enough that the transport threads
+	//rarely share a stripe
+	private static int stripeCount() {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		return Math.min(Integer.highestOneBit(Math.max(1, cpus - 1)) << 1, 16);
+	}
+
+	private static double doubleProperty(String name, double def) {
+		String value = System.getProperty("smarthome.admission." + name);
+		return value == null ? def : Double.parseDouble(value);
+	}
+
+	//Admission state for one remote address
+	private final class Peer {
+		final String address;
+		final boolean exempt; //Loopback, not held to the per-peer limits
+		final TokenBucket calls = new TokenBucket(callsPerSecond, callBurst);
+		final TokenBucket messages = new TokenBucket(messagesPerSecond, messageBurst, STRIPES); //Hit by every inbound message
+		final AtomicInteger streams = new AtomicInteger();
+
+		Peer(String address, boolean exempt) {
+			this.address = address;
+			this.exempt = exempt;
+		}
+	}
+
+	//Call wrapper that releases the stream slots once and can be closed by the limiter
+	private static final class AdmittedCall<ReqT, RespT> extends SimpleForwardingServerCall<ReqT, RespT> {
+		private final Peer peer;
+		private final StripedLimit open; //Null for unary calls
+		private final int stripe; //Of the slot taken from open
+		private final AtomicBoolean released = new AtomicBoolean();
+		private volatile boolean rejected;
+
+		AdmittedCall(ServerCall<ReqT, RespT> delegate, Peer peer, StripedLimit open, int stripe) {
+			super(delegate);
+			this.peer = peer;
+			this.open = open;
+			this.stripe = stripe;
+		}
+
+		//Closes the call from the limiter; later sends from the handler are dropped
+		synchronized void reject(String reason, long retryAfterMs) {
+			if (!rejected) {
+				rejected = true;
+				logger.fine("Rejecting " + getMethodDescriptor().getFullMethodName() + ": " + reason);
+				super.close(Status.RESOURCE_EXHAUSTED.withDescription(reason), retryTrailers(retryAfterMs));
+			}
+		}
+
+		@Override
+		public synchronized void sendMessage(RespT message) {
+			if (!rejected) {
+				super.sendMessage(message);
+			}
+		}
+
+		@Override
+		public synchronized void close(Status status, Metadata trailers) {
+			if (!rejected) {
+				super.close(status, trailers);
+			}
+		}
+
+		@Override
+		public synchronized void request(int numMessages) {
+			if (!rejected) {
+				super.request(numMessages);
+			}
+		}
+
+		void release() {
+			if (open != null && released.compareAndSet(false, true)) {
+				open.release(stripe);
+				peer.streams.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * BalanceWindows.java
+ *
+ * Incremental tumbling and sliding energy windows for the balance service.
+ * Power is held between events, so every event integrates the previous
+ * solar and load power over the time since the last one. The tumbling
+ * window keeps running totals that are closed off at each boundary, the
+ * sliding window is a ring of fixed-width buckets with running sums, so
+ * an event only touches the buckets time has moved past. Each event
+ * costs O(1) amortized, no matter how long the windows are.
+ *
+ * Not thread-safe, callers serialize access.
+ */
+
+package server;
+
+import balance.protos.BalanceWindow;
+
+final class BalanceWindows {
+	private static final double MS_PER_HOUR = 3_600_000.0;
+
+	private final long tumblingMs;
+	private final long bucketMs;
+
+	//Power held since the last event
+	private long lastTime = Long.MIN_VALUE;
+	private long firstTime;
+	private double heldSolarKw;
+	private double heldLoadKw;
+
+	//Tumbling window in progress, and the last closed one
+	private long windowStart;
+	private final Totals current = new Totals();
+	private BalanceWindow completed = BalanceWindow.getDefaultInstance();
+
+	//Sliding window buckets, indexed by absolute bucket number modulo the ring size
+	private final double[] solar;
+	private final double[] load;
+	private final double[] imported;
+	private final double[] exported;
+	private long headBucket; //Newest bucket in use
+	private final Totals sliding = new Totals();
+
+	BalanceWindows(long tumblingMs, long slidingMs, long bucketMs) {
+		if (tumblingMs <= 0 || bucketMs <= 0 || slidingMs < bucketMs) {
+			throw new IllegalArgumentException("Window lengths must be positive and the sliding window at least one bucket");
+		}
+		this.tumblingMs = tumblingMs;
+		this.bucketMs = bucketMs;
+		int buckets = (int) (slidingMs / bucketMs);
+		solar = new double[buckets];
+		load = new double[buckets];
+		imported = new double[buckets];
+		exported = new double[buckets];
+	}
+
+	//Integrates the held power up to the given time, then holds the new power
+	void advance(long time, double solarKw, double loadKw) {
+		if (lastTime == Long.MIN_VALUE) {
+			firstTime = time;
+			windowStart = time - Math.floorMod(time, tumblingMs);
+			headBucket = Math.floorDiv(time, bucketMs);
+		} else {
+			time = Math.max(time, lastTime); //Clock steps back are treated as no time passing
+			long from = lastTime;
+			//Split at tumbling boundaries so each window only gets its own share
+			while (time >= windowStart + tumblingMs) {
+				long boundary = windowStart + tumblingMs;
+				integrate(from, boundary);
+				completed = current.toWindow(windowStart, boundary);
+				current.clear();
+				windowStart = boundary;
+				from = boundary;
+			}
+			integrate(from, time);
+		}
+		lastTime = time;
+		heldSolarKw = solarKw;
+		heldLoadKw = loadKw;
+	}
+
+	private void integrate(long from, long to) {
+		if (to <= from) {
+			return;
+		}
+		current.add(heldSolarKw, heldLoadKw, to - from);
+
+		//Spread over the buckets the interval covers, only the ones still inside the ring
+		long last = Math.floorDiv(to - 1, bucketMs);
+		moveHead(last);
+		long b = Math.max(Math.floorDiv(from, bucketMs), last - solar.length + 1);
+		for (; b <= last; b++) {
+			long ms = Math.min(to, (b + 1) * bucketMs) - Math.max(from, b * bucketMs);
+			int i = (int) Math.floorMod(b, (long) solar.length);
+			double hours = ms / MS_PER_HOUR;
+			double netKwh = (heldSolarKw - heldLoadKw) * hours;
+			solar[i] += heldSolarKw * hours;
+			load[i] += heldLoadKw * hours;
+			imported[i] += netKwh < 0 ? -netKwh : 0;
+			exported[i] += netKwh > 0 ? netKwh : 0;
+		}
+		sliding.add(heldSolarKw, heldLoadKw, to - Math.max(from, (last - solar.length + 1) * bucketMs));
+	}
+
+	//Expires the buckets between the old and new head, returning the new head's slot
+	private int moveHead(long bucket) {
+		int size = solar.length;
+		if (bucket > headBucket) {
+			long expire = Math.min(bucket - headBucket, size); //Each slot is cleared at most once per pass
+			if (expire == size) {
+				sliding.clear(); //Whole ring expired, also drops any rounding drift
+			}
+			for (long b = headBucket + 1; b < headBucket + 1 + expire; b++) {
+				int i = (int) Math.floorMod(b, (long) size);
+				if (expire < size) {
+					sliding.add(-solar[i], -load[i], -imported[i], -exported[i]);
+				}
+				solar[i] = 0;
+				load[i] = 0;
+				imported[i] = 0;
+				exported[i] = 0;
+			}
+			headBucket = bucket;
+		}
+		return (int) Math.floorMod(headBucket, (long) size);
+	}
+
+	//Tumbling window in progress, up to the last event
+	BalanceWindow current() {
+		return current.toWindow(windowStart, windowStart + tumblingMs);
+	}
+
+	//Last closed tumbling window, empty until the first one closes
+	BalanceWindow completed() {
+		return completed;
+	}
+
+	//Sliding window ending at the last event
+	BalanceWindow sliding() {
+		moveHead(Math.floorDiv(lastTime, bucketMs)); //Drop buckets that slid out since the last interval ended
+		return sliding.toWindow(lastTime - slidingCoveredMs(), lastTime);
+	}
+
+	//Mean net power over the sliding window, or the part of it seen so far
+	double slidingMeanNetKw() {
+		moveHead(Math.floorDiv(lastTime, bucketMs));
+		long covered = slidingCoveredMs();
+		if (covered <= 0) {
+			return heldSolarKw - heldLoadKw;
+		}
+		return (sliding.exported - sliding.imported) / (covered / MS_PER_HOUR);
+	}
+
+	//Time the ring holds: the full buckets behind the head plus the head's elapsed part
+	private long slidingCoveredMs() {
+		long ring = (solar.length - 1) * bucketMs + Math.floorMod(lastTime, bucketMs);
+		return Math.min(ring, lastTime - firstTime);
+	}
+
+	//Running energy totals of one window
+	private static final class Totals {
+		double solar;
+		double load;
+		double imported;
+		double exported;
+
+		//Adds power held for the given time
+		void add(double solarKw, double loadKw, long ms) {
+			double hours = ms / MS_PER_HOUR;
+			double netKwh = (solarKw - loadKw) * hours;
+			add(solarKw * hours, loadKw * hours, netKwh < 0 ? -netKwh : 0, netKwh > 0 ? netKwh : 0);
+		}
+
+		void add(double solarKwh, double loadKwh, double importedKwh, double exportedKwh) {
+			solar += solarKwh;
+			load += loadKwh;
+			imported += importedKwh;
+			exported += exportedKwh;
+		}
+
+		void clear() {
+			solar = 0;
+			load = 0;
+			imported = 0;
+			exported = 0;
+		}
+
+		BalanceWindow toWindow(long start, long end) {
+			//Running sums of a sliding window can drift a hair below zero as buckets are subtracted
+			return BalanceWindow.newBuilder()
+					.setStart(start)
+					.setEnd(end)
+					.setSolarKwh(Math.max(0, solar))
+					.setLoadKwh(Math.max(0, load))
+					.setImportedKwh(Math.max(0, imported))
+					.setExportedKwh(Math.max(0, exported))
+					.build();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * DurableResponses.java
+ *
+ * Sends a call's responses only once the state changes behind them are in
+ * the journal. Each response waits for its own append and for every
+ * response before it, so a stream keeps its request order even when some
+ * responses (counter-offers) change nothing and could go out at once.
+ * Responses go out from whichever thread finishes the wait, serialized on
+ * this object. A failed append ends the call with UNAVAILABLE.
+ */
+
+package server;
+
+import java.util.concurrent.CompletableFuture;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+final class DurableResponses<T> {
+	private static final CompletableFuture<Long> NOTHING = CompletableFuture.completedFuture(0L);
+
+	private final StreamObserver<T> out;
+	private CompletableFuture<?> tail = NOTHING; //Only touched by the call's inbound thread
+	private boolean failed;
+
+	DurableResponses(StreamObserver<T> out) {
+		this.out = out;
+	}
+
+	//Unary call: the single response and completion once the change is durable
+	static <T> void reply(CompletableFuture<Long> durable, StreamObserver<T> out, T response) {
+		DurableResponses<T> responses = new DurableResponses<>(out);
+		responses.send(response, durable);
+		responses.complete();
+	}
+
+	//Response that depends on no state change, still kept in order behind earlier ones
+	void send(T response) {
+		send(response, NOTHING);
+	}
+
+	//Response sent once the given append is durable
+	void send(T response, CompletableFuture<Long> durable) {
+		if (tail.isDone() && durable.isDone() && !tail.isCompletedExceptionally() && !durable.isCompletedExceptionally()) {
+			emit(response); //Nothing to wait for, the common case for a disabled journal or counter-offers
+			return;
+		}
+		tail = tail.thenCombine(durable, (x, y) -> y).whenComplete((v, t) -> {
+			if (t == null) {
+				emit(response);
+			} else {
+				fail(t);
+			}
+		});
+	}
+
+	//Completes the call after every response before it has gone out
+	void complete() {
+		tail.whenComplete((v, t) -> {
+			synchronized (this) {
+				if (!failed) {
+					out.onCompleted();
+				}
+			}
+		});
+	}
+
+	private synchronized void emit(T response) {
+		if (!failed) {
+			out.onNext(response);
+		}
+	}
+
+	private synchronized void fail(Throwable t) {
+		if (!failed) {
+			failed = true;
+			out.onError(Status.UNAVAILABLE.withDescription("Journal write failed").withCause(t).asRuntimeException());
+		}
+	}
+}
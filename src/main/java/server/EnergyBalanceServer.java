@@ -0,0 +1,151 @@
+/*
+ * EnergyBalanceServer.java
+ *
+ * Implements the SmartEnergyBalance gRPC service for a smart home energy system.
+ * Subscribes to the solar output, lighting ambient readings and heating
+ * load streams, joins them by time and keeps tumbling and sliding energy
+ * windows. Each upstream event produces one net balance snapshot, which is
+ * shared by every dashboard subscribed to the balance stream.
+ * Registers the service with jmDNS for discovery on the local network.
+ *
+ * Settings (system properties):
+ *  smarthome.balance.tumblingSeconds  tumbling window length, default 60
+ *  smarthome.balance.slidingSeconds   sliding window length, default 300
+ *  smarthome.balance.lightingZones    comma separated zones to follow, default living-room
+ */
+
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.logging.Logger;
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+import com.google.protobuf.Empty;
+import io.grpc.Server;
+import io.grpc.stub.StreamObserver;
+import balance.protos.SmartEnergyBalanceServiceGrpc.SmartEnergyBalanceServiceImplBase;
+import balance.protos.BalanceSnapshot;
+import client.LightingClient;
+import client.SolarClient;
+import client.ThermostatClient;
+import lighting.protos.AmbientLightReading;
+import solar.protos.RealTimeOutput;
+import thermostat.protos.HeatingLoad;
+
+public class EnergyBalanceServer extends SmartEnergyBalanceServiceImplBase {
+	private static final Logger logger = Logger.getLogger(EnergyBalanceServer.class.getName());
+	private static final long BUCKET_MS = 1_000; //Sliding window resolution
+	private static final double TARGET_LUX = 500.0; //Lamps top an occupied room up to this
+	private static final double LAMP_MAX_KW = 0.1; //Lamp power per zone at 100% brightness
+
+	private final BalanceWindows windows;
+	private final SnapshotBroadcaster<BalanceSnapshot> broadcaster = new SnapshotBroadcaster<>();
+	private final BalanceSnapshot.Builder snapshot = BalanceSnapshot.newBuilder(); //Reused for every snapshot
+
+	//Latest value of each source, held until the source reports again
+	private final String[] zones;
+	private final double[] zoneLightingKw;
+	private double solarKw;
+	private double lightingKw;
+	private double heatingKw;
+	private long sequence;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		EnergyBalanceServer balanceservice = new EnergyBalanceServer(
+				Long.getLong("smarthome.balance.tumblingSeconds", 60) * 1_000,
+				Long.getLong("smarthome.balance.slidingSeconds", 300) * 1_000,
+				System.getProperty("smarthome.balance.lightingZones", "living-room").split(","));
+		int port = 50054; //Port where the gRPC server will listen
+
+		//Build and start the gRPC server
+		Server server = ServerBootstrap.start("Balance", port, balanceservice);
+		balanceservice.connect(); //Start following the other services
+
+		logger.info("Energy balance server started, listening on " + port);
+
+		//Register service via jmDNS for discovery on local network
+		JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
+		//(Service type, Service name, Service port, Service description)
+		ServiceInfo serviceInfo = ServiceInfo.create("_energybalance._grpc._tcp.local.", "EnergyBalanceService", port, "Home Energy Balance Service");
+		jmdns.registerService(serviceInfo);
+		System.out.println("Starting the Energy Balance Server loop");
+
+		//Wait until server is terminated
+		server.awaitTermination();
+	}
+
+	EnergyBalanceServer(long tumblingMs, long slidingMs, String... zones) {
+		this.windows = new BalanceWindows(tumblingMs, slidingMs, BUCKET_MS);
+		this.zones = zones;
+		this.zoneLightingKw = new double[zones.length];
+	}
+
+	//Opens the upstream streams, each one reopened on its own if it fails
+	void connect() {
+		new UpstreamFeed<RealTimeOutput>("Solar output", SolarClient::streamRealTimeOutputAsync, this::onSolar).start();
+		new UpstreamFeed<HeatingLoad>("Heating load", ThermostatClient::streamHeatingLoadAsync, this::onHeating).start();
+		for (int i = 0; i < zones.length; i++) {
+			int zone = i;
+			String zoneId = zones[i].trim();
+			new UpstreamFeed<AmbientLightReading>("Lighting " + zoneId, () -> LightingClient.streamAmbientLightDataAsync(zoneId),
+					reading -> onLighting(zone, reading)).start();
+		}
+	}
+
+	@Override
+	public void streamEnergyBalance(Empty request, StreamObserver<BalanceSnapshot> responseObserver) {
+		//Joins the shared stream, the call stays open until the client cancels
+		broadcaster.subscribe(responseObserver);
+	}
+
+	//Upstream events, each one moves the windows on and publishes a snapshot
+
+	synchronized void onSolar(RealTimeOutput output) {
+		solarKw = output.getCurrentKw();
+		update();
+	}
+
+	synchronized void onHeating(HeatingLoad load) {
+		heatingKw = load.getLoadKw();
+		update();
+	}
+
+	synchronized void onLighting(int zone, AmbientLightReading reading) {
+		double kw = lightingKw(reading);
+		lightingKw += kw - zoneLightingKw[zone]; //Replace this zone's share without summing every zone
+		zoneLightingKw[zone] = kw;
+		update();
+	}
+
+	//Joins on arrival time, the v1 sources only carry second-resolution timestamps
+	private void update() {
+		long now = System.currentTimeMillis();
+		double loadKw = lightingKw + heatingKw;
+		windows.advance(now, solarKw, loadKw);
+
+		//Build the snapshot once, every subscriber gets the same message
+		BalanceSnapshot s = snapshot
+				.setTimestamp(now)
+				.setSequence(++sequence)
+				.setSolarKw(solarKw)
+				.setLightingKw(lightingKw)
+				.setHeatingKw(heatingKw)
+				.setNetKw(solarKw - loadKw)
+				.setCurrent(windows.current())
+				.setCompleted(windows.completed())
+				.setSliding(windows.sliding())
+				.setSlidingMeanNetKw(windows.slidingMeanNetKw())
+				.build();
+		broadcaster.publish(s); //Under the lock, so subscribers see snapshots in order
+	}
+
+	//Lamp power needed to top an occupied zone up to the target lux, lights are off when empty
+	static double lightingKw(AmbientLightReading reading) {
+		if (!reading.getOccupied()) {
+			return 0;
+		}
+		double level = Math.min(1.0, Math.max(0.0, (TARGET_LUX - reading.getLux()) / TARGET_LUX));
+		return LAMP_MAX_KW * level;
+	}
+}
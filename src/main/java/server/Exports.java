@@ -0,0 +1,381 @@
+/*
+ * Exports.java
+ *
+ * Bulk export of a home's readings over a time range to a file, for
+ * analysts who need more than the dashboard shows. A series is produced
+ * row by row and streamed by an encoder through a few fixed direct buffers
+ * into a FileChannel, so a year of per-second rows is written at disk
+ * speed on a constant heap. The finished file is renamed into the export
+ * directory under a name made of everything its content depends on:
+ * series, home, range, step, format, simulation seed and the home's state.
+ * An export asked for again is served from the file already on disk.
+ *
+ * Files are sent in chunks straight out of memory-mapped regions, each
+ * chunk wrapping its slice of the mapping without a copy, and only while
+ * the transport can take them. Chunks follow the compression policy like
+ * any message. On a fast link, turning it off for the export methods,
+ * e.g. smarthome.compression.ExportTemperatureHistory=off, sends files at
+ * disk speed instead of codec speed.
+ *
+ * Columnar layout, little-endian so the arrays load directly into analysis tools:
+ *   48-byte header: int magic "SHXC", int version, long start ms, long step ms,
+ *   long rows, int columns, 12 bytes reserved
+ *   column names, 16 bytes each, ASCII padded with zeros
+ *   one float32 array of all rows per column, in header order
+ * Row i is timed start + i * step. CSV files have a header line of time_ms
+ * and the column names, then one line per row with fixed decimals.
+ *
+ * Configured by system properties:
+ *   smarthome.export.dir             (default data/exports)  where export files are kept
+ *   smarthome.export.maxRows         (default 100000000)     largest export, about three years of seconds
+ *   smarthome.export.retentionHours  (default 24)            files not asked for this long are deleted
+ *   smarthome.export.chunkBytes      (default 1048576)       file bytes per chunk sent
+ */
+
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+final class Exports {
+	private static final Logger logger = Logger.getLogger(Exports.class.getName());
+
+	static final long MIN_STEP_MS = 1_000;
+
+	private static final int MAGIC = 0x43584853; //"SHXC" when read little-endian
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 48;
+	private static final int NAME_BYTES = 16;
+	private static final int BUFFER_BYTES = 1 << 18; //Per column, a multiple of the value size
+	private static final long MAP_CHUNK = Integer.MAX_VALUE;
+	private static final long SWEEP_INTERVAL_MS = 3_600_000; //Old files are looked for at most once an hour
+
+	private static final Path DIR = Paths.get(System.getProperty("smarthome.export.dir", "data/exports")).toAbsolutePath().normalize();
+	private static final long MAX_ROWS = Long.getLong("smarthome.export.maxRows", 100_000_000);
+	private static final long RETENTION_MS = TimeUnit.HOURS.toMillis(Long.getLong("smarthome.export.retentionHours", 24));
+	private static final int CHUNK_BYTES = Integer.getInteger("smarthome.export.chunkBytes", 1 << 20);
+
+	private static volatile long lastSweepMs;
+
+	private Exports() {
+	}
+
+	//Writes the values of the row timed timeMs into values, in column order
+	interface Row {
+		void values(long timeMs, float[] values);
+	}
+
+	//Builds a chunk message, the file's name and size are only set on the first
+	interface Chunks<T> {
+		T chunk(String fileName, long fileBytes, ByteString data);
+	}
+
+	//What an export produces, one value per column per row
+	static final class Series {
+		final String name;
+		final long state; //Everything besides time and the seed that the values depend on, e.g. a setting
+		final String[] columns;
+		final int[] decimals; //CSV decimals per column
+		final Row row;
+
+		Series(String name, long state, String[] columns, int[] decimals, Row row) {
+			this.name = name;
+			this.state = state;
+			this.columns = columns;
+			this.decimals = decimals;
+			this.row = row;
+		}
+	}
+
+	//Sends the home's series from startMs to endMs inclusive, one row per step, as a file in the
+	//format, writing the file first unless an earlier export left it on disk. Runs the writing
+	//on the handler's thread, then sends the chunks as the transport takes them.
+	static <T> void export(ServerCallStreamObserver<T> call, long home, long startMs, long endMs, long stepMs, boolean csv,
+			Series series, Chunks<T> chunks) {
+		long step = stepMs == 0 ? MIN_STEP_MS : stepMs;
+		long span = endMs - startMs;
+		if (step < MIN_STEP_MS || endMs < startMs || span < 0 || span / step >= MAX_ROWS) {
+			call.onError(Status.INVALID_ARGUMENT
+					.withDescription("Export needs start <= end, a step of at least " + MIN_STEP_MS + " ms and at most " + MAX_ROWS + " rows")
+					.asRuntimeException());
+			return;
+		}
+		long rows = span / step + 1;
+		Path file = DIR.resolve(String.format(Locale.ROOT, "%s-%016x-%d-%d-%d-%016x-%x.%s",
+				series.name, home, startMs, endMs, step, Simulation.SEED, series.state, csv ? "csv" : "col"));
+		try {
+			sweep();
+			if (Files.exists(file)) {
+				Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis())); //Kept while asked for
+			} else if (!write(call, file, startMs, step, rows, csv, series)) {
+				return; //Cancelled
+			}
+			serve(call, file, chunks);
+		} catch (IOException e) {
+			logger.warning("Export " + file.getFileName() + " failed: " + e);
+			call.onError(Status.INTERNAL.withDescription("Export failed").withCause(e).asRuntimeException());
+		}
+	}
+
+	//Writes the file under a temporary name and renames it into place, false if the call went away first
+	private static boolean write(ServerCallStreamObserver<?> call, Path file, long startMs, long stepMs, long rows, boolean csv,
+			Series series) throws IOException {
+		long start = System.nanoTime();
+		Files.createDirectories(DIR);
+		Path tmp = Files.createTempFile(DIR, file.getFileName().toString(), ".tmp"); //Own name, exports of one file may race
+		boolean done = false;
+		try {
+			try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				Encoder encoder = csv ? new CsvEncoder(out, series) : new ColumnarEncoder(out, series, startMs, stepMs, rows);
+				float[] values = new float[series.columns.length];
+				long timeMs = startMs;
+				for (long i = 0; i < rows; i++, timeMs += stepMs) {
+					if ((i & 0xffff) == 0 && call.isCancelled()) {
+						return false;
+					}
+					series.row.values(timeMs, values);
+					encoder.row(timeMs, values);
+				}
+				encoder.finish();
+				out.force(true);
+			}
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			done = true;
+		} finally {
+			if (!done) {
+				Files.deleteIfExists(tmp);
+			}
+		}
+		logger.info(String.format(Locale.ROOT, "Exported %d rows to %s, %d bytes in %.0f ms",
+				rows, file.getFileName(), Files.size(file), (System.nanoTime() - start) / 1e6));
+		return true;
+	}
+
+	//Maps the file and sends it in chunks wrapping the mapping, like the recent samples' replay
+	private static <T> void serve(ServerCallStreamObserver<T> call, Path file, Chunks<T> chunks) throws IOException {
+		List<MappedByteBuffer> regions = new ArrayList<>();
+		long size;
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) { //Mappings outlive the channel
+			size = in.size();
+			for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+				regions.add(in.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos)));
+			}
+		}
+		String name = file.getFileName().toString();
+		call.setOnReadyHandler(new Runnable() {
+			private int region;
+			private boolean first = true;
+			private boolean done;
+
+			@Override
+			public void run() {
+				while (!done && call.isReady()) {
+					while (region < regions.size() && !regions.get(region).hasRemaining()) {
+						region++;
+					}
+					if (region == regions.size() && !first) {
+						done = true;
+						call.onCompleted();
+						return;
+					}
+					ByteString data = ByteString.EMPTY;
+					if (region < regions.size()) {
+						ByteBuffer mapped = regions.get(region);
+						int bytes = Math.min(mapped.remaining(), CHUNK_BYTES);
+						data = UnsafeByteOperations.unsafeWrap(mapped.slice(mapped.position(), bytes)); //Read-only, never written
+						mapped.position(mapped.position() + bytes);
+					}
+					call.onNext(first ? chunks.chunk(name, size, data) : chunks.chunk("", 0, data));
+					first = false;
+				}
+			}
+		});
+	}
+
+	//Deletes files nobody has asked for in the retention time
+	private static void sweep() throws IOException {
+		long now = System.currentTimeMillis();
+		if (now - lastSweepMs < SWEEP_INTERVAL_MS || !Files.isDirectory(DIR)) {
+			return;
+		}
+		lastSweepMs = now;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(DIR)) {
+			for (Path p : stream) {
+				if (now - Files.getLastModifiedTime(p).toMillis() > RETENTION_MS) {
+					Files.deleteIfExists(p);
+				}
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			position += out.write(buf, position);
+		}
+	}
+
+	//Turns rows into file bytes
+	private interface Encoder {
+		void row(long timeMs, float[] values) throws IOException;
+
+		void finish() throws IOException;
+	}
+
+	//Header, then each column's values filled into its own buffer and written at the column's offset
+	private static final class ColumnarEncoder implements Encoder {
+		private final FileChannel out;
+		private final ByteBuffer[] buffers;
+		private final long[] positions; //File offset of each column's next value
+
+		ColumnarEncoder(FileChannel out, Series series, long startMs, long stepMs, long rows) throws IOException {
+			this.out = out;
+			int columns = series.columns.length;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + columns * NAME_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putLong(startMs).putLong(stepMs).putLong(rows).putInt(columns);
+			for (int i = 0; i < columns; i++) {
+				byte[] name = series.columns[i].getBytes(StandardCharsets.US_ASCII);
+				header.put(HEADER_BYTES + i * NAME_BYTES, name, 0, Math.min(name.length, NAME_BYTES));
+			}
+			writeFully(out, header.clear(), 0);
+
+			this.buffers = new ByteBuffer[columns];
+			this.positions = new long[columns];
+			for (int i = 0; i < columns; i++) {
+				buffers[i] = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				positions[i] = header.capacity() + i * rows * Float.BYTES;
+			}
+		}
+
+		@Override
+		public void row(long timeMs, float[] values) throws IOException {
+			for (int i = 0; i < buffers.length; i++) {
+				if (!buffers[i].hasRemaining()) {
+					flush(i);
+				}
+				buffers[i].putFloat(values[i]);
+			}
+		}
+
+		@Override
+		public void finish() throws IOException {
+			for (int i = 0; i < buffers.length; i++) {
+				flush(i);
+			}
+		}
+
+		private void flush(int column) throws IOException {
+			ByteBuffer buf = buffers[column];
+			buf.flip();
+			int bytes = buf.remaining();
+			writeFully(out, buf, positions[column]);
+			positions[column] += bytes;
+			buf.clear();
+		}
+	}
+
+	//Lines of ASCII digits formatted straight into the buffer, without strings per row
+	private static final class CsvEncoder implements Encoder {
+		private static final long[] POWERS = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+
+		private final FileChannel out;
+		private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		private final int[] decimals;
+		private final int maxRowBytes;
+		private final byte[] digits = new byte[20];
+		private long position;
+
+		CsvEncoder(FileChannel out, Series series) throws IOException {
+			this.out = out;
+			this.decimals = series.decimals;
+			int rowBytes = 21; //Time and newline
+			StringBuilder header = new StringBuilder("time_ms");
+			for (int i = 0; i < series.columns.length; i++) {
+				header.append(',').append(series.columns[i]);
+				rowBytes += 1 + 21 + decimals[i];
+			}
+			this.maxRowBytes = rowBytes;
+			buf.put(header.append('\n').toString().getBytes(StandardCharsets.US_ASCII));
+		}
+
+		@Override
+		public void row(long timeMs, float[] values) throws IOException {
+			if (buf.remaining() < maxRowBytes) {
+				flush();
+			}
+			putLong(timeMs);
+			for (int i = 0; i < values.length; i++) {
+				buf.put((byte) ',');
+				putFixed(values[i], decimals[i]);
+			}
+			buf.put((byte) '\n');
+		}
+
+		@Override
+		public void finish() throws IOException {
+			flush();
+		}
+
+		private void flush() throws IOException {
+			buf.flip();
+			int bytes = buf.remaining();
+			writeFully(out, buf, position);
+			position += bytes;
+			buf.clear();
+		}
+
+		//value rounded to the decimals, an empty field if it is not a number
+		private void putFixed(float value, int decimals) {
+			if (!Float.isFinite(value)) {
+				return;
+			}
+			long scaled = Math.round(value * (double) POWERS[decimals]);
+			if (scaled < 0) {
+				buf.put((byte) '-');
+				scaled = -scaled;
+			}
+			putLong(scaled / POWERS[decimals]);
+			if (decimals > 0) {
+				buf.put((byte) '.');
+				long fraction = scaled % POWERS[decimals];
+				for (int d = decimals - 1; d >= 0; d--) {
+					buf.put((byte) ('0' + fraction / POWERS[d] % 10));
+				}
+			}
+		}
+
+		private void putLong(long v) {
+			if (v < 0) {
+				buf.put((byte) '-');
+				v = -v; //Times and values are far from Long.MIN_VALUE
+			}
+			int n = 0;
+			do {
+				digits[n++] = (byte) ('0' + v % 10);
+				v /= 10;
+			} while (v != 0);
+			while (n > 0) {
+				buf.put(digits[--n]);
+			}
+		}
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * Handoff.java
+ *
+ * Moves the state of homes between the nodes of a sharded service when the
+ * ring changes, so a home keeps its target, ledger or brightness when it
+ * changes node.
+ *
+ * The node taking homes over pulls them. For every peer it has not synced
+ * with since the peer joined its ring, it fetches the entries the peer
+ * holds for homes this node now owns, adopts them, makes them durable with
+ * a snapshot and then tells the peer to release its copies, so the peer
+ * cannot serve them stale if the homes ever come back to it. Until then
+ * the homes this node took from that peer are turned away with UNAVAILABLE,
+ * which clients retry, and are never served from a blank state. A node
+ * that just started turns every home away for a short discovery period,
+ * until its peers have shown up.
+ *
+ * A node shutting down pushes what it holds to the nodes taking its homes
+ * over, turning calls away while it does, before it leaves the ring. A node
+ * that vanishes without leaving takes its homes' state with it, and those
+ * homes start over on their next owner.
+ *
+ * Changes made by calls already open on the old node when the ring changed
+ * can land there after the fetch, and are dropped with its copies.
+ *
+ * Configured with system properties:
+ *   smarthome.handoff.discoveryMs (2000)  time a starting node waits for its peers before serving
+ */
+
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import io.grpc.BindableService;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import handoff.protos.FetchHomesRequest;
+import handoff.protos.HomeState;
+import handoff.protos.HomeStateBatch;
+import handoff.protos.PushHomesRequest;
+import handoff.protos.PushHomesResponse;
+import handoff.protos.ReleaseHomesRequest;
+import handoff.protos.ReleaseHomesResponse;
+import handoff.protos.SmartHandoffServiceGrpc;
+import handoff.protos.SmartHandoffServiceGrpc.SmartHandoffServiceImplBase;
+import sharding.HashRing;
+import sharding.Placement;
+
+final class Handoff {
+	private static final Logger logger = Logger.getLogger(Handoff.class.getName());
+
+	private static final int BATCH = 4096; //Entries per message, about 200 KB
+	private static final long RETRY_MS = 1_000;
+	private static final long FETCH_TIMEOUT_MS = 60_000;
+
+	private final String name;
+	private final Placement placement;
+	private final Snapshots snapshots;
+	private final StateTable[] tables;
+	private final Set<String> synced = ConcurrentHashMap.newKeySet(); //Peers whose homes for this node are here
+	private final ConcurrentHashMap<String, ManagedChannel> channels = new ConcurrentHashMap<>(); //By node id
+	private final ScheduledExecutorService scheduler;
+	private volatile View view;
+	private volatile boolean discovered; //Discovery period over
+	private volatile boolean leaving;
+
+	//Ring and the ring without this node, whose owners are where this node's homes came from
+	private static final class View {
+		final HashRing ring;
+		final HashRing others;
+
+		View(HashRing ring, HashRing others) {
+			this.ring = ring;
+			this.others = others;
+		}
+	}
+
+	Handoff(String server, Placement placement, Snapshots snapshots, StateTable... tables) {
+		this.name = server;
+		this.placement = placement;
+		this.snapshots = snapshots;
+		this.tables = tables.clone();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, server.toLowerCase(Locale.ROOT) + "-handoff");
+			t.setDaemon(true);
+			return t;
+		});
+		placement.gate(this::ready);
+		placement.onChange(() -> scheduler.execute(this::ringChanged));
+	}
+
+	Placement placement() {
+		return placement;
+	}
+
+	//The service peers call, hosted next to the sharded services
+	BindableService service() {
+		return new Service();
+	}
+
+	//Starts serving once the discovery period is over and syncing with the peers found by then
+	void start() {
+		scheduler.schedule(() -> {
+			discovered = true;
+			sync();
+		}, Long.getLong("smarthome.handoff.discoveryMs", 2_000), TimeUnit.MILLISECONDS);
+	}
+
+	//Hands every home this node holds to the node owning it once this node has left, turning calls
+	//away from now on. Called on shutdown, before the node leaves the ring.
+	void leave() {
+		leaving = true;
+		HashRing others = placement.ring().without(placement.self());
+		Map<String, List<HomeState>> byNode = new HashMap<>();
+		for (StateTable table : tables) {
+			for (Map.Entry<Long, StateTable.Entry> e : table.entries()) {
+				String owner = others.ownerOf(e.getKey());
+				if (owner != null) {
+					byNode.computeIfAbsent(owner, n -> new ArrayList<>()).add(state(table, e.getKey(), e.getValue()));
+				}
+			}
+		}
+		for (Map.Entry<String, List<HomeState>> e : byNode.entrySet()) {
+			List<HomeState> states = e.getValue();
+			try {
+				SmartHandoffServiceGrpc.SmartHandoffServiceBlockingStub stub = stub(e.getKey());
+				for (int i = 0; i < states.size(); i += BATCH) {
+					stub.withDeadlineAfter(FETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS).pushHomes(PushHomesRequest.newBuilder()
+							.setNode(placement.self())
+							.addAllStates(states.subList(i, Math.min(states.size(), i + BATCH)))
+							.build());
+				}
+				logger.info(name + " handed " + states.size() + " entries to node " + e.getKey());
+			} catch (IOException | StatusRuntimeException ex) {
+				logger.warning(name + " could not hand " + states.size() + " entries to node " + e.getKey() + ", their homes start over: " + ex);
+			}
+		}
+		for (ManagedChannel channel : channels.values()) {
+			channel.shutdown();
+		}
+	}
+
+	//Whether a home this node owns has its state here: the peer it came from has handed it over
+	private boolean ready(long key) {
+		if (!discovered || leaving) {
+			return false;
+		}
+		String previous = view().others.ownerOf(key);
+		return previous == null || synced.contains(previous);
+	}
+
+	private View view() {
+		View v = view;
+		HashRing ring = placement.ring();
+		if (v == null || v.ring != ring) {
+			v = new View(ring, ring.without(placement.self()));
+			view = v;
+		}
+		return v;
+	}
+
+	//A peer that left has to hand over again if it comes back, its channel goes
+	private void ringChanged() {
+		Set<String> nodes = placement.ring().nodes();
+		synced.retainAll(nodes);
+		for (Map.Entry<String, ManagedChannel> e : channels.entrySet()) {
+			if (!nodes.contains(e.getKey()) && channels.remove(e.getKey(), e.getValue())) {
+				e.getValue().shutdown();
+			}
+		}
+		sync();
+	}
+
+	//Fetches from every peer not synced yet, retrying the ones that fail
+	private void sync() {
+		if (!discovered || leaving) {
+			return;
+		}
+		boolean retry = false;
+		for (String node : placement.ring().nodes()) {
+			if (node.equals(placement.self()) || synced.contains(node)) {
+				continue;
+			}
+			try {
+				fetch(node);
+			} catch (IOException | StatusRuntimeException e) {
+				logger.info(name + " handoff from node " + node + " failed, retrying: " + e.getMessage());
+				retry = true;
+			}
+		}
+		if (retry) {
+			scheduler.schedule(this::sync, RETRY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	//Takes over the homes this node got from the peer, then lets the peer drop them
+	private void fetch(String node) throws IOException {
+		SmartHandoffServiceGrpc.SmartHandoffServiceBlockingStub stub = stub(node);
+		View v = view();
+		long adopted = 0;
+		Iterator<HomeStateBatch> batches = stub.withDeadlineAfter(FETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+				.fetchHomes(FetchHomesRequest.newBuilder().setNode(placement.self()).build());
+		while (batches.hasNext()) {
+			for (HomeState state : batches.next().getStatesList()) {
+				//Only homes that came from that peer, whatever else it holds for this node is older
+				if (placement.self().equals(v.ring.ownerOf(state.getKey())) && node.equals(v.others.ownerOf(state.getKey()))) {
+					adopted += adopt(state) ? 1 : 0;
+				}
+			}
+		}
+		snapshots.writeNow(); //Durable here before the peer lets go of them
+		long released = stub.withDeadlineAfter(FETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+				.releaseHomes(ReleaseHomesRequest.newBuilder().setNode(placement.self()).build()).getReleased();
+		if (placement.ring() == v.ring) {
+			synced.add(node);
+		} else {
+			scheduler.execute(this::sync); //The ring moved on meanwhile, fetch again for the new one
+		}
+		logger.info(name + " took over " + adopted + " entries from node " + node + ", which released " + released);
+	}
+
+	private boolean adopt(HomeState state) {
+		for (StateTable table : tables) {
+			if (table.type() == state.getType()) {
+				table.adopt(state.getKey(), state.getV0(), state.getV1(), state.getV2());
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static HomeState state(StateTable table, long key, StateTable.Entry entry) {
+		return HomeState.newBuilder().setType(table.type()).setKey(key)
+				.setV0(entry.v0).setV1(entry.v1).setV2(entry.v2).build();
+	}
+
+	private SmartHandoffServiceGrpc.SmartHandoffServiceBlockingStub stub(String node) throws IOException {
+		InetSocketAddress address = placement.address(node);
+		if (address == null) {
+			throw new IOException("address of node " + node + " unknown");
+		}
+		return SmartHandoffServiceGrpc.newBlockingStub(channels.computeIfAbsent(node,
+				n -> ManagedChannelBuilder.forAddress(address.getHostString(), address.getPort()).usePlaintext().build()));
+	}
+
+	private final class Service extends SmartHandoffServiceImplBase {
+		@Override
+		public void fetchHomes(FetchHomesRequest req, StreamObserver<HomeStateBatch> responseObserver) {
+			HashRing ring = placement.ring();
+			if (leaving || !ring.nodes().contains(req.getNode())) {
+				//Entries for a node this one has not placed yet would be missed, the caller retries
+				placement.lookup(req.getNode());
+				responseObserver.onError(Status.UNAVAILABLE.withDescription("Node " + req.getNode() + " is not on the ring of node "
+						+ placement.self() + " yet").asRuntimeException());
+				return;
+			}
+			ServerCallStreamObserver<HomeStateBatch> call = (ServerCallStreamObserver<HomeStateBatch>) responseObserver;
+			//Batches are built only while the transport can take them, a large share is never buffered whole
+			call.setOnReadyHandler(new Runnable() {
+				private int table;
+				private Iterator<Map.Entry<Long, StateTable.Entry>> entries = tables[0].entries().iterator();
+				private boolean done;
+
+				@Override
+				public void run() {
+					while (!done && call.isReady()) {
+						HomeStateBatch.Builder batch = HomeStateBatch.newBuilder();
+						while (batch.getStatesCount() < BATCH && (entries.hasNext() || ++table < tables.length)) {
+							if (!entries.hasNext()) {
+								entries = tables[table].entries().iterator();
+								continue;
+							}
+							Map.Entry<Long, StateTable.Entry> e = entries.next();
+							if (req.getNode().equals(ring.ownerOf(e.getKey()))) {
+								batch.addStates(state(tables[table], e.getKey(), e.getValue()));
+							}
+						}
+						if (batch.getStatesCount() > 0) {
+							call.onNext(batch.build());
+						}
+						if (table >= tables.length || call.isCancelled()) {
+							done = true;
+							call.onCompleted();
+						}
+					}
+				}
+			});
+		}
+
+		@Override
+		public void releaseHomes(ReleaseHomesRequest req, StreamObserver<ReleaseHomesResponse> responseObserver) {
+			HashRing ring = placement.ring();
+			if (!ring.nodes().contains(req.getNode())) {
+				responseObserver.onError(Status.UNAVAILABLE.withDescription("Node " + req.getNode() + " is not on the ring of node "
+						+ placement.self()).asRuntimeException());
+				return;
+			}
+			long released = 0;
+			for (StateTable table : tables) {
+				released += table.release(key -> req.getNode().equals(ring.ownerOf(key)));
+			}
+			if (!durable(responseObserver)) {
+				return;
+			}
+			responseObserver.onNext(ReleaseHomesResponse.newBuilder().setReleased(released).build());
+			responseObserver.onCompleted();
+		}
+
+		@Override
+		public void pushHomes(PushHomesRequest req, StreamObserver<PushHomesResponse> responseObserver) {
+			//The homes this node gets once the leaving node is gone
+			HashRing after = placement.ring().without(req.getNode());
+			long accepted = 0;
+			for (HomeState state : req.getStatesList()) {
+				if (placement.self().equals(after.ownerOf(state.getKey()))) {
+					accepted += adopt(state) ? 1 : 0;
+				}
+			}
+			if (!durable(responseObserver)) {
+				return;
+			}
+			responseObserver.onNext(PushHomesResponse.newBuilder().setAccepted(accepted).build());
+			responseObserver.onCompleted();
+		}
+
+		//Snapshots the handed over state, or fails the call if that is not possible
+		private boolean durable(StreamObserver<?> responseObserver) {
+			try {
+				snapshots.writeNow();
+				return true;
+			} catch (IOException e) {
+				logger.warning(name + " snapshot after a handoff failed: " + e);
+				responseObserver.onError(Status.INTERNAL.withDescription("Snapshot failed: " + e.getMessage()).asRuntimeException());
+				return false;
+			}
+		}
+	}
+}
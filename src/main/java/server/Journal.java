@@ -0,0 +1,469 @@
+/*
+ * Journal.java
+ *
+ * Append-only write-ahead journal of the state changes the servers make:
+ * target temperatures, brightness adjustments and trade fills. Writers
+ * append under a short lock into an in-memory batch and get a future back.
+ * One writer thread swaps the batch out, writes it with a single
+ * FileChannel write and makes it durable with one force(), so every
+ * writer that arrived during the previous flush shares the same sync
+ * (group commit). Futures are completed in sequence order on a separate
+ * thread, so callbacks never hold up the next flush, and flushed batches
+ * are recycled once their futures are done.
+ *
+ * Every record has the same layout, big-endian:
+ *   int length (of what follows the CRC), int CRC32C (of the body),
+ *   long sequence, long epoch millis, int type, long key, long a, long b.
+ * The key names the entity a record changes. Sequence numbers are dense,
+ * so replay from a snapshot seeks straight to the first record it needs.
+ * A torn or corrupt tail left by a crash is cut off when the file is opened.
+ *
+ * Servers hosted in one JVM share a journal when they resolve to the same
+ * file. Configured with system properties:
+ *   smarthome.journal.enabled  (true)  false turns journaling off
+ *   smarthome.journal.dir      (data)  one <server>.journal file per server
+ *   smarthome.journal.path             one file for every server in the JVM
+ *   smarthome.journal.fsync    (true)  false skips the force, for testing only
+ */
+
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+import metrics.LatencyHistogram;
+import metrics.RpcMetrics;
+
+final class Journal {
+	private static final Logger logger = Logger.getLogger(Journal.class.getName());
+
+	//Record types and the meaning of their two arguments, keyed by the thermostat, zone or ledger changed
+	static final int TARGET_TEMPERATURE = 1; //a: degrees as double bits
+	static final int BRIGHTNESS = 2; //a: level 0-100, b: 1 if occupied
+	static final int TRADE_FILL = 3; //a: price per kWh as double bits, b: quantity in kWh as double bits
+
+	private static final int HEADER_BYTES = 8; //Length and CRC
+	private static final int BODY_BYTES = 8 + 8 + 4 + 8 + 8 + 8;
+	static final int RECORD_BYTES = HEADER_BYTES + BODY_BYTES;
+	private static final int INITIAL_BATCH = 1024; //Records, batches grow as needed
+
+	private static final Commit DONE = Commit.done();
+	private static final Journal DISABLED = new Journal();
+	private static final Map<Path, Journal> OPEN = new HashMap<>();
+
+	//Applies one replayed record
+	interface Replayer {
+		void apply(long seq, long timeMs, int type, long key, long a, long b);
+	}
+
+	//Pending append, completes with its sequence number once durable. The sequence number is
+	//known straight away, so state can be tagged with it before the sync.
+	static final class Commit extends CompletableFuture<Long> {
+		final long seq;
+
+		Commit(long seq) {
+			this.seq = seq;
+		}
+
+		private static Commit done() {
+			Commit c = new Commit(0);
+			c.complete(0L);
+			return c;
+		}
+	}
+
+	private final Path path;
+	private final FileChannel channel;
+	private final FileLock fileLock;
+	private final boolean fsync;
+
+	//Guards the active batch and the sequence counter
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition hasWork = lock.newCondition();
+	private final ArrayDeque<Batch> free = new ArrayDeque<>(); //Batches back from the completer
+	private Batch active = new Batch();
+	private long nextSeq;
+	private long firstSeq; //Sequence number of the first record in the file
+	private Commit last = DONE; //Latest append, durable only once every earlier one is
+	private IOException failure; //Set once a write fails, the journal refuses appends after that
+
+	private final ExecutorService completer;
+	private volatile long durableBytes; //File length covered by a completed sync
+
+	//Reported through the owning servers' metrics
+	private final LatencyHistogram commitLatency = new LatencyHistogram();
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong largestBatch = new AtomicLong();
+
+	//Disabled journal, appends complete at once and nothing is stored
+	private Journal() {
+		this.path = null;
+		this.channel = null;
+		this.fileLock = null;
+		this.fsync = false;
+		this.completer = null;
+	}
+
+	private Journal(Path path, boolean fsync) throws IOException {
+		this.path = path;
+		this.fsync = fsync;
+		Path parent = path.getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.fileLock = channel.tryLock();
+		if (fileLock == null) {
+			channel.close();
+			throw new IOException("Journal " + path + " is in use by another process");
+		}
+
+		//Find the last intact record, anything after it never completed a sync
+		long end = recover();
+		channel.truncate(end);
+		channel.position(end);
+		channel.force(true);
+		durableBytes = end;
+
+		this.completer = Executors.newSingleThreadExecutor(r -> daemon(r, "journal-complete"));
+		daemon(this::writeLoop, "journal-writer").start();
+		logger.info("Journal " + path + " opened at sequence " + nextSeq + " (" + end / RECORD_BYTES + " records)");
+	}
+
+	//Journal for a server, shared with any server in this JVM that resolves to the same file
+	static Journal forServer(String server) throws IOException {
+		if (!Boolean.parseBoolean(System.getProperty("smarthome.journal.enabled", "true"))) {
+			return DISABLED;
+		}
+		String shared = System.getProperty("smarthome.journal.path");
+		Path path = (shared != null ? Paths.get(shared)
+				: Paths.get(System.getProperty("smarthome.journal.dir", "data"), server.toLowerCase(Locale.ROOT) + ".journal"))
+				.toAbsolutePath().normalize();
+		synchronized (OPEN) {
+			Journal journal = OPEN.get(path);
+			if (journal == null) {
+				journal = new Journal(path, Boolean.parseBoolean(System.getProperty("smarthome.journal.fsync", "true")));
+				OPEN.put(path, journal);
+			}
+			return journal;
+		}
+	}
+
+	//Journal that stores nothing, for services built without one
+	static Journal disabled() {
+		return DISABLED;
+	}
+
+	//Appends a record. The commit completes once the record is durable, or exceptionally if it
+	//could not be written. Callers that also change in-memory state do so under their own lock
+	//together with the append, so state and journal agree on the order.
+	Commit append(int type, long key, long a, long b) {
+		if (channel == null) {
+			return DONE;
+		}
+		long start = System.nanoTime();
+		lock.lock();
+		try {
+			if (failure != null) {
+				Commit failed = new Commit(-1);
+				failed.completeExceptionally(failure);
+				return failed;
+			}
+			Commit commit = new Commit(nextSeq++);
+			active.add(System.currentTimeMillis(), type, key, a, b, commit, start);
+			last = commit;
+			if (active.size == 1) {
+				hasWork.signal();
+			}
+			return commit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Sequence number the next append will get, every record before it has been appended
+	long nextSeq() {
+		lock.lock();
+		try {
+			return nextSeq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Completes once every record appended so far is durable, or exceptionally if one could not be
+	//written. Commits complete in sequence order, so the latest one stands for all of them.
+	CompletableFuture<Long> barrier() {
+		lock.lock();
+		try {
+			return last;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Sequence number of the oldest record still in the file
+	long firstSeq() {
+		lock.lock();
+		try {
+			return firstSeq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Starts numbering the journal afresh at the given sequence number, dropping any records it holds.
+	//Only for startup, once a snapshot covers everything the journal held, e.g. a journal removed or
+	//cut short by a crash while a snapshot taken after it was kept.
+	void advanceTo(long seq) throws IOException {
+		if (channel == null) {
+			return;
+		}
+		lock.lock();
+		try {
+			if (active.size != 0 || last != DONE) {
+				throw new IOException("Journal " + path + " already has appends, cannot renumber it");
+			}
+			if (durableBytes != 0) {
+				channel.truncate(0);
+				channel.position(0);
+				channel.force(true);
+				durableBytes = 0;
+			}
+			firstSeq = seq;
+			nextSeq = seq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	Path path() {
+		return path;
+	}
+
+	boolean enabled() {
+		return channel != null;
+	}
+
+	//Feeds every durable record to the replayer, oldest first
+	void replay(Replayer replayer) throws IOException {
+		replay(0, replayer);
+	}
+
+	//Feeds the durable records from the given sequence number on, e.g. the tail after a snapshot
+	void replay(long fromSeq, Replayer replayer) throws IOException {
+		if (channel == null) {
+			return;
+		}
+		long end = durableBytes;
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_BYTES * 1024);
+		long pos = Math.min(end, Math.max(0, fromSeq - firstSeq) * RECORD_BYTES); //Dense sequence numbers
+		while (pos < end) {
+			buf.clear().limit((int) Math.min(buf.capacity(), end - pos));
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, pos + buf.position()) < 0) {
+					throw new IOException("Journal " + path + " shrank during replay");
+				}
+			}
+			buf.flip();
+			while (buf.remaining() >= RECORD_BYTES) {
+				buf.position(buf.position() + HEADER_BYTES); //Checked when the file was opened
+				replayer.apply(buf.getLong(), buf.getLong(), buf.getInt(), buf.getLong(), buf.getLong(), buf.getLong());
+			}
+			pos += buf.position();
+		}
+	}
+
+	//Adds the journal's commit counters and latency to a server's metrics
+	void registerMetrics(RpcMetrics metrics) {
+		if (channel == null) {
+			return;
+		}
+		metrics.registerGauge("journal_commits_total", commits::get);
+		metrics.registerGauge("journal_batches_total", batches::get);
+		metrics.registerGauge("journal_largest_batch", largestBatch::get);
+		metrics.registerGauge("journal_bytes", () -> durableBytes);
+		metrics.registerHistogram("journal_commit_seconds", commitLatency);
+	}
+
+	LatencyHistogram commitLatency() {
+		return commitLatency;
+	}
+
+	//Scans the file from the start and returns the length of its intact prefix
+	private long recover() throws IOException {
+		long size = channel.size();
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_BYTES * 1024);
+		CRC32C crc = new CRC32C();
+		long pos = 0;
+		long lastSeq = -1;
+		scan:
+		while (pos < size) {
+			buf.clear().limit((int) Math.min(buf.capacity(), size - pos));
+			while (buf.hasRemaining() && channel.read(buf, pos + buf.position()) >= 0) {
+				//Fill the buffer
+			}
+			buf.flip();
+			if (buf.remaining() < RECORD_BYTES) {
+				break; //Partial record at the end
+			}
+			while (buf.remaining() >= RECORD_BYTES) {
+				int at = buf.position();
+				int length = buf.getInt();
+				int expected = buf.getInt();
+				crc.reset();
+				crc.update(buf.slice(at + HEADER_BYTES, BODY_BYTES));
+				long seq = buf.getLong(at + HEADER_BYTES);
+				if (length != BODY_BYTES || (int) crc.getValue() != expected || (lastSeq >= 0 && seq != lastSeq + 1)) {
+					pos += at;
+					break scan;
+				}
+				if (lastSeq < 0) {
+					firstSeq = seq;
+				}
+				lastSeq = seq;
+				buf.position(at + RECORD_BYTES);
+			}
+			pos += buf.position();
+		}
+		if (pos < size) {
+			logger.warning("Journal " + path + ": dropping " + (size - pos) + " bytes of torn or corrupt tail at offset " + pos);
+		}
+		nextSeq = lastSeq < 0 ? firstSeq : lastSeq + 1;
+		return pos;
+	}
+
+	private void writeLoop() {
+		CRC32C crc = new CRC32C();
+		while (true) {
+			Batch batch;
+			lock.lock();
+			try {
+				while (active.size == 0) {
+					hasWork.awaitUninterruptibly();
+				}
+				batch = active;
+				active = free.isEmpty() ? new Batch() : free.poll(); //At most three exist in practice
+			} finally {
+				lock.unlock();
+			}
+
+			IOException error = null;
+			try {
+				ByteBuffer buf = batch.seal(crc);
+				while (buf.hasRemaining()) {
+					channel.write(buf);
+				}
+				if (fsync) {
+					channel.force(false);
+				}
+			} catch (IOException e) {
+				error = e;
+				logger.severe("Journal " + path + " write failed, refusing further appends: " + e);
+				lock.lock();
+				try {
+					failure = e;
+				} finally {
+					lock.unlock();
+				}
+			}
+			long durableAt = System.nanoTime();
+			if (error == null) {
+				durableBytes += (long) batch.size * RECORD_BYTES;
+				commits.addAndGet(batch.size);
+				batches.incrementAndGet();
+				largestBatch.accumulateAndGet(batch.size, Math::max);
+			}
+
+			//Hand completion to the completer, then recycle the batch once it is done with it
+			IOException failed = error;
+			completer.execute(() -> {
+				batch.complete(failed, durableAt, commitLatency);
+				lock.lock();
+				try {
+					free.push(batch);
+				} finally {
+					lock.unlock();
+				}
+			});
+		}
+	}
+
+	private static Thread daemon(Runnable task, String name) {
+		Thread t = new Thread(task, name);
+		t.setDaemon(true);
+		return t;
+	}
+
+	//Records waiting for one flush, encoded as they are appended
+	private static final class Batch {
+		private ByteBuffer buf = ByteBuffer.allocateDirect(INITIAL_BATCH * RECORD_BYTES);
+		private Commit[] commits = new Commit[INITIAL_BATCH];
+		private long[] starts = new long[INITIAL_BATCH];
+		int size;
+
+		void add(long timeMs, int type, long key, long a, long b, Commit commit, long start) {
+			if (size == commits.length) {
+				grow();
+			}
+			buf.putInt(BODY_BYTES).putInt(0) //CRC filled in by the writer thread
+					.putLong(commit.seq).putLong(timeMs).putInt(type).putLong(key).putLong(a).putLong(b);
+			commits[size] = commit;
+			starts[size] = start;
+			size++;
+		}
+
+		//Fills in the checksums outside the append lock and returns the bytes to write
+		ByteBuffer seal(CRC32C crc) {
+			for (int i = 0; i < size; i++) {
+				int at = i * RECORD_BYTES;
+				crc.reset();
+				crc.update(buf.slice(at + HEADER_BYTES, BODY_BYTES));
+				buf.putInt(at + 4, (int) crc.getValue());
+			}
+			return buf.flip();
+		}
+
+		void complete(IOException error, long durableAt, LatencyHistogram latency) {
+			for (int i = 0; i < size; i++) {
+				if (error == null) {
+					latency.recordNanos(durableAt - starts[i]);
+					commits[i].complete(commits[i].seq);
+				} else {
+					commits[i].completeExceptionally(error);
+				}
+				commits[i] = null;
+			}
+			size = 0;
+			buf.clear();
+		}
+
+		private void grow() {
+			int capacity = commits.length * 2;
+			ByteBuffer bigger = ByteBuffer.allocateDirect(capacity * RECORD_BYTES);
+			bigger.put(buf.flip());
+			buf = bigger;
+			commits = Arrays.copyOf(commits, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+		}
+	}
+}
@@ -9,14 +9,15 @@ package server;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.time.Instant;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.DoubleAdder;
 import java.util.logging.Logger;
 import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceInfo;
+import sharding.Homes;
+import sharding.Placement;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import lighting.protos.SmartLightingServiceGrpc.SmartLightingServiceImplBase;
 import lighting.protos.GetCurrentBrightnessRequest;
@@ -30,26 +31,57 @@ import lighting.protos.AdjustBrightnessResponse;
 
 public class LightingServer extends SmartLightingServiceImplBase {
 	private static final Logger logger = Logger.getLogger(LightingServer.class.getName());
-	private final Random random = new Random(); //Random generator for simulated data
+	static final long AMBIENT_INTERVAL_MS = Long.getLong("smarthome.lighting.ambientIntervalMs", 5_000); //Time between ambient light readings
+	private static final double MAX_POWER_KW = 0.1; //0.1 kW at 100% brightness
+	static final int OCCUPIED = 1; //Flag of a recorded ambient reading
+	
+	//Last hour of ambient readings per home and zone, for replay
+	final RecentSamples<String> ambient = new RecentSamples<>(AMBIENT_INTERVAL_MS, Simulation.AMBIENT);
+	
+	//Level and occupancy last set by adjustBrightness per home, restored from snapshots and the journal on startup
+	private final StateTable levels;
+	private final Snapshots snapshots; //Also written when homes are handed over between nodes
+	
+	public LightingServer() {
+		this.levels = levelTable(Journal.disabled());
+		this.snapshots = new Snapshots("Lighting", Journal.disabled(), levels);
+	}
+	
+	//Service whose brightness setting survives restarts, restored from the journal
+	LightingServer(Journal journal) throws IOException {
+		this.levels = levelTable(journal);
+		this.snapshots = new Snapshots("Lighting", journal, levels);
+		snapshots.restore();
+		snapshots.start();
+	}
+	
+	private static StateTable levelTable(Journal journal) {
+		return new StateTable(Journal.BRIGHTNESS, journal, (old, seq, a, b) -> new StateTable.Entry(seq, a, b, 0));
+	}
 	
 	public static void main(String[] args) throws IOException, InterruptedException {
-		LightingServer lightingservice = new LightingServer();
-		int port = 50053; //Port where the gRPC server will listen
+		Journal journal = Journal.forServer("Lighting"); //Durable brightness adjustments
+		LightingServer lightingservice = new LightingServer(journal);
+		int port = Integer.getInteger("smarthome.lighting.port", 50053); //Port where the gRPC server will listen
+		Placement placement = Placement.forNode(); //Homes this node serves
+		Handoff handoff = new Handoff("Lighting", placement, lightingservice.snapshots, lightingservice.levels); //Moves brightness levels with their homes
 		
 		//Build and start the gRPC server
-		Server server = ServerBuilder
-				.forPort(port)
-				.addService(lightingservice)
-				.build()
-				.start();
+		Server server = ServerBootstrap.start("Lighting", port, journal, handoff, lightingservice, new LightingServiceV2(lightingservice));
 		
-		logger.info("Lighting server started, listening on " + port);
+		logger.info("Lighting server started, listening on " + port + " as node " + placement.self());
 		
-		//Register service via jmDNS for discovery on local network
+		//Register service via jmDNS for discovery on local network, publishing this node's place on the ring
         JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
         //(Service type, Service name, Service port, Service description)
-        ServiceInfo info = ServiceInfo.create("_smartlighting._grpc._tcp.local.", "SmartLightingService", port, "Smart Lighting Management Service");
-        jmdns.registerService(info);
+        placement.publish(jmdns, "_smartlighting._grpc._tcp.local.", "SmartLightingService", port, "Smart Lighting Management Service");
+        handoff.start();
+        //On shutdown hand this node's homes to the nodes taking them over, then leave the ring
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            handoff.leave();
+            jmdns.unregisterAllServices();
+            server.shutdown();
+        }));
         System.out.println("Starting the Lighting Server loop");
         
         //Wait until server is terminated
@@ -59,13 +91,12 @@ public class LightingServer extends SmartLightingServiceImplBase {
 	@Override
     public void getCurrentBrightness(GetCurrentBrightnessRequest req, StreamObserver<GetCurrentBrightnessResponse> respObs) {
         
-        int level = random.nextInt(101); //Simulate brightness 0–100%
-        String ts = Instant.now().toString(); //Current Timestamp
+        int level = brightnessLevel(Homes.currentKey()); //Simulated 0–100% until the home sets a level
         
         //Build response with level and timestamp
         GetCurrentBrightnessResponse resp = GetCurrentBrightnessResponse.newBuilder()
                 .setLevel(level)
-                .setTimestamp(ts)
+                .setTimestampBytes(TimestampCache.now())
                 .build();
         
         respObs.onNext(resp); //Send response
@@ -75,27 +106,24 @@ public class LightingServer extends SmartLightingServiceImplBase {
 	@Override
     public void streamAmbientLightData(StreamAmbientLightDataRequest req, StreamObserver<AmbientLightReading> respObs) {
         
-		//Simulate a reading every 5 seconds
+		ServerCallStreamObserver<AmbientLightReading> call = (ServerCallStreamObserver<AmbientLightReading>) respObs;
+		AmbientLightReading.Builder reading = AmbientLightReading.newBuilder(); //Reused for every reading
+		
+		//Send a reading every 5 seconds until the client goes away, after any it missed if it is resuming
         try {
-            while (!Thread.currentThread().isInterrupted()) {
-                double lux = 50 + random.nextDouble() * 550; //Simulated lux between 50 and 600
-                boolean occupied = random.nextBoolean(); //Random occupancy status
-                String ts = Instant.now().toString(); //Current timestamp
-                
-                //Build and send a reading
-                AmbientLightReading reading = AmbientLightReading.newBuilder()
-                        .setLux(lux)
-                        .setOccupied(occupied)
-                        .setTimestamp(ts)
-                        .build();
-                respObs.onNext(reading);
-
-                Thread.sleep(5_000); //Pause for 5 seconds before next reading
-            }
+            long resumeAfterMs = req.hasResumeAfterMs() ? req.getResumeAfterMs() : RecentSamples.NEWEST;
+            watchAmbient(call, Homes.currentKey(), req.getZoneId(), resumeAfterMs, (timeMs, lux, flags) -> respObs.onNext(reading
+                    .setLux(lux)
+                    .setOccupied((flags & OCCUPIED) != 0)
+                    .setTimestampBytes(TimestampCache.at(timeMs)) //When the reading was taken
+                    .setTimeMs(timeMs)
+                    .build()));
         } catch (InterruptedException ie) {
             Thread.currentThread().interrupt(); //Error handling
         } finally {
-            respObs.onCompleted(); //Complete the stream
+            if (!call.isCancelled()) {
+                respObs.onCompleted(); //Complete the stream
+            }
         }
     }
 	
@@ -104,22 +132,12 @@ public class LightingServer extends SmartLightingServiceImplBase {
 		
 		//Total energy consumed from client-streamed stats
 		final DoubleAdder totalEnergy = new DoubleAdder();
-        final double MAX_POWER_KW = 0.1;    //0.1 kW at 100% brightness
+		final SplittableRandom random = Simulation.forCall(Simulation.USAGE, Homes.currentKey()); //This upload's usage noise
 
         return new StreamObserver<LightUsageStat>() {
             @Override
             public void onNext(LightUsageStat stat) {
-               
-            	//Scales level to 0-100
-            	double level = random.nextDouble() * 100.0;
-                for (int minute = 0; minute < stat.getDurationMin(); minute++) {
-                	double rnd = 1 + (random.nextGaussian() * 0.1);
-                	//10% variability around the baseline fraction
-                	double noisyLevel = level * rnd;
-                	//Energy per minute = P_max * fraction * (1/60) hour
-                	double energyThisMinute = MAX_POWER_KW * noisyLevel / 60.0;
-                	totalEnergy.add(energyThisMinute);
-                }
+            	totalEnergy.add(usageEnergyKw(random, stat.getDurationMin()));
             }
 
             @Override
@@ -143,22 +161,25 @@ public class LightingServer extends SmartLightingServiceImplBase {
 	
 	@Override
     public StreamObserver<AdjustBrightnessRequest> adjustBrightness(StreamObserver<AdjustBrightnessResponse> respObs) {
+		DurableResponses<AdjustBrightnessResponse> responses = new DurableResponses<>(respObs); //Sent once the level is durable
+		long home = Homes.currentKey();
+		
 		//Handle brightness adjustment stream
         return new StreamObserver<AdjustBrightnessRequest>() {
+            //Reused for every response, onNext is never called concurrently for one call
+            private final AdjustBrightnessResponse.Builder resp = AdjustBrightnessResponse.newBuilder();
+            private final SplittableRandom random = Simulation.forCall(Simulation.ADJUSTMENT, home); //This stream's lux noise
+            
             @Override
             public void onNext(AdjustBrightnessRequest req) {
             	//Compute simulated lux based on desired level and occupancy
-                double factor = req.getOccupied() ? 10.0 : 5.0;
-                double lux = req.getDesiredLevel() * factor / 100.0 * 600.0
-                             + random.nextGaussian() * 10.0;
-                String ts = req.getTimestamp();
+                double lux = adjustedLux(random, req.getDesiredLevel(), req.getOccupied());
                 
-             //Build and send adjustment response
-                AdjustBrightnessResponse resp = AdjustBrightnessResponse.newBuilder()
+             //Build and send adjustment response, echoing the timestamp bytes without decoding them
+                responses.send(resp
                         .setLux(lux)
-                        .setTimestamp(ts)
-                        .build();
-                respObs.onNext(resp);
+                        .setTimestampBytes(req.getTimestampBytes())
+                        .build(), adjustLevel(home, req.getDesiredLevel(), req.getOccupied()));
             }
 
             @Override
@@ -168,8 +189,74 @@ public class LightingServer extends SmartLightingServiceImplBase {
 
             @Override
             public void onCompleted() {
-                respObs.onCompleted(); //Complete the stream
+                responses.complete(); //Complete the stream after the last adjustment is durable
             }
         };
     }
-}
\ No newline at end of file
+	
+	//State and simulation shared by the v1 and v2 services
+	
+	//Level last set by adjustBrightness, simulated until the first adjustment as a level of the home's own
+	int brightnessLevel(long home) {
+		StateTable.Entry entry = levels.get(home);
+		return entry != null ? (int) entry.v0 : Simulation.random(Simulation.BRIGHTNESS, home).nextInt(101);
+	}
+	
+	//Stores a new level, the future completes once it is durable
+	CompletableFuture<Long> adjustLevel(long home, int level, boolean occupied) {
+		int clamped = Math.max(0, Math.min(100, level));
+		return levels.update(home, clamped, occupied ? 1 : 0);
+	}
+	
+	double ambientLux(SplittableRandom random) {
+		return 50 + random.nextDouble() * 550;
+	}
+	
+	boolean occupancy(SplittableRandom random) {
+		return random.nextBoolean();
+	}
+	
+	//Streams a zone's ambient readings, recording each in the zone's window as it is taken
+	void watchAmbient(ServerCallStreamObserver<?> call, long home, String zone, long resumeAfterMs, RecentSamples.Sink sink)
+			throws InterruptedException {
+		RecentSamples.watch(call, ambient.device(zoneKey(home, zone)), resumeAfterMs, AMBIENT_INTERVAL_MS,
+				(timeMs, random, ring) -> ring.append(timeMs, (float) ambientLux(random), occupancy(random) ? OCCUPIED : 0), sink); //Simulated lux between 50 and 600
+	}
+	
+	//Key of a zone's recorded readings, zones are named the same way in v1 and v2
+	static String zoneKey(long home, String zone) {
+		return home + "/" + zone;
+	}
+	
+	//Energy used over a period of the given length, drawn from the upload's generator
+	double usageEnergyKw(SplittableRandom random, int durationMin) {
+		//Scales level to 0-100
+		double level = random.nextDouble() * 100.0;
+		double energy = 0;
+		for (int minute = 0; minute < durationMin; minute++) {
+			double rnd = 1 + (random.nextGaussian() * 0.1);
+			//10% variability around the baseline fraction
+			double noisyLevel = level * rnd;
+			//Energy per minute = P_max * fraction * (1/60) hour
+			energy += MAX_POWER_KW * noisyLevel / 60.0;
+		}
+		return energy;
+	}
+	
+	//Level and energy used per step for export, at the level set when the export starts
+	Exports.Series energySeries(long home, long stepMs) {
+		int level = brightnessLevel(home);
+		double hours = Math.max(stepMs, Exports.MIN_STEP_MS) / 3_600_000.0;
+		return new Exports.Series("energy", level, new String[] {"level_pct", "energy_wh"}, new int[] {0, 3}, (timeMs, values) -> {
+			double rnd = 1 + Simulation.random(Simulation.USAGE, home, timeMs).nextGaussian() * 0.1; //10% variability, as for uploaded stats
+			values[0] = level;
+			values[1] = (float) (MAX_POWER_KW * 1000 * level / 100.0 * rnd * hours);
+		});
+	}
+	
+	//Lux measured after adjusting to the desired level
+	double adjustedLux(SplittableRandom random, int desiredLevel, boolean occupied) {
+		double factor = occupied ? 10.0 : 5.0;
+		return desiredLevel * factor / 100.0 * 600.0 + random.nextGaussian() * 10.0;
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * LightingServiceV2.java
+ *
+ * Serves the compact v2 lighting schema next to v1, sharing the v1
+ * service's simulation so both versions behave the same.
+ */
+
+package server;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.logging.Logger;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import lighting.protos.v2.SmartLightingServiceGrpc.SmartLightingServiceImplBase;
+import lighting.protos.v2.AdjustBrightnessRequest;
+import lighting.protos.v2.AdjustBrightnessResponse;
+import lighting.protos.v2.AmbientLightWindowRequest;
+import lighting.protos.v2.AmbientLightReading;
+import lighting.protos.v2.ExportChunk;
+import lighting.protos.v2.ExportFormat;
+import lighting.protos.v2.ExportRequest;
+import lighting.protos.v2.GetCurrentBrightnessRequest;
+import lighting.protos.v2.GetCurrentBrightnessResponse;
+import lighting.protos.v2.LightUsageStat;
+import lighting.protos.v2.RegisterZonesRequest;
+import lighting.protos.v2.RegisterZonesResponse;
+import lighting.protos.v2.SampleChunk;
+import lighting.protos.v2.StreamAmbientLightDataRequest;
+import lighting.protos.v2.UploadLightUsageResponse;
+import sharding.Homes;
+
+public class LightingServiceV2 extends SmartLightingServiceImplBase {
+	private static final Logger logger = Logger.getLogger(LightingServiceV2.class.getName());
+	private final LightingServer v1;
+	private final ZoneRegistry zones = new ZoneRegistry();
+
+	public LightingServiceV2(LightingServer v1) {
+		this.v1 = v1;
+	}
+
+	@Override
+	public void registerZones(RegisterZonesRequest req, StreamObserver<RegisterZonesResponse> respObs) {
+		ZoneRegistry.Zones registered = zones.register(Homes.currentKey(), req.getZoneNamesList());
+		if (registered == null) {
+			respObs.onError(Status.RESOURCE_EXHAUSTED
+					.withDescription("Home can register at most " + ZoneRegistry.MAX_ZONES + " zones")
+					.asRuntimeException());
+			return;
+		}
+		RegisterZonesResponse.Builder resp = RegisterZonesResponse.newBuilder().setRegistration(registered.token);
+		for (String name : req.getZoneNamesList()) {
+			resp.addZoneIds(registered.id(name));
+		}
+		respObs.onNext(resp.build());
+		respObs.onCompleted();
+	}
+
+	@Override
+	public void getCurrentBrightness(GetCurrentBrightnessRequest req, StreamObserver<GetCurrentBrightnessResponse> respObs) {
+		if (zone(req.getRegistration(), req.getZoneId(), respObs) == null) {
+			return;
+		}
+		respObs.onNext(GetCurrentBrightnessResponse.newBuilder()
+				.setLevel(v1.brightnessLevel(Homes.currentKey()))
+				.setTimeMs(System.currentTimeMillis())
+				.build());
+		respObs.onCompleted();
+	}
+
+	@Override
+	public void streamAmbientLightData(StreamAmbientLightDataRequest req, StreamObserver<AmbientLightReading> respObs) {
+		String zone = zone(req.getRegistration(), req.getZoneId(), respObs);
+		if (zone == null) {
+			return;
+		}
+		ServerCallStreamObserver<AmbientLightReading> call = (ServerCallStreamObserver<AmbientLightReading>) respObs;
+		AmbientLightReading.Builder reading = AmbientLightReading.newBuilder(); //Reused for every reading
+		try {
+			long resumeAfterMs = req.hasResumeAfterMs() ? req.getResumeAfterMs() : RecentSamples.NEWEST;
+			v1.watchAmbient(call, Homes.currentKey(), zone, resumeAfterMs, (timeMs, lux, flags) -> respObs.onNext(reading
+					.setDeciLux(Math.round(lux * 10))
+					.setOccupied((flags & LightingServer.OCCUPIED) != 0)
+					.setTimeMs(timeMs)
+					.build()));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt(); //Error handling
+		} finally {
+			if (!call.isCancelled()) {
+				respObs.onCompleted();
+			}
+		}
+	}
+
+	@Override
+	public void exportLightingEnergy(ExportRequest req, StreamObserver<ExportChunk> respObs) {
+		long home = Homes.currentKey();
+		Exports.export((ServerCallStreamObserver<ExportChunk>) respObs, home, req.getStartTimeMs(), req.getEndTimeMs(),
+				req.getStepMs(), req.getFormat() == ExportFormat.CSV, v1.energySeries(home, req.getStepMs()),
+				(name, bytes, data) -> ExportChunk.newBuilder().setFileName(name).setFileBytes(bytes).setData(data).build());
+	}
+
+	@Override
+	public void replayAmbientLightData(AmbientLightWindowRequest req, StreamObserver<SampleChunk> respObs) {
+		String zone = zone(req.getRegistration(), req.getZoneId(), respObs);
+		if (zone == null) {
+			return;
+		}
+		RecentSamples.replay((ServerCallStreamObserver<SampleChunk>) respObs,
+				v1.ambient.find(LightingServer.zoneKey(Homes.currentKey(), zone)),
+				req.getFromTimeMs(), req.getToTimeMs(), samples -> SampleChunk.newBuilder().setSamples(samples).build());
+	}
+
+	@Override
+	public StreamObserver<LightUsageStat> uploadLightUsageStats(StreamObserver<UploadLightUsageResponse> respObs) {
+		DoubleAdder totalEnergy = new DoubleAdder();
+		SplittableRandom random = Simulation.forCall(Simulation.USAGE, Homes.currentKey());
+		return new StreamObserver<LightUsageStat>() {
+			@Override
+			public void onNext(LightUsageStat stat) {
+				totalEnergy.add(v1.usageEnergyKw(random, stat.getDurationMin()));
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				logger.warning("uploadLightUsageStats error: " + t.getMessage()); //Error Handling
+			}
+
+			@Override
+			public void onCompleted() {
+				respObs.onNext(UploadLightUsageResponse.newBuilder()
+						.setTotalEnergyWh(Math.round(totalEnergy.sum() * 1000))
+						.build());
+				respObs.onCompleted();
+			}
+		};
+	}
+
+	@Override
+	public StreamObserver<AdjustBrightnessRequest> adjustBrightness(StreamObserver<AdjustBrightnessResponse> respObs) {
+		DurableResponses<AdjustBrightnessResponse> responses = new DurableResponses<>(respObs);
+		long home = Homes.currentKey();
+		return new StreamObserver<AdjustBrightnessRequest>() {
+			private final AdjustBrightnessResponse.Builder resp = AdjustBrightnessResponse.newBuilder();
+			private final SplittableRandom random = Simulation.forCall(Simulation.ADJUSTMENT, home);
+
+			@Override
+			public void onNext(AdjustBrightnessRequest req) {
+				double lux = v1.adjustedLux(random, req.getDesiredLevel(), req.getOccupied());
+				responses.send(resp
+						.setDeciLux((int) Math.round(lux * 10))
+						.setTimeMs(req.getTimeMs())
+						.build(), v1.adjustLevel(home, req.getDesiredLevel(), req.getOccupied()));
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				logger.warning("adjustBrightness error: " + t.getMessage()); //Error handling
+			}
+
+			@Override
+			public void onCompleted() {
+				responses.complete();
+			}
+		};
+	}
+
+	//Name of the zone, or null once the call has failed because the registration is not the home's
+	//current one, or the id did not come from it
+	private String zone(long registration, int zoneId, StreamObserver<?> respObs) {
+		ZoneRegistry.Zones registered = zones.zones(Homes.currentKey(), registration);
+		if (registered == null) {
+			respObs.onError(Status.FAILED_PRECONDITION
+					.withDescription("Zone registration unknown or expired, register zones again")
+					.asRuntimeException());
+			return null;
+		}
+		String zone = registered.name(zoneId);
+		if (zone == null) {
+			respObs.onError(Status.INVALID_ARGUMENT
+					.withDescription("Unknown zone id " + zoneId + ", register it first")
+					.asRuntimeException());
+		}
+		return zone;
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * ReadingFilter.java
+ *
+ * Filter of a temperature history query, compiled once per query into a
+ * few primitive fields, so testing a reading is a handful of compares
+ * instead of a walk over the request's conditions. Value tests fold into
+ * one inclusive range plus the ranges negated tests exclude, time-of-day
+ * windows into one mask over the minutes of the day, and change tests
+ * into one range of allowed change. The cheapest test runs first: the
+ * time of day is checked before the reading is even taken.
+ *
+ * Readings are a function of their time, so the reading a step before,
+ * which the change test compares with, is taken afresh when the scan did
+ * not just produce it. A resumed query passes exactly the readings the
+ * first one would have.
+ */
+
+package server;
+
+import java.util.Arrays;
+import thermostat.protos.v2.HistoryCondition;
+import thermostat.protos.v2.HistoryFilter;
+import thermostat.protos.v2.TimeOfDayWindow;
+import thermostat.protos.v2.ValueTest;
+
+final class ReadingFilter {
+	private static final int MINUTES_PER_DAY = 1440;
+	private static final long MINUTE_MS = 60_000;
+	private static final long DAY_MS = MINUTES_PER_DAY * MINUTE_MS;
+
+	//Reading of the queried home at a time, in hundredths of a degree
+	interface Readings {
+		int centiAt(long timeMs);
+	}
+
+	private final Readings readings;
+	private final long stepMs;
+	private final long offsetMs; //Local time of the minute mask
+	private final boolean[] minutes; //Passing minutes of the local day, null if every minute passes
+	private final int lo; //Inclusive value range
+	private final int hi;
+	private final int[] excludedLo; //Inclusive ranges of failing values
+	private final int[] excludedHi;
+	private final long minChange; //Passing change, at least minChange and below maxChange either way
+	private final long maxChange;
+	private long lastTimeMs = Long.MIN_VALUE; //Last reading tested, the next one's predecessor in a scan
+	private int lastCenti;
+	private long priorTimeMs = Long.MIN_VALUE; //The one tested before it, the last one's predecessor
+	private int priorCenti;
+
+	private ReadingFilter(Readings readings, long stepMs, long offsetMs, boolean[] minutes, int lo, int hi,
+			int[] excludedLo, int[] excludedHi, long minChange, long maxChange) {
+		this.readings = readings;
+		this.stepMs = stepMs;
+		this.offsetMs = offsetMs;
+		this.minutes = minutes;
+		this.lo = lo;
+		this.hi = hi;
+		this.excludedLo = excludedLo;
+		this.excludedHi = excludedHi;
+		this.minChange = minChange;
+		this.maxChange = maxChange;
+	}
+
+	//Compiles the request's filter for readings a step apart around the target, throws
+	//IllegalArgumentException for a condition that cannot be evaluated
+	static ReadingFilter compile(HistoryFilter filter, int targetCenti, long stepMs, Readings readings) {
+		if (Math.abs(filter.getUtcOffsetMinutes()) > MINUTES_PER_DAY) {
+			throw new IllegalArgumentException("UTC offset beyond a day: " + filter.getUtcOffsetMinutes());
+		}
+		boolean[] minutes = null;
+		long lo = Integer.MIN_VALUE;
+		long hi = Integer.MAX_VALUE;
+		int excluded = 0;
+		int[] excludedLo = new int[filter.getAllOfCount()];
+		int[] excludedHi = new int[filter.getAllOfCount()];
+		long minChange = 0;
+		long maxChange = Long.MAX_VALUE;
+
+		for (HistoryCondition c : filter.getAllOfList()) {
+			switch (c.getTestCase()) {
+				case VALUE: {
+					ValueTest v = c.getValue();
+					long base = v.getRelativeToTarget() ? targetCenti : 0;
+					long min = v.hasMinCenti() ? clamp(base + v.getMinCenti()) : Integer.MIN_VALUE;
+					long max = v.hasMaxCenti() ? clamp(base + v.getMaxCenti()) : Integer.MAX_VALUE;
+					if (c.getNegate()) {
+						excludedLo[excluded] = (int) min;
+						excludedHi[excluded++] = (int) max;
+					} else {
+						lo = Math.max(lo, min);
+						hi = Math.min(hi, max);
+					}
+					break;
+				}
+				case TIME_OF_DAY: {
+					TimeOfDayWindow w = c.getTimeOfDay();
+					if (w.getFromMinute() >= MINUTES_PER_DAY || w.getToMinute() >= MINUTES_PER_DAY) {
+						throw new IllegalArgumentException("Minute of the day beyond " + (MINUTES_PER_DAY - 1));
+					}
+					if (minutes == null) {
+						minutes = new boolean[MINUTES_PER_DAY];
+						Arrays.fill(minutes, true);
+					}
+					for (int m = 0; m < MINUTES_PER_DAY; m++) {
+						minutes[m] &= inWindow(m, w.getFromMinute(), w.getToMinute()) != c.getNegate();
+					}
+					break;
+				}
+				case CHANGE: {
+					long delta = c.getChange().getMinDeltaCenti() & 0xffffffffL; //uint32
+					if (c.getNegate()) {
+						maxChange = Math.min(maxChange, delta);
+					} else {
+						minChange = Math.max(minChange, delta);
+					}
+					break;
+				}
+				default:
+					throw new IllegalArgumentException("Condition without a test");
+			}
+		}
+		return new ReadingFilter(readings, stepMs, filter.getUtcOffsetMinutes() * MINUTE_MS, minutes, (int) lo, (int) hi,
+				Arrays.copyOf(excludedLo, excluded), Arrays.copyOf(excludedHi, excluded), minChange, maxChange);
+	}
+
+	//Whether readings taken at the time can pass, checked before the reading is taken
+	boolean timePasses(long timeMs) {
+		return minutes == null || minutes[(int) (Math.floorMod(timeMs + offsetMs, DAY_MS) / MINUTE_MS)];
+	}
+
+	//Whether the reading taken at the time passes the value and change tests
+	boolean valuePasses(long timeMs, int centi) {
+		boolean passes = centi >= lo && centi <= hi;
+		for (int i = 0; passes && i < excludedLo.length; i++) {
+			passes = centi < excludedLo[i] || centi > excludedHi[i];
+		}
+		if (passes && (minChange > 0 || maxChange != Long.MAX_VALUE)) {
+			long change = Math.abs((long) change(timeMs, centi));
+			passes = change >= minChange && change < maxChange;
+		}
+		priorTimeMs = lastTimeMs;
+		priorCenti = lastCenti;
+		lastTimeMs = timeMs;
+		lastCenti = centi;
+		return passes;
+	}
+
+	//Change of the reading since the one a step before, also for the reading just tested
+	int change(long timeMs, int centi) {
+		long before = timeMs - stepMs;
+		if (before == lastTimeMs) {
+			return centi - lastCenti;
+		}
+		return centi - (before == priorTimeMs ? priorCenti : readings.centiAt(before));
+	}
+
+	private static boolean inWindow(int minute, int from, int to) {
+		if (from == to) {
+			return true; //Whole day
+		}
+		return from < to ? minute >= from && minute < to : minute >= from || minute < to;
+	}
+
+	private static long clamp(long centi) {
+		return Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, centi));
+	}
+}
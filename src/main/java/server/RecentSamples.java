@@ -0,0 +1,189 @@
+/*
+ * RecentSamples.java
+ *
+ * The last window of samples of every device a server simulates, one
+ * SampleRing per device, so a dashboard that opens late or a client that
+ * reconnects can fetch what it missed.
+ *
+ * A device's samples are produced by the live streams watching it. When a
+ * reading is due, the first stream to notice claims the ring, takes the
+ * reading from the device's own generator and appends it; the claim is a compare-and-set that the other
+ * streams skip rather than wait on, so the ring has one writer at a time
+ * without locks and a stream whose client is slow never holds up the
+ * others. Every stream sends what lands in the ring, so all watchers of a
+ * device see the same readings. Rings of devices nobody has watched or
+ * queried for a whole window are dropped.
+ *
+ * A stream reopened with the time of the last reading its client received
+ * starts right after that reading, so after a dropped connection the
+ * client gets what it missed, as far back as the window reaches, and
+ * nothing it already has.
+ *
+ * Configured by system properties:
+ *   smarthome.samples.windowSeconds  (default 3600)   how far back a device's ring reaches
+ *   smarthome.samples.maxSamples     (default 65536)  ring size cap, for fast sample intervals
+ *   smarthome.samples.chunkSamples   (default 1024)   samples per replayed chunk
+ */
+
+package server;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.stub.ServerCallStreamObserver;
+
+final class RecentSamples<K> {
+	private static final long WINDOW_MS = TimeUnit.SECONDS.toMillis(Long.getLong("smarthome.samples.windowSeconds", 3600));
+	private static final int MAX_SAMPLES = Integer.getInteger("smarthome.samples.maxSamples", 65_536);
+	private static final int CHUNK_SAMPLES = Integer.getInteger("smarthome.samples.chunkSamples", 1024);
+	private static final long SWEEP_INTERVAL_MS = 60_000; //Idle devices are looked for at most once a minute
+
+	//Takes one reading of a device into its ring, drawing from the device's generator
+	interface Sensor {
+		void sample(long timeMs, SplittableRandom random, SampleRing ring);
+	}
+
+	//Sends one reading on a live stream
+	interface Sink {
+		void send(long timeMs, float value, int flags);
+	}
+
+	static final long NEWEST = Long.MIN_VALUE; //No resume token, a stream starts with the newest reading
+
+	private final ConcurrentHashMap<K, Device> devices = new ConcurrentHashMap<>();
+	private final int samples; //Ring capacity covering the window at the producers' interval
+	private final long quantity; //Simulation.random quantity of the devices' readings
+	private volatile long lastSweepMs = System.currentTimeMillis();
+
+	RecentSamples(long intervalMs, long quantity) {
+		this.samples = (int) Math.min(MAX_SAMPLES, WINDOW_MS / Math.max(1, intervalMs) + 1);
+		this.quantity = quantity;
+	}
+
+	//Device for the key, created on first use
+	Device device(K key) {
+		long now = System.currentTimeMillis();
+		Device device = devices.get(key);
+		if (device == null) {
+			sweep(now);
+			//hashCode of the Long and String keys is fixed by the JDK, so a device's readings repeat across runs
+			device = devices.computeIfAbsent(key, k -> new Device(samples, Simulation.random(quantity, k.hashCode())));
+		}
+		device.lastUsedMs = now;
+		return device;
+	}
+
+	//Device for the key if it has samples, null otherwise
+	Device find(K key) {
+		Device device = devices.get(key);
+		if (device != null) {
+			device.lastUsedMs = System.currentTimeMillis();
+		}
+		return device;
+	}
+
+	//Runs a live stream of the device's readings until the call goes away, taking them with the
+	//sensor when they are due. The stream starts right after the reading timed resumeAfterMs,
+	//or with NEWEST at the reading of the last interval if there is one, else a fresh one.
+	static void watch(ServerCallStreamObserver<?> call, Device device, long resumeAfterMs, long intervalMs,
+			Sensor sensor, Sink sink) throws InterruptedException {
+		SampleRing ring = device.ring;
+		long next = resumeAfterMs != NEWEST ? ring.seek(resumeAfterMs + 1) //Next sequence to send
+				: Math.max(ring.published() - 1, ring.seek(System.currentTimeMillis() - intervalMs));
+		while (ServerExecutors.awaitReady(call) && !Thread.currentThread().isInterrupted()) {
+			long now = System.currentTimeMillis();
+			device.lastUsedMs = now;
+			device.sample(now, intervalMs, sensor);
+			for (long end = ring.published(); next < end; next++) {
+				long timeMs = ring.timeMs(next);
+				float value = ring.value(next);
+				int flags = ring.flags(next);
+				if (ring.intact(next)) { //Skipped if the writer lapped a stream that fell behind
+					sink.send(timeMs, value, flags);
+				}
+			}
+			ServerExecutors.pause(intervalMs);
+		}
+	}
+
+	//Replays the device's samples timed fromMs to toMs inclusive, toMs 0 for up to now, as chunks
+	//of packed records. The slice is fixed when the call starts, and each chunk is copied out of the
+	//ring straight into its message as the transport takes it, so a replay holds no more than one
+	//chunk and allocates nothing outside the heap. Samples the writer laps before their chunk is
+	//copied are left out.
+	static <T> void replay(ServerCallStreamObserver<T> call, Device device, long fromMs, long toMs,
+			Function<ByteString, T> chunk) {
+		SampleRing ring = device != null ? device.ring : null;
+		long start = ring != null ? ring.seek(fromMs) : 0;
+		long end = ring != null ? ring.seek(toMs > 0 ? toMs + 1 : Long.MAX_VALUE) : 0;
+		//Chunks are sent only while the transport can take them, like the thermostat's history chunks
+		call.setOnReadyHandler(new Runnable() {
+			private long next = start;
+			private boolean done;
+
+			@Override
+			public void run() {
+				while (!done && call.isReady()) {
+					if (ring != null) {
+						next = Math.max(next, ring.oldest()); //Lapped while the transport was busy
+					}
+					if (next >= end) {
+						done = true;
+						call.onCompleted();
+						return;
+					}
+					int count = (int) Math.min(end - next, CHUNK_SAMPLES);
+					byte[] records = new byte[count * SampleRing.RECORD_BYTES];
+					int lapped = ring.copy(next, count, records);
+					next += count;
+					if (lapped < count) {
+						//The array is never written again
+						call.onNext(chunk.apply(UnsafeByteOperations.unsafeWrap(records, lapped * SampleRing.RECORD_BYTES,
+								(count - lapped) * SampleRing.RECORD_BYTES)));
+					}
+				}
+			}
+		});
+	}
+
+	//Drops devices nobody has used for a window
+	private void sweep(long now) {
+		if (now - lastSweepMs < SWEEP_INTERVAL_MS) {
+			return;
+		}
+		lastSweepMs = now;
+		devices.values().removeIf(d -> now - d.lastUsedMs > WINDOW_MS);
+	}
+
+	static final class Device {
+		final SampleRing ring;
+		private final SplittableRandom random; //Guarded by the claim
+		private final AtomicBoolean writing = new AtomicBoolean(); //Claim on the ring's single writer slot
+		private long dueMs = Long.MIN_VALUE; //Time of the next reading, guarded by the claim
+		volatile long lastUsedMs;
+
+		private Device(int samples, SplittableRandom random) {
+			this.ring = new SampleRing(samples);
+			this.random = random;
+		}
+
+		//Takes a reading into the ring if one is due and no other stream is taking it
+		void sample(long now, long intervalMs, Sensor sensor) {
+			if (!writing.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				if (now >= dueMs) {
+					sensor.sample(now, random, ring);
+					dueMs = now + intervalMs;
+				}
+			} finally {
+				writing.set(false);
+			}
+		}
+	}
+}
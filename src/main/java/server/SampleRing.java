@@ -0,0 +1,132 @@
+/*
+ * SampleRing.java
+ *
+ * Fixed-size ring of the most recent samples of one device, kept off the
+ * GC heap in a direct buffer. Each sample is a 16-byte little-endian record:
+ *
+ *   time ms (int64) | value (float32) | flags (int32)
+ *
+ * One thread appends at a time, without locks: it writes the record, then
+ * publishes it by moving the sequence forward with a release store.
+ * Any number of readers copy records out and check afterwards, against
+ * the sequence, that the writer has not lapped them meanwhile, dropping
+ * any record it may have overwritten. Sequence numbers start at 0 and
+ * never repeat, so a reader can hold on to one as a cursor.
+ *
+ * Times are strictly increasing, a sample taken in the same millisecond as
+ * the one before is stamped a millisecond later, so a time names exactly
+ * one sample and clients can resume a stream after the last one they saw.
+ */
+
+package server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+final class SampleRing {
+	static final int RECORD_BYTES = 16;
+
+	private static final VarHandle PUBLISHED;
+	static {
+		try {
+			PUBLISHED = MethodHandles.lookup().findVarHandle(SampleRing.class, "published", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final ByteBuffer buffer; //Off-heap records, slot i at (i & mask) * RECORD_BYTES
+	private final int capacity;
+	private final long mask;
+	@SuppressWarnings("unused") //Accessed through PUBLISHED
+	private volatile long published; //Sequence of the next record, every record before it is complete
+	private long lastTimeMs = Long.MIN_VALUE; //Writer only
+
+	//Ring holding the newest samples, capacity rounded up to a power of two
+	SampleRing(int samples) {
+		this.capacity = Integer.highestOneBit(Math.max(2, samples) * 2 - 1);
+		this.mask = capacity - 1;
+		this.buffer = ByteBuffer.allocateDirect(capacity * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	int capacity() {
+		return capacity;
+	}
+
+	//Appends a sample, for the ring's single writer only. Times never go backwards in the
+	//ring, even if the clock does, so readers can search by time. Returns the time recorded.
+	long append(long timeMs, float value, int flags) {
+		long seq = (long) PUBLISHED.getAcquire(this);
+		timeMs = Math.max(timeMs, lastTimeMs + 1);
+		lastTimeMs = timeMs;
+		int at = (int) (seq & mask) * RECORD_BYTES;
+		//The slot still holds the record capacity before, which readers accept until the sequence
+		//moves on. The last publish must be visible before any store that overwrites it, on weakly
+		//ordered hardware as well as x86.
+		VarHandle.storeStoreFence();
+		buffer.putLong(at, timeMs);
+		buffer.putFloat(at + 8, value);
+		buffer.putInt(at + 12, flags);
+		PUBLISHED.setRelease(this, seq + 1); //Record complete before it becomes visible
+		return timeMs;
+	}
+
+	//Sequence of the next sample to be appended
+	long published() {
+		return (long) PUBLISHED.getAcquire(this);
+	}
+
+	//Oldest sequence still certain to be intact, the writer may be overwriting the one before
+	long oldest() {
+		return Math.max(0, published() - capacity + 1);
+	}
+
+	//Fields of a sample. Only valid if intact(seq) once they are read.
+	long timeMs(long seq) {
+		return buffer.getLong((int) (seq & mask) * RECORD_BYTES);
+	}
+
+	float value(long seq) {
+		return buffer.getFloat((int) (seq & mask) * RECORD_BYTES + 8);
+	}
+
+	int flags(long seq) {
+		return buffer.getInt((int) (seq & mask) * RECORD_BYTES + 12);
+	}
+
+	//True if the sample was published and its fields read so far were not overwritten meanwhile
+	boolean intact(long seq) {
+		VarHandle.acquireFence(); //Fields read before the writer's progress is
+		long next = published();
+		return seq < next && seq > next - capacity;
+	}
+
+	//First sequence at or after oldest() whose time is at or after timeMs, or published() if none is
+	long seek(long timeMs) {
+		long lo = oldest();
+		long hi = published();
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			if (timeMs(mid) < timeMs) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	//Copies count samples from sequence seq on into the array, in two bulk copies at most, and
+	//returns how many at the front the writer lapped during the copy, which the caller leaves out
+	int copy(long seq, int count, byte[] out) {
+		int first = (int) (seq & mask);
+		int head = Math.min(count, capacity - first); //Records before the copy wraps to slot 0
+		buffer.get(first * RECORD_BYTES, out, 0, head * RECORD_BYTES);
+		buffer.get(0, out, head * RECORD_BYTES, (count - head) * RECORD_BYTES);
+
+		VarHandle.acquireFence(); //Copy done before the writer's progress is read
+		return (int) Math.min(count, Math.max(0, oldest() - seq));
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * ServerBootstrap.java
+ *
+ * Builds and starts a gRPC server with the cross-cutting pieces every
+ * smart home service shares: the handler executor, admission control,
+ * adaptive message compression, RPC metrics and tracing, the admin service and the plain-text
+ * metrics scrape endpoint, including the journal's commit metrics when there is one.
+ * Services partitioned by home also get the home interceptor, which only
+ * admits calls for the homes this node owns and holds, and the handoff
+ * service moving homes between nodes.
+ */
+
+package server;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+import io.grpc.BindableService;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import compression.Codecs;
+import compression.CompressionPolicy;
+import compression.CompressionServerInterceptor;
+import metrics.MetricsHttpEndpoint;
+import metrics.RpcMetrics;
+import metrics.TracingServerInterceptor;
+import sharding.HomeServerInterceptor;
+import sharding.Placement;
+
+public final class ServerBootstrap {
+	private static final Logger logger = Logger.getLogger(ServerBootstrap.class.getName());
+
+	//Scrape endpoint listens on the gRPC port plus this offset, a negative value disables it
+	public static final String METRICS_PORT_OFFSET_PROPERTY = "smarthome.metrics.portOffset";
+
+	private ServerBootstrap() {
+	}
+
+	//Builds and starts a server hosting the given services, e.g. the v1 and v2 versions of one service
+	public static Server start(String name, int port, BindableService... services) throws IOException {
+		return start(name, port, Journal.disabled(), null, services);
+	}
+
+	//As above, for services that record their state changes in the journal and keep it per home,
+	//serving the homes the handoff's placement gives this node
+	static Server start(String name, int port, Journal journal, Handoff handoff, BindableService... services) throws IOException {
+		Placement placement = handoff != null ? handoff.placement() : null;
+		RpcMetrics metrics = new RpcMetrics(name);
+		journal.registerMetrics(metrics);
+		if (placement != null) {
+			metrics.registerGauge("sharding_nodes", () -> placement.ring().nodes().size());
+		}
+		Server server = configure(ServerBuilder.forPort(port), metrics, handoff, services)
+				.build()
+				.start();
+
+		int offset = Integer.getInteger(METRICS_PORT_OFFSET_PROPERTY, 1000);
+		if (offset >= 0) {
+			MetricsHttpEndpoint endpoint = MetricsHttpEndpoint.start(metrics, port + offset);
+			logger.info(name + " metrics available at http://localhost:" + endpoint.port() + "/metrics");
+		}
+		return server;
+	}
+
+	//Applies the shared pipeline to any server builder, e.g. an in-process one for benchmarks
+	public static ServerBuilder<?> configure(ServerBuilder<?> builder, RpcMetrics metrics, BindableService... services) {
+		return configure(builder, metrics, null, services);
+	}
+
+	private static ServerBuilder<?> configure(ServerBuilder<?> builder, RpcMetrics metrics, Handoff handoff,
+			BindableService... services) {
+		CompressionServerInterceptor compression = new CompressionServerInterceptor(CompressionPolicy.defaultPolicy());
+
+		ServerExecutors.configure(builder);
+		Set<String> names = new HashSet<>();
+		for (BindableService service : services) {
+			builder.addService(service);
+			names.add(service.bindService().getServiceDescriptor().getName());
+		}
+		if (handoff != null) {
+			builder.addService(handoff.service()); //Node-level, not partitioned by home
+			builder.intercept(new HomeServerInterceptor(handoff.placement(), names)); //Innermost, so misrouted calls still pass admission and metrics
+		}
+		//Interceptors added later run first: tracing, metrics, admission, compression, then home routing
+		return builder
+				.compressorRegistry(Codecs.compressors())
+				.decompressorRegistry(Codecs.decompressors())
+				.addService(new AdminService(metrics))
+				.intercept(compression)
+				.intercept(new AdmissionController()) //Inside metrics, so rejections still show up in them
+				.intercept(metrics.interceptor())
+				.intercept(new TracingServerInterceptor())
+				.addStreamTracerFactory(metrics.streamTracerFactory())
+				.addStreamTracerFactory(compression.streamTracerFactory());
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * ServerExecutors.java
+ *
+ * Selects the executor that runs the gRPC service handlers.
+ * The handlers are written in a blocking style (Thread.sleep in stream loops),
+ * so by default each RPC runs on its own virtual thread instead of holding
+ * a platform thread from the default gRPC pool for the life of the call.
+ */
+
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+
+public final class ServerExecutors {
+	private static final Logger logger = Logger.getLogger(ServerExecutors.class.getName());
+
+	//System property selecting the execution mode: "virtual" (default) or "pool"
+	public static final String MODE_PROPERTY = "smarthome.server.executor";
+
+	private static final long READY_POLL_MS = 1; //Readiness poll while a live stream's client catches up
+
+	//One virtual-thread executor shared by every server in this JVM
+	private static final ExecutorService VIRTUAL = Executors.newVirtualThreadPerTaskExecutor();
+
+	private ServerExecutors() {
+	}
+
+	//True when handlers should run on virtual threads
+	public static boolean virtualThreadsEnabled() {
+		return !"pool".equalsIgnoreCase(System.getProperty(MODE_PROPERTY, "virtual"));
+	}
+
+	//Applies the configured execution mode to a server builder
+	public static ServerBuilder<?> configure(ServerBuilder<?> builder) {
+		if (virtualThreadsEnabled()) {
+			builder.executor(VIRTUAL); //One virtual thread per call, blocking no longer pins a platform thread
+		} else {
+			logger.info("Running service handlers on the default gRPC executor");
+		}
+		return builder;
+	}
+
+	//Waits until a live stream loop can send without buffering in the server, false once
+	//the call is cancelled. The call's onReady callback cannot run while the handler
+	//holds the call, so readiness is polled; at normal tick rates it never waits.
+	static boolean awaitReady(ServerCallStreamObserver<?> call) throws InterruptedException {
+		while (!call.isReady()) {
+			if (call.isCancelled()) {
+				return false;
+			}
+			Thread.sleep(READY_POLL_MS);
+		}
+		return !call.isCancelled();
+	}
+
+	//Waits between the readings of a live stream loop. Sleeping for zero does not
+	//yield a virtual thread, so a zero interval yields instead, or the loop would
+	//hold the carrier and starve other calls and its own cancellation.
+	static void pause(long intervalMs) throws InterruptedException {
+		if (intervalMs > 0) {
+			Thread.sleep(intervalMs);
+		} else {
+			Thread.yield();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Simulation.java
+ *
+ * Random source of the simulated device data. Every generator is derived
+ * from one global seed and from what it simulates: a device's stream of
+ * readings, a home's day, the reading of a home at one point in time.
+ * No generator is shared between threads, so drawing numbers never
+ * contends however many streams run, and a run repeated with the same
+ * seed produces the same data bit for bit. Readings at a point in time
+ * come out the same across v1 and v2, overlapping ranges and resumed
+ * streams, whatever order the calls are served in.
+ *
+ * Calls that simulate noise of their own, like an upload or a live stream,
+ * are numbered per home in the order they arrive, so each draws a sequence
+ * of its own. The nth call of a home repeats across runs only when the
+ * home's calls of that kind arrive in the same order, e.g. one after
+ * another from one client; concurrent calls of one home may swap numbers.
+ * A home's numbering is dropped once the home has made no such call for
+ * the idle time and starts over, like after a restart.
+ *
+ * Configured with system properties:
+ *   smarthome.simulation.seed              (fresh)  logged at startup so a run can be repeated
+ *   smarthome.simulation.callIdleSeconds   (3600)   idle time after which a home's numbering starts over
+ */
+
+package server;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+final class Simulation {
+	private static final Logger logger = Logger.getLogger(Simulation.class.getName());
+
+	static final long SEED = Long.getLong("smarthome.simulation.seed", System.nanoTime());
+	static {
+		logger.info("Simulation seed " + SEED + ", repeat the run with -Dsmarthome.simulation.seed=" + SEED);
+	}
+
+	//Simulated quantities, each drawing from generators of its own
+	static final long BRIGHTNESS = 1;
+	static final long AMBIENT = 2;
+	static final long USAGE = 3;
+	static final long ADJUSTMENT = 4;
+	static final long YIELD = 5;
+	static final long OUTPUT = 6;
+	static final long TEMPERATURE = 7;
+	static final long HEATING_LOAD = 8;
+
+	private static final long CALL_IDLE_MS = TimeUnit.SECONDS.toMillis(Long.getLong("smarthome.simulation.callIdleSeconds", 3600));
+	private static final long SWEEP_INTERVAL_MS = 60_000; //Idle numberings are looked for at most once a minute
+
+	private static final ConcurrentHashMap<Long, Calls> CALLS = new ConcurrentHashMap<>(); //Per home and quantity
+	private static volatile long lastSweepMs = System.currentTimeMillis();
+
+	//Calls so far of one home and quantity
+	private static final class Calls {
+		final AtomicLong next = new AtomicLong();
+		volatile long lastUsedMs = System.currentTimeMillis();
+	}
+
+	private Simulation() {
+	}
+
+	//Generator of a quantity for one device or home
+	static SplittableRandom random(long quantity, long key) {
+		return new SplittableRandom(mix(mix(SEED + quantity) + key));
+	}
+
+	//Generator of a quantity for one device or home at one point, e.g. a time or a day
+	static SplittableRandom random(long quantity, long key, long at) {
+		return new SplittableRandom(mix(mix(mix(SEED + quantity) + key) + at));
+	}
+
+	//Generator of a quantity for the next call of one home, e.g. an upload or a live stream
+	static SplittableRandom forCall(long quantity, long key) {
+		//Counters of different homes colliding would share numbers, which still never repeat
+		long id = mix(mix(quantity) + key);
+		long now = System.currentTimeMillis();
+		Calls calls = CALLS.get(id);
+		if (calls == null) {
+			sweep(now);
+			calls = CALLS.computeIfAbsent(id, k -> new Calls());
+		}
+		calls.lastUsedMs = now;
+		return random(quantity, key, calls.next.getAndIncrement());
+	}
+
+	//Drops the numbering of homes idle for longer than the idle time, so the map only holds active homes.
+	//A call racing the drop may reuse a number, which only repeats that home's noise.
+	private static void sweep(long now) {
+		if (now - lastSweepMs < SWEEP_INTERVAL_MS) {
+			return;
+		}
+		lastSweepMs = now;
+		CALLS.values().removeIf(c -> now - c.lastUsedMs > CALL_IDLE_MS);
+	}
+
+	//Day of a v1 YYYY-MM-DD date, so v1 and v2 agree on a day's data. Other strings name a day of their own.
+	static long epochDay(String date) {
+		try {
+			return LocalDate.parse(date).toEpochDay();
+		} catch (DateTimeParseException e) {
+			return date.hashCode();
+		}
+	}
+
+	//MurmurHash3 finalizer, so neighbouring keys and times seed unrelated generators
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
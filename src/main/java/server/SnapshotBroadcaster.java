@@ -0,0 +1,85 @@
+/*
+ * SnapshotBroadcaster.java
+ *
+ * Fans one computed stream of snapshots out to any number of server
+ * streaming calls. Each value is built once and handed to every
+ * subscriber. A subscriber whose transport is not ready keeps only the
+ * newest pending snapshot and gets it from its onReady callback, so a
+ * slow dashboard skips stale snapshots instead of buffering them or
+ * holding up the others. New subscribers start from the latest value.
+ */
+
+package server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+final class SnapshotBroadcaster<T> {
+	private final Set<Subscriber<T>> subscribers = ConcurrentHashMap.newKeySet();
+	private final LongAdder skipped = new LongAdder();
+	private T latest; //Guarded by this
+
+	//Registers a call, must be called from its handler before it returns
+	void subscribe(StreamObserver<T> responseObserver) {
+		ServerCallStreamObserver<T> call = (ServerCallStreamObserver<T>) responseObserver;
+		Subscriber<T> subscriber = new Subscriber<>(call, skipped);
+		call.setOnCancelHandler(() -> subscribers.remove(subscriber));
+		call.setOnReadyHandler(subscriber::drain);
+		//Seeded under the publish lock, so a newer value can never reach the subscriber before the latest one
+		synchronized (this) {
+			subscribers.add(subscriber);
+			if (latest != null) {
+				subscriber.offer(latest);
+			}
+		}
+	}
+
+	//Hands a value to every subscriber, never blocks on a slow one
+	synchronized void publish(T value) {
+		latest = value;
+		for (Subscriber<T> subscriber : subscribers) {
+			subscriber.offer(value);
+		}
+	}
+
+	int subscribers() {
+		return subscribers.size();
+	}
+
+	//Snapshots replaced before a slow subscriber could take them
+	long skipped() {
+		return skipped.sum();
+	}
+
+	//One call, with room for a single pending snapshot
+	private static final class Subscriber<T> {
+		private final ServerCallStreamObserver<T> call;
+		private final LongAdder skipped;
+		private T pending;
+
+		Subscriber(ServerCallStreamObserver<T> call, LongAdder skipped) {
+			this.call = call;
+			this.skipped = skipped;
+		}
+
+		synchronized void offer(T value) {
+			if (pending != null) {
+				skipped.increment(); //Newest wins
+			}
+			pending = value;
+			drain();
+		}
+
+		//Called on publish and from the transport's onReady, the lock keeps onNext calls serialized
+		synchronized void drain() {
+			if (pending != null && call.isReady() && !call.isCancelled()) {
+				T value = pending;
+				pending = null;
+				call.onNext(value);
+			}
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Snapshots.java
+ *
+ * Periodic snapshots of a server's state tables, so a restart loads the
+ * newest snapshot and replays only the journal records written after it.
+ *
+ * A snapshot is taken without pausing requests: the tables are only
+ * locked for the instant it takes to read the journal's next sequence
+ * number (the cut), then walked while updates carry on. Entries changed
+ * during the walk may be newer than the cut, which is fine because replay
+ * skips records an entry already includes.
+ *
+ * File layout, big-endian, named <server>-<cut>.snapshot next to the journal:
+ *   48-byte header: int magic, int version, long cut, long entry count,
+ *   long created millis, int CRC32C of the entries, 12 bytes reserved
+ *   entries of 48 bytes: int type, int reserved, long key, long seq, long v0, v1, v2
+ * Files are written to a temporary name, synced and renamed into place
+ * once the journal is durable up to every change they include, and loaded
+ * through memory mapping. The newest two are kept, and an unreadable
+ * snapshot falls back to the one before it.
+ *
+ * Configured with system properties:
+ *   smarthome.snapshot.intervalSeconds (300)  time between snapshots, 0 disables them
+ */
+
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+final class Snapshots {
+	private static final Logger logger = Logger.getLogger(Snapshots.class.getName());
+
+	private static final int MAGIC = 0x53484d53; //"SHMS"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 48;
+	private static final int ENTRY_BYTES = 48;
+	private static final int KEEP = 2;
+	private static final int WRITE_CHUNK = 1 << 20;
+	private static final long MAP_CHUNK = (Integer.MAX_VALUE / ENTRY_BYTES) * (long) ENTRY_BYTES;
+
+	private final String name;
+	private final Journal journal;
+	private final StateTable[] tables;
+	private final Path dir;
+	private long lastCut = -1; //Cut of the newest snapshot on disk, only touched by one thread at a time
+
+	Snapshots(String server, Journal journal, StateTable... tables) {
+		this.name = server.toLowerCase(Locale.ROOT);
+		this.journal = journal;
+		this.tables = tables.clone();
+		this.dir = journal.enabled() ? journal.path().getParent() : null;
+	}
+
+	//Loads the newest readable snapshot, then replays the journal tail after it
+	void restore() throws IOException {
+		if (!journal.enabled()) {
+			return;
+		}
+		long start = System.nanoTime();
+		long cut = 0;
+		long loaded = 0;
+		for (Path file : snapshotFiles()) {
+			try {
+				loaded = load(file);
+				cut = cutOf(file);
+				lastCut = cut;
+				break;
+			} catch (IOException e) {
+				logger.warning("Snapshot " + file + " unreadable, trying an older one: " + e.getMessage());
+				for (StateTable table : tables) {
+					table.clear();
+				}
+			}
+		}
+		if (journal.nextSeq() > cut && journal.firstSeq() > cut) {
+			throw new IOException("Journal " + journal.path() + " starts at sequence " + journal.firstSeq()
+					+ ", records since snapshot sequence " + cut + " are missing");
+		}
+
+		long[] replayed = new long[1];
+		journal.replay(cut, (seq, timeMs, type, key, a, b) -> {
+			for (StateTable table : tables) {
+				if (table.type() == type) {
+					table.replay(seq, key, a, b);
+					replayed[0]++;
+				}
+			}
+		});
+
+		//New records must number after every change the state includes, or replay would skip them
+		long after = cut;
+		for (StateTable table : tables) {
+			for (Map.Entry<Long, StateTable.Entry> e : table.entries()) {
+				after = Math.max(after, e.getValue().seq + 1);
+			}
+		}
+		if (journal.nextSeq() < after) {
+			//Journal removed, or cut short by a crash, after the snapshot was taken
+			logger.warning("Journal " + journal.path() + " ends at sequence " + journal.nextSeq()
+					+ ", before the restored state's " + after + ", continuing after it");
+			if (journal.nextSeq() > cut) {
+				write(after); //Its records since the cut are only in memory once it is renumbered
+			}
+			journal.advanceTo(after);
+		}
+		logger.info(String.format(Locale.ROOT, "%s state restored in %.0f ms: %d snapshot entries from sequence %d, %d journal records",
+				name, (System.nanoTime() - start) / 1e6, loaded, cut, replayed[0]));
+	}
+
+	//Takes a snapshot every interval on a background thread, skipping intervals without changes
+	void start() {
+		long interval = Long.getLong("smarthome.snapshot.intervalSeconds", 300);
+		if (!journal.enabled() || interval <= 0) {
+			return;
+		}
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, name + "-snapshot");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY); //Request handling comes first
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				write();
+			} catch (IOException | RuntimeException e) {
+				logger.warning(name + " snapshot failed: " + e);
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	//Writes one snapshot now unless nothing changed since the last one, returns its file or null
+	synchronized Path write() throws IOException {
+		long cut = cut();
+		if (cut == lastCut) {
+			return null;
+		}
+		return write(cut);
+	}
+
+	//Writes one snapshot now, also when no record was journaled since the last one: entries handed
+	//over between nodes change the tables without one. Returns its file, or null without a journal.
+	synchronized Path writeNow() throws IOException {
+		return journal.enabled() ? write(cut()) : null;
+	}
+
+	private long cut() {
+		long cut = Long.MAX_VALUE;
+		for (StateTable table : tables) {
+			cut = Math.min(cut, table.cut()); //Each table's own clean point, the earliest covers them all
+		}
+		return cut;
+	}
+
+	//Writes a snapshot of the tables as of the cut and makes it the newest one
+	private Path write(long cut) throws IOException {
+		long start = System.nanoTime();
+		Path file = dir.resolve(String.format(Locale.ROOT, "%s-%020d.snapshot", name, cut));
+		Path tmp = dir.resolve(file.getFileName() + ".tmp");
+		long count = 0;
+		CRC32C crc = new CRC32C();
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE)) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_CHUNK);
+			out.position(HEADER_BYTES);
+			for (StateTable table : tables) {
+				for (Map.Entry<Long, StateTable.Entry> e : table.entries()) {
+					if (buf.remaining() < ENTRY_BYTES) {
+						flush(out, buf, crc);
+					}
+					StateTable.Entry v = e.getValue();
+					buf.putInt(table.type()).putInt(0).putLong(e.getKey()).putLong(v.seq).putLong(v.v0).putLong(v.v1).putLong(v.v2);
+					count++;
+				}
+			}
+			flush(out, buf, crc);
+
+			buf.clear();
+			buf.putInt(MAGIC).putInt(VERSION).putLong(cut).putLong(count).putLong(System.currentTimeMillis())
+					.putInt((int) crc.getValue()).put(new byte[12]).flip();
+			while (buf.hasRemaining()) {
+				out.write(buf, buf.position());
+			}
+			out.force(true);
+		}
+		//Entries may include changes newer than the cut, whose records must be durable before the
+		//snapshot is, or a crash could leave the snapshot ahead of the journal
+		try {
+			journal.barrier().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the journal", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Journal not durable, snapshot dropped", e.getCause());
+		}
+		Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		syncDirectory();
+		lastCut = cut;
+
+		//Keep the newest few
+		List<Path> files = snapshotFiles();
+		for (int i = KEEP; i < files.size(); i++) {
+			Files.deleteIfExists(files.get(i));
+		}
+		logger.info(String.format(Locale.ROOT, "%s snapshot at sequence %d: %d entries in %.0f ms",
+				name, cut, count, (System.nanoTime() - start) / 1e6));
+		return file;
+	}
+
+	//Maps a snapshot and restores its entries, returns how many there were
+	private long load(Path file) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = in.size();
+			if (size < HEADER_BYTES) {
+				throw new IOException("truncated header");
+			}
+			ByteBuffer header = in.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("not a version " + VERSION + " snapshot");
+			}
+			header.getLong(); //Cut, also in the file name
+			long count = header.getLong();
+			header.getLong(); //Created
+			int expected = header.getInt();
+			if (size != HEADER_BYTES + count * ENTRY_BYTES) {
+				throw new IOException("expected " + count + " entries, file has " + size + " bytes");
+			}
+
+			//Check the whole file before touching any state
+			CRC32C crc = new CRC32C();
+			List<MappedByteBuffer> regions = new ArrayList<>();
+			for (long pos = HEADER_BYTES; pos < size; pos += MAP_CHUNK) {
+				MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos));
+				crc.update(region.duplicate());
+				regions.add(region);
+			}
+			if ((int) crc.getValue() != expected) {
+				throw new IOException("checksum mismatch");
+			}
+
+			StateTable[] byType = new StateTable[16];
+			for (StateTable table : tables) {
+				byType[table.type()] = table;
+			}
+			for (MappedByteBuffer region : regions) {
+				while (region.hasRemaining()) {
+					int type = region.getInt();
+					region.getInt();
+					long key = region.getLong();
+					long seq = region.getLong();
+					long v0 = region.getLong();
+					long v1 = region.getLong();
+					long v2 = region.getLong();
+					StateTable table = type >= 0 && type < byType.length ? byType[type] : null;
+					if (table != null) {
+						table.restore(key, seq, v0, v1, v2);
+					}
+				}
+			}
+			return count;
+		}
+	}
+
+	private static void flush(FileChannel out, ByteBuffer buf, CRC32C crc) throws IOException {
+		buf.flip();
+		crc.update(buf.duplicate());
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+		buf.clear();
+	}
+
+	//Makes the rename durable, best effort where directories cannot be opened
+	private void syncDirectory() {
+		try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+			d.force(true);
+		} catch (IOException e) {
+			//Not supported on this platform
+		}
+	}
+
+	//This server's snapshots, newest first
+	private List<Path> snapshotFiles() throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, name + "-*.snapshot")) {
+			for (Path p : stream) {
+				files.add(p);
+			}
+		}
+		files.sort((x, y) -> Long.compare(cutOf(y), cutOf(x)));
+		return files;
+	}
+
+	private long cutOf(Path file) {
+		String f = file.getFileName().toString();
+		try {
+			return Long.parseLong(f.substring(name.length() + 1, f.length() - ".snapshot".length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -12,41 +12,81 @@ import solar.protos.SmartSolarServiceGrpc.SmartSolarServiceImplBase;
 import solar.protos.GetDailyYieldRequest;
 import solar.protos.GetDailyYieldResponse;
 import solar.protos.RealTimeOutput;
+import solar.protos.StreamRealTimeOutputRequest;
 import solar.protos.TradeRequest;
 import solar.protos.TradeResponse;
 import java.net.InetAddress;
-import java.time.Instant;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import sharding.Homes;
+import sharding.Placement;
 import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceInfo;
-import com.google.protobuf.Empty;
 
 public class SolarServer extends SmartSolarServiceImplBase {
 	private static final Logger logger = Logger.getLogger(ThermostatServer.class.getName());
-	private final Random random = new Random(); //Random generator for simulated data
+	static final long OUTPUT_INTERVAL_MS = Long.getLong("smarthome.solar.outputIntervalMs", 1_000); //Time between real time output readings
+	static final double COUNTER_OFFER_PRICE = 0.40; //Fixed counter-offer
+	
+	//Last hour of output readings per home, for replay
+	final RecentSamples<Long> outputs = new RecentSamples<>(OUTPUT_INTERVAL_MS, Simulation.OUTPUT);
+	
+	//Trade ledger per home: fill count, sold kWh and revenue, restored from snapshots and the journal on startup
+	private final StateTable ledger;
+	private final Snapshots snapshots; //Also written when homes are handed over between nodes
+	
+	public SolarServer() {
+		this.ledger = ledgerTable(Journal.disabled());
+		this.snapshots = new Snapshots("Solar", Journal.disabled(), ledger);
+	}
+	
+	//Service whose trade ledger survives restarts, restored from the journal
+	SolarServer(Journal journal) throws IOException {
+		this.ledger = ledgerTable(journal);
+		this.snapshots = new Snapshots("Solar", journal, ledger);
+		snapshots.restore();
+		snapshots.start();
+	}
+	
+	//Each fill record adds to the totals, a record is only ever applied once per entry
+	private static StateTable ledgerTable(Journal journal) {
+		return new StateTable(Journal.TRADE_FILL, journal, (old, seq, a, b) -> {
+			double price = Double.longBitsToDouble(a);
+			double quantityKwh = Double.longBitsToDouble(b);
+			long fills = old != null ? old.v0 : 0;
+			double soldKwh = old != null ? Double.longBitsToDouble(old.v1) : 0;
+			double revenue = old != null ? Double.longBitsToDouble(old.v2) : 0;
+			return new StateTable.Entry(seq, fills + 1, Double.doubleToRawLongBits(soldKwh + quantityKwh),
+					Double.doubleToRawLongBits(revenue + price * quantityKwh));
+		});
+	}
 	
 	public static void main(String[] args) throws IOException, InterruptedException {
-		SolarServer solarservice = new SolarServer();
-		int port = 50052; //Port where the gRPC server will listen
+		Journal journal = Journal.forServer("Solar"); //Durable trade fills
+		SolarServer solarservice = new SolarServer(journal);
+		int port = Integer.getInteger("smarthome.solar.port", 50052); //Port where the gRPC server will listen
+		Placement placement = Placement.forNode(); //Homes this node serves
+		Handoff handoff = new Handoff("Solar", placement, solarservice.snapshots, solarservice.ledger); //Moves trade ledgers with their homes
 		
 		//Build and start the gRPC server
-		Server server = ServerBuilder
-				.forPort(port)
-				.addService(solarservice)
-				.build()
-				.start();
+		Server server = ServerBootstrap.start("Solar", port, journal, handoff, solarservice, new SolarServiceV2(solarservice));
 		
-		logger.info("Solar server started, listening on " + port);
+		logger.info("Solar server started, listening on " + port + " as node " + placement.self());
 		
-		//Register service via jmDNS for discovery on local network
+		//Register service via jmDNS for discovery on local network, publishing this node's place on the ring
 		JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
 		//(Service type, Service name, Service port, Service description)
-		ServiceInfo serviceInfo = ServiceInfo.create("_solarpanel._grpc._tcp.local.", "SolarPanelService", port, "Solar Panel Management Service");
-		jmdns.registerService(serviceInfo);
+		placement.publish(jmdns, "_solarpanel._grpc._tcp.local.", "SolarPanelService", port, "Solar Panel Management Service");
+		handoff.start();
+		//On shutdown hand this node's homes to the nodes taking them over, then leave the ring
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			handoff.leave();
+			jmdns.unregisterAllServices();
+			server.shutdown();
+		}));
 		System.out.println("Starting the Solar Server loop");
 		
 		//Wait until server is terminated
@@ -56,9 +96,10 @@ public class SolarServer extends SmartSolarServiceImplBase {
 	@Override
 	public void getDailyYield(GetDailyYieldRequest request, StreamObserver<GetDailyYieldResponse> responseObserver) {
 		
-		//simulate daily yield and peak
-		double peak = 5.0 + random.nextGaussian() * 0.5; //Peak power around 5 kW
-		double total = peak * 6.0 + random.nextGaussian() * 2.0; //Total yield ~6h of peak
+		//simulate daily yield and peak, the same every time a home asks for the same day
+		SplittableRandom day = Simulation.random(Simulation.YIELD, Homes.currentKey(), Simulation.epochDay(request.getDate()));
+		double peak = peakKw(day); //Peak power around 5 kW
+		double total = yieldKw(day, peak); //Total yield ~6h of peak
 		
 		//Build and send the response
 		GetDailyYieldResponse resp = GetDailyYieldResponse.newBuilder()
@@ -71,53 +112,51 @@ public class SolarServer extends SmartSolarServiceImplBase {
 	}
 	
 	@Override
-	public void streamRealTimeOutput(Empty request, StreamObserver<RealTimeOutput> responseObserver) {
+	public void streamRealTimeOutput(StreamRealTimeOutputRequest request, StreamObserver<RealTimeOutput> responseObserver) {
+		ServerCallStreamObserver<RealTimeOutput> call = (ServerCallStreamObserver<RealTimeOutput>) responseObserver;
+		RealTimeOutput.Builder out = RealTimeOutput.newBuilder(); //Reused for every reading
 		try {
-			while(!Thread.currentThread().isInterrupted()) {
-				
-				//Simulate current output with sine-wave + noise
-				double current = 4.0 + Math.sin(System.currentTimeMillis() / 1_000.0) + random.nextGaussian() * 0.2;
-				String timestamp = Instant.now().toString(); //Current timestamp
-				
-				//Build and send the response
-				RealTimeOutput out = RealTimeOutput.newBuilder() 
-						.setCurrentKw(current)
-						.setTimestamp(timestamp)
-						.build();
-				responseObserver.onNext(out);
-				
-				Thread.sleep(1_000); //Wait 1 second before next reading
-			}
+			//Send each reading of the home's panels as it is taken, 1 second apart by default,
+			//after any the client missed if it is resuming
+			long resumeAfterMs = request.hasResumeAfterMs() ? request.getResumeAfterMs() : RecentSamples.NEWEST;
+			watchOutput(call, Homes.currentKey(), resumeAfterMs, (timeMs, kw, flags) -> responseObserver.onNext(out
+					.setCurrentKw(kw)
+					.setTimestampBytes(TimestampCache.at(timeMs)) //When the reading was taken
+					.setTimeMs(timeMs)
+					.build()));
 		}catch(InterruptedException ie) {
 			Thread.currentThread().interrupt(); //Error Handling
 		}finally {
-			responseObserver.onCompleted(); //Complete the stream
+			if(!call.isCancelled()) {
+				responseObserver.onCompleted(); //Complete the stream
+			}
 		}
 	}
 	
 	@Override
 	public StreamObserver<TradeRequest> energyTradeNegotiation(StreamObserver<TradeResponse> responseObserver){
+		DurableResponses<TradeResponse> responses = new DurableResponses<>(responseObserver); //Fills go out once durable
+		long home = Homes.currentKey();
+		
 		//Returns a StreamObserver to handle incoming trade requests
 		return new StreamObserver<TradeRequest>() {
-			private final double counterOfferPrice = 0.40; //Fixed counter-offer
+			private final TradeResponse counterOffer = TradeResponse.newBuilder() //Immutable, sent as is every time
+					.setAccepted(false)
+					.setCounterOffer(COUNTER_OFFER_PRICE)
+					.build();
 			
 			@Override
 			public void onNext(TradeRequest req) {
-				TradeResponse resp;
-				if(req.getPrice() <= counterOfferPrice) {
+				if(accepts(req.getPrice())) {
 					
-					//Accept the trade if price is at or below counter-offer
-					resp = TradeResponse.newBuilder()
+					//Accept the trade if price is at or below counter-offer, recording the fill
+					responses.send(TradeResponse.newBuilder()
 							.setAccepted(true)
-							.setAgreedPrice(req.getPrice()).build();
+							.setAgreedPrice(req.getPrice()).build(), fill(home, req.getPrice(), req.getQuantity()));
 				}else {
 					//Otherwise send a counter-offer
-					resp = TradeResponse.newBuilder()
-							.setAccepted(false)
-							.setCounterOffer(counterOfferPrice)
-							.build();
+					responses.send(counterOffer);
 				}
-				responseObserver.onNext(resp); //Send response
 			}
 			
 			@Override
@@ -127,8 +166,61 @@ public class SolarServer extends SmartSolarServiceImplBase {
 			
 			@Override
 			public void onCompleted() {
-				responseObserver.onCompleted(); //Complete the stream
+				responses.complete(); //Complete the stream after the last fill is durable
 			}
 		};
 	}
-}
\ No newline at end of file
+	
+	//Simulation shared by the v1 and v2 services
+	
+	double peakKw(SplittableRandom random) {
+		return 5.0 + random.nextGaussian() * 0.5;
+	}
+	
+	double yieldKw(SplittableRandom random, double peakKw) {
+		return peakKw * 6.0 + random.nextGaussian() * 2.0;
+	}
+	
+	//Current output, a sine-wave plus noise
+	double currentKw(long timeMs, SplittableRandom random) {
+		return 4.0 + Math.sin(timeMs / 1_000.0) + random.nextGaussian() * 0.2;
+	}
+	
+	//Output readings for export, each drawn for its own time as the history's are
+	Exports.Series outputSeries(long home) {
+		return new Exports.Series("output", 0, new String[] {"output_kw"}, new int[] {3},
+				(timeMs, values) -> values[0] = (float) currentKw(timeMs, Simulation.random(Simulation.OUTPUT, home, timeMs)));
+	}
+	
+	//Streams the home's output readings, recording each in the home's window as it is taken
+	void watchOutput(ServerCallStreamObserver<?> call, long home, long resumeAfterMs, RecentSamples.Sink sink)
+			throws InterruptedException {
+		RecentSamples.watch(call, outputs.device(home), resumeAfterMs, OUTPUT_INTERVAL_MS,
+				(timeMs, random, ring) -> ring.append(timeMs, (float) currentKw(timeMs, random), 0), sink);
+	}
+	
+	//Accept the trade if price is at or below counter-offer
+	static boolean accepts(double price) {
+		return price <= COUNTER_OFFER_PRICE;
+	}
+	
+	//Records an accepted trade, the future completes once it is durable
+	CompletableFuture<Long> fill(long home, double price, double quantityKwh) {
+		return ledger.update(home, Double.doubleToRawLongBits(price), Double.doubleToRawLongBits(quantityKwh));
+	}
+	
+	long fills(long home) {
+		StateTable.Entry entry = ledger.get(home);
+		return entry != null ? entry.v0 : 0;
+	}
+	
+	double soldKwh(long home) {
+		StateTable.Entry entry = ledger.get(home);
+		return entry != null ? Double.longBitsToDouble(entry.v1) : 0;
+	}
+	
+	double revenue(long home) {
+		StateTable.Entry entry = ledger.get(home);
+		return entry != null ? Double.longBitsToDouble(entry.v2) : 0;
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * SolarServiceV2.java
+ *
+ * Serves the compact v2 solar schema next to v1, sharing the v1
+ * service's simulation so both versions behave the same.
+ */
+
+package server;
+
+import java.util.SplittableRandom;
+import java.util.logging.Logger;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import solar.protos.v2.SmartSolarServiceGrpc.SmartSolarServiceImplBase;
+import solar.protos.v2.ExportChunk;
+import solar.protos.v2.ExportFormat;
+import solar.protos.v2.ExportRequest;
+import solar.protos.v2.GetDailyYieldRequest;
+import solar.protos.v2.GetDailyYieldResponse;
+import solar.protos.v2.OutputWindowRequest;
+import solar.protos.v2.RealTimeOutput;
+import solar.protos.v2.SampleChunk;
+import solar.protos.v2.StreamRealTimeOutputRequest;
+import solar.protos.v2.TradeRequest;
+import solar.protos.v2.TradeResponse;
+import sharding.Homes;
+
+public class SolarServiceV2 extends SmartSolarServiceImplBase {
+	private static final Logger logger = Logger.getLogger(SolarServiceV2.class.getName());
+	private static final TradeResponse COUNTER_OFFER = TradeResponse.newBuilder()
+			.setAccepted(false)
+			.setCounterOfferMilli((int) Math.round(SolarServer.COUNTER_OFFER_PRICE * 1000))
+			.build();
+	private final SolarServer v1;
+
+	public SolarServiceV2(SolarServer v1) {
+		this.v1 = v1;
+	}
+
+	@Override
+	public void getDailyYield(GetDailyYieldRequest request, StreamObserver<GetDailyYieldResponse> responseObserver) {
+		SplittableRandom day = Simulation.random(Simulation.YIELD, Homes.currentKey(), request.getEpochDay());
+		double peak = v1.peakKw(day);
+		responseObserver.onNext(GetDailyYieldResponse.newBuilder()
+				.setYieldWh((int) Math.round(v1.yieldKw(day, peak) * 1000))
+				.setPeakW((int) Math.round(peak * 1000))
+				.build());
+		responseObserver.onCompleted();
+	}
+
+	@Override
+	public void streamRealTimeOutput(StreamRealTimeOutputRequest request, StreamObserver<RealTimeOutput> responseObserver) {
+		ServerCallStreamObserver<RealTimeOutput> call = (ServerCallStreamObserver<RealTimeOutput>) responseObserver;
+		RealTimeOutput.Builder out = RealTimeOutput.newBuilder(); //Reused for every reading
+		try {
+			long resumeAfterMs = request.hasResumeAfterMs() ? request.getResumeAfterMs() : RecentSamples.NEWEST;
+			v1.watchOutput(call, Homes.currentKey(), resumeAfterMs, (timeMs, kw, flags) -> responseObserver.onNext(out
+					.setCurrentW(Math.round(kw * 1000))
+					.setTimeMs(timeMs)
+					.build()));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt(); //Error Handling
+		} finally {
+			if (!call.isCancelled()) {
+				responseObserver.onCompleted();
+			}
+		}
+	}
+
+	@Override
+	public void exportRealTimeOutput(ExportRequest request, StreamObserver<ExportChunk> responseObserver) {
+		long home = Homes.currentKey();
+		Exports.export((ServerCallStreamObserver<ExportChunk>) responseObserver, home, request.getStartTimeMs(), request.getEndTimeMs(),
+				request.getStepMs(), request.getFormat() == ExportFormat.CSV, v1.outputSeries(home),
+				(name, bytes, data) -> ExportChunk.newBuilder().setFileName(name).setFileBytes(bytes).setData(data).build());
+	}
+
+	@Override
+	public void replayRealTimeOutput(OutputWindowRequest request, StreamObserver<SampleChunk> responseObserver) {
+		RecentSamples.replay((ServerCallStreamObserver<SampleChunk>) responseObserver, v1.outputs.find(Homes.currentKey()),
+				request.getFromTimeMs(), request.getToTimeMs(), samples -> SampleChunk.newBuilder().setSamples(samples).build());
+	}
+
+	@Override
+	public StreamObserver<TradeRequest> energyTradeNegotiation(StreamObserver<TradeResponse> responseObserver) {
+		DurableResponses<TradeResponse> responses = new DurableResponses<>(responseObserver);
+		long home = Homes.currentKey();
+		return new StreamObserver<TradeRequest>() {
+			@Override
+			public void onNext(TradeRequest req) {
+				int price = req.getPriceMilli();
+				if (SolarServer.accepts(price / 1000.0)) {
+					responses.send(TradeResponse.newBuilder().setAccepted(true).setAgreedPriceMilli(price).build(),
+							v1.fill(home, price / 1000.0, req.getQuantityWh() / 1000.0));
+				} else {
+					responses.send(COUNTER_OFFER);
+				}
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				logger.warning("Trade negotiation error: " + t.getMessage()); //Error Handling
+			}
+
+			@Override
+			public void onCompleted() {
+				responses.complete();
+			}
+		};
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * StateTable.java
+ *
+ * One kind of durable server state, e.g. thermostat targets, keyed by the
+ * entity it belongs to. Entries are immutable and replaced on every change,
+ * and each carries the journal sequence number of the record that produced
+ * it. That lets a snapshot walk the table while requests keep changing it:
+ * whatever changed during the walk is in the journal tail, and replaying
+ * the tail only applies records newer than the entry already restored.
+ */
+
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+
+final class StateTable {
+
+	//Folds one journal record into the entry it changes, old is null for a new key
+	interface Reducer {
+		Entry apply(Entry old, long seq, long a, long b);
+	}
+
+	//Value of one entity, up to three 64-bit fields
+	static final class Entry {
+		final long seq;
+		final long v0;
+		final long v1;
+		final long v2;
+
+		Entry(long seq, long v0, long v1, long v2) {
+			this.seq = seq;
+			this.v0 = v0;
+			this.v1 = v1;
+			this.v2 = v2;
+		}
+	}
+
+	private final int type;
+	private final Journal journal;
+	private final Reducer reducer;
+	private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+
+	StateTable(int type, Journal journal, Reducer reducer) {
+		this.type = type;
+		this.journal = journal;
+		this.reducer = reducer;
+	}
+
+	int type() {
+		return type;
+	}
+
+	Entry get(long key) {
+		return entries.get(key);
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	//Journals a change and applies it. Synchronized so the journal order matches the order changes
+	//are applied, and so a snapshot can take a clean cut between changes.
+	synchronized Journal.Commit update(long key, long a, long b) {
+		Journal.Commit commit = journal.append(type, key, a, b);
+		entries.put(key, reducer.apply(entries.get(key), commit.seq, a, b));
+		return commit;
+	}
+
+	//Every change with a lower sequence number has been applied, later ones have not
+	synchronized long cut() {
+		return journal.nextSeq();
+	}
+
+	//Reapplies a journal record unless the entry already includes it
+	void replay(long seq, long key, long a, long b) {
+		Entry old = entries.get(key);
+		if (old == null || seq > old.seq) {
+			entries.put(key, reducer.apply(old, seq, a, b));
+		}
+	}
+
+	//Puts back an entry read from a snapshot
+	void restore(long key, long seq, long v0, long v1, long v2) {
+		entries.put(key, new Entry(seq, v0, v1, v2));
+	}
+
+	//Takes over an entry handed over by another node. Numbered as the latest record, so a snapshot
+	//including it also covers this node's older changes to the key, which replay never reapplies.
+	synchronized void adopt(long key, long v0, long v1, long v2) {
+		entries.put(key, new Entry(journal.nextSeq() - 1, v0, v1, v2));
+	}
+
+	//Drops the entries of keys handed over to another node, returns how many there were
+	synchronized int release(LongPredicate moved) {
+		int released = 0;
+		for (Long key : entries.keySet()) {
+			if (moved.test(key) && entries.remove(key) != null) {
+				released++;
+			}
+		}
+		return released;
+	}
+
+	//Drops a partly restored snapshot before trying another
+	void clear() {
+		entries.clear();
+	}
+
+	//Weakly consistent view for snapshots, sees each entry either before or after a concurrent change
+	Iterable<Map.Entry<Long, Entry>> entries() {
+		return entries.entrySet();
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * StripedLimit.java
+ *
+ * Cap on how many of something may be held at once, such as the open
+ * streams of a method, without every acquire and release hitting one
+ * counter. The cap is split into stripes, each with its share and a cache
+ * line of its own. A thread takes a slot from its own stripe and only
+ * looks at the others when that one is full, so the cap is still exact:
+ * acquiring fails only once every stripe is full.
+ */
+
+package server;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+final class StripedLimit {
+	private static final int PAD = 32; //Ints between stripes, two cache lines
+
+	private final int mask; //Stripes - 1
+	private final int[] shares; //Slots of each stripe, they add up to the limit
+	private final AtomicIntegerArray held; //Slots held in each stripe, every PAD-th entry
+
+	//Limit split into up to the given number of stripes, rounded down to a power of two and to no
+	//more stripes than the limit has slots
+	StripedLimit(int limit, int stripes) {
+		int n = Integer.highestOneBit(Math.max(1, Math.min(stripes, limit)));
+		this.mask = n - 1;
+		this.shares = new int[n];
+		for (int i = 0; i < n; i++) {
+			shares[i] = limit / n + (i < limit % n ? 1 : 0);
+		}
+		this.held = new AtomicIntegerArray(n * PAD);
+	}
+
+	//Takes a slot, returns the stripe to give it back to, or -1 if the limit is reached
+	int tryAcquire() {
+		int home = (int) Thread.currentThread().threadId() & mask;
+		for (int i = 0; i <= mask; i++) {
+			int stripe = (home + i) & mask;
+			int slot = stripe * PAD;
+			for (int current = held.get(slot); current < shares[stripe]; current = held.get(slot)) {
+				if (held.compareAndSet(slot, current, current + 1)) {
+					return stripe;
+				}
+			}
+		}
+		return -1;
+	}
+
+	//Gives back a slot taken from the stripe, from any thread
+	void release(int stripe) {
+		held.decrementAndGet(stripe * PAD);
+	}
+
+}
@@ -14,38 +14,49 @@ import thermostat.protos.SetTargetTemperatureResponse;
 import thermostat.protos.GetTemperatureHistoryRequest;
 import thermostat.protos.TemperatureReading;
 import thermostat.protos.GetAverageTemperatureResponse;
+import thermostat.protos.HeatingLoad;
 import java.net.InetAddress;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
+import sharding.Homes;
+import sharding.Placement;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceInfo;
+import com.google.protobuf.Empty;
 
 public class ThermostatServer extends SmartThermostatImplBase {
 
 	private static final Logger logger = Logger.getLogger(ThermostatServer.class.getName());
-	private final Random random = new Random(); //Random generator for simulating data
+	static final long LOAD_INTERVAL_MS = Long.getLong("smarthome.thermostat.loadIntervalMs", 1_000); //Time between heating load readings
+	private static final double OUTDOOR_TEMP = 10.0; //Simulated outdoor temperature
+	private static final double KW_PER_DEGREE = 0.2; //Heating power per degree above outdoors
 	
 	public static void main(String[] args) throws IOException, InterruptedException {
-		ThermostatServer thermostatservice = new ThermostatServer();
-		int port = 50051; //Port where the gRPC server will listen
+		Journal journal = Journal.forServer("Thermostat"); //Durable target temperature changes
+		ThermostatServer thermostatservice = new ThermostatServer(journal);
+		int port = Integer.getInteger("smarthome.thermostat.port", 50051); //Port where the gRPC server will listen
+		Placement placement = Placement.forNode(); //Homes this node serves
+		Handoff handoff = new Handoff("Thermostat", placement, thermostatservice.snapshots, thermostatservice.targets); //Moves targets with their homes
 		
 		//Build and start the gRPC server
-		Server server = ServerBuilder
-				.forPort(port)
-				.addService(thermostatservice)
-				.build()
-				.start();
+		Server server = ServerBootstrap.start("Thermostat", port, journal, handoff, thermostatservice, new ThermostatServiceV2(thermostatservice));
 		
-		logger.info("Thermostat server started, listening on " + port);
+		logger.info("Thermostat server started, listening on " + port + " as node " + placement.self());
 		
-		//Register service via jmDNS for discovery on local network
+		//Register service via jmDNS for discovery on local network, publishing this node's place on the ring
 		JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
 		//(Service type, Service name, Service port, Service description)
-		ServiceInfo serviceInfo = ServiceInfo.create("_thermostat._grpc._tcp.local.", "ThermostatService", port, "Thermostat Server will give you the current temperature");
-		jmdns.registerService(serviceInfo);
+		placement.publish(jmdns, "_thermostat._grpc._tcp.local.", "ThermostatService", port, "Thermostat Server will give you the current temperature");
+		handoff.start();
+		//On shutdown hand this node's homes to the nodes taking them over, then leave the ring
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			handoff.leave();
+			jmdns.unregisterAllServices();
+			server.shutdown();
+		}));
 		System.out.println("Starting the Thermostat Server loop");
 		
 		//Wait until server is terminated
@@ -53,40 +64,63 @@ public class ThermostatServer extends SmartThermostatImplBase {
 		
 	}
 	
-	private volatile double currentTargetTemp = 20.0; //Init target temp
+	private static final double DEFAULT_TARGET_TEMP = 20.0; //Init target temp
+	private final StateTable targets; //Target per home, restored from snapshots and the journal on startup
+	private final Snapshots snapshots; //Also written when homes are handed over between nodes
+	
+	public ThermostatServer() {
+		this.targets = targetTable(Journal.disabled());
+		this.snapshots = new Snapshots("Thermostat", Journal.disabled(), targets);
+	}
+	
+	//Service whose target temperature survives restarts, restored from the journal
+	ThermostatServer(Journal journal) throws IOException {
+		this.targets = targetTable(journal);
+		this.snapshots = new Snapshots("Thermostat", journal, targets);
+		snapshots.restore();
+		snapshots.start();
+	}
+	
+	private static StateTable targetTable(Journal journal) {
+		return new StateTable(Journal.TARGET_TEMPERATURE, journal, (old, seq, a, b) -> new StateTable.Entry(seq, a, 0, 0));
+	}
 	
 	@Override
 	public void setTargetTemperature(SetTargetTemperatureRequest req, StreamObserver<SetTargetTemperatureResponse> responseObserver) {
 
-		currentTargetTemp = req.getTargetTemp(); //Read the target temperature
-		
-		//Build and send the response
+		//Build the response
 		SetTargetTemperatureResponse reply = SetTargetTemperatureResponse.newBuilder()
 				.setSuccess(true)
 				.build();
 		
-		responseObserver.onNext(reply); //Send response
-		responseObserver.onCompleted(); //Complete the stream
+		//Store the target temperature, respond once it is in the journal
+		DurableResponses.reply(setTargetTemp(Homes.currentKey(), req.getTargetTemp()), responseObserver, reply);
 	}
 	
 	@Override
     public void streamTemperatureHistory(GetTemperatureHistoryRequest req, StreamObserver<TemperatureReading> responseObserver) {
-		long startTH = req.getStartTimestamp(); //Start time in ms
-		long endTH = req.getEndTimestamp(); //End time in ms
 		long stepTH = 1_000; //Interval between samples = 1 sec
+		//Start time in ms, or right after the last reading a resuming client received
+		long startTH = historyStart(req.getStartTimestamp(), stepTH, req.hasResumeAfter(), req.getResumeAfter());
+		long endTH = req.getEndTimestamp(); //End time in ms
+		long home = Homes.currentKey();
+		
+		ServerCallStreamObserver<TemperatureReading> call = (ServerCallStreamObserver<TemperatureReading>) responseObserver;
+		TemperatureReading.Builder reading = TemperatureReading.newBuilder(); //Reused for every reading
 		
-		//Loop through timestamps and send readings
-		for (long i = startTH; i <= endTH; i += stepTH) {
-			double noisyTemp = currentTargetTemp + random.nextGaussian()*0.5; //Add Gaussian noise
+		//Loop through timestamps and send readings, stopping early if the client cancels
+		for (long i = startTH; i <= endTH && !call.isCancelled(); i += stepTH) {
+			double noisyTemp = noisyTemp(home, i); //Add Gaussian noise
 			
 			//Build and send response
-			TemperatureReading reading = TemperatureReading.newBuilder()
+			responseObserver.onNext(reading
 					.setTemperature(noisyTemp)
 					.setTimestamp(i)
-					.build();
-			responseObserver.onNext(reading);
+					.build());
+		}
+		if (!call.isCancelled()) {
+			responseObserver.onCompleted(); //Complete the stream
 		}
-		responseObserver.onCompleted(); //Complete the stream
 	}
 	
 	@Override
@@ -117,6 +151,7 @@ public class ThermostatServer extends SmartThermostatImplBase {
 				 //Build response
 				 GetAverageTemperatureResponse resp = GetAverageTemperatureResponse.newBuilder()
 						 .setAverageTemp(average)
+						 .setReadingCount(count)
 						 .build();
 				 
 				 responseObserver.onNext(resp); //Send response
@@ -125,4 +160,73 @@ public class ThermostatServer extends SmartThermostatImplBase {
 		};
 	}
 	
-}
\ No newline at end of file
+	@Override
+	public void streamHeatingLoad(Empty request, StreamObserver<HeatingLoad> responseObserver) {
+		ServerCallStreamObserver<HeatingLoad> call = (ServerCallStreamObserver<HeatingLoad>) responseObserver;
+		HeatingLoad.Builder load = HeatingLoad.newBuilder(); //Reused for every reading
+		long home = Homes.currentKey();
+		SplittableRandom random = Simulation.forCall(Simulation.HEATING_LOAD, home); //This stream's load noise
+		try {
+			while (ServerExecutors.awaitReady(call) && !Thread.currentThread().isInterrupted()) {
+				
+				//Build and send the current load
+				responseObserver.onNext(load
+						.setLoadKw(heatingLoadKw(home, random))
+						.setTimestamp(System.currentTimeMillis())
+						.build());
+				
+				ServerExecutors.pause(LOAD_INTERVAL_MS); //Wait before next reading, 1 second by default
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt(); //Error handling
+		} finally {
+			if (!call.isCancelled()) {
+				responseObserver.onCompleted(); //Complete the stream
+			}
+		}
+	}
+	
+	//State and simulation shared by the v1 and v2 services
+	
+	//Time of the first history reading to send, the next one on the start + n * step grid after
+	//the last reading received when resuming, so nothing the client has is sent again
+	static long historyStart(long start, long step, boolean resuming, long resumeAfter) {
+		if (!resuming || resumeAfter < start) {
+			return start;
+		}
+		return start + ((resumeAfter - start) / step + 1) * step;
+	}
+	
+	//State is kept per home, keyed by the home's hash
+	
+	double targetTemp(long home) {
+		StateTable.Entry entry = targets.get(home);
+		return entry != null ? Double.longBitsToDouble(entry.v0) : DEFAULT_TARGET_TEMP;
+	}
+	
+	//Changes the target, the future completes once the change is durable
+	CompletableFuture<Long> setTargetTemp(long home, double target) {
+		return targets.update(home, Double.doubleToRawLongBits(target), 0);
+	}
+	
+	//Reading at a point in time, the same whichever call or version asks for it
+	double noisyTemp(long home, long timeMs) {
+		return noisyTemp(targetTemp(home), home, timeMs);
+	}
+	
+	double noisyTemp(double target, long home, long timeMs) {
+		return target + Simulation.random(Simulation.TEMPERATURE, home, timeMs).nextGaussian()*0.5;
+	}
+	
+	//Readings for export, around the target set when the export starts
+	Exports.Series temperatureSeries(long home) {
+		double target = targetTemp(home);
+		return new Exports.Series("temperature", Double.doubleToRawLongBits(target), new String[] {"temperature_c"}, new int[] {2},
+				(timeMs, values) -> values[0] = (float) noisyTemp(target, home, timeMs));
+	}
+	
+	//Power needed to hold the target temperature against the outdoors
+	double heatingLoadKw(long home, SplittableRandom random) {
+		return Math.max(0, (targetTemp(home) - OUTDOOR_TEMP) * KW_PER_DEGREE + random.nextGaussian() * 0.1);
+	}
+}
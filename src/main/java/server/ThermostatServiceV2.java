@@ -0,0 +1,195 @@
+/*
+ * ThermostatServiceV2.java
+ *
+ * Serves the compact v2 thermostat schema next to v1. Both versions
+ * share the v1 service's target temperature and simulation.
+ */
+
+package server;
+
+import java.util.logging.Logger;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import sharding.Homes;
+import thermostat.protos.v2.SmartThermostatGrpc.SmartThermostatImplBase;
+import thermostat.protos.v2.ExportChunk;
+import thermostat.protos.v2.ExportFormat;
+import thermostat.protos.v2.ExportRequest;
+import thermostat.protos.v2.GetAverageTemperatureResponse;
+import thermostat.protos.v2.GetTemperatureHistoryRequest;
+import thermostat.protos.v2.HistoryField;
+import thermostat.protos.v2.SetTargetTemperatureRequest;
+import thermostat.protos.v2.SetTargetTemperatureResponse;
+import thermostat.protos.v2.TemperatureChunk;
+import thermostat.protos.v2.TemperatureReading;
+
+public class ThermostatServiceV2 extends SmartThermostatImplBase {
+	private static final Logger logger = Logger.getLogger(ThermostatServiceV2.class.getName());
+	private static final long STEP_MS = 1_000; //Interval between samples
+	private static final int CHUNK_READINGS = Integer.getInteger("smarthome.thermostat.chunkReadings", 1024);
+	private final ThermostatServer v1;
+
+	public ThermostatServiceV2(ThermostatServer v1) {
+		this.v1 = v1;
+	}
+
+	@Override
+	public void setTargetTemperature(SetTargetTemperatureRequest req, StreamObserver<SetTargetTemperatureResponse> responseObserver) {
+		DurableResponses.reply(v1.setTargetTemp(Homes.currentKey(), req.getTargetCenti() / 100.0), responseObserver,
+				SetTargetTemperatureResponse.newBuilder().setSuccess(true).build());
+	}
+
+	@Override
+	public void streamTemperatureHistory(GetTemperatureHistoryRequest req, StreamObserver<TemperatureReading> responseObserver) {
+		ServerCallStreamObserver<TemperatureReading> call = (ServerCallStreamObserver<TemperatureReading>) responseObserver;
+		long home = Homes.currentKey();
+		double target = v1.targetTemp(home); //One target for the whole query
+		ReadingFilter filter = filter(req, home, target, responseObserver);
+		if (filter == null) {
+			return;
+		}
+		boolean time = req.getFieldsCount() == 0 || req.getFieldsList().contains(HistoryField.TIME);
+		boolean value = req.getFieldsCount() == 0 || req.getFieldsList().contains(HistoryField.VALUE);
+		boolean change = req.getFieldsList().contains(HistoryField.CHANGE);
+		long end = req.getEndTimeMs();
+		//Readings are tested as they are scanned, only passing ones are built and sent, and only while the
+		//transport can take them, so a long range is never buffered whole
+		call.setOnReadyHandler(new Runnable() {
+			private final TemperatureReading.Builder reading = TemperatureReading.newBuilder(); //Reused for every reading
+			private long next = ThermostatServer.historyStart(req.getStartTimeMs(), STEP_MS, req.hasResumeAfterMs(), req.getResumeAfterMs());
+			private boolean done;
+
+			@Override
+			public void run() {
+				while (!done && call.isReady()) {
+					int centi = 0;
+					while (next <= end && !(filter.timePasses(next) && filter.valuePasses(next, centi = centi(target, home, next)))) {
+						next += STEP_MS; //Skip to the next passing reading
+					}
+					if (call.isCancelled()) {
+						done = true;
+						return;
+					}
+					if (next > end) {
+						done = true;
+						call.onCompleted();
+						return;
+					}
+					reading.clear();
+					if (time) {
+						reading.setTimeMs(next);
+					}
+					if (value) {
+						reading.setCentiDegrees(centi);
+					}
+					if (change) {
+						reading.setChangeCenti(filter.change(next, centi));
+					}
+					call.onNext(reading.build());
+					next += STEP_MS;
+				}
+			}
+		});
+	}
+
+	@Override
+	public void streamTemperatureHistoryChunks(GetTemperatureHistoryRequest req, StreamObserver<TemperatureChunk> responseObserver) {
+		ServerCallStreamObserver<TemperatureChunk> call = (ServerCallStreamObserver<TemperatureChunk>) responseObserver;
+		long end = req.getEndTimeMs();
+		long home = Homes.currentKey(); //Read once for every chunk
+		double target = v1.targetTemp(home);
+		ReadingFilter filter = filter(req, home, target, responseObserver);
+		if (filter == null) {
+			return;
+		}
+		boolean values = req.getFieldsCount() == 0 || req.getFieldsList().contains(HistoryField.VALUE);
+		//Chunks are produced only while the transport can take them, so long ranges are never buffered whole.
+		//Each run of passing readings gets chunks of its own, a run ends at the first reading that fails.
+		call.setOnReadyHandler(new Runnable() {
+			private final TemperatureChunk.Builder chunk = TemperatureChunk.newBuilder(); //Reused for every chunk
+			private long next = ThermostatServer.historyStart(req.getStartTimeMs(), STEP_MS, req.hasResumeAfterMs(), req.getResumeAfterMs());
+			private boolean done;
+
+			@Override
+			public void run() {
+				while (!done && call.isReady()) {
+					int centi = 0;
+					while (next <= end && !(filter.timePasses(next) && filter.valuePasses(next, centi = centi(target, home, next)))) {
+						next += STEP_MS; //Skip to the start of the next run
+					}
+					if (next > end || call.isCancelled()) {
+						done = true;
+						call.onCompleted();
+						return;
+					}
+					chunk.clear().setStartTimeMs(next).setStepMs((int) STEP_MS);
+					int count = 0;
+					do {
+						if (values) {
+							chunk.addCentiDegrees(centi);
+						}
+						count++;
+						next += STEP_MS;
+					} while (count < CHUNK_READINGS && next <= end
+							&& filter.timePasses(next) && filter.valuePasses(next, centi = centi(target, home, next)));
+					if (!values) {
+						chunk.setReadingCount(count);
+					}
+					call.onNext(chunk.build());
+				}
+			}
+		});
+	}
+
+	//The request's filter compiled for the query, or null once the call has failed with the reason
+	private ReadingFilter filter(GetTemperatureHistoryRequest req, long home, double target, StreamObserver<?> responseObserver) {
+		try {
+			return ReadingFilter.compile(req.getFilter(), (int) Math.round(target * 100), STEP_MS, t -> centi(target, home, t));
+		} catch (IllegalArgumentException e) {
+			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+			return null;
+		}
+	}
+
+	//Reading in hundredths of a degree
+	private int centi(double target, long home, long timeMs) {
+		return (int) Math.round(v1.noisyTemp(target, home, timeMs) * 100);
+	}
+
+	@Override
+	public void exportTemperatureHistory(ExportRequest req, StreamObserver<ExportChunk> responseObserver) {
+		long home = Homes.currentKey();
+		Exports.export((ServerCallStreamObserver<ExportChunk>) responseObserver, home, req.getStartTimeMs(), req.getEndTimeMs(),
+				req.getStepMs(), req.getFormat() == ExportFormat.CSV, v1.temperatureSeries(home),
+				(name, bytes, data) -> ExportChunk.newBuilder().setFileName(name).setFileBytes(bytes).setData(data).build());
+	}
+
+	@Override
+	public StreamObserver<TemperatureReading> getAverageTemperature(StreamObserver<GetAverageTemperatureResponse> responseObserver) {
+		return new StreamObserver<TemperatureReading>() {
+			private long sumCenti; //Exact, no floating point drift over long uploads
+			private int count;
+
+			@Override
+			public void onNext(TemperatureReading reading) {
+				sumCenti += reading.getCentiDegrees();
+				count++;
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				logger.warning("Stream error: " + t); //Error handling
+			}
+
+			@Override
+			public void onCompleted() {
+				responseObserver.onNext(GetAverageTemperatureResponse.newBuilder()
+						.setAverageCenti(count == 0 ? 0 : (int) Math.round((double) sumCenti / count))
+						.setReadingCount(count)
+						.build());
+				responseObserver.onCompleted();
+			}
+		};
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * TimestampCache.java
+ *
+ * ISO-8601 timestamps for streamed messages, formatted once per second
+ * and shared by every stream. The value is kept as the UTF-8 ByteString
+ * that protobuf writes to the wire, so setting it on a message neither
+ * formats nor encodes anything. Readings from the past, replayed or
+ * resumed ones, are formatted from their own time instead, straight into
+ * the 20 bytes of the ISO form without going through Instant.
+ */
+
+package server;
+
+import java.time.Instant;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+final class TimestampCache {
+
+	//One formatted second; replaced as a whole so readers never see a torn pair
+	private static final class Entry {
+		final long second;
+		final ByteString iso;
+
+		Entry(long second) {
+			this.second = second;
+			this.iso = format(second);
+		}
+	}
+
+	private static volatile Entry current = new Entry(System.currentTimeMillis() / 1000);
+
+	private TimestampCache() {
+	}
+
+	//Current time to the second, e.g. 2024-05-01T12:00:00Z
+	static ByteString now() {
+		return current().iso;
+	}
+
+	//Time of a reading to the second. Live readings share the cached second, older ones are formatted
+	//on their own so a replayed reading shows when it was taken, not when it was sent.
+	static ByteString at(long timeMs) {
+		long second = Math.floorDiv(timeMs, 1000);
+		Entry e = current;
+		if (e.second != second) {
+			e = current();
+		}
+		return e.second == second ? e.iso : new Entry(second).iso;
+	}
+
+	//Same text as Instant.ofEpochSecond(second).toString(), written into one array for years 0 to 9999
+	private static ByteString format(long second) {
+		long days = Math.floorDiv(second, 86_400);
+		int secondOfDay = Math.floorMod(second, 86_400);
+		//Civil date from days since 1970-01-01, in 400-year eras starting on March 1st
+		long z = days + 719_468;
+		long era = Math.floorDiv(z, 146_097);
+		int dayOfEra = (int) (z - era * 146_097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = era * 400 + yearOfEra + (month <= 2 ? 1 : 0);
+		if (year < 0 || year > 9999) {
+			return ByteString.copyFromUtf8(Instant.ofEpochSecond(second).toString()); //Signed or longer years
+		}
+		byte[] b = new byte[20];
+		digits(b, 0, (int) year, 4);
+		b[4] = '-';
+		digits(b, 5, month, 2);
+		b[7] = '-';
+		digits(b, 8, day, 2);
+		b[10] = 'T';
+		digits(b, 11, secondOfDay / 3600, 2);
+		b[13] = ':';
+		digits(b, 14, secondOfDay / 60 % 60, 2);
+		b[16] = ':';
+		digits(b, 17, secondOfDay % 60, 2);
+		b[19] = 'Z';
+		return UnsafeByteOperations.unsafeWrap(b); //Never written again
+	}
+
+	private static void digits(byte[] b, int at, int value, int width) {
+		for (int i = at + width - 1; i >= at; i--) {
+			b[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	private static Entry current() {
+		long second = System.currentTimeMillis() / 1000;
+		Entry e = current;
+		if (e.second != second) {
+			e = new Entry(second); //At most a few threads race here once a second, any winner is correct
+			current = e;
+		}
+		return e;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * TokenBucket.java
+ *
+ * Lock-free token bucket in GCRA form (generic cell rate algorithm).
+ * The whole bucket state is one "theoretical arrival time" updated with
+ * a single compare-and-set, so checking a permit never takes a lock
+ * or allocates.
+ *
+ * A bucket hit from many threads at once can be split into stripes, each
+ * with its share of the rate and burst and a cache line of its own. A
+ * thread takes permits from its own stripe and only looks at the others
+ * when that one is empty, so threads do not fight over one compare-and-set
+ * while the bucket has permits, and together they still get the whole rate.
+ */
+
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+final class TokenBucket {
+	private static final int PAD = 16; //Longs between stripes, two cache lines
+	private static final long EMPTY = Long.MIN_VALUE; //Stripe never used
+
+	private final long intervalNanos; //Time that one permit of a stripe is worth
+	private final long toleranceNanos; //How far ahead of now a stripe may run (its burst)
+	private final int mask; //Stripes - 1
+	private final AtomicLongArray tat; //Theoretical arrival time of each stripe, every PAD-th slot
+
+	TokenBucket(double permitsPerSecond, int burst) {
+		this(permitsPerSecond, burst, 1);
+	}
+
+	//Bucket split into up to the given number of stripes, rounded down to a power of two and to
+	//no more stripes than the burst has permits
+	TokenBucket(double permitsPerSecond, int burst, int stripes) {
+		int n = Integer.highestOneBit(Math.max(1, Math.min(stripes, burst)));
+		this.mask = n - 1;
+		this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) * n / permitsPerSecond));
+		this.toleranceNanos = intervalNanos * Math.max(0, burst / n - 1);
+		this.tat = new AtomicLongArray(n * PAD);
+		for (int i = 0; i < n; i++) {
+			tat.set(i * PAD, EMPTY);
+		}
+	}
+
+	//Takes one permit; returns 0 when granted, otherwise nanoseconds until one frees up
+	long tryAcquire(long nowNanos) {
+		int home = mask == 0 ? 0 : stripe();
+		long wait = tryAcquire(home, nowNanos);
+		for (int i = 1; wait > 0 && i <= mask; i++) {
+			//Own stripe empty, take from another before turning the caller away
+			wait = Math.min(wait, tryAcquire((home + i) & mask, nowNanos));
+		}
+		return wait;
+	}
+
+	private long tryAcquire(int stripe, long nowNanos) {
+		int slot = stripe * PAD;
+		while (true) {
+			long current = tat.get(slot);
+			long base = current == EMPTY || current - nowNanos < 0 ? nowNanos : current;
+			long wait = base - nowNanos - toleranceNanos;
+			if (wait > 0) {
+				return wait; //Stripe is empty
+			}
+			if (tat.compareAndSet(slot, current, base + intervalNanos)) {
+				return 0;
+			}
+		}
+	}
+
+	//True when the bucket has fully refilled and holds no state worth keeping
+	boolean isIdle(long nowNanos) {
+		for (int i = 0; i <= mask; i++) {
+			long current = tat.get(i * PAD);
+			if (current != EMPTY && current - nowNanos > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//Stripe of the calling thread, picked by thread id like the latency histograms' stripes
+	private int stripe() {
+		return (int) Thread.currentThread().threadId() & mask;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * UpstreamFeed.java
+ *
+ * Keeps one streaming call to another service open for the life of the
+ * server, handing each message to a sink. The call is consumed through
+ * the client's Flow.Publisher, so at most a small batch of messages is
+ * ever requested ahead of the sink. When the stream fails or ends it is
+ * reopened after an exponential backoff, reset by the next message.
+ */
+
+package server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+final class UpstreamFeed<T> implements Flow.Subscriber<T> {
+	private static final Logger logger = Logger.getLogger(UpstreamFeed.class.getName());
+
+	//Opens and reopens the feeds, the first open also resolves each client's channel
+	private static final ScheduledExecutorService RECONNECT = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "upstream-reconnect");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final int BATCH = 16; //Messages requested at a time
+	private static final long MIN_BACKOFF_MS = 1_000;
+	private static final long MAX_BACKOFF_MS = 30_000;
+
+	private final String name;
+	private final Supplier<Flow.Publisher<T>> source;
+	private final Consumer<? super T> sink;
+	private Flow.Subscription subscription;
+	private int received;
+	private volatile long backoffMs = MIN_BACKOFF_MS;
+
+	//The source opens a new call on every subscribe, e.g. SolarClient::streamRealTimeOutputAsync
+	UpstreamFeed(String name, Supplier<Flow.Publisher<T>> source, Consumer<? super T> sink) {
+		this.name = name;
+		this.source = source;
+		this.sink = sink;
+	}
+
+	void start() {
+		RECONNECT.execute(this::open);
+	}
+
+	private void open() {
+		try {
+			source.get().subscribe(this);
+		} catch (RuntimeException e) {
+			logger.warning(name + " feed could not be opened: " + e);
+			reopenLater();
+		}
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription s) {
+		subscription = s;
+		received = 0;
+		s.request(BATCH);
+	}
+
+	@Override
+	public void onNext(T value) {
+		backoffMs = MIN_BACKOFF_MS; //Healthy again
+		try {
+			sink.accept(value);
+		} finally {
+			//Top up by half a batch at a time, messages arrive one at a time so this never overlaps
+			if (++received == BATCH / 2) {
+				received = 0;
+				subscription.request(BATCH / 2);
+			}
+		}
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		logger.warning(name + " feed failed: " + t.getMessage()); //Error handling
+		reopenLater();
+	}
+
+	@Override
+	public void onComplete() {
+		logger.info(name + " feed ended, reopening");
+		reopenLater();
+	}
+
+	private void reopenLater() {
+		long delay = backoffMs;
+		backoffMs = Math.min(MAX_BACKOFF_MS, delay * 2);
+		RECONNECT.schedule(this::open, delay, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * ZoneRegistry.java
+ *
+ * Interns free-form zone names as small numeric ids for the v2 lighting
+ * schema. Each home registers its zone names once per session and sends
+ * only the ids afterwards. A home's ids are dense and start at 1.
+ *
+ * Each home's registration carries a random token, which the client sends
+ * back with its ids. The token changes whenever a home's ids start over:
+ * after the home was forgotten, after a restart, or on the node a home
+ * moved to. A call with an older token is refused, so an id
+ * never silently names a zone another client registered since.
+ *
+ * A home's zones are an immutable snapshot, replaced whole when a name is
+ * added, so lookups never lock. Homes and their zones are capped: a home
+ * past its zone limit is refused, and once too many are registered the
+ * ones unused the longest are forgotten, a slice at a time.
+ *
+ * Configured with system properties:
+ *   smarthome.lighting.maxZonesPerHome (256)    zone names one home can register
+ *   smarthome.lighting.maxZoneHomes    (10000)  homes whose zones are kept
+ */
+
+package server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+final class ZoneRegistry {
+	static final int MAX_ZONES = Integer.getInteger("smarthome.lighting.maxZonesPerHome", 256);
+	private static final int MAX_HOMES = Integer.getInteger("smarthome.lighting.maxZoneHomes", 10_000);
+	private static final int EVICT_SHARE = 8; //A full registry forgets this fraction of its homes at once
+
+	//One home's zones as of a registration, never changed once published
+	static final class Zones {
+		final long token; //Sent back by the client with the ids
+		private final Map<String, Integer> ids;
+		private final String[] names; //Index is id - 1
+		volatile long lastUsedMs;
+
+		private Zones(long token, Map<String, Integer> ids, String[] names) {
+			this.token = token;
+			this.ids = ids;
+			this.names = names;
+			this.lastUsedMs = System.currentTimeMillis();
+		}
+
+		//Id of the name, or -1 if it is not registered
+		int id(String name) {
+			Integer id = ids.get(name);
+			return id != null ? id : -1;
+		}
+
+		//Name for an id, or null if the home was never given the id
+		String name(int id) {
+			return id >= 1 && id <= names.length ? names[id - 1] : null;
+		}
+
+		//These zones plus the new names among the given ones, or null if they would pass the cap
+		private Zones with(List<String> added) {
+			Map<String, Integer> next = null;
+			String[] nextNames = names;
+			for (String name : added) {
+				if (ids.containsKey(name) || next != null && next.containsKey(name)) {
+					continue;
+				}
+				if (next == null) {
+					next = new HashMap<>(ids);
+				}
+				if (next.size() >= MAX_ZONES) {
+					return null;
+				}
+				nextNames = Arrays.copyOf(nextNames, next.size() + 1);
+				nextNames[next.size()] = name;
+				next.put(name, next.size() + 1);
+			}
+			return next == null ? this : new Zones(token, next, nextNames);
+		}
+	}
+
+	private final ConcurrentHashMap<Long, Zones> homes = new ConcurrentHashMap<>();
+
+	//Registers the names with the home, assigning ids to the ones it has not registered before.
+	//Returns the home's zones, or null if the home would register more zones than it may.
+	Zones register(long home, List<String> names) {
+		if (!homes.containsKey(home) && homes.size() >= MAX_HOMES) {
+			evictIdle();
+		}
+		Zones[] result = new Zones[1];
+		homes.compute(home, (h, old) -> {
+			Zones current = old != null ? old : new Zones(newToken(), Map.of(), new String[0]);
+			Zones next = current.with(names);
+			result[0] = next;
+			return next != null ? next : old; //Over the cap, the home keeps what it had
+		});
+		if (result[0] != null) {
+			result[0].lastUsedMs = System.currentTimeMillis();
+		}
+		return result[0];
+	}
+
+	//The home's zones if the token is from their registration, null if the home has to register again
+	Zones zones(long home, long token) {
+		Zones zones = homes.get(home);
+		if (zones == null || zones.token != token) {
+			return null;
+		}
+		zones.lastUsedMs = System.currentTimeMillis();
+		return zones;
+	}
+
+	//Forgets the homes unused the longest. Cutting a slice at once keeps this off the path of most
+	//new registrations when the registry is full.
+	private void evictIdle() {
+		long[] used = new long[homes.size()];
+		int n = 0;
+		for (Zones zones : homes.values()) {
+			if (n == used.length) {
+				break; //Grew during the walk
+			}
+			used[n++] = zones.lastUsedMs;
+		}
+		if (n == 0) {
+			return;
+		}
+		Arrays.sort(used, 0, n);
+		long cutoff = used[Math.min(n - 1, n / EVICT_SHARE)];
+		homes.values().removeIf(zones -> zones.lastUsedMs <= cutoff);
+	}
+
+	//Nonzero, so a client that never registered never matches
+	private static long newToken() {
+		long token;
+		do {
+			token = ThreadLocalRandom.current().nextLong();
+		} while (token == 0);
+		return token;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * HashRing.java
+ *
+ * Consistent hash ring placing homes on server nodes. Each node owns a
+ * number of virtual nodes, points on a 64-bit ring derived from its id,
+ * and a home belongs to the first point at or after the home's hash.
+ * With enough virtual nodes every node owns close to an equal share, and
+ * a joining node only takes over the homes that fall just before its own
+ * points, about 1/N of them, all from nodes it now precedes.
+ *
+ * Rings are immutable and built from node ids alone, so every client and
+ * server that sees the same nodes computes the same placement.
+ */
+
+package sharding;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+public final class HashRing {
+	public static final HashRing EMPTY = new HashRing(new TreeMap<>());
+	private static final double RING_SIZE = 0x1p64;
+
+	private final TreeMap<String, Integer> vnodes; //Node id to its number of virtual nodes
+	private final long[] points; //Sorted ring positions
+	private final String[] owners; //Node owning each position
+
+	private HashRing(TreeMap<String, Integer> vnodes) {
+		this.vnodes = vnodes;
+		int total = 0;
+		for (int n : vnodes.values()) {
+			total += n;
+		}
+
+		//Sort by position, ties (practically never) by node id so every ring orders them the same
+		long[][] pairs = new long[total][];
+		String[] ids = vnodes.keySet().toArray(new String[0]);
+		int k = 0;
+		for (int node = 0; node < ids.length; node++) {
+			for (int i = 0; i < vnodes.get(ids[node]); i++) {
+				pairs[k++] = new long[] {Homes.hash(ids[node] + "#" + i), node};
+			}
+		}
+		Arrays.sort(pairs, (x, y) -> x[0] != y[0] ? Long.compare(x[0], y[0]) : Long.compare(x[1], y[1]));
+		points = new long[total];
+		owners = new String[total];
+		for (int i = 0; i < total; i++) {
+			points[i] = pairs[i][0];
+			owners[i] = ids[(int) pairs[i][1]];
+		}
+	}
+
+	//Ring with the node added, or its virtual node count changed
+	public HashRing with(String node, int virtualNodes) {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("A node needs at least one virtual node: " + virtualNodes);
+		}
+		Integer current = vnodes.get(node);
+		if (current != null && current == virtualNodes) {
+			return this;
+		}
+		TreeMap<String, Integer> next = new TreeMap<>(vnodes);
+		next.put(node, virtualNodes);
+		return new HashRing(next);
+	}
+
+	public HashRing without(String node) {
+		if (!vnodes.containsKey(node)) {
+			return this;
+		}
+		TreeMap<String, Integer> next = new TreeMap<>(vnodes);
+		next.remove(node);
+		return new HashRing(next);
+	}
+
+	//Node owning the home, or null for an empty ring
+	public String owner(String home) {
+		return ownerOf(Homes.key(home));
+	}
+
+	//Node owning the key, or null for an empty ring
+	public String ownerOf(long key) {
+		if (points.length == 0) {
+			return null;
+		}
+		int i = Arrays.binarySearch(points, key);
+		if (i < 0) {
+			i = -i - 1;
+			if (i == points.length) {
+				i = 0; //Past the last point, wraps to the first
+			}
+		}
+		return owners[i];
+	}
+
+	public Set<String> nodes() {
+		return Collections.unmodifiableSet(vnodes.keySet());
+	}
+
+	public boolean isEmpty() {
+		return points.length == 0;
+	}
+
+	//Fraction of the hash space each node owns, for logs and capacity checks
+	public Map<String, Double> shares() {
+		TreeMap<String, Double> shares = new TreeMap<>();
+		for (int i = 0; i < points.length; i++) {
+			long from = i == 0 ? points[points.length - 1] : points[i - 1];
+			double width = points.length == 1 ? RING_SIZE : unsigned(points[i] - from); //Arc ending at this point
+			shares.merge(owners[i], width / RING_SIZE, Double::sum);
+		}
+		return shares;
+	}
+
+	private static double unsigned(long v) {
+		return v >= 0 ? v : (v >>> 1) * 2.0 + (v & 1);
+	}
+
+	@Override
+	public String toString() {
+		return "HashRing" + vnodes;
+	}
+}
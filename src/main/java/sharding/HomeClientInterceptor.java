@@ -0,0 +1,32 @@
+/*
+ * HomeClientInterceptor.java
+ *
+ * Client side of tenancy: names the call's home in the request header,
+ * taken from the call's OPTION or else the smarthome.home property.
+ */
+
+package sharding;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+
+public final class HomeClientInterceptor implements ClientInterceptor {
+
+	@Override
+	public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+			CallOptions callOptions, Channel next) {
+		String home = Homes.forCall(callOptions);
+		return new SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+			@Override
+			public void start(Listener<RespT> responseListener, Metadata headers) {
+				headers.put(Homes.HEADER, home);
+				super.start(responseListener, headers);
+			}
+		};
+	}
+}
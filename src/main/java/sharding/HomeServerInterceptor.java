@@ -0,0 +1,65 @@
+/*
+ * HomeServerInterceptor.java
+ *
+ * Server side of tenancy: reads the home of each call to the sharded
+ * services into the call's context, and turns away calls for homes this
+ * node does not own. Those fail with UNAVAILABLE, which clients already
+ * retry, and an owner trailer so the client can go straight to the right
+ * node while its own view of the ring catches up. Homes this node owns but
+ * whose state has not arrived from their previous node are turned away
+ * the same way, without the trailer. Other services on the server, such
+ * as admin and handoff, are node-level and pass through.
+ */
+
+package sharding;
+
+import java.util.Set;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+public final class HomeServerInterceptor implements ServerInterceptor {
+	private final Placement placement;
+	private final Set<String> services; //Full names of the services partitioned by home
+
+	public HomeServerInterceptor(Placement placement, Set<String> services) {
+		this.placement = placement;
+		this.services = Set.copyOf(services);
+	}
+
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+			ServerCallHandler<ReqT, RespT> next) {
+		if (!services.contains(call.getMethodDescriptor().getServiceName())) {
+			return next.startCall(call, headers);
+		}
+		String home = headers.get(Homes.HEADER);
+		if (home == null) {
+			home = Homes.DEFAULT;
+		} else if (!Homes.valid(home)) {
+			return reject(call, Status.INVALID_ARGUMENT.withDescription("Invalid home id"), new Metadata());
+		}
+
+		String owner = placement.owner(home);
+		if (!placement.self().equals(owner)) {
+			Metadata trailers = new Metadata();
+			trailers.put(Homes.OWNER, owner);
+			return reject(call, Status.UNAVAILABLE.withDescription("Home " + home + " is served by node " + owner), trailers);
+		}
+		if (!placement.ready(home)) {
+			//Owned here, but its state is still on the node it moved from. No owner trailer, the client retries here.
+			return reject(call, Status.UNAVAILABLE.withDescription("Home " + home + " is moving to node " + owner), new Metadata());
+		}
+		return Contexts.interceptCall(Context.current().withValue(Homes.CONTEXT, home), call, headers, next);
+	}
+
+	private static <ReqT, RespT> ServerCall.Listener<ReqT> reject(ServerCall<ReqT, RespT> call, Status status, Metadata trailers) {
+		call.close(status, trailers);
+		return new ServerCall.Listener<ReqT>() {
+		};
+	}
+}
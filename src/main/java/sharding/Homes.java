@@ -0,0 +1,97 @@
+/*
+ * Homes.java
+ *
+ * Home ids, the unit of tenancy. Every call to the thermostat, solar and
+ * lighting services belongs to one home, named in a request header so
+ * streaming calls and calls without a request message carry it too.
+ * Calls without the header belong to the default home, which keeps
+ * single-household clients working unchanged.
+ *
+ * A home id is a short printable name. Servers key their state by a
+ * 64-bit hash of it, and the hash ring places homes on nodes by the same
+ * hash, so clients and servers agree on placement without a directory.
+ *
+ * Clients name their home with the smarthome.home system property, or per
+ * call with the OPTION call option.
+ */
+
+package sharding;
+
+import java.nio.charset.StandardCharsets;
+import io.grpc.CallOptions;
+import io.grpc.Context;
+import io.grpc.Metadata;
+
+public final class Homes {
+	public static final String DEFAULT = "default";
+	public static final int MAX_LENGTH = 64;
+
+	//Request header naming the call's home
+	public static final Metadata.Key<String> HEADER = Metadata.Key.of("smarthome-home", Metadata.ASCII_STRING_MARSHALLER);
+
+	//Trailer on a call sent to the wrong node, naming the node that owns the home
+	public static final Metadata.Key<String> OWNER = Metadata.Key.of("smarthome-home-owner", Metadata.ASCII_STRING_MARSHALLER);
+
+	//Per-call home for clients acting for several homes, e.g. the load generator
+	public static final CallOptions.Key<String> OPTION = CallOptions.Key.create("smarthome-home");
+
+	//Home of the call being served, set by HomeServerInterceptor
+	static final Context.Key<String> CONTEXT = Context.key("smarthome-home");
+
+	private static final String CONFIGURED = System.getProperty("smarthome.home", DEFAULT);
+
+	private Homes() {
+	}
+
+	//Home a client call is made for
+	public static String forCall(CallOptions options) {
+		String home = options.getOption(OPTION);
+		return home != null ? home : CONFIGURED;
+	}
+
+	//Home of the call being served, read on the handler's thread
+	public static String current() {
+		String home = CONTEXT.get();
+		return home != null ? home : DEFAULT;
+	}
+
+	//State key of the call being served
+	public static long currentKey() {
+		return key(current());
+	}
+
+	//Letters, digits and . _ : - only, so ids are safe in headers, logs and file names
+	public static boolean valid(String home) {
+		if (home.isEmpty() || home.length() > MAX_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < home.length(); i++) {
+			char c = home.charAt(i);
+			if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '.' || c == '_' || c == ':' || c == '-')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//State key and ring position of a home. The default home keeps key 0, the key single-home
+	//servers journaled their state under.
+	public static long key(String home) {
+		return DEFAULT.equals(home) ? 0 : hash(home);
+	}
+
+	//64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so similar names spread evenly
+	static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
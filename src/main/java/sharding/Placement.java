@@ -0,0 +1,225 @@
+/*
+ * Placement.java
+ *
+ * One process's view of which node serves which home for a service type.
+ * Nodes publish themselves through their jmDNS registration: the instance
+ * is named after the service and node, and its TXT record carries the node
+ * id and virtual node count. Everyone watching the service type builds the
+ * same hash ring from those records, so placement needs no coordinator.
+ *
+ * A server's view always includes the server itself, so a lone node owns
+ * every home before (or without) discovery. A client's view holds the
+ * nodes it has discovered, with their addresses.
+ *
+ * Configured with system properties:
+ *   smarthome.sharding.node    (local host name)  id of this node, stable across restarts
+ *   smarthome.sharding.vnodes  (256)              virtual nodes of this node
+ */
+
+package sharding;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+import java.util.logging.Logger;
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+
+public final class Placement {
+	private static final Logger logger = Logger.getLogger(Placement.class.getName());
+
+	private static final String NODE_KEY = "node";
+	private static final String VNODES_KEY = "vnodes";
+	private static final int DEFAULT_VNODES = 256;
+	private static final long DISCOVERY_SETTLE_MS = 1_000; //Time for the other nodes to answer after the first
+
+	private final String self; //Null for a client's view
+	private final int vnodes;
+	private volatile HashRing ring = HashRing.EMPTY;
+	private final Map<String, String> nodeByInstance = new HashMap<>(); //Guarded by this
+	private final ConcurrentHashMap<String, InetSocketAddress> addresses = new ConcurrentHashMap<>();
+	private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<>();
+	private volatile LongPredicate ready = key -> true; //Whether a home's state is on this node, by home key
+	private volatile JmDNS jmdns; //Set once published, with the type and name below
+	private volatile String type;
+	private volatile String serviceName;
+
+	private Placement(String self, int vnodes) {
+		this.self = self;
+		this.vnodes = vnodes;
+		if (self != null) {
+			ring = ring.with(self, vnodes);
+		}
+	}
+
+	//Server's view, configured by the system properties, owning every home until peers show up
+	public static Placement forNode() throws IOException {
+		String node = System.getProperty("smarthome.sharding.node");
+		if (node == null) {
+			node = InetAddress.getLocalHost().getHostName();
+		}
+		return new Placement(node, Integer.getInteger("smarthome.sharding.vnodes", DEFAULT_VNODES));
+	}
+
+	//Client's view, empty until nodes are discovered
+	public static Placement forClient() {
+		return new Placement(null, 0);
+	}
+
+	//Registers this node under the service type and starts following its peers
+	public void publish(JmDNS jmdns, String type, String serviceName, int port, String description) throws IOException {
+		Map<String, String> props = new HashMap<>();
+		props.put(NODE_KEY, self);
+		props.put(VNODES_KEY, Integer.toString(vnodes));
+		props.put("description", description);
+		//(Service type, Service name, Service port, weight, priority, TXT properties)
+		jmdns.registerService(ServiceInfo.create(type, instance(serviceName, self), port, 0, 0, props));
+		this.type = type;
+		this.serviceName = serviceName;
+		this.jmdns = jmdns;
+		watch(jmdns, type);
+	}
+
+	//Asks for a peer's registration again, for a node a peer has heard of and this one has not: a
+	//missed announcement would otherwise leave the two with different rings until one restarts
+	public void lookup(String node) {
+		JmDNS registry = jmdns;
+		if (registry != null && !ring.nodes().contains(node)) {
+			registry.requestServiceInfo(type, instance(serviceName, node), false); //Resolves through serviceResolved
+		}
+	}
+
+	private static String instance(String serviceName, String node) {
+		return serviceName + "-" + node.replace('.', '-');
+	}
+
+	//Follows the nodes registered under the service type
+	public void watch(JmDNS jmdns, String type) {
+		jmdns.addServiceListener(type, new ServiceListener() {
+			@Override
+			public void serviceAdded(ServiceEvent event) {
+				jmdns.requestServiceInfo(type, event.getName(), 1_000); //Resolves through serviceResolved
+			}
+
+			@Override
+			public void serviceRemoved(ServiceEvent event) {
+				removed(event.getName());
+			}
+
+			@Override
+			public void serviceResolved(ServiceEvent event) {
+				resolved(event.getInfo());
+			}
+		});
+	}
+
+	//Follows the service's nodes like watch, first waiting up to the timeout for one to answer and
+	//briefly after that for the others answering the same query
+	public boolean discover(JmDNS jmdns, String type, long timeoutMs) throws InterruptedException {
+		watch(jmdns, type);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		synchronized (this) {
+			while (ring.isEmpty()) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+		}
+		Thread.sleep(Math.min(DISCOVERY_SETTLE_MS, timeoutMs));
+		return true;
+	}
+
+	//Runs the listener after every change to the ring
+	public void onChange(Runnable listener) {
+		listeners.add(listener);
+	}
+
+	public HashRing ring() {
+		return ring;
+	}
+
+	//This node's id, null for a client's view
+	public String self() {
+		return self;
+	}
+
+	//Node serving the home, or null while no node is known
+	public String owner(String home) {
+		return ring.owner(home);
+	}
+
+	//Whether this node serves the home
+	public boolean owns(String home) {
+		return self != null && self.equals(ring.owner(home));
+	}
+
+	//Holds back homes this node owns until their state has reached it, see ready
+	public void gate(LongPredicate ready) {
+		this.ready = ready;
+	}
+
+	//Whether the state of a home this node owns is here to serve it with
+	public boolean ready(String home) {
+		return ready.test(Homes.key(home));
+	}
+
+	//Address of a discovered node, or null if it is unknown or gone
+	public InetSocketAddress address(String node) {
+		return addresses.get(node);
+	}
+
+	private void resolved(ServiceInfo info) {
+		String node = info.getPropertyString(NODE_KEY);
+		String[] hosts = info.getHostAddresses();
+		if (node == null || hosts.length == 0) {
+			return; //Not resolved yet, or registered by a node without sharding
+		}
+		int count;
+		try {
+			count = Integer.parseInt(info.getPropertyString(VNODES_KEY));
+		} catch (NumberFormatException e) {
+			count = DEFAULT_VNODES;
+		}
+		addresses.put(node, new InetSocketAddress(hosts[0], info.getPort()));
+		synchronized (this) {
+			nodeByInstance.put(info.getName(), node);
+			if (!node.equals(self)) {
+				update(ring.with(node, Math.max(1, count)));
+			}
+		}
+	}
+
+	private void removed(String instance) {
+		synchronized (this) {
+			String node = nodeByInstance.remove(instance);
+			if (node == null || node.equals(self)) {
+				return;
+			}
+			addresses.remove(node);
+			update(ring.without(node));
+		}
+	}
+
+	//Called holding this
+	private void update(HashRing next) {
+		if (next == ring) {
+			return;
+		}
+		ring = next;
+		notifyAll();
+		logger.info("Placement changed, nodes " + next.nodes() + " own shares " + next.shares());
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * ShardedChannel.java
+ *
+ * Client channel over every node of a sharded service. Each call goes to
+ * the node owning its home, over a channel per node built on first use,
+ * so a client keeps one connection per node it actually talks to.
+ *
+ * A call turned away by a node that does not own the home names the owner
+ * in its trailers. The home then sticks to that owner until the client's
+ * own ring changes, which covers the moments after a node joins when the
+ * servers have seen it and the client has not.
+ */
+
+package sharding;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+public final class ShardedChannel extends ManagedChannel {
+	private final Placement placement;
+	private final Function<InetSocketAddress, ManagedChannel> factory;
+	private final ConcurrentHashMap<String, ManagedChannel> channels = new ConcurrentHashMap<>(); //By node id
+	private final ConcurrentHashMap<String, String> redirects = new ConcurrentHashMap<>(); //Home to owner named by a node
+	private volatile boolean shutdown;
+
+	//Routes over the placement's nodes, building each node's channel with the factory
+	public ShardedChannel(Placement placement, Function<InetSocketAddress, ManagedChannel> factory) {
+		this.placement = placement;
+		this.factory = factory;
+		placement.onChange(this::ringChanged);
+	}
+
+	@Override
+	public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions) {
+		String home = Homes.forCall(callOptions);
+		String node = redirects.get(home);
+		if (node == null) {
+			node = placement.owner(home);
+		}
+		ManagedChannel channel = node != null ? channel(node) : null;
+		if (channel == null) {
+			return new FailedCall<>(Status.UNAVAILABLE.withDescription("No node serves home " + home + " yet"));
+		}
+		return new SimpleForwardingClientCall<ReqT, RespT>(channel.newCall(method, callOptions)) {
+			@Override
+			public void start(Listener<RespT> responseListener, Metadata headers) {
+				super.start(new SimpleForwardingClientCallListener<RespT>(responseListener) {
+					@Override
+					public void onClose(Status status, Metadata trailers) {
+						String owner = trailers.get(Homes.OWNER);
+						if (owner != null && placement.address(owner) != null) {
+							redirects.put(home, owner);
+						}
+						super.onClose(status, trailers);
+					}
+				}, headers);
+			}
+		};
+	}
+
+	@Override
+	public String authority() {
+		return "smarthome-sharded";
+	}
+
+	@Override
+	public ManagedChannel shutdown() {
+		shutdown = true;
+		for (ManagedChannel channel : channels.values()) {
+			channel.shutdown();
+		}
+		return this;
+	}
+
+	@Override
+	public ManagedChannel shutdownNow() {
+		shutdown = true;
+		for (ManagedChannel channel : channels.values()) {
+			channel.shutdownNow();
+		}
+		return this;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		if (!shutdown) {
+			return false;
+		}
+		for (ManagedChannel channel : channels.values()) {
+			if (!channel.isTerminated()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (ManagedChannel channel : channels.values()) {
+			if (!channel.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//Channel to the node, null if its address is unknown
+	private ManagedChannel channel(String node) {
+		ManagedChannel channel = channels.get(node);
+		if (channel != null || shutdown) {
+			return channel;
+		}
+		InetSocketAddress address = placement.address(node);
+		if (address == null) {
+			return null;
+		}
+		return channels.computeIfAbsent(node, n -> factory.apply(address));
+	}
+
+	//Drops redirects and closes channels to nodes that left, calls in flight on them finish first
+	private void ringChanged() {
+		redirects.clear();
+		for (Map.Entry<String, ManagedChannel> e : channels.entrySet()) {
+			if (!placement.ring().nodes().contains(e.getKey()) && channels.remove(e.getKey(), e.getValue())) {
+				e.getValue().shutdown();
+			}
+		}
+	}
+
+	//Call that fails as soon as it starts, for homes without a reachable node
+	private static final class FailedCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+		private final Status status;
+
+		FailedCall(Status status) {
+			this.status = status;
+		}
+
+		@Override
+		public void start(Listener<RespT> responseListener, Metadata headers) {
+			responseListener.onClose(status, new Metadata());
+		}
+
+		@Override
+		public void request(int numMessages) {
+		}
+
+		@Override
+		public void cancel(String message, Throwable cause) {
+		}
+
+		@Override
+		public void halfClose() {
+		}
+
+		@Override
+		public void sendMessage(ReqT message) {
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * ExportData.java
+ *
+ * Saves a server-side export to a local file: temperature history from
+ * the thermostat, output from the solar panels or energy used by the
+ * lights, for whole days in UTC. The server writes the file, or reuses
+ * one it already has, and this tool copies its chunks into a file of the
+ * same name in the current directory without decoding them.
+ *
+ * Run with: java -cp <runtime classpath> tools.ExportData <temperature|output|energy>
+ *           <first day YYYY-MM-DD> <last day YYYY-MM-DD> [columnar|csv] [step ms]
+ * The server is on localhost at its default port unless smarthome.export.host
+ * and the server's port property say otherwise. The home is smarthome.home.
+ */
+
+package tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.function.Function;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import compression.Codecs;
+import sharding.HomeClientInterceptor;
+
+public final class ExportData {
+	private static final long DAY_MS = 86_400_000;
+
+	private ExportData() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("usage: ExportData <temperature|output|energy> <first day YYYY-MM-DD> <last day YYYY-MM-DD> [columnar|csv] [step ms]");
+			System.exit(2);
+		}
+		long start = LocalDate.parse(args[1]).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+		long end = LocalDate.parse(args[2]).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() + DAY_MS - 1;
+		boolean csv = args.length > 3 && "csv".equalsIgnoreCase(args[3]);
+		int step = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+		String host = System.getProperty("smarthome.export.host", "localhost");
+
+		long began = System.nanoTime();
+		ManagedChannel channel;
+		Iterator<Chunk> chunks;
+		switch (args[0]) {
+			case "temperature": {
+				channel = channel(host, Integer.getInteger("smarthome.thermostat.port", 50051));
+				Iterator<thermostat.protos.v2.ExportChunk> it = thermostat.protos.v2.SmartThermostatGrpc.newBlockingStub(channel)
+						.exportTemperatureHistory(thermostat.protos.v2.ExportRequest.newBuilder()
+								.setStartTimeMs(start).setEndTimeMs(end).setStepMs(step)
+								.setFormat(csv ? thermostat.protos.v2.ExportFormat.CSV : thermostat.protos.v2.ExportFormat.COLUMNAR)
+								.build());
+				chunks = map(it, c -> new Chunk(c.getFileName(), c.getFileBytes(), c.getData()));
+				break;
+			}
+			case "output": {
+				channel = channel(host, Integer.getInteger("smarthome.solar.port", 50052));
+				Iterator<solar.protos.v2.ExportChunk> it = solar.protos.v2.SmartSolarServiceGrpc.newBlockingStub(channel)
+						.exportRealTimeOutput(solar.protos.v2.ExportRequest.newBuilder()
+								.setStartTimeMs(start).setEndTimeMs(end).setStepMs(step)
+								.setFormat(csv ? solar.protos.v2.ExportFormat.CSV : solar.protos.v2.ExportFormat.COLUMNAR)
+								.build());
+				chunks = map(it, c -> new Chunk(c.getFileName(), c.getFileBytes(), c.getData()));
+				break;
+			}
+			case "energy": {
+				channel = channel(host, Integer.getInteger("smarthome.lighting.port", 50053));
+				Iterator<lighting.protos.v2.ExportChunk> it = lighting.protos.v2.SmartLightingServiceGrpc.newBlockingStub(channel)
+						.exportLightingEnergy(lighting.protos.v2.ExportRequest.newBuilder()
+								.setStartTimeMs(start).setEndTimeMs(end).setStepMs(step)
+								.setFormat(csv ? lighting.protos.v2.ExportFormat.CSV : lighting.protos.v2.ExportFormat.COLUMNAR)
+								.build());
+				chunks = map(it, c -> new Chunk(c.getFileName(), c.getFileBytes(), c.getData()));
+				break;
+			}
+			default:
+				System.err.println("Unknown series " + args[0]);
+				System.exit(2);
+				return;
+		}
+
+		try {
+			Chunk first = chunks.next(); //Names the file
+			Path file = Paths.get(first.fileName).getFileName(); //Never outside the current directory
+			long written = 0;
+			try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE)) {
+				for (Chunk c = first; c != null; c = chunks.hasNext() ? chunks.next() : null) {
+					for (ByteBuffer part : c.data.asReadOnlyByteBufferList()) {
+						while (part.hasRemaining()) {
+							written += out.write(part);
+						}
+					}
+				}
+			}
+			if (written != first.fileBytes) {
+				throw new IOException("Received " + written + " of " + first.fileBytes + " bytes");
+			}
+			System.out.println(String.format(Locale.ROOT, "Saved %s, %d bytes in %.1f s",
+					file, written, (System.nanoTime() - began) / 1e9));
+		} finally {
+			channel.shutdownNow();
+		}
+	}
+
+	private static ManagedChannel channel(String host, int port) {
+		return ManagedChannelBuilder.forAddress(host, port)
+				.usePlaintext()
+				.compressorRegistry(Codecs.compressors())
+				.decompressorRegistry(Codecs.decompressors()) //The fast codec, not the gzip fallback
+				.intercept(new HomeClientInterceptor())
+				.maxInboundMessageSize(16 << 20) //Room for the server's chunk size if raised
+				.build();
+	}
+
+	//The chunk fields shared by the three services' messages
+	private static final class Chunk {
+		final String fileName;
+		final long fileBytes;
+		final ByteString data;
+
+		Chunk(String fileName, long fileBytes, ByteString data) {
+			this.fileName = fileName;
+			this.fileBytes = fileBytes;
+			this.data = data;
+		}
+	}
+
+	private static <T> Iterator<Chunk> map(Iterator<T> it, Function<T, Chunk> f) {
+		return new Iterator<Chunk>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public Chunk next() {
+				return f.apply(it.next());
+			}
+		};
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * WireSizeReport.java
+ *
+ * Prints the encoded size of representative v1 and v2 messages for every
+ * streamed or frequently called message type, with and without the
+ * 5-byte gRPC frame header. Values are typical simulator output.
+ *
+ * Run with: java -cp <runtime classpath> tools.WireSizeReport
+ */
+
+package tools;
+
+import java.time.Instant;
+import java.util.Locale;
+import com.google.protobuf.MessageLite;
+
+public final class WireSizeReport {
+	private static final int GRPC_FRAME_HEADER = 5; //Compressed flag plus 4-byte length
+
+	private WireSizeReport() {
+	}
+
+	public static void main(String[] args) {
+		long now = System.currentTimeMillis();
+		String iso = Instant.ofEpochSecond(now / 1000).toString(); //v1 servers send second precision
+
+		System.out.println(String.format(Locale.ROOT, "%-32s %6s %6s %8s", "message", "v1", "v2", "saved"));
+		row("GetCurrentBrightnessRequest",
+				lighting.protos.GetCurrentBrightnessRequest.newBuilder().setZoneId("living-room").build(),
+				lighting.protos.v2.GetCurrentBrightnessRequest.newBuilder().setZoneId(3).setRegistration(0x5eed5eed5eed5eedL).build());
+		row("GetCurrentBrightnessResponse",
+				lighting.protos.GetCurrentBrightnessResponse.newBuilder().setLevel(73).setTimestamp(iso).build(),
+				lighting.protos.v2.GetCurrentBrightnessResponse.newBuilder().setLevel(73).setTimeMs(now).build());
+		row("AmbientLightReading",
+				lighting.protos.AmbientLightReading.newBuilder().setLux(412.73918).setOccupied(true).setTimestamp(iso).build(),
+				lighting.protos.v2.AmbientLightReading.newBuilder().setDeciLux(4127).setOccupied(true).setTimeMs(now).build());
+		row("AdjustBrightnessRequest",
+				lighting.protos.AdjustBrightnessRequest.newBuilder().setDesiredLevel(60).setOccupied(true).setTimestamp(iso).build(),
+				lighting.protos.v2.AdjustBrightnessRequest.newBuilder().setDesiredLevel(60).setOccupied(true).setTimeMs(now).build());
+		row("AdjustBrightnessResponse",
+				lighting.protos.AdjustBrightnessResponse.newBuilder().setLux(3604.2817).setTimestamp(iso).build(),
+				lighting.protos.v2.AdjustBrightnessResponse.newBuilder().setDeciLux(36043).setTimeMs(now).build());
+		row("UploadLightUsageResponse",
+				lighting.protos.UploadLightUsageResponse.newBuilder().setTotalEnergyKw(12.4831).build(),
+				lighting.protos.v2.UploadLightUsageResponse.newBuilder().setTotalEnergyWh(12483).build());
+		row("RealTimeOutput",
+				solar.protos.RealTimeOutput.newBuilder().setCurrentKw(4.83127).setTimestamp(iso).build(),
+				solar.protos.v2.RealTimeOutput.newBuilder().setCurrentW(4831).setTimeMs(now).build());
+		row("GetDailyYieldResponse",
+				solar.protos.GetDailyYieldResponse.newBuilder().setYieldKw(30.2174).setPeak(5.1183).build(),
+				solar.protos.v2.GetDailyYieldResponse.newBuilder().setYieldWh(30217).setPeakW(5118).build());
+		row("TradeRequest",
+				solar.protos.TradeRequest.newBuilder().setPrice(0.35).setQuantity(2.5).build(),
+				solar.protos.v2.TradeRequest.newBuilder().setPriceMilli(350).setQuantityWh(2500).build());
+		row("TradeResponse (counter-offer)",
+				solar.protos.TradeResponse.newBuilder().setCounterOffer(0.40).build(),
+				solar.protos.v2.TradeResponse.newBuilder().setCounterOfferMilli(400).build());
+		row("TemperatureReading",
+				thermostat.protos.TemperatureReading.newBuilder().setTemperature(20.4172).setTimestamp(now).build(),
+				thermostat.protos.v2.TemperatureReading.newBuilder().setCentiDegrees(2042).setTimeMs(now).build());
+	}
+
+	private static void row(String name, MessageLite v1, MessageLite v2) {
+		int a = v1.getSerializedSize();
+		int b = v2.getSerializedSize();
+		System.out.println(String.format(Locale.ROOT, "%-32s %6d %6d %7.0f%%   framed %d -> %d",
+				name, a, b, 100.0 * (a - b) / a, a + GRPC_FRAME_HEADER, b + GRPC_FRAME_HEADER));
+	}
+}